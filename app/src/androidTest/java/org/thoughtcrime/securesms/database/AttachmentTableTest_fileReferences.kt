@@ -0,0 +1,282 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.Context
+import android.net.Uri
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.mms.MediaStream
+import org.thoughtcrime.securesms.mms.PartAuthority
+import org.thoughtcrime.securesms.providers.BlobProvider
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.thoughtcrime.securesms.util.MediaUtil
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.io.File
+import java.util.Collections
+import java.util.UUID
+import java.util.concurrent.CountDownLatch
+
+@Suppress("ClassName")
+@RunWith(AndroidJUnit4::class)
+class AttachmentTableTest_fileReferences {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  @Before
+  fun setUp() {
+    SignalDatabase.attachments.deleteAllAttachments()
+  }
+
+  @Test
+  fun givenTwoIdenticalAttachments_whenIInsertThem_thenTheyShareAFile() {
+    val first = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val second = insert(byteArrayOf(1, 2, 3, 4, 5))
+
+    assertEquals(fileOf(first.attachmentId), fileOf(second.attachmentId))
+  }
+
+  @Test
+  fun givenAnExistingAttachment_whenIInsertACopyOfIt_thenTheyShareAFile() {
+    val original = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val copy = insert(PartAuthority.getAttachmentDataUri(original.attachmentId))
+
+    assertNotEquals(original.attachmentId, copy.attachmentId)
+    assertEquals(fileOf(original.attachmentId), fileOf(copy.attachmentId))
+  }
+
+  @Test
+  fun givenASharedFile_whenIDeleteOneAttachment_thenTheFileIsKept() {
+    val first = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val second = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val file = fileOf(first.attachmentId)
+
+    SignalDatabase.attachments.deleteAttachment(first.attachmentId)
+
+    assertTrue(file.exists())
+    assertTrue(SignalDatabase.attachmentFiles.isReferenced(file))
+    assertEquals(file, fileOf(second.attachmentId))
+  }
+
+  @Test
+  fun givenASharedFile_whenIDeleteEveryAttachment_thenTheFileIsDeleted() {
+    val first = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val second = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val file = fileOf(first.attachmentId)
+
+    SignalDatabase.attachments.deleteAttachment(first.attachmentId)
+    SignalDatabase.attachments.deleteAttachment(second.attachmentId)
+
+    assertFalse(file.exists())
+    assertFalse(SignalDatabase.attachmentFiles.isReferenced(file))
+  }
+
+  @Test
+  fun givenASharedFile_whenIUpdateOnlyOneAttachment_thenTheOtherStillReadsTheOriginalData() {
+    val first = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val second = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val originalFile = fileOf(first.attachmentId)
+
+    SignalDatabase.attachments.updateAttachmentData(first, MediaStream(byteArrayOf(6, 7, 8).inputStream(), MediaUtil.IMAGE_JPEG, 2, 2), true)
+
+    assertNotEquals(originalFile, fileOf(first.attachmentId))
+    assertEquals(originalFile, fileOf(second.attachmentId))
+    assertTrue(originalFile.exists())
+    assertEquals(listOf<Byte>(1, 2, 3, 4, 5), read(second.attachmentId))
+    assertEquals(listOf<Byte>(6, 7, 8), read(first.attachmentId))
+  }
+
+  @Test
+  fun givenTheOnlyReference_whenIUpdateTheAttachment_thenTheOldFileIsDeleted() {
+    val attachment = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val originalFile = fileOf(attachment.attachmentId)
+
+    SignalDatabase.attachments.updateAttachmentData(attachment, MediaStream(byteArrayOf(6, 7, 8).inputStream(), MediaUtil.IMAGE_JPEG, 2, 2), false)
+
+    assertFalse(originalFile.exists())
+    assertTrue(fileOf(attachment.attachmentId).exists())
+  }
+
+  @Test
+  fun givenAThumbnail_whenIReadItThroughAnotherAttachmentSharingTheFile_thenIGetTheThumbnail() {
+    val first = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val second = insert(byteArrayOf(1, 2, 3, 4, 5))
+
+    SignalDatabase.attachments.writeThumbnail(fileOf(first.attachmentId), byteArrayOf(10, 11, 12).inputStream())
+
+    assertEquals(listOf<Byte>(10, 11, 12), SignalDatabase.attachments.getThumbnailStream(second.attachmentId)!!.use { it.readBytes().toList() })
+  }
+
+  @Test
+  fun givenAThumbnail_whenIDeleteEveryAttachment_thenTheThumbnailIsDeleted() {
+    val attachment = insert(byteArrayOf(1, 2, 3, 4, 5))
+
+    SignalDatabase.attachments.writeThumbnail(fileOf(attachment.attachmentId), byteArrayOf(10, 11, 12).inputStream())
+    val thumbnailFile = SignalDatabase.attachmentFiles.getThumbnail(attachment.attachmentId)!!.file
+
+    SignalDatabase.attachments.deleteAttachment(attachment.attachmentId)
+
+    assertFalse(thumbnailFile.exists())
+  }
+
+  @Test
+  fun givenSeveralFilesWithoutThumbnails_whenIGetPendingThumbnails_thenTheNewestComeFirst() {
+    val oldest = insert(byteArrayOf(1, 2, 3))
+    val middle = insert(byteArrayOf(4, 5, 6))
+    val newest = insert(byteArrayOf(7, 8, 9))
+
+    val pending = SignalDatabase.attachmentFiles.getPendingThumbnails(-1, 10)
+
+    assertEquals(listOf(newest, middle, oldest).map { fileOf(it.attachmentId) }, pending.map { it.file })
+  }
+
+  @Test
+  fun givenMediaInTheVisibleThread_whenIGetPendingThumbnails_thenItComesBeforeNewerMedia() {
+    val visibleThreadId = insertMessageWith(byteArrayOf(1, 2, 3))
+    insertMessageWith(byteArrayOf(4, 5, 6))
+
+    val pending = SignalDatabase.attachmentFiles.getPendingThumbnails(visibleThreadId, 10)
+
+    assertEquals(2, pending.size)
+    assertEquals(listOf<Byte>(1, 2, 3), read(pending[0].attachmentId))
+    assertEquals(listOf<Byte>(4, 5, 6), read(pending[1].attachmentId))
+  }
+
+  @Test
+  fun givenAPendingThumbnail_whenILimitTheBatch_thenIOnlyGetThatMany() {
+    insert(byteArrayOf(1, 2, 3))
+    insert(byteArrayOf(4, 5, 6))
+    insert(byteArrayOf(7, 8, 9))
+
+    assertEquals(2, SignalDatabase.attachmentFiles.getPendingThumbnails(-1, 2).size)
+  }
+
+  @Test
+  fun givenASkippedThumbnail_whenIGetPendingThumbnails_thenItIsNotIncluded() {
+    val skipped = insert(byteArrayOf(1, 2, 3))
+    val kept = insert(byteArrayOf(4, 5, 6))
+
+    SignalDatabase.attachmentFiles.skipThumbnail(fileOf(skipped.attachmentId))
+
+    assertEquals(listOf(fileOf(kept.attachmentId)), SignalDatabase.attachmentFiles.getPendingThumbnails(-1, 10).map { it.file })
+    assertNull(SignalDatabase.attachments.getThumbnailStream(skipped.attachmentId))
+  }
+
+  @Test
+  fun givenAThumbnail_whenIGetPendingThumbnails_thenItIsNotIncluded() {
+    val attachment = insert(byteArrayOf(1, 2, 3))
+
+    SignalDatabase.attachments.writeThumbnail(fileOf(attachment.attachmentId), byteArrayOf(10, 11, 12).inputStream())
+
+    assertTrue(SignalDatabase.attachmentFiles.getPendingThumbnails(-1, 10).isEmpty())
+  }
+
+  @Test
+  fun givenAFileThatLostItsLastReference_whenIWriteItsThumbnail_thenTheThumbnailIsDiscarded() {
+    val attachment = insert(byteArrayOf(1, 2, 3, 4, 5))
+    val pending = SignalDatabase.attachmentFiles.getPendingThumbnails(-1, 10).single()
+    val thumbnailsBefore = thumbnailFilesOnDisk()
+
+    SignalDatabase.attachments.deleteAttachment(attachment.attachmentId)
+    SignalDatabase.attachments.writeThumbnail(pending.file, byteArrayOf(10, 11, 12).inputStream())
+
+    assertTrue(SignalDatabase.attachmentFiles.getAllThumbnailFiles().isEmpty())
+    assertEquals(thumbnailsBefore, thumbnailFilesOnDisk())
+  }
+
+  /**
+   * Inserts the same data from several threads while deleting some of what was inserted, so that inserts race with the deletion of the last reference to
+   * the shared file. Every attachment left over must still have its file, and the file must go away with the last of them.
+   */
+  @Test
+  fun givenConcurrentInsertsAndDeletes_whenTheyRace_thenNoAttachmentLosesItsFile() {
+    val threadCount = 4
+    val iterations = 25
+    val data = byteArrayOf(9, 8, 7, 6, 5, 4, 3, 2, 1)
+    val kept: MutableList<AttachmentId> = Collections.synchronizedList(mutableListOf())
+    val start = CountDownLatch(1)
+
+    val threads = (0 until threadCount).map {
+      Thread {
+        start.await()
+        for (i in 0 until iterations) {
+          val attachment = insert(data)
+          if (i % 2 == 0) {
+            SignalDatabase.attachments.deleteAttachment(attachment.attachmentId)
+          } else {
+            kept += attachment.attachmentId
+          }
+        }
+      }
+    }
+
+    threads.forEach { it.start() }
+    start.countDown()
+    threads.forEach { it.join() }
+
+    val files = kept.map { fileOf(it) }.toSet()
+
+    assertEquals(threadCount * iterations / 2, kept.size)
+    for (file in files) {
+      assertTrue(file.exists())
+      assertTrue(SignalDatabase.attachmentFiles.isReferenced(file))
+    }
+    for (id in kept) {
+      assertEquals(data.toList(), read(id))
+    }
+
+    kept.forEach { SignalDatabase.attachments.deleteAttachment(it) }
+
+    for (file in files) {
+      assertFalse(file.exists())
+    }
+  }
+
+  private fun insert(data: ByteArray): DatabaseAttachment {
+    return insert(BlobProvider.getInstance().forData(data).createForSingleSessionInMemory())
+  }
+
+  private fun insert(uri: Uri): DatabaseAttachment {
+    return SignalDatabase.attachments.insertAttachmentForPreUpload(UriAttachmentBuilder.build(1, uri = uri, contentType = MediaUtil.IMAGE_JPEG))
+  }
+
+  /**
+   * Inserts a message in a new thread with an attachment holding the given data.
+   *
+   * @return The id of the thread.
+   */
+  private fun insertMessageWith(data: ByteArray): Long {
+    val recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID())))
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    val messageId = MmsHelper.insert(recipient = recipient, threadId = threadId)
+    val attachment = UriAttachmentBuilder.build(1, uri = BlobProvider.getInstance().forData(data).createForSingleSessionInMemory(), contentType = MediaUtil.IMAGE_JPEG)
+
+    SignalDatabase.attachments.insertAttachmentsForMessage(messageId, listOf(attachment), emptyList())
+
+    return threadId
+  }
+
+  private fun fileOf(attachmentId: AttachmentId): File {
+    return SignalDatabase.attachments.getAttachmentDataFileInfo(attachmentId, AttachmentTable.DATA)!!.file
+  }
+
+  private fun read(attachmentId: AttachmentId): List<Byte> {
+    return SignalDatabase.attachments.getAttachmentStream(attachmentId, 0).use { it.readBytes().toList() }
+  }
+
+  private fun thumbnailFilesOnDisk(): Set<String> {
+    return ApplicationDependencies.getApplication().getDir("parts", Context.MODE_PRIVATE).list { _, name -> name.startsWith("thumbnail") }!!.toSet()
+  }
+}
@@ -0,0 +1,119 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.getTableRowCount
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.thoughtcrime.securesms.util.FeatureFlags
+import org.whispersystems.signalservice.api.crypto.ContentHint
+import org.whispersystems.signalservice.api.messages.SendMessageResult
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.SignalServiceAddress
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos
+import java.util.Optional
+import java.util.UUID
+
+@RunWith(AndroidJUnit4::class)
+class MessageSendLogTablesTest {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private val maxAge = FeatureFlags.retryRespondMaxAge()
+  private val now = System.currentTimeMillis()
+
+  @Before
+  fun setUp() {
+    SignalDatabase.messageLog.deleteAll()
+  }
+
+  @Test
+  fun getLogEntry_ignoresExpiredEntriesBeforeTheyAreTrimmed() {
+    val recipientId = RecipientId.from(1)
+    val fresh = now - maxAge + 60_000
+    val expired = now - maxAge - 60_000
+
+    insert(recipientId, fresh, 1)
+    insert(recipientId, expired, 2)
+
+    assertNotNull(SignalDatabase.messageLog.getLogEntry(recipientId, 1, fresh))
+    assertNull(SignalDatabase.messageLog.getLogEntry(recipientId, 1, expired))
+    assertEquals(2, payloadCount())
+  }
+
+  @Test
+  fun trimOldMessages_deletesEverythingOlderThanMaxAgeAcrossBuckets() {
+    val recipientId = RecipientId.from(1)
+    val cutoff = now - maxAge
+
+    for (i in 1..2000) {
+      insert(recipientId, cutoff - i * 10 * 60_000L, i.toLong())
+    }
+    for (i in 1..10) {
+      insert(recipientId, cutoff + i * 60_000L, 10_000L + i)
+    }
+
+    val deleted = SignalDatabase.messageLog.trimOldMessages(now, maxAge)
+
+    assertEquals(2000, deleted)
+    assertEquals(10, payloadCount())
+    assertEquals(10, SignalDatabase.rawDatabase.getTableRowCount("msl_recipient"))
+    assertEquals(10, SignalDatabase.rawDatabase.getTableRowCount("msl_message"))
+  }
+
+  @Test
+  fun getNextTrimTime_isWhenTheOldestBucketFullyExpires() {
+    assertEquals(-1, SignalDatabase.messageLog.getNextTrimTime(maxAge))
+
+    val oldest = now - 1000
+    insert(RecipientId.from(1), oldest, 1)
+    insert(RecipientId.from(1), now, 2)
+
+    assertEquals(MessageSendLogTables.getBucketEnd(oldest) + maxAge, SignalDatabase.messageLog.getNextTrimTime(maxAge))
+  }
+
+  @Test
+  fun addRecipientsToExistingEntryIfPossible_appendsEverySuccessfulResult() {
+    val recipients: List<Recipient> = (0 until 20).map { Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))) }
+    val results: List<SendMessageResult> = recipients.map { success(it.requireServiceId() as ACI, now, listOf(1, 2)) }
+    val messageId = MessageId(1)
+
+    val payloadId = SignalDatabase.messageLog.insertIfPossible(now, recipients.take(5), results.take(5), ContentHint.RESENDABLE, messageId, true)
+    val appendedId = SignalDatabase.messageLog.addRecipientsToExistingEntryIfPossible(payloadId, now, recipients.drop(5), results.drop(5), ContentHint.RESENDABLE, messageId, true)
+
+    assertEquals(payloadId, appendedId)
+    assertEquals(1, payloadCount())
+    assertEquals(40, SignalDatabase.rawDatabase.getTableRowCount("msl_recipient"))
+
+    for (recipient in recipients) {
+      assertNotNull(SignalDatabase.messageLog.getLogEntry(recipient.id, 2, now))
+    }
+  }
+
+  private fun insert(recipientId: RecipientId, dateSent: Long, messageId: Long): Long {
+    val result = success(ACI.from(UUID.randomUUID()), dateSent, listOf(1))
+    return SignalDatabase.messageLog.insertIfPossible(recipientId, dateSent, result, ContentHint.RESENDABLE, MessageId(messageId), true)
+  }
+
+  private fun success(aci: ACI, dateSent: Long, devices: List<Int>): SendMessageResult {
+    val content = SignalServiceProtos.Content.newBuilder()
+      .setDataMessage(SignalServiceProtos.DataMessage.newBuilder().setBody("Test").setTimestamp(dateSent))
+      .build()
+
+    return SendMessageResult.success(SignalServiceAddress(aci), devices, true, false, 0, Optional.of(content))
+  }
+
+  private fun payloadCount(): Int {
+    return SignalDatabase.rawDatabase.getTableRowCount("msl_payload")
+  }
+}
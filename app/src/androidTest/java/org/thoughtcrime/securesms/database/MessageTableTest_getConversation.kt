@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.database
+
+import android.database.Cursor
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.readToList
+import org.signal.core.util.requireLong
+import org.signal.core.util.withinTransaction
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.util.UUID
+
+@Suppress("ClassName")
+@RunWith(AndroidJUnit4::class)
+class MessageTableTest_getConversation {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipientId: RecipientId
+  private var threadId: Long = 0
+
+  @Before
+  fun setUp() {
+    recipientId = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(Recipient.resolved(recipientId))
+  }
+
+  @Test
+  fun givenMessagesWithSharedTimestamps_whenIPageFromAnchors_thenIGetTheSamePagesAsWithOffsets() {
+    insertMessages(count = 1000) { it / 3L }
+
+    val anchors = SignalDatabase.messages.getConversationAnchors(threadId, 50)
+    assertEquals(20, anchors.size)
+
+    for (start in listOf(50, 51, 99, 100, 500, 949, 975)) {
+      assertEquals("start $start", getIdsWithOffset(start, 25), getIdsWithAnchor(anchors, 50, 1000, start, 25))
+    }
+  }
+
+  @Test
+  fun givenNewerMessagesInsertedAfterAnchorsAreBuilt_whenIPageFromAnchors_thenIGetTheSamePagesAsWithOffsets() {
+    insertMessages(count = 1000) { it }
+    val anchors = SignalDatabase.messages.getConversationAnchors(threadId, 50)
+
+    insertMessages(count = 10) { 10_000 + it }
+
+    for (start in listOf(60, 500, 985)) {
+      assertEquals("start $start", getIdsWithOffset(start, 25), getIdsWithAnchor(anchors, 50, 1010, start, 25))
+    }
+  }
+
+  private fun getIdsWithOffset(start: Int, length: Int): List<Long> {
+    return SignalDatabase.messages.getConversation(threadId, start.toLong(), length.toLong()).toIds()
+  }
+
+  /**
+   * Mirrors how ConversationDataSource picks the anchor for a page.
+   */
+  private fun getIdsWithAnchor(anchors: List<MessageTable.ConversationAnchor>, stride: Int, messageCount: Int, start: Int, length: Int): List<Long> {
+    val newestIndex = messageCount - 1 - start
+    val anchorPosition = newestIndex / stride + 1
+    val skip = anchorPosition * stride - 1 - newestIndex
+
+    return SignalDatabase.messages.getConversation(threadId, anchors[anchorPosition], skip.toLong(), length.toLong()).toIds()
+  }
+
+  private fun insertMessages(count: Int, dateReceived: (Long) -> Long) {
+    SignalDatabase.rawDatabase.withinTransaction { db ->
+      for (i in 0 until count.toLong()) {
+        db.insert(
+          MessageTable.TABLE_NAME,
+          null,
+          contentValuesOf(
+            MessageTable.THREAD_ID to threadId,
+            MessageTable.DATE_SENT to dateReceived(i),
+            MessageTable.DATE_RECEIVED to dateReceived(i),
+            MessageTable.FROM_RECIPIENT_ID to recipientId.toLong(),
+            MessageTable.TO_RECIPIENT_ID to recipientId.toLong(),
+            MessageTable.TYPE to MessageTypes.BASE_INBOX_TYPE,
+            MessageTable.BODY to "Message $i"
+          )
+        )
+      }
+    }
+  }
+
+  private fun Cursor.toIds(): List<Long> {
+    return readToList { it.requireLong(MessageTable.ID) }
+  }
+}
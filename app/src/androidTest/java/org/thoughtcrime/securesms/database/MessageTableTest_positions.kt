@@ -0,0 +1,169 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.delete
+import org.signal.core.util.readToList
+import org.signal.core.util.readToSingleInt
+import org.signal.core.util.requireLong
+import org.signal.core.util.select
+import org.signal.core.util.update
+import org.signal.core.util.withinTransaction
+import org.thoughtcrime.securesms.database.model.StoryType
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+@Suppress("ClassName")
+@RunWith(AndroidJUnit4::class)
+class MessageTableTest_positions {
+
+  companion object {
+    private val DAY = TimeUnit.DAYS.toMillis(1)
+  }
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private val random = Random(1)
+
+  private lateinit var recipientId: RecipientId
+  private var threadId: Long = 0
+  private var otherThreadId: Long = 0
+
+  @Before
+  fun setUp() {
+    recipientId = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(Recipient.resolved(recipientId))
+
+    val otherRecipientId = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+    otherThreadId = SignalDatabase.threads.getOrCreateThreadIdFor(Recipient.resolved(otherRecipientId))
+  }
+
+  @Test
+  fun givenMessagesSpreadOverManyDays_whenIGetPositions_thenTheyMatchCounting() {
+    insertMessages(threadId, count = 2000) { random.nextLong(100 * DAY) }
+    insertMessages(otherThreadId, count = 500) { random.nextLong(100 * DAY) }
+
+    assertPositionsMatchCounting()
+  }
+
+  @Test
+  fun givenHiddenMessages_whenIGetPositions_thenTheyAreNotCounted() {
+    insertMessages(threadId, count = 500) { random.nextLong(10 * DAY) }
+    insertMessages(threadId, count = 50, MessageTable.STORY_TYPE to StoryType.STORY_WITH_REPLIES.code) { random.nextLong(10 * DAY) }
+    insertMessages(threadId, count = 50, MessageTable.PARENT_STORY_ID to 1L) { random.nextLong(10 * DAY) }
+    insertMessages(threadId, count = 50, MessageTable.SCHEDULED_DATE to 20 * DAY) { random.nextLong(10 * DAY) }
+
+    assertPositionsMatchCounting()
+  }
+
+  @Test
+  fun givenDeletesEditsAndMoves_whenIGetPositions_thenTheyMatchCounting() {
+    insertMessages(threadId, count = 2000) { random.nextLong(30 * DAY) }
+    val ids = getIds(threadId).shuffled(random)
+
+    SignalDatabase.rawDatabase.withinTransaction { db ->
+      for (id in ids.subList(0, 200)) {
+        db.delete(MessageTable.TABLE_NAME).where("${MessageTable.ID} = ?", id).run()
+      }
+
+      for (id in ids.subList(200, 400)) {
+        db.update(MessageTable.TABLE_NAME).values(MessageTable.LATEST_REVISION_ID to ids[0]).where("${MessageTable.ID} = ?", id).run()
+      }
+
+      for (id in ids.subList(400, 500)) {
+        db.update(MessageTable.TABLE_NAME).values(MessageTable.DATE_RECEIVED to random.nextLong(30 * DAY)).where("${MessageTable.ID} = ?", id).run()
+      }
+
+      for (id in ids.subList(500, 600)) {
+        db.update(MessageTable.TABLE_NAME).values(MessageTable.THREAD_ID to otherThreadId).where("${MessageTable.ID} = ?", id).run()
+      }
+
+      for (id in ids.subList(600, 700)) {
+        db.update(MessageTable.TABLE_NAME).values(MessageTable.SCHEDULED_DATE to 40 * DAY).where("${MessageTable.ID} = ?", id).run()
+      }
+
+      for (id in ids.subList(200, 250)) {
+        db.update(MessageTable.TABLE_NAME).values(MessageTable.LATEST_REVISION_ID to null).where("${MessageTable.ID} = ?", id).run()
+      }
+    }
+
+    assertPositionsMatchCounting()
+  }
+
+  @Test
+  fun givenAThreadIsDeleted_whenIGetPositions_thenNothingIsLeftBehind() {
+    insertMessages(threadId, count = 100) { random.nextLong(10 * DAY) }
+
+    SignalDatabase.threads.deleteConversation(threadId)
+
+    assertEquals(0, SignalDatabase.messageDayCounts.getCountReceivedAfter(threadId, -1))
+  }
+
+  private fun assertPositionsMatchCounting() {
+    for (thread in listOf(threadId, otherThreadId)) {
+      val dates = SignalDatabase.rawDatabase
+        .select(MessageTable.DATE_RECEIVED)
+        .from(MessageTable.TABLE_NAME)
+        .where("${MessageTable.THREAD_ID} = ?", thread)
+        .run()
+        .readToList { it.requireLong(MessageTable.DATE_RECEIVED) }
+
+      for (dateReceived in dates + listOf(-1L, 0L, DAY - 1, DAY, 1000 * DAY)) {
+        assertEquals("thread $thread, date $dateReceived", countReceivedAfter(thread, dateReceived), SignalDatabase.messageDayCounts.getCountReceivedAfter(thread, dateReceived))
+      }
+    }
+  }
+
+  /**
+   * The query the positions were found with before the day counts.
+   */
+  private fun countReceivedAfter(threadId: Long, dateReceived: Long): Int {
+    return SignalDatabase.rawDatabase
+      .select("COUNT(*)")
+      .from(MessageTable.TABLE_NAME)
+      .where("${MessageTable.THREAD_ID} = $threadId AND ${MessageTable.STORY_TYPE} = 0 AND ${MessageTable.PARENT_STORY_ID} <= 0 AND ${MessageTable.SCHEDULED_DATE} = -1 AND ${MessageTable.LATEST_REVISION_ID} IS NULL AND ${MessageTable.DATE_RECEIVED} > $dateReceived")
+      .run()
+      .readToSingleInt()
+  }
+
+  private fun getIds(threadId: Long): List<Long> {
+    return SignalDatabase.rawDatabase
+      .select(MessageTable.ID)
+      .from(MessageTable.TABLE_NAME)
+      .where("${MessageTable.THREAD_ID} = ?", threadId)
+      .run()
+      .readToList { it.requireLong(MessageTable.ID) }
+  }
+
+  private fun insertMessages(threadId: Long, count: Int, vararg extras: Pair<String, Any>, dateReceived: (Long) -> Long) {
+    SignalDatabase.rawDatabase.withinTransaction { db ->
+      for (i in 0 until count.toLong()) {
+        val date = dateReceived(i)
+        val values = contentValuesOf(
+          MessageTable.THREAD_ID to threadId,
+          MessageTable.DATE_SENT to date,
+          MessageTable.DATE_RECEIVED to date,
+          MessageTable.FROM_RECIPIENT_ID to recipientId.toLong(),
+          MessageTable.TO_RECIPIENT_ID to recipientId.toLong(),
+          MessageTable.TYPE to MessageTypes.BASE_INBOX_TYPE,
+          MessageTable.BODY to "Message $i",
+          *extras
+        )
+
+        db.insert(MessageTable.TABLE_NAME, null, values)
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.readToSingleInt
+import org.signal.core.util.select
+import org.signal.core.util.withinTransaction
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicLong
+
+@Suppress("ClassName")
+@RunWith(AndroidJUnit4::class)
+class MessageTableTest_readConnectionPool {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipientId: RecipientId
+  private var threadId: Long = 0
+  private var poolWasEnabled = false
+  private val dateReceived = AtomicLong(1)
+
+  @Before
+  fun setUp() {
+    recipientId = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(Recipient.resolved(recipientId))
+    poolWasEnabled = SignalDatabase.instance!!.isReadConnectionPoolEnabled()
+  }
+
+  @After
+  fun tearDown() {
+    SignalDatabase.instance!!.setReadConnectionPoolEnabled(poolWasEnabled)
+  }
+
+  @Test
+  fun givenTheReadPool_whenIReadOutsideOfATransaction_thenISeeCommittedWrites() {
+    SignalDatabase.instance!!.setReadConnectionPoolEnabled(true)
+
+    insertMessages(10)
+
+    assertEquals(10, countMessages())
+  }
+
+  @Test
+  fun givenTheReadPool_whenIReadInsideATransaction_thenISeeMyOwnWrites() {
+    SignalDatabase.instance!!.setReadConnectionPoolEnabled(true)
+
+    SignalDatabase.rawDatabase.withinTransaction {
+      insertMessages(10)
+      assertEquals(10, countMessages())
+    }
+  }
+
+  private fun countMessages(): Int {
+    return SignalDatabase.instance!!.signalReadableDatabase
+      .select("COUNT(*)")
+      .from(MessageTable.TABLE_NAME)
+      .where("${MessageTable.THREAD_ID} = ?", threadId)
+      .run()
+      .readToSingleInt()
+  }
+
+  private fun insertMessages(count: Int) {
+    SignalDatabase.rawDatabase.withinTransaction { db ->
+      for (i in 0 until count) {
+        val date = dateReceived.getAndIncrement()
+        val values = contentValuesOf(
+          MessageTable.THREAD_ID to threadId,
+          MessageTable.DATE_SENT to date,
+          MessageTable.DATE_RECEIVED to date,
+          MessageTable.FROM_RECIPIENT_ID to recipientId.toLong(),
+          MessageTable.TO_RECIPIENT_ID to recipientId.toLong(),
+          MessageTable.TYPE to MessageTypes.BASE_INBOX_TYPE,
+          MessageTable.BODY to "Message $date"
+        )
+
+        db.insert(MessageTable.TABLE_NAME, null, values)
+      }
+    }
+  }
+}
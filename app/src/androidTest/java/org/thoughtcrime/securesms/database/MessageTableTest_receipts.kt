@@ -0,0 +1,74 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.util.UUID
+
+@Suppress("ClassName")
+@RunWith(AndroidJUnit4::class)
+class MessageTableTest_receipts {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipientId: RecipientId
+  private lateinit var otherRecipientId: RecipientId
+
+  @Before
+  fun setUp() {
+    recipientId = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+    otherRecipientId = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+  }
+
+  @Test
+  fun givenManyTargetTimestamps_whenIIncrementDeliveryReceipts_thenEachMatchedMessageIsCountedOnceAndTheRestAreMissing() {
+    val messageIds: List<Long> = (1L..50L).map { MmsHelper.insert(recipient = Recipient.resolved(recipientId), sentTimeMillis = it) }
+
+    val missing = SignalDatabase.messages.incrementDeliveryReceiptCounts((1L..50L).toList() + listOf(1L, 1000L), recipientId, 5000)
+
+    assertEquals(setOf(1000L), missing)
+    for (messageId in messageIds) {
+      val record = SignalDatabase.messages.getMessageRecord(messageId)
+      assertEquals(1, record.deliveryReceiptCount)
+      assertEquals(5000L, record.receiptTimestamp)
+    }
+  }
+
+  @Test
+  fun givenReceiptsFromAnotherRecipient_whenIIncrementReadReceipts_thenNothingIsUpdated() {
+    val messageIds: List<Long> = (1L..10L).map { MmsHelper.insert(recipient = Recipient.resolved(recipientId), sentTimeMillis = it) }
+
+    val missing = SignalDatabase.messages.incrementReadReceiptCounts((1L..10L).toList(), otherRecipientId, 5000)
+
+    assertEquals((1L..10L).toSet(), missing)
+    for (messageId in messageIds) {
+      assertEquals(0, SignalDatabase.messages.getMessageRecord(messageId).readReceiptCount)
+    }
+  }
+
+  @Test
+  fun givenGroupReceipts_whenIIncrementReadReceipts_thenTheAuthorsGroupReceiptsAreUpdated() {
+    val messageIds: List<Long> = (1L..20L).map { MmsHelper.insert(recipient = Recipient.resolved(recipientId), sentTimeMillis = it) }
+    for (messageId in messageIds) {
+      SignalDatabase.groupReceipts.insert(listOf(recipientId, otherRecipientId), messageId, GroupReceiptTable.STATUS_UNDELIVERED, 0)
+    }
+
+    SignalDatabase.messages.incrementReadReceiptCounts((1L..20L).toList(), recipientId, 5000)
+
+    for (messageId in messageIds) {
+      val receipts = SignalDatabase.groupReceipts.getGroupReceiptInfo(messageId).associateBy { it.recipientId }
+      assertEquals(GroupReceiptTable.STATUS_READ, receipts[recipientId]!!.status)
+      assertEquals(5000L, receipts[recipientId]!!.timestamp)
+      assertEquals(GroupReceiptTable.STATUS_UNDELIVERED, receipts[otherRecipientId]!!.status)
+    }
+  }
+}
@@ -3,6 +3,7 @@ package org.signal.benchmark
 import android.os.Bundle
 import android.widget.TextView
 import org.signal.benchmark.setup.TestMessages
+import org.signal.core.util.withinTransaction
 import org.signal.benchmark.setup.TestUsers
 import org.thoughtcrime.securesms.BaseActivity
 import org.thoughtcrime.securesms.database.SignalDatabase
@@ -14,7 +15,8 @@ class BenchmarkSetupActivity : BaseActivity() {
 
     when (intent.extras!!.getString("setup-type")) {
       "cold-start" -> setupColdStart()
-      "conversation-open" -> setupConversationOpen()
+      "conversation-open" -> setupConversationOpen(messagesToAdd = 1000)
+      "conversation-open-large" -> setupConversationOpen(messagesToAdd = 10_000)
     }
 
     val textView: TextView = TextView(this).apply {
@@ -39,16 +41,17 @@ class BenchmarkSetupActivity : BaseActivity() {
     }
   }
 
-  private fun setupConversationOpen() {
+  private fun setupConversationOpen(messagesToAdd: Int) {
     TestUsers.setupSelf()
     TestUsers.setupTestRecipient().let {
       val recipient: Recipient = Recipient.resolved(it)
-      val messagesToAdd = 1000
       val generator: TestMessages.TimestampGenerator = TestMessages.TimestampGenerator(System.currentTimeMillis() - (messagesToAdd * 2000L) - 60_000L)
 
-      for (i in 0 until messagesToAdd) {
-        TestMessages.insertIncomingTextMessage(other = recipient, body = "Test message $i", timestamp = generator.nextTimestamp())
-        TestMessages.insertOutgoingTextMessage(other = recipient, body = "Test message $i", timestamp = generator.nextTimestamp())
+      SignalDatabase.rawDatabase.withinTransaction {
+        for (i in 0 until messagesToAdd) {
+          TestMessages.insertIncomingTextMessage(other = recipient, body = "Test message $i", timestamp = generator.nextTimestamp())
+          TestMessages.insertOutgoingTextMessage(other = recipient, body = "Test message $i", timestamp = generator.nextTimestamp())
+        }
       }
 
       SignalDatabase.threads.update(SignalDatabase.threads.getOrCreateThreadIdFor(recipient = recipient), true)
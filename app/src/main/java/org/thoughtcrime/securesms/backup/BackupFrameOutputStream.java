@@ -134,6 +134,20 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
     }
   }
 
+  /**
+   * Writes an attachment frame without any data, referencing a file the receiver already has with the same plaintext hash.
+   */
+  public void writeReusedAttachment(@NonNull AttachmentId attachmentId, @NonNull String dataHash) throws IOException {
+    write(outputStream, new BackupFrame.Builder()
+        .attachment(new Attachment.Builder()
+                        .rowId(attachmentId.getRowId())
+                        .attachmentId(attachmentId.getUniqueId())
+                        .length(0)
+                        .reusedDataHash(dataHash)
+                        .build())
+        .build());
+  }
+
   public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
     try {
       write(outputStream, new BackupFrame.Builder()
@@ -28,11 +28,14 @@ import org.thoughtcrime.securesms.backup.proto.SqlStatement;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.database.AttachmentFileTable;
 import org.thoughtcrime.securesms.database.AttachmentTable;
+import org.thoughtcrime.securesms.database.EarlyMessageCacheTable;
 import org.thoughtcrime.securesms.database.EmojiSearchTable;
 import org.thoughtcrime.securesms.database.GroupReceiptTable;
 import org.thoughtcrime.securesms.database.KeyValueDatabase;
 import org.thoughtcrime.securesms.database.MentionTable;
+import org.thoughtcrime.securesms.database.MessageDayCountTable;
 import org.thoughtcrime.securesms.database.MessageTable;
 import org.thoughtcrime.securesms.database.OneTimePreKeyTable;
 import org.thoughtcrime.securesms.database.PendingRetryReceiptTable;
@@ -58,6 +61,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -91,7 +95,10 @@ public class FullBackupExporter extends FullBackupBase {
       SenderKeyTable.TABLE_NAME,
       SenderKeySharedTable.TABLE_NAME,
       PendingRetryReceiptTable.TABLE_NAME,
-      AvatarPickerDatabase.TABLE_NAME
+      AvatarPickerDatabase.TABLE_NAME,
+      MessageDayCountTable.TABLE_NAME,
+      AttachmentFileTable.TABLE_NAME,
+      EarlyMessageCacheTable.TABLE_NAME
   );
 
   public static BackupEvent export(@NonNull Context context,
@@ -103,7 +110,7 @@ public class FullBackupExporter extends FullBackupBase {
       throws IOException
   {
     try (OutputStream outputStream = new FileOutputStream(output)) {
-      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, Collections.emptySet(), cancellationSignal);
     }
   }
 
@@ -117,18 +124,23 @@ public class FullBackupExporter extends FullBackupBase {
       throws IOException
   {
     try (OutputStream outputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(output.getUri()))) {
-      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, Collections.emptySet(), cancellationSignal);
     }
   }
 
+  /**
+   * @param reusableDataHashes Plaintext hashes of attachments the receiving device already has from a previous,
+   *                           interrupted, transfer. Matching attachments are sent as references instead of data.
+   */
   public static void transfer(@NonNull Context context,
                               @NonNull AttachmentSecret attachmentSecret,
                               @NonNull SQLiteDatabase input,
                               @NonNull OutputStream outputStream,
-                              @NonNull String passphrase)
+                              @NonNull String passphrase,
+                              @NonNull Set<String> reusableDataHashes)
       throws IOException
   {
-    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, passphrase, false, () -> false));
+    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, passphrase, false, reusableDataHashes, () -> false));
   }
 
   private static BackupEvent internalExport(@NonNull Context context,
@@ -137,6 +149,7 @@ public class FullBackupExporter extends FullBackupBase {
                                             @NonNull OutputStream fileOutputStream,
                                             @NonNull String passphrase,
                                             boolean closeOutputStream,
+                                            @NonNull Set<String> reusableDataHashes,
                                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
@@ -167,7 +180,7 @@ public class FullBackupExporter extends FullBackupBase {
         } else if (table.equals(GroupReceiptTable.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(AttachmentTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, reusableDataHashes, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (table.equals(StickerTable.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
@@ -440,6 +453,7 @@ public class FullBackupExporter extends FullBackupBase {
   private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret,
                                       @NonNull Cursor cursor,
                                       @NonNull BackupFrameOutputStream outputStream,
+                                      @NonNull Set<String> reusableDataHashes,
                                       int count,
                                       long estimatedCount)
       throws IOException
@@ -448,8 +462,15 @@ public class FullBackupExporter extends FullBackupBase {
     long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.UNIQUE_ID));
     long size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.SIZE));
 
-    String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentTable.DATA));
-    byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_RANDOM));
+    String data     = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentTable.DATA));
+    byte[] random   = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_RANDOM));
+    String dataHash = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_HASH));
+
+    if (!TextUtils.isEmpty(data) && dataHash != null && reusableDataHashes.contains(dataHash)) {
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+      outputStream.writeReusedAttachment(new AttachmentId(rowId, uniqueId), dataHash);
+      return count;
+    }
 
     if (!TextUtils.isEmpty(data)) {
       long fileLength = new File(data).length();
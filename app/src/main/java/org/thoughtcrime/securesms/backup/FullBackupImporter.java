@@ -9,6 +9,7 @@ import android.net.Uri;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
@@ -32,11 +33,13 @@ import org.thoughtcrime.securesms.database.KeyValueDatabase;
 import org.thoughtcrime.securesms.database.SearchTable;
 import org.thoughtcrime.securesms.database.StickerTable;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.devicetransfer.DeviceTransferManifest;
 import org.thoughtcrime.securesms.keyvalue.KeyValueDataSet;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.BackupUtil;
+import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.io.ByteArrayOutputStream;
@@ -45,6 +48,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -75,6 +81,18 @@ public class FullBackupImporter extends FullBackupBase {
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
+  {
+    importFile(context, attachmentSecret, db, is, passphrase, null);
+  }
+
+  /**
+   * @param manifest When provided, every received attachment is recorded in it and attachments sent as references
+   *                 to previously received data are restored from it. Used to resume interrupted device transfers.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase,
+                                @Nullable DeviceTransferManifest manifest)
+      throws IOException
   {
     int count = 0;
 
@@ -97,7 +115,7 @@ public class FullBackupImporter extends FullBackupBase {
         if      (frame.version != null)    processVersion(db, frame.version);
         else if (frame.statement != null)  processStatement(db, frame.statement);
         else if (frame.preference != null) processPreference(context, frame.preference);
-        else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream);
+        else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream, manifest);
         else if (frame.sticker != null)    processSticker(context, attachmentSecret, db, frame.sticker, inputStream);
         else if (frame.avatar != null)     processAvatar(context, db, frame.avatar, inputStream);
         else if (frame.keyValue != null)   processKeyValue(frame.keyValue);
@@ -171,19 +189,29 @@ public class FullBackupImporter extends FullBackupBase {
     else                       db.execSQL(statement.statement);
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream, @Nullable DeviceTransferManifest manifest)
       throws IOException
   {
+    if (attachment.reusedDataHash != null) {
+      processReusedAttachment(db, attachment, manifest);
+      return;
+    }
+
     File                       dataFile = AttachmentTable.newFile(context);
     Pair<byte[], OutputStream> output   = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
+    MessageDigest              digest   = manifest != null ? getSha256() : null;
 
     ContentValues contentValues = new ContentValues();
 
     try {
-      inputStream.readAttachmentTo(output.second, attachment.length);
+      inputStream.readAttachmentTo(digest != null ? new DigestOutputStream(output.second, digest) : output.second, attachment.length);
 
       contentValues.put(AttachmentTable.DATA, dataFile.getAbsolutePath());
       contentValues.put(AttachmentTable.DATA_RANDOM, output.first);
+
+      if (manifest != null) {
+        manifest.add(Base64.encodeBytes(digest.digest()), dataFile, output.first, attachment.length);
+      }
     } catch (BackupRecordInputStream.BadMacException e) {
       Log.w(TAG, "Bad MAC for attachment " + attachment.attachmentId + "! Can't restore it.", e);
       dataFile.delete();
@@ -196,6 +224,32 @@ public class FullBackupImporter extends FullBackupBase {
               new String[] {String.valueOf(attachment.rowId), String.valueOf(attachment.attachmentId)});
   }
 
+  private static void processReusedAttachment(@NonNull SQLiteDatabase db, @NonNull Attachment attachment, @Nullable DeviceTransferManifest manifest) {
+    DeviceTransferManifest.Entry entry         = manifest != null ? manifest.get(attachment.reusedDataHash) : null;
+    ContentValues                contentValues = new ContentValues();
+
+    if (entry != null) {
+      contentValues.put(AttachmentTable.DATA, entry.getFile().getAbsolutePath());
+      contentValues.put(AttachmentTable.DATA_RANDOM, entry.getRandom());
+    } else {
+      Log.w(TAG, "Attachment " + attachment.attachmentId + " was sent as a reference to data we don't have! Can't restore it.");
+      contentValues.put(AttachmentTable.DATA, (String) null);
+      contentValues.put(AttachmentTable.DATA_RANDOM, (String) null);
+    }
+
+    db.update(AttachmentTable.TABLE_NAME, contentValues,
+              AttachmentTable.ROW_ID + " = ? AND " + AttachmentTable.UNIQUE_ID + " = ?",
+              new String[] {String.valueOf(attachment.rowId), String.valueOf(attachment.attachmentId)});
+  }
+
+  private static @NonNull MessageDigest getSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
       throws IOException
   {
@@ -21,93 +21,188 @@
 package org.thoughtcrime.securesms.blurhash;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
 
+/**
+ * Decodes blur hashes without allocating anything but the resulting bitmap. The cosines are looked up in tables that are only rebuilt when the size or
+ * number of components changes, and the tables, colors, and pixels are kept in buffers that belong to the decoding thread.
+ */
 class BlurHashDecoder {
 
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
   static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height) {
     return decode(blurHash, width, height, 1f);
   }
 
   static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height, double punch) {
+    Scratch scratch = SCRATCH.get();
+    int[]   pixels  = scratch.pixels(width * height);
 
-    if (blurHash == null || blurHash.length() < 6) {
+    if (!decode(blurHash, width, height, punch, pixels)) {
       return null;
     }
 
+    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+
+    return bitmap;
+  }
+
+  /**
+   * Decodes a blur hash into ARGB pixels, row by row, at the start of the given array.
+   *
+   * @return False if the hash isn't valid, in which case the pixels are left untouched.
+   */
+  @VisibleForTesting
+  static boolean decode(@Nullable String blurHash, int width, int height, double punch, @NonNull int[] pixels) {
+    if (blurHash == null || blurHash.length() < 6) {
+      return false;
+    }
+
     int numCompEnc = Base83.decode(blurHash, 0, 1);
     int numCompX   = (numCompEnc % 9) + 1;
     int numCompY   = (numCompEnc / 9) + 1;
 
     if (blurHash.length() != 4 + 2 * numCompX * numCompY) {
-      return null;
+      return false;
+    }
+
+    if (width <= 0 || height <= 0 || pixels.length < width * height) {
+      throw new IllegalArgumentException("Pixels must fit a " + width + "x" + height + " image");
     }
 
-    int        maxAcEnc = Base83.decode(blurHash, 1, 2);
-    double     maxAc    = (maxAcEnc + 1) / 166f;
-    double[][] colors   = new double[numCompX * numCompY][];
-    for (int i = 0; i < colors.length; i++) {
+    Scratch  scratch = SCRATCH.get();
+    double[] colors  = scratch.colors(numCompX * numCompY);
+
+    int    maxAcEnc = Base83.decode(blurHash, 1, 2);
+    double maxAc    = (maxAcEnc + 1) / 166f;
+    for (int i = 0; i < numCompX * numCompY; i++) {
       if (i == 0) {
-        int colorEnc = Base83.decode(blurHash, 2, 6);
-        colors[i] = decodeDc(colorEnc);
+        decodeDc(Base83.decode(blurHash, 2, 6), colors);
       } else {
         int from = 4 + i * 2;
-        int colorEnc = Base83.decode(blurHash, from, from + 2);
-        colors[i] = decodeAc(colorEnc, maxAc * punch);
+        decodeAc(Base83.decode(blurHash, from, from + 2), maxAc * punch, colors, i * 3);
       }
     }
 
-    return composeBitmap(width, height, numCompX, numCompY, colors);
+    double[] cosX = scratch.cosX(width, numCompX);
+    double[] cosY = scratch.cosY(height, numCompY);
+
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+
+        double r = 0f;
+        double g = 0f;
+        double b = 0f;
+
+        for (int j = 0; j < numCompY; j++) {
+          double cosJ = cosY[y * numCompY + j];
+
+          for (int i = 0; i < numCompX; i++) {
+            double basis = cosX[x * numCompX + i] * cosJ;
+            int    color = (j * numCompX + i) * 3;
+            r += colors[color]     * basis;
+            g += colors[color + 1] * basis;
+            b += colors[color + 2] * basis;
+          }
+        }
+
+        pixels[y * width + x] = 0xFF000000 | ((int) linearTosRGB(r) << 16) | ((int) linearTosRGB(g) << 8) | (int) linearTosRGB(b);
+      }
+    }
+
+    return true;
   }
 
-  private static double[] decodeDc(int colorEnc) {
+  private static void decodeDc(int colorEnc, double[] colors) {
     int r = colorEnc >> 16;
     int g = (colorEnc >> 8) & 255;
     int b = colorEnc & 255;
-    return new double[] {sRGBToLinear(r),
-                         sRGBToLinear(g),
-                         sRGBToLinear(b)};
+    colors[0] = sRGBToLinear(r);
+    colors[1] = sRGBToLinear(g);
+    colors[2] = sRGBToLinear(b);
   }
 
-  private static double[] decodeAc(int value, double maxAc) {
+  private static void decodeAc(int value, double maxAc, double[] colors, int offset) {
     int r = value / (19 * 19);
     int g = (value / 19) % 19;
     int b = value % 19;
-    return new double[]{
-        signPow((r - 9) / 9.0f, 2f) * maxAc,
-        signPow((g - 9) / 9.0f, 2f) * maxAc,
-        signPow((b - 9) / 9.0f, 2f) * maxAc
-    };
+    colors[offset]     = signPow((r - 9) / 9.0f, 2f) * maxAc;
+    colors[offset + 1] = signPow((g - 9) / 9.0f, 2f) * maxAc;
+    colors[offset + 2] = signPow((b - 9) / 9.0f, 2f) * maxAc;
   }
 
-  private static Bitmap composeBitmap(int width, int height, int numCompX, int numCompY, double[][] colors) {
-    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-    for (int y = 0; y < height; y++) {
-      for (int x = 0; x < width; x++) {
+  /**
+   * Buffers for one thread's decodes. They only ever grow, and there are at most 9 components in each direction, so they stay small.
+   */
+  private static final class Scratch {
+    private int[]    pixels = new int[0];
+    private double[] colors = new double[9 * 9 * 3];
 
-        double r = 0f;
-        double g = 0f;
-        double b = 0f;
+    private final CosineTable cosX = new CosineTable();
+    private final CosineTable cosY = new CosineTable();
 
-        for (int j = 0; j < numCompY; j++) {
-          for (int i = 0; i < numCompX; i++) {
-            double basis = (Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height));
-            double[] color = colors[j * numCompX + i];
-            r += color[0] * basis;
-            g += color[1] * basis;
-            b += color[2] * basis;
+    int[] pixels(int size) {
+      if (pixels.length < size) {
+        pixels = new int[size];
+      }
+      return pixels;
+    }
+
+    double[] colors(int numComponents) {
+      if (colors.length < numComponents * 3) {
+        colors = new double[numComponents * 3];
+      }
+      return colors;
+    }
+
+    double[] cosX(int width, int numComponents) {
+      return cosX.get(width, numComponents);
+    }
+
+    double[] cosY(int height, int numComponents) {
+      return cosY.get(height, numComponents);
+    }
+  }
+
+  /**
+   * cos(pi * p * c / size) for every position p and component c, laid out by position. Rebuilt only when the size or the number of components changes.
+   */
+  private static final class CosineTable {
+    private double[] values        = new double[0];
+    private int      size          = -1;
+    private int      numComponents = -1;
+
+    double[] get(int size, int numComponents) {
+      if (size != this.size || numComponents != this.numComponents) {
+        if (values.length < size * numComponents) {
+          values = new double[size * numComponents];
+        }
+
+        for (int p = 0; p < size; p++) {
+          for (int c = 0; c < numComponents; c++) {
+            values[p * numComponents + c] = Math.cos(Math.PI * p * c / size);
           }
         }
-        bitmap.setPixel(x, y, Color.rgb((int) linearTosRGB(r), (int) linearTosRGB(g), (int) linearTosRGB(b)));
+
+        this.size          = size;
+        this.numComponents = numComponents;
       }
-    }
 
-    return bitmap;
+      return values;
+    }
   }
 }
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.blurhash;
 
 import android.graphics.Bitmap;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -14,7 +15,14 @@ import java.io.IOException;
 
 public class BlurHashResourceDecoder implements ResourceDecoder<BlurHash, Bitmap> {
 
-  private static final int MAX_DIMEN = 20;
+  private static final int MAX_DIMEN  = 20;
+  private static final int CACHE_SIZE = 100;
+
+  /**
+   * Placeholders are bound again every time a view is recycled, so recent ones are kept around rather than decoded again. Glide never recycles the bitmap
+   * of a {@link SimpleResource}, so it's safe to hand the same one out more than once.
+   */
+  private static final LruCache<String, Bitmap> CACHE = new LruCache<>(CACHE_SIZE);
 
   @Override
   public boolean handles(@NonNull BlurHash source, @NonNull Options options) throws IOException {
@@ -34,6 +42,19 @@ public class BlurHashResourceDecoder implements ResourceDecoder<BlurHash, Bitmap
       finalWidth  = (int) (finalHeight * width / (float) height);
     }
 
-    return new SimpleResource<>(BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight));
+    String key    = source.getHash() + ":" + finalWidth + "x" + finalHeight;
+    Bitmap bitmap = CACHE.get(key);
+
+    if (bitmap == null) {
+      bitmap = BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight);
+
+      if (bitmap == null) {
+        return null;
+      }
+
+      CACHE.put(key, bitmap);
+    }
+
+    return new SimpleResource<>(bitmap);
   }
 }
\ No newline at end of file
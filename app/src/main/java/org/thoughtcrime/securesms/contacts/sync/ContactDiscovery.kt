@@ -7,6 +7,7 @@ import androidx.annotation.WorkerThread
 import org.signal.contacts.SystemContactsRepository
 import org.signal.contacts.SystemContactsRepository.ContactIterator
 import org.signal.contacts.SystemContactsRepository.ContactPhoneDetails
+import org.signal.contacts.SystemContactsRepository.SystemContactChanges
 import org.signal.core.util.Stopwatch
 import org.signal.core.util.StringUtil
 import org.signal.core.util.logging.Log
@@ -32,6 +33,7 @@ import org.whispersystems.signalservice.api.push.SignalServiceAddress
 import org.whispersystems.signalservice.api.util.UuidUtil
 import java.io.IOException
 import java.util.Calendar
+import kotlin.time.Duration.Companion.days
 
 /**
  * Methods for discovering which users are registered and marking them as such in the database.
@@ -42,6 +44,12 @@ object ContactDiscovery {
 
   private const val FULL_SYSTEM_CONTACT_SYNC_THRESHOLD = 3
 
+  /**
+   * Most syncs only visit the system contacts that changed, but every so often we still go through all of them, in case something other than the
+   * contacts themselves (like how we format numbers) changed what we'd store.
+   */
+  private val FULL_SYSTEM_CONTACT_SYNC_INTERVAL = 7.days
+
   @JvmStatic
   @Throws(IOException::class)
   @WorkerThread
@@ -120,11 +128,7 @@ object ContactDiscovery {
       return
     }
 
-    syncRecipientsWithSystemContacts(
-      context = context,
-      rewrites = emptyMap(),
-      clearInfoForMissingContacts = true
-    )
+    syncChangedRecipientsWithSystemContacts(context, rewrites = emptyMap())
   }
 
   private fun phoneNumberFormatter(context: Context): (String) -> String {
@@ -150,24 +154,24 @@ object ContactDiscovery {
       ApplicationDependencies.getJobManager().add(SyncSystemContactLinksJob())
 
       val useFullSync = removeSystemContactLinksIfMissing && result.registeredIds.size > FULL_SYSTEM_CONTACT_SYNC_THRESHOLD
-      syncRecipientsWithSystemContacts(
-        context = context,
-        rewrites = result.rewrites,
-        contactsProvider = {
-          if (useFullSync) {
-            Log.d(TAG, "Doing a full system contact sync. There are ${result.registeredIds.size} contacts to get info for.")
-            SystemContactsRepository.getAllSystemContacts(context, phoneNumberFormatter(context))
-          } else {
-            Log.d(TAG, "Doing a partial system contact sync. There are ${result.registeredIds.size} contacts to get info for.")
+      if (useFullSync) {
+        Log.d(TAG, "Doing a full system contact sync. There are ${result.registeredIds.size} contacts to get info for.")
+        syncChangedRecipientsWithSystemContacts(context, result.rewrites)
+      } else {
+        Log.d(TAG, "Doing a partial system contact sync. There are ${result.registeredIds.size} contacts to get info for.")
+        syncRecipientsWithSystemContacts(
+          context = context,
+          rewrites = result.rewrites,
+          contactsProvider = {
             SystemContactsRepository.getContactDetailsByQueries(
               context = context,
               queries = Recipient.resolvedList(result.registeredIds).mapNotNull { it.e164.orElse(null) },
               e164Formatter = phoneNumberFormatter(context)
             )
-          }
-        },
-        clearInfoForMissingContacts = useFullSync
-      )
+          },
+          clearInfoForMissingContacts = false
+        )
+      }
       stopwatch.split("contact-sync")
 
       if (TextSecurePreferences.hasSuccessfullyRetrievedDirectory(context) && notifyOfNewUsers) {
@@ -211,21 +215,69 @@ object ContactDiscovery {
     return Permissions.hasAll(context, Manifest.permission.READ_CONTACTS, Manifest.permission.WRITE_CONTACTS)
   }
 
+  /**
+   * Synchronizes info from the system contacts (name, avatar, etc) for every contact, the same as a full sync, but only reads the contacts that were
+   * added, changed or deleted since the last time this succeeded. Falls back to reading every contact if it's been a while since we last did, if the
+   * system can't tell us everything that changed, or if there are [rewrites], since those can apply to contacts that haven't changed.
+   */
+  private fun syncChangedRecipientsWithSystemContacts(context: Context, rewrites: Map<String, String>) {
+    val watermark: Long = SystemContactsRepository.getLastChangeTimestamp(context)
+    val fullSyncDue: Boolean = System.currentTimeMillis() - SignalStore.misc().lastFullContactSyncTime > FULL_SYSTEM_CONTACT_SYNC_INTERVAL.inWholeMilliseconds
+
+    val changes: SystemContactChanges? = if (rewrites.isEmpty() && !fullSyncDue) {
+      SystemContactsRepository.getSystemContactChangesSince(context, SignalStore.misc().systemContactsWatermark, phoneNumberFormatter(context))
+    } else {
+      null
+    }
+
+    if (changes == null) {
+      Log.d(TAG, "[syncChangedRecipientsWithSystemContacts] Syncing every system contact.")
+      if (syncRecipientsWithSystemContacts(context = context, rewrites = rewrites, clearInfoForMissingContacts = true)) {
+        SignalStore.misc().setLastFullContactSync(System.currentTimeMillis(), watermark)
+      }
+    } else {
+      Log.d(TAG, "[syncChangedRecipientsWithSystemContacts] Syncing system contacts changed since the last sync. Deletions: ${changes.hasDeletions}")
+      changes.use {
+        if (syncRecipientsWithSystemContacts(context = context, rewrites = rewrites, clearInfoForMissingContacts = false, changes = changes)) {
+          SignalStore.misc().systemContactsWatermark = watermark
+        }
+      }
+    }
+  }
+
   /**
    * Synchronizes info from the system contacts (name, avatar, etc)
+   *
+   * @param changes If set, [contactsProvider] is ignored and only the changed contacts are visited. Recipients linked to a changed or deleted
+   *                contact have their info cleared unless it's set again, the same as they would by a full sync.
+   * @return False if we weren't able to read every contact.
    */
   private fun syncRecipientsWithSystemContacts(
     context: Context,
     rewrites: Map<String, String>,
     contactsProvider: () -> ContactIterator = { SystemContactsRepository.getAllSystemContacts(context, phoneNumberFormatter(context)) },
-    clearInfoForMissingContacts: Boolean
-  ) {
+    clearInfoForMissingContacts: Boolean,
+    changes: SystemContactChanges? = null
+  ): Boolean {
     val localNumber: String = SignalStore.account().e164 ?: ""
     val handle = SignalDatabase.recipients.beginBulkSystemContactUpdate(clearInfoForMissingContacts)
+    var success = true
     try {
-      contactsProvider().use { iterator ->
+      val linkedRecipients: Map<String, List<RecipientId>> = if (changes != null) getRecipientsByLookupKey(handle) else emptyMap()
+
+      if (changes != null && changes.hasDeletions) {
+        val lookupKeys: Set<String> = SystemContactsRepository.getAllLookupKeys(context)
+        handle.markSystemInfoPending(linkedRecipients.filterKeys { !lookupKeys.contains(it) }.values.flatten())
+      }
+
+      (changes?.changedContacts ?: contactsProvider()).use { iterator ->
         while (iterator.hasNext()) {
           val details = iterator.next()
+
+          if (changes != null) {
+            handle.markSystemInfoPending(linkedRecipients[details.lookupKey] ?: emptyList())
+          }
+
           val phoneDetailsWithoutSelf: List<ContactPhoneDetails> = details.numbers
             .filter { it.number != localNumber }
             .filterNot { UuidUtil.isUuid(it.number) }
@@ -255,6 +307,7 @@ object ContactDiscovery {
       }
     } catch (e: IllegalStateException) {
       Log.w(TAG, "Hit an issue with the cursor while reading!", e)
+      success = false
     } finally {
       handle.finish()
     }
@@ -269,6 +322,19 @@ object ContactDiscovery {
         }
       }
     }
+
+    return success
+  }
+
+  private fun getRecipientsByLookupKey(handle: RecipientTable.BulkOperationsHandle): Map<String, List<RecipientId>> {
+    val recipients: MutableMap<String, MutableList<RecipientId>> = HashMap()
+
+    for ((id, contactUri) in handle.getSystemContactUris()) {
+      val lookupKey: String = SystemContactsRepository.getLookupKey(contactUri) ?: continue
+      recipients.getOrPut(lookupKey) { mutableListOf() } += id
+    }
+
+    return recipients
   }
 
   /**
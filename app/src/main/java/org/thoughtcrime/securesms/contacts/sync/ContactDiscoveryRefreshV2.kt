@@ -45,8 +45,8 @@ object ContactDiscoveryRefreshV2 {
   @Synchronized
   @JvmStatic
   fun refreshAll(context: Context, useCompat: Boolean, timeoutMs: Long? = null): ContactDiscovery.RefreshResult {
-    val recipientE164s: Set<String> = SignalDatabase.recipients.getAllE164s().sanitize()
-    val systemE164s: Set<String> = SystemContactsRepository.getAllDisplayNumbers(context).toE164s(context).sanitize()
+    val recipientE164s: PackedE164Set = SignalDatabase.recipients.getAllE164s().sanitize()
+    val systemE164s: PackedE164Set = SystemContactsRepository.getAllDisplayNumbers(context).toE164s(context).sanitize()
 
     return refreshInternal(
       recipientE164s = recipientE164s,
@@ -64,7 +64,7 @@ object ContactDiscoveryRefreshV2 {
   @JvmStatic
   fun refresh(context: Context, inputRecipients: List<Recipient>, useCompat: Boolean, timeoutMs: Long? = null): ContactDiscovery.RefreshResult {
     val recipients: List<Recipient> = inputRecipients.map { it.resolve() }
-    val inputE164s: Set<String> = recipients.mapNotNull { it.e164.orElse(null) }.toSet().sanitize()
+    val inputE164s: PackedE164Set = recipients.mapNotNull { it.e164.orElse(null) }.toSet().sanitize()
 
     return if (inputE164s.size > MAXIMUM_ONE_OFF_REQUEST_SIZE) {
       Log.i(TAG, "List of specific recipients to refresh is too large! (Size: ${recipients.size}). Doing a full refresh instead.")
@@ -80,7 +80,7 @@ object ContactDiscoveryRefreshV2 {
       refreshInternal(
         recipientE164s = inputE164s,
         systemE164s = inputE164s,
-        inputPreviousE164s = emptySet(),
+        inputPreviousE164s = PackedE164Set.EMPTY,
         isPartialRefresh = true,
         useCompat = useCompat,
         timeoutMs = timeoutMs
@@ -90,9 +90,9 @@ object ContactDiscoveryRefreshV2 {
 
   @Throws(IOException::class)
   private fun refreshInternal(
-    recipientE164s: Set<String>,
-    systemE164s: Set<String>,
-    inputPreviousE164s: Set<String>,
+    recipientE164s: PackedE164Set,
+    systemE164s: PackedE164Set,
+    inputPreviousE164s: PackedE164Set,
     isPartialRefresh: Boolean,
     useCompat: Boolean,
     timeoutMs: Long? = null
@@ -100,12 +100,12 @@ object ContactDiscoveryRefreshV2 {
     val tag = "refreshInternal-${if (useCompat) "compat" else "v2"}"
     val stopwatch = Stopwatch(tag)
 
-    val previousE164s: Set<String> = if (SignalStore.misc().cdsToken != null && !isPartialRefresh) inputPreviousE164s else emptySet()
+    val previousE164s: PackedE164Set = if (SignalStore.misc().cdsToken != null && !isPartialRefresh) inputPreviousE164s else PackedE164Set.EMPTY
 
-    val allE164s: Set<String> = recipientE164s + systemE164s
-    val newRawE164s: Set<String> = allE164s - previousE164s
+    val allE164s: PackedE164Set = recipientE164s + systemE164s
+    val newRawE164s: PackedE164Set = allE164s - previousE164s
     val fuzzyInput: InputResult = FuzzyPhoneNumberHelper.generateInput(newRawE164s, recipientE164s)
-    val newE164s: Set<String> = fuzzyInput.numbers
+    val newE164s: PackedE164Set = PackedE164Set.fromE164s(fuzzyInput.numbers)
 
     if (newE164s.isEmpty() && previousE164s.isEmpty()) {
       Log.w(TAG, "[$tag] No data to send! Ignoring.")
@@ -135,7 +135,7 @@ object ContactDiscoveryRefreshV2 {
         stopwatch.split("network-pre-token")
         if (!isPartialRefresh) {
           SignalStore.misc().cdsToken = tokenToSave
-          SignalDatabase.cds.updateAfterFullCdsQuery(previousE164s + newE164s, allE164s + newE164s)
+          updateAfterFullCdsQuery(previousE164s, newE164s, seenE164s = allE164s + newE164s)
           Log.d(TAG, "Token saved!")
         } else {
           SignalDatabase.cds.updateAfterPartialCdsQuery(newE164s)
@@ -179,7 +179,7 @@ object ContactDiscoveryRefreshV2 {
     rewrites += fuzzyOutput.rewrites
     stopwatch.split("process-result")
 
-    val existingIds: Set<RecipientId> = SignalDatabase.recipients.getAllPossiblyRegisteredByE164(recipientE164s + rewrites.values)
+    val existingIds: Set<RecipientId> = SignalDatabase.recipients.getAllPossiblyRegisteredByE164(recipientE164s + PackedE164Set.fromE164s(rewrites.values))
     stopwatch.split("get-ids")
 
     val inactiveIds: Set<RecipientId> = (existingIds - registeredIds).removePossiblyRegisteredButUnlisted()
@@ -193,6 +193,26 @@ object ContactDiscoveryRefreshV2 {
     return ContactDiscovery.RefreshResult(registeredIds, rewrites)
   }
 
+  /**
+   * Most full refreshes see exactly the same numbers as the last one. When that happens, all that's left to update in the CDS table is the
+   * time they were last seen, which we can do without matching every number again. We tell by comparing a digest of the numbers we've seen
+   * against the one saved by the previous full refresh, rather than keeping the previous set around.
+   */
+  private fun updateAfterFullCdsQuery(previousE164s: PackedE164Set, newE164s: PackedE164Set, seenE164s: PackedE164Set) {
+    val seenDigest: ByteArray = seenE164s.digest()
+    val previousSeenAt: Long = SignalStore.misc().cdsSeenAt
+    val lastSeen: Long = System.currentTimeMillis()
+
+    if (newE164s.isEmpty() && previousSeenAt > 0 && seenDigest.contentEquals(SignalStore.misc().cdsSeenDigest)) {
+      Log.d(TAG, "Seen numbers are unchanged since the last full refresh.")
+      SignalDatabase.cds.updateAfterUnchangedFullCdsQuery(previousSeenAt, lastSeen)
+    } else {
+      SignalDatabase.cds.updateAfterFullCdsQuery(previousE164s + newE164s, seenE164s, lastSeen)
+    }
+
+    SignalStore.misc().setCdsSeen(seenDigest, lastSeen)
+  }
+
   private fun hasCommunicatedWith(recipient: Recipient): Boolean {
     val localAci = SignalStore.account().requireAci()
     return SignalDatabase.threads.hasThread(recipient.id) || (recipient.hasServiceId() && SignalDatabase.sessions.hasSessionFor(localAci, recipient.requireServiceId().toString()))
@@ -217,16 +237,11 @@ object ContactDiscoveryRefreshV2 {
     return this.map { PhoneNumberFormatter.get(context).format(it) }.toSet()
   }
 
-  private fun Set<String>.sanitize(): Set<String> {
-    return this
-      .filter {
-        try {
-          it.startsWith("+") && it.length > 1 && it[1] != '0' && it.toLong() > 0
-        } catch (e: NumberFormatException) {
-          false
-        }
-      }
-      .toSet()
+  /**
+   * Keeps only normalized E164s, i.e. a '+' followed by digits with no leading zero.
+   */
+  private fun Collection<String>.sanitize(): PackedE164Set {
+    return PackedE164Set.fromE164s(this)
   }
 
   private fun Int.roundedString(): String {
@@ -0,0 +1,182 @@
+package org.thoughtcrime.securesms.contacts.sync
+
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+/**
+ * An immutable set of E164s, stored as a sorted array of the numbers they represent instead of as strings.
+ *
+ * A normalized E164 is a '+' followed by digits with no leading zero, so it round-trips exactly through a [Long]. At 8 bytes a number,
+ * this is an order of magnitude smaller than a hash set of strings, and [plus] and [minus] between two packed sets are linear merges.
+ * Strings are only created while iterating, so the set can be handed to anything that expects a [Set] of E164s.
+ *
+ * Anything that isn't a normalized E164 is dropped when building the set.
+ */
+class PackedE164Set private constructor(private val numbers: LongArray) : AbstractSet<String>() {
+
+  companion object {
+    @JvmField
+    val EMPTY = PackedE164Set(LongArray(0))
+
+    @JvmStatic
+    fun fromE164s(e164s: Collection<String>): PackedE164Set {
+      val builder = Builder(e164s.size)
+      for (e164 in e164s) {
+        builder.add(e164)
+      }
+      return builder.build()
+    }
+
+    /**
+     * @return The number a normalized E164 represents, or -1 if the string isn't one.
+     */
+    @JvmStatic
+    fun parse(e164: String): Long {
+      if (e164.length < 2 || e164[0] != '+' || e164[1] !in '1'..'9') {
+        return -1
+      }
+
+      var number = 0L
+      for (i in 1 until e164.length) {
+        val digit = e164[i] - '0'
+        if (digit !in 0..9 || number > (Long.MAX_VALUE - digit) / 10) {
+          return -1
+        }
+        number = number * 10 + digit
+      }
+
+      return number
+    }
+  }
+
+  override val size: Int
+    get() = numbers.size
+
+  override fun contains(element: String): Boolean {
+    val number = parse(element)
+    return number > 0 && numbers.binarySearch(number) >= 0
+  }
+
+  override fun iterator(): Iterator<String> {
+    return object : Iterator<String> {
+      var position = 0
+
+      override fun hasNext(): Boolean = position < numbers.size
+
+      override fun next(): String {
+        if (!hasNext()) throw NoSuchElementException()
+        return "+" + numbers[position++]
+      }
+    }
+  }
+
+  operator fun plus(other: PackedE164Set): PackedE164Set {
+    if (other.isEmpty()) return this
+    if (this.isEmpty()) return other
+
+    val result = LongArray(numbers.size + other.numbers.size)
+    var count = 0
+    var i = 0
+    var j = 0
+
+    while (i < numbers.size || j < other.numbers.size) {
+      val next = when {
+        j == other.numbers.size -> numbers[i++]
+        i == numbers.size -> other.numbers[j++]
+        numbers[i] < other.numbers[j] -> numbers[i++]
+        numbers[i] > other.numbers[j] -> other.numbers[j++]
+        else -> { j++; numbers[i++] }
+      }
+      result[count++] = next
+    }
+
+    return PackedE164Set(result.trimTo(count))
+  }
+
+  operator fun minus(other: PackedE164Set): PackedE164Set {
+    if (this.isEmpty() || other.isEmpty()) return this
+
+    val result = LongArray(numbers.size)
+    var count = 0
+    var j = 0
+
+    for (number in numbers) {
+      while (j < other.numbers.size && other.numbers[j] < number) {
+        j++
+      }
+      if (j == other.numbers.size || other.numbers[j] != number) {
+        result[count++] = number
+      }
+    }
+
+    return PackedE164Set(result.trimTo(count))
+  }
+
+  /**
+   * A SHA-256 of the set's contents. Equal sets always have equal digests, regardless of the order their numbers were added in.
+   */
+  fun digest(): ByteArray {
+    val digest = MessageDigest.getInstance("SHA-256")
+    val buffer = ByteBuffer.allocate(8 * 512)
+
+    for (number in numbers) {
+      if (!buffer.hasRemaining()) {
+        digest.update(buffer.array(), 0, buffer.position())
+        buffer.clear()
+      }
+      buffer.putLong(number)
+    }
+    digest.update(buffer.array(), 0, buffer.position())
+
+    return digest.digest()
+  }
+
+  override fun equals(other: Any?): Boolean {
+    return if (other is PackedE164Set) numbers.contentEquals(other.numbers) else super.equals(other)
+  }
+
+  override fun hashCode(): Int {
+    return super.hashCode()
+  }
+
+  private fun LongArray.trimTo(count: Int): LongArray {
+    return if (count == size) this else copyOf(count)
+  }
+
+  /**
+   * Collects E164s into a packed set without holding onto their strings. Duplicates are fine.
+   */
+  class Builder(expectedSize: Int = 16) {
+    private var numbers = LongArray(maxOf(expectedSize, 1))
+    private var count = 0
+
+    fun add(e164: String): Builder {
+      val number = parse(e164)
+      if (number > 0) {
+        if (count == numbers.size) {
+          numbers = numbers.copyOf(count * 2)
+        }
+        numbers[count++] = number
+      }
+      return this
+    }
+
+    fun build(): PackedE164Set {
+      if (count == 0) return EMPTY
+
+      numbers.sort(0, count)
+
+      var unique = 1
+      for (i in 1 until count) {
+        if (numbers[i] != numbers[unique - 1]) {
+          numbers[unique++] = numbers[i]
+        }
+      }
+
+      return PackedE164Set(if (unique == numbers.size) numbers else numbers.copyOf(unique)).also {
+        numbers = LongArray(1)
+        count = 0
+      }
+    }
+  }
+}
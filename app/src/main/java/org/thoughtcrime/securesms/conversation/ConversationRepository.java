@@ -7,6 +7,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.StreamUtil;
+import org.signal.core.util.collections.LongList;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.contacts.sync.ContactDiscovery;
@@ -121,7 +122,7 @@ public class ConversationRepository {
 
   public void markGiftBadgeRevealed(long messageId) {
     SignalExecutors.BOUNDED_IO.execute(() -> {
-      List<MessageTable.MarkedMessageInfo> markedMessageInfo = SignalDatabase.messages().setOutgoingGiftsRevealed(Collections.singletonList(messageId));
+      List<MessageTable.MarkedMessageInfo> markedMessageInfo = SignalDatabase.messages().setOutgoingGiftsRevealed(LongList.of(messageId));
       if (!markedMessageInfo.isEmpty()) {
         Log.d(TAG, "Marked gift badge revealed. Sending view sync message.");
         MultiDeviceViewedUpdateJob.enqueue(
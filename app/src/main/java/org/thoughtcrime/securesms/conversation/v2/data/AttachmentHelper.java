@@ -17,12 +17,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
-public class AttachmentHelper {
+public class AttachmentHelper implements ConversationDataHelper {
 
   private Collection<Long>                    messageIds             = new LinkedList<>();
   private Map<Long, List<DatabaseAttachment>> messageIdToAttachments = new HashMap<>();
 
-  public void add(MessageRecord record) {
+  @Override
+  public void add(@NonNull MessageRecord record) {
     if (record.isMms()) {
       messageIds.add(record.getId());
     }
@@ -38,19 +39,27 @@ public class AttachmentHelper {
     messageIdToAttachments = SignalDatabase.attachments().getAttachmentsForMessages(messageIds);
   }
 
+  @Override
+  public void fetch(@NonNull Context context) {
+    fetchAttachments();
+  }
+
   public @NonNull List<MessageRecord> buildUpdatedModels(@NonNull Context context, @NonNull List<MessageRecord> records) {
     return records.stream()
-                  .map(record -> {
-                    if (record instanceof MediaMmsMessageRecord) {
-                      List<DatabaseAttachment> attachments = messageIdToAttachments.get(record.getId());
+                  .map(record -> buildUpdatedModel(context, record))
+                  .collect(Collectors.toList());
+  }
 
-                      if (Util.hasItems(attachments)) {
-                        return ((MediaMmsMessageRecord) record).withAttachments(context, attachments);
-                      }
-                    }
+  @Override
+  public @NonNull MessageRecord buildUpdatedModel(@NonNull Context context, @NonNull MessageRecord record) {
+    if (record instanceof MediaMmsMessageRecord) {
+      List<DatabaseAttachment> attachments = messageIdToAttachments.get(record.getId());
 
-                    return record;
-                  })
-                  .collect(Collectors.toList());
+      if (Util.hasItems(attachments)) {
+        return ((MediaMmsMessageRecord) record).withAttachments(context, attachments);
+      }
+    }
+
+    return record;
   }
 }
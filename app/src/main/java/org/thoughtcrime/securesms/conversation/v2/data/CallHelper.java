@@ -1,5 +1,7 @@
 package org.thoughtcrime.securesms.conversation.v2.data;
 
+import android.content.Context;
+
 import androidx.annotation.NonNull;
 
 import org.thoughtcrime.securesms.database.CallTable;
@@ -14,11 +16,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
-public class CallHelper {
+public class CallHelper implements ConversationDataHelper {
   private final Collection<Long>          messageIds      = new LinkedList<>();
   private       Map<Long, CallTable.Call> messageIdToCall = Collections.emptyMap();
 
-  public void add(MessageRecord messageRecord) {
+  @Override
+  public void add(@NonNull MessageRecord messageRecord) {
     if (messageRecord.isCallLog() && !messageRecord.isGroupCall()) {
       messageIds.add(messageRecord.getId());
     }
@@ -30,17 +33,29 @@ public class CallHelper {
     }
   }
 
+  @Override
+  public void fetch(@NonNull Context context) {
+    fetchCalls();
+  }
+
   public @NonNull List<MessageRecord> buildUpdatedModels(@NonNull List<MessageRecord> records) {
     return records.stream()
-                  .map(record -> {
-                    if (record.isCallLog() && record instanceof MediaMmsMessageRecord) {
-                      CallTable.Call call = messageIdToCall.get(record.getId());
-                      if (call != null) {
-                        return ((MediaMmsMessageRecord) record).withCall(call);
-                      }
-                    }
-                    return record;
-                  })
+                  .map(this::buildUpdatedModel)
                   .collect(Collectors.toList());
   }
+
+  @Override
+  public @NonNull MessageRecord buildUpdatedModel(@NonNull Context context, @NonNull MessageRecord record) {
+    return buildUpdatedModel(record);
+  }
+
+  private @NonNull MessageRecord buildUpdatedModel(@NonNull MessageRecord record) {
+    if (record.isCallLog() && record instanceof MediaMmsMessageRecord) {
+      CallTable.Call call = messageIdToCall.get(record.getId());
+      if (call != null) {
+        return ((MediaMmsMessageRecord) record).withCall(call);
+      }
+    }
+    return record;
+  }
 }
@@ -0,0 +1,31 @@
+package org.thoughtcrime.securesms.conversation.v2.data;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+
+/**
+ * Common shape of the helpers used by {@link ConversationDataSource} to decorate a page of messages.
+ * <p>
+ * Records are collected via {@link #add(MessageRecord)}, the related data for all of them is fetched
+ * with a single batched query in {@link #fetch(Context)}, and then each record is rebuilt with
+ * {@link #buildUpdatedModel(Context, MessageRecord)}. Fetches only read from the database and do not
+ * depend on each other, so the helpers for a page may be fetched concurrently.
+ */
+public interface ConversationDataHelper {
+
+  void add(@NonNull MessageRecord record);
+
+  @WorkerThread
+  void fetch(@NonNull Context context);
+
+  /**
+   * @return The record with the fetched data applied, or the same record if there was nothing to apply.
+   */
+  default @NonNull MessageRecord buildUpdatedModel(@NonNull Context context, @NonNull MessageRecord record) {
+    return record;
+  }
+}
@@ -6,7 +6,10 @@
 package org.thoughtcrime.securesms.conversation.v2.data
 
 import android.content.Context
+import android.database.Cursor
 import org.signal.core.util.Stopwatch
+import org.signal.core.util.ThreadUtil
+import org.signal.core.util.concurrent.SignalExecutors
 import org.signal.core.util.logging.Log
 import org.signal.core.util.toInt
 import org.signal.paging.PagedDataSource
@@ -25,8 +28,12 @@ import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.messagerequests.MessageRequestRepository
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.util.SignalTrace
 import org.thoughtcrime.securesms.util.adapter.mapping.MappingModel
 import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
 private typealias ConversationElement = MappingModel<*>
 
@@ -61,8 +68,23 @@ class ConversationDataSource(
   companion object {
     private val TAG = Log.tag(ConversationDataSource::class.java)
     private const val THREAD_HEADER_COUNT = 1
+
+    /** Pages starting deeper than this are loaded by seeking to an anchor rather than with an offset. Also the spacing between anchors. */
+    private const val ANCHOR_STRIDE = 250
+
+    /**
+     * Page helpers get their own small pool, so a page load never waits in line behind downloads and jobs on the shared IO executors.
+     */
+    private val HELPER_EXECUTOR = SignalExecutors.newCachedBoundedExecutor("signal-conversation-helpers", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD, 1, 4, 30)
   }
 
+  /**
+   * Anchors for every [ANCHOR_STRIDE]th message, counted from the oldest, so that they stay valid as new messages are inserted at the top. Built the first
+   * time a page deep enough to need them is loaded, and dropped whenever the data set is invalidated.
+   */
+  @Volatile
+  private var anchors: List<MessageTable.ConversationAnchor>? = null
+
   init {
     check(threadId > 0)
   }
@@ -73,11 +95,9 @@ class ConversationDataSource(
 
   override fun size(): Int {
     val startTime = System.currentTimeMillis()
-    val size: Int = getSizeInternal() +
-      THREAD_HEADER_COUNT +
-      messageRequestData.includeWarningUpdateMessage().toInt() +
-      messageRequestData.isHidden.toInt() +
-      showUniversalExpireTimerUpdate.toInt()
+    anchors = null
+
+    val size: Int = getSizeInternal() + getNonMessageCount()
 
     Log.d(TAG, "[size(), thread $threadId] ${System.currentTimeMillis() - startTime} ms")
 
@@ -96,9 +116,58 @@ class ConversationDataSource(
     return SignalDatabase.messages.getMessageCountForThread(threadId)
   }
 
+  private fun getNonMessageCount(): Int {
+    return THREAD_HEADER_COUNT +
+      messageRequestData.includeWarningUpdateMessage().toInt() +
+      messageRequestData.isHidden.toInt() +
+      showUniversalExpireTimerUpdate.toInt()
+  }
+
+  /**
+   * Messages fill the first positions of the data set, newest first. Shallow pages use a plain offset, but deeper ones seek to the nearest anchor newer than
+   * the page and skip fewer than [ANCHOR_STRIDE] rows from there, so the cost of a page doesn't depend on its depth.
+   */
+  private fun getConversationCursor(start: Int, length: Int, totalSize: Int): Cursor {
+    if (start < ANCHOR_STRIDE) {
+      return SignalDatabase.messages.getConversation(threadId, start.toLong(), length.toLong())
+    }
+
+    val anchors = anchors ?: buildAnchors()
+
+    // The newest message in the page, counting from the oldest message in the thread
+    val newestIndex = totalSize - getNonMessageCount() - 1 - start
+    val anchorPosition = newestIndex / ANCHOR_STRIDE + 1
+
+    if (newestIndex < 0 || anchorPosition >= anchors.size) {
+      return SignalDatabase.messages.getConversation(threadId, start.toLong(), length.toLong())
+    }
+
+    val skip = anchorPosition * ANCHOR_STRIDE - 1 - newestIndex
+
+    return SignalDatabase.messages.getConversation(threadId, anchors[anchorPosition], skip.toLong(), length.toLong())
+  }
+
+  private fun buildAnchors(): List<MessageTable.ConversationAnchor> {
+    val startTime = System.currentTimeMillis()
+    val built = SignalDatabase.messages.getConversationAnchors(threadId, ANCHOR_STRIDE)
+    anchors = built
+
+    Log.d(TAG, "[buildAnchors(), thread $threadId] ${built.size} anchors in ${System.currentTimeMillis() - startTime} ms")
+    return built
+  }
+
   override fun load(start: Int, length: Int, totalSize: Int, cancellationSignal: PagedDataSource.CancellationSignal): List<ConversationElement> {
+    SignalTrace.beginSection("ConversationDataSource#load")
+    try {
+      return loadPage(start, length, totalSize, cancellationSignal)
+    } finally {
+      SignalTrace.endSection()
+    }
+  }
+
+  private fun loadPage(start: Int, length: Int, totalSize: Int, cancellationSignal: PagedDataSource.CancellationSignal): List<ConversationElement> {
     val stopwatch = Stopwatch("load($start, $length), thread $threadId")
-    var records: MutableList<MessageRecord> = ArrayList(length)
+    val records: MutableList<MessageRecord> = ArrayList(length)
     val mentionHelper = MentionHelper()
     val quotedHelper = QuotedHelper()
     val attachmentHelper = AttachmentHelper()
@@ -106,8 +175,17 @@ class ConversationDataSource(
     val paymentHelper = PaymentHelper()
     val callHelper = CallHelper()
     val referencedIds = hashSetOf<ServiceId>()
-
-    MessageTable.mmsReaderFor(SignalDatabase.messages.getConversation(threadId, start.toLong(), length.toLong()))
+    val helpers: Map<String, ConversationDataHelper> = linkedMapOf(
+      "mentions" to mentionHelper,
+      "is-quoted" to quotedHelper,
+      "reactions" to reactionHelper,
+      "attachments" to attachmentHelper,
+      "payments" to paymentHelper,
+      "calls" to callHelper
+    )
+    val updatedHelpers: List<ConversationDataHelper> = listOf(reactionHelper, attachmentHelper, paymentHelper, callHelper)
+
+    MessageTable.mmsReaderFor(getConversationCursor(start, length, totalSize))
       .use { reader ->
         reader.forEach { record ->
           if (cancellationSignal.isCanceled) {
@@ -115,12 +193,7 @@ class ConversationDataSource(
           }
 
           records.add(record)
-          mentionHelper.add(record)
-          quotedHelper.add(record)
-          reactionHelper.add(record)
-          attachmentHelper.add(record)
-          paymentHelper.add(record)
-          callHelper.add(record)
+          helpers.values.forEach { it.add(record) }
 
           val updateDescription = record.getUpdateDisplayBody(context, null)
           if (updateDescription != null) {
@@ -143,40 +216,15 @@ class ConversationDataSource(
 
     stopwatch.split("messages")
 
-    mentionHelper.fetchMentions(context)
-    stopwatch.split("mentions")
-
-    quotedHelper.fetchQuotedState()
-    stopwatch.split("is-quoted")
-
-    reactionHelper.fetchReactions()
-    stopwatch.split("reactions")
-
-    records = reactionHelper.buildUpdatedModels(records)
-    stopwatch.split("reaction-models")
-
-    attachmentHelper.fetchAttachments()
-    stopwatch.split("attachments")
-
-    records = attachmentHelper.buildUpdatedModels(context, records)
-    stopwatch.split("attachment-models")
-
-    paymentHelper.fetchPayments()
-    stopwatch.split("payments")
-
-    records = paymentHelper.buildUpdatedModels(records)
-    stopwatch.split("payment-models")
-
-    callHelper.fetchCalls()
-    stopwatch.split("calls")
-
-    records = callHelper.buildUpdatedModels(records)
-    stopwatch.split("call-models")
+    fetchHelpers(helpers)
+    stopwatch.split("helpers")
 
     referencedIds.forEach { Recipient.resolved(RecipientId.from(it)) }
     stopwatch.split("recipient-resolves")
 
-    val messages = records.map { record ->
+    val messages = records.map { pageRecord ->
+      val record = updatedHelpers.fold(pageRecord) { updated, helper -> helper.buildUpdatedModel(context, updated) }
+
       ConversationMessageFactory.createWithUnresolvedData(
         context,
         record,
@@ -282,6 +330,36 @@ class ConversationDataSource(
     }
   }
 
+  /**
+   * Fetches the data for each helper. The helpers are independent read-only batches, so all but the first are run concurrently on [HELPER_EXECUTOR]
+   * while the calling thread fetches the first, and then it waits for the rest to finish before the records are rebuilt.
+   */
+  private fun fetchHelpers(helpers: Map<String, ConversationDataHelper>) {
+    val (firstLabel, firstHelper) = helpers.entries.first()
+
+    val futures: Map<String, Future<Long>> = helpers.filterKeys { it != firstLabel }.mapValues { (_, helper) ->
+      HELPER_EXECUTOR.submit(Callable { timeFetch(helper) })
+    }
+
+    val firstTiming = "$firstLabel: ${timeFetch(firstHelper)}"
+
+    val timings = listOf(firstTiming) + futures.map { (label, future) ->
+      try {
+        "$label: ${future.get()}"
+      } catch (e: ExecutionException) {
+        throw e.cause ?: e
+      }
+    }
+
+    Log.d(TAG, "[fetchHelpers(), thread $threadId] ${timings.joinToString("  ")}")
+  }
+
+  private fun timeFetch(helper: ConversationDataHelper): Long {
+    val startTime = System.currentTimeMillis()
+    helper.fetch(context)
+    return System.currentTimeMillis() - startTime
+  }
+
   private fun loadThreadHeader(): ThreadHeader {
     return ThreadHeader(messageRequestRepository.getRecipientInfo(threadRecipient.id, threadId))
   }
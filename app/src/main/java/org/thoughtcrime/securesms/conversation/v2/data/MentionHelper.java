@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.conversation.v2.data;
 
 import android.content.Context;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.SignalDatabase;
@@ -14,12 +15,13 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-public class MentionHelper {
+public class MentionHelper implements ConversationDataHelper {
 
   private Collection<Long>         messageIds          = new LinkedList<>();
   private Map<Long, List<Mention>> messageIdToMentions = new HashMap<>();
 
-  public void add(MessageRecord record) {
+  @Override
+  public void add(@NonNull MessageRecord record) {
     if (record.isMms()) {
       messageIds.add(record.getId());
     }
@@ -29,6 +31,11 @@ public class MentionHelper {
     messageIdToMentions = SignalDatabase.mentions().getMentionsForMessages(messageIds);
   }
 
+  @Override
+  public void fetch(@NonNull Context context) {
+    fetchMentions(context);
+  }
+
   public @Nullable List<Mention> getMentions(long id) {
     return messageIdToMentions.get(id);
   }
@@ -1,5 +1,7 @@
 package org.thoughtcrime.securesms.conversation.v2.data;
 
+import android.content.Context;
+
 import androidx.annotation.NonNull;
 
 import org.thoughtcrime.securesms.database.SignalDatabase;
@@ -14,11 +16,12 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
-public class PaymentHelper {
+public class PaymentHelper implements ConversationDataHelper {
   private final Map<UUID, Long>    paymentMessages    = new HashMap<>();
   private final Map<Long, Payment> messageIdToPayment = new HashMap<>();
 
-  public void add(MessageRecord messageRecord) {
+  @Override
+  public void add(@NonNull MessageRecord messageRecord) {
     if (messageRecord.isMms() && messageRecord.isPaymentNotification()) {
       UUID paymentUuid = UuidUtil.parseOrNull(messageRecord.getBody());
       if (paymentUuid != null) {
@@ -36,17 +39,29 @@ public class PaymentHelper {
     }
   }
 
+  @Override
+  public void fetch(@NonNull Context context) {
+    fetchPayments();
+  }
+
   public @NonNull List<MessageRecord> buildUpdatedModels(@NonNull List<MessageRecord> records) {
     return records.stream()
-                  .map(record -> {
-                    if (record instanceof MediaMmsMessageRecord) {
-                      Payment payment = messageIdToPayment.get(record.getId());
-                      if (payment != null) {
-                        return ((MediaMmsMessageRecord) record).withPayment(payment);
-                      }
-                    }
-                    return record;
-                  })
+                  .map(this::buildUpdatedModel)
                   .collect(Collectors.toList());
   }
+
+  @Override
+  public @NonNull MessageRecord buildUpdatedModel(@NonNull Context context, @NonNull MessageRecord record) {
+    return buildUpdatedModel(record);
+  }
+
+  private @NonNull MessageRecord buildUpdatedModel(@NonNull MessageRecord record) {
+    if (record instanceof MediaMmsMessageRecord) {
+      Payment payment = messageIdToPayment.get(record.getId());
+      if (payment != null) {
+        return ((MediaMmsMessageRecord) record).withPayment(payment);
+      }
+    }
+    return record;
+  }
 }
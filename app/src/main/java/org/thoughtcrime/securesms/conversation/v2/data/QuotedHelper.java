@@ -1,19 +1,23 @@
 package org.thoughtcrime.securesms.conversation.v2.data;
 
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.collections.LongHashSet;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.Set;
 
-public class QuotedHelper {
+public class QuotedHelper implements ConversationDataHelper {
 
   private Collection<MessageRecord> records          = new LinkedList<>();
-  private Set<Long>                 hasBeenQuotedIds = new HashSet<>();
+  private LongHashSet               hasBeenQuotedIds = new LongHashSet();
 
-  public void add(MessageRecord record) {
+  @Override
+  public void add(@NonNull MessageRecord record) {
     records.add(record);
   }
 
@@ -21,6 +25,11 @@ public class QuotedHelper {
     hasBeenQuotedIds = SignalDatabase.messages().isQuoted(records);
   }
 
+  @Override
+  public void fetch(@NonNull Context context) {
+    fetchQuotedState();
+  }
+
   public boolean isQuoted(long id) {
     return hasBeenQuotedIds.contains(id);
   }
@@ -1,28 +1,28 @@
 package org.thoughtcrime.securesms.conversation.v2.data;
 
+import android.content.Context;
+
 import androidx.annotation.NonNull;
 
+import org.signal.core.util.collections.LongList;
+import org.signal.core.util.collections.LongObjectMap;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
-import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.ReactionRecord;
 import org.thoughtcrime.securesms.util.Util;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.stream.Collectors;
 
-public class ReactionHelper {
+public class ReactionHelper implements ConversationDataHelper {
 
-  private Collection<MessageId>                messageIds           = new LinkedList<>();
-  private Map<MessageId, List<ReactionRecord>> messageIdToReactions = new HashMap<>();
+  private LongList                            messageIds           = new LongList();
+  private LongObjectMap<List<ReactionRecord>> messageIdToReactions = new LongObjectMap<>();
 
-  public void add(MessageRecord record) {
-    messageIds.add(new MessageId(record.getId()));
+  @Override
+  public void add(@NonNull MessageRecord record) {
+    messageIds.add(record.getId());
   }
 
   public void addAll(List<MessageRecord> records) {
@@ -32,17 +32,22 @@ public class ReactionHelper {
   }
 
   public void fetchReactions() {
-    messageIdToReactions = SignalDatabase.reactions().getReactionsForMessages(messageIds);
+    messageIdToReactions = SignalDatabase.reactions().getReactionsForMessageIds(messageIds);
+  }
+
+  @Override
+  public void fetch(@NonNull Context context) {
+    fetchReactions();
+  }
+
+  @Override
+  public @NonNull MessageRecord buildUpdatedModel(@NonNull Context context, @NonNull MessageRecord record) {
+    return recordWithReactions(record, messageIdToReactions.get(record.getId()));
   }
 
   public @NonNull List<MessageRecord> buildUpdatedModels(@NonNull List<MessageRecord> records) {
     return records.stream()
-                  .map(record -> {
-                    MessageId            messageId = new MessageId(record.getId());
-                    List<ReactionRecord> reactions = messageIdToReactions.get(messageId);
-
-                    return recordWithReactions(record, reactions);
-                  })
+                  .map(record -> recordWithReactions(record, messageIdToReactions.get(record.getId())))
                   .collect(Collectors.toList());
   }
 
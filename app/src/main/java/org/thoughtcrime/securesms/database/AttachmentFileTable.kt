@@ -0,0 +1,322 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.Context
+import org.intellij.lang.annotations.Language
+import org.signal.core.util.delete
+import org.signal.core.util.exists
+import org.signal.core.util.firstOrNull
+import org.signal.core.util.logging.Log
+import org.signal.core.util.readToList
+import org.signal.core.util.requireBoolean
+import org.signal.core.util.requireLong
+import org.signal.core.util.requireNonNullBlob
+import org.signal.core.util.requireNonNullString
+import org.signal.core.util.requireString
+import org.signal.core.util.select
+import org.signal.core.util.update
+import org.signal.core.util.withinTransaction
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import java.io.File
+
+/**
+ * Keeps one row for every attachment file on disk, along with the hash of its plaintext and the number of attachments that point at it. This lets
+ * identical attachments share a single file, found by hash, and lets a file be deleted as soon as nothing points at it anymore.
+ *
+ * The reference counts are maintained by triggers on the attachment table, so they stay correct no matter how an attachment is inserted, copied, updated,
+ * or deleted. Files are never rewritten once they're referenced, so sharing one is always safe.
+ *
+ * Each file can also have a small encrypted thumbnail, made in the background by [org.thoughtcrime.securesms.jobs.AttachmentThumbnailJob], so that media
+ * can be shown without decoding the whole file. It's shared and deleted along with the file.
+ */
+class AttachmentFileTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable(context, databaseHelper) {
+
+  companion object {
+    private val TAG = Log.tag(AttachmentFileTable::class.java)
+
+    const val TABLE_NAME = "attachment_file"
+
+    private const val ID = "_id"
+    private const val DATA = "_data"
+    private const val DATA_HASH = "data_hash"
+    private const val DATA_RANDOM = "data_random"
+    private const val SIZE = "data_size"
+    private const val REF_COUNT = "ref_count"
+    private const val THUMBNAIL_FILE = "thumbnail_file"
+    private const val THUMBNAIL_RANDOM = "thumbnail_random"
+    private const val THUMBNAIL_STATE = "thumbnail_state"
+
+    private const val THUMBNAIL_STATE_PENDING = 0
+    private const val THUMBNAIL_STATE_DONE = 1
+    private const val THUMBNAIL_STATE_SKIPPED = 2
+
+    private const val TRIGGER_AFTER_INSERT = "attachment_file_ai"
+    private const val TRIGGER_AFTER_DELETE = "attachment_file_ad"
+    private const val TRIGGER_AFTER_UPDATE = "attachment_file_au"
+
+    private const val DELETE_UNREFERENCED_KEY = "AttachmentFileTable.deleteUnreferencedFiles"
+
+    const val CREATE_TABLE = """
+      CREATE TABLE $TABLE_NAME (
+        $ID INTEGER PRIMARY KEY AUTOINCREMENT,
+        $DATA TEXT UNIQUE NOT NULL,
+        $DATA_HASH TEXT DEFAULT NULL,
+        $DATA_RANDOM BLOB DEFAULT NULL,
+        $SIZE INTEGER DEFAULT 0,
+        $REF_COUNT INTEGER NOT NULL DEFAULT 0,
+        $THUMBNAIL_FILE TEXT DEFAULT NULL,
+        $THUMBNAIL_RANDOM BLOB DEFAULT NULL,
+        $THUMBNAIL_STATE INTEGER NOT NULL DEFAULT $THUMBNAIL_STATE_PENDING
+      )
+    """
+
+    val CREATE_INDEXES = arrayOf(
+      "CREATE INDEX attachment_file_data_hash_index ON $TABLE_NAME ($DATA_HASH)",
+      "CREATE INDEX attachment_file_unreferenced_index ON $TABLE_NAME ($REF_COUNT) WHERE $REF_COUNT <= 0",
+      "CREATE INDEX attachment_file_thumbnail_pending_index ON $TABLE_NAME ($THUMBNAIL_STATE) WHERE $THUMBNAIL_STATE = $THUMBNAIL_STATE_PENDING"
+    )
+
+    private fun increment(row: String): String {
+      return """
+        INSERT OR IGNORE INTO $TABLE_NAME ($DATA, $DATA_HASH, $DATA_RANDOM, $SIZE, $REF_COUNT) SELECT $row.${AttachmentTable.DATA}, $row.${AttachmentTable.DATA_HASH}, $row.${AttachmentTable.DATA_RANDOM}, $row.${AttachmentTable.SIZE}, 0 WHERE $row.${AttachmentTable.DATA} NOT NULL;
+        UPDATE $TABLE_NAME SET $REF_COUNT = $REF_COUNT + 1, $DATA_HASH = COALESCE($DATA_HASH, $row.${AttachmentTable.DATA_HASH}) WHERE $DATA = $row.${AttachmentTable.DATA};
+      """
+    }
+
+    private fun decrement(row: String): String {
+      return """
+        UPDATE $TABLE_NAME SET $REF_COUNT = $REF_COUNT - 1 WHERE $DATA = $row.${AttachmentTable.DATA};
+      """
+    }
+
+    @Language("sql")
+    val CREATE_TRIGGERS = arrayOf(
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_INSERT AFTER INSERT ON ${AttachmentTable.TABLE_NAME} BEGIN
+          ${increment("new")}
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_DELETE AFTER DELETE ON ${AttachmentTable.TABLE_NAME} BEGIN
+          ${decrement("old")}
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_UPDATE AFTER UPDATE OF ${AttachmentTable.DATA}, ${AttachmentTable.DATA_HASH} ON ${AttachmentTable.TABLE_NAME} BEGIN
+          ${decrement("old")}
+          ${increment("new")}
+        END;
+      """
+    )
+  }
+
+  /**
+   * A file that at least one attachment currently points at, with everything needed to point another attachment at it.
+   */
+  class StoredFile(val file: File, val length: Long, val random: ByteArray)
+
+  /**
+   * A file that still needs a thumbnail, along with one of the attachments pointing at it to read it through.
+   */
+  class PendingThumbnail(val file: File, val attachmentId: AttachmentId, val contentType: String?, val viewOnce: Boolean)
+
+  /**
+   * Finds a referenced file whose plaintext has the given hash. Must be called in the same transaction that goes on to point an attachment at the file,
+   * so that it can't be deleted in between.
+   */
+  fun getFileByHash(hash: String): StoredFile? {
+    check(writableDatabase.inTransaction()) { "Must be in a transaction!" }
+
+    return writableDatabase
+      .select(DATA, DATA_RANDOM, SIZE)
+      .from(TABLE_NAME)
+      .where("$DATA_HASH = ? AND $REF_COUNT > 0 AND $DATA_RANDOM NOT NULL", hash)
+      .limit(1)
+      .run()
+      .firstOrNull { cursor ->
+        StoredFile(
+          file = File(cursor.requireNonNullString(DATA)),
+          length = cursor.requireLong(SIZE),
+          random = cursor.requireNonNullBlob(DATA_RANDOM)
+        )
+      }
+  }
+
+  /**
+   * The plaintext hash of a file, even if the attachments pointing at it don't carry one themselves.
+   */
+  fun getHash(file: File): String? {
+    return readableDatabase
+      .select(DATA_HASH)
+      .from(TABLE_NAME)
+      .where("$DATA = ?", file.absolutePath)
+      .run()
+      .firstOrNull { it.getString(0) }
+  }
+
+  /**
+   * Records the plaintext hash of a file, for when the attachment that was written with it doesn't keep the hash, so that later copies can still share it.
+   */
+  fun setHashIfMissing(file: File, hash: String) {
+    writableDatabase
+      .update(TABLE_NAME)
+      .values(DATA_HASH to hash)
+      .where("$DATA = ? AND $DATA_HASH IS NULL", file.absolutePath)
+      .run()
+  }
+
+  fun isReferenced(file: File): Boolean {
+    return writableDatabase
+      .exists(TABLE_NAME)
+      .where("$DATA = ? AND $REF_COUNT > 0", file.absolutePath)
+      .run()
+  }
+
+  /**
+   * Deletes every file that no attachment points at anymore, along with its thumbnail. If there's a transaction open, this happens once it has been
+   * committed, as the files may still be needed if it's rolled back.
+   *
+   * @return The number of files deleted, or 0 if the deletion was deferred.
+   */
+  fun deleteUnreferencedFiles(): Int {
+    val db = writableDatabase
+
+    if (db.inTransaction()) {
+      db.runPostSuccessfulTransaction(DELETE_UNREFERENCED_KEY) { deleteUnreferencedFiles() }
+      return 0
+    }
+
+    val files: List<File> = db.withinTransaction {
+      val unreferenced = db
+        .select(DATA, THUMBNAIL_FILE)
+        .from(TABLE_NAME)
+        .where("$REF_COUNT <= 0")
+        .run()
+        .readToList { cursor -> listOfNotNull(cursor.requireNonNullString(DATA), cursor.requireString(THUMBNAIL_FILE)).map { File(it) } }
+        .flatten()
+
+      db.delete(TABLE_NAME)
+        .where("$REF_COUNT <= 0")
+        .run()
+
+      unreferenced
+    }
+
+    var deletes = 0
+    for (file in files) {
+      if (file.delete()) {
+        deletes++
+      } else if (file.exists()) {
+        Log.w(TAG, "Failed to delete unreferenced attachment file. $file")
+      }
+    }
+
+    if (deletes > 0) {
+      Log.i(TAG, "Deleted $deletes unreferenced attachment files.")
+    }
+
+    return deletes
+  }
+
+  /**
+   * Files that still need a thumbnail, with those used in [priorityThreadId] first and then the most recent ones.
+   */
+  fun getPendingThumbnails(priorityThreadId: Long, limit: Int): List<PendingThumbnail> {
+    val query = """
+      SELECT
+        f.$DATA,
+        p.${AttachmentTable.ROW_ID},
+        p.${AttachmentTable.UNIQUE_ID},
+        p.${AttachmentTable.CONTENT_TYPE},
+        MAX(m.${MessageTable.VIEW_ONCE}) AS view_once,
+        MAX(m.${MessageTable.THREAD_ID} = ?) AS in_priority_thread
+      FROM $TABLE_NAME AS f
+      INNER JOIN ${AttachmentTable.TABLE_NAME} AS p ON p.${AttachmentTable.DATA} = f.$DATA
+      LEFT JOIN ${MessageTable.TABLE_NAME} AS m ON m.${MessageTable.ID} = p.${AttachmentTable.MMS_ID}
+      WHERE f.$THUMBNAIL_STATE = $THUMBNAIL_STATE_PENDING AND f.$REF_COUNT > 0
+      GROUP BY f.$ID
+      ORDER BY in_priority_thread DESC, f.$ID DESC
+      LIMIT $limit
+    """
+
+    return readableDatabase
+      .rawQuery(query, arrayOf(priorityThreadId.toString()))
+      .readToList { cursor ->
+        PendingThumbnail(
+          file = File(cursor.requireNonNullString(DATA)),
+          attachmentId = AttachmentId(cursor.requireLong(AttachmentTable.ROW_ID), cursor.requireLong(AttachmentTable.UNIQUE_ID)),
+          contentType = cursor.requireString(AttachmentTable.CONTENT_TYPE),
+          viewOnce = cursor.requireBoolean("view_once")
+        )
+      }
+  }
+
+  /**
+   * Records the thumbnail of a file.
+   *
+   * @return False if nothing points at the file anymore, in which case the thumbnail wasn't recorded and should be deleted.
+   */
+  fun setThumbnail(file: File, thumbnail: File, thumbnailRandom: ByteArray): Boolean {
+    return writableDatabase
+      .update(TABLE_NAME)
+      .values(
+        THUMBNAIL_FILE to thumbnail.absolutePath,
+        THUMBNAIL_RANDOM to thumbnailRandom,
+        THUMBNAIL_STATE to THUMBNAIL_STATE_DONE
+      )
+      .where("$DATA = ? AND $REF_COUNT > 0 AND $THUMBNAIL_STATE = $THUMBNAIL_STATE_PENDING", file.absolutePath)
+      .run() > 0
+  }
+
+  /**
+   * Marks a file as not getting a thumbnail, either because it isn't something that has one or because making it failed. It will be decoded on demand.
+   */
+  fun skipThumbnail(file: File) {
+    writableDatabase
+      .update(TABLE_NAME)
+      .values(THUMBNAIL_STATE to THUMBNAIL_STATE_SKIPPED)
+      .where("$DATA = ? AND $THUMBNAIL_STATE = $THUMBNAIL_STATE_PENDING", file.absolutePath)
+      .run()
+  }
+
+  /**
+   * The thumbnail of the file an attachment points at, if one has been made.
+   */
+  fun getThumbnail(attachmentId: AttachmentId): StoredFile? {
+    return readableDatabase
+      .select(THUMBNAIL_FILE, THUMBNAIL_RANDOM)
+      .from(TABLE_NAME)
+      .where(
+        """
+        $DATA = (SELECT ${AttachmentTable.DATA} FROM ${AttachmentTable.TABLE_NAME} WHERE ${AttachmentTable.ROW_ID} = ? AND ${AttachmentTable.UNIQUE_ID} = ?) AND
+        $THUMBNAIL_STATE = $THUMBNAIL_STATE_DONE
+        """,
+        attachmentId.rowId,
+        attachmentId.uniqueId
+      )
+      .run()
+      .firstOrNull { cursor ->
+        val file = File(cursor.requireNonNullString(THUMBNAIL_FILE))
+        StoredFile(
+          file = file,
+          length = file.length(),
+          random = cursor.requireNonNullBlob(THUMBNAIL_RANDOM)
+        )
+      }
+  }
+
+  fun getAllThumbnailFiles(): Set<String> {
+    return readableDatabase
+      .select(THUMBNAIL_FILE)
+      .from(TABLE_NAME)
+      .where("$THUMBNAIL_FILE NOT NULL")
+      .run()
+      .readToList { it.requireNonNullString(THUMBNAIL_FILE) }
+      .toSet()
+  }
+
+  fun deleteAll() {
+    writableDatabase
+      .delete(TABLE_NAME)
+      .run()
+  }
+}
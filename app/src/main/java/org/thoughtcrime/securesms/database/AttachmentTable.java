@@ -67,10 +67,10 @@ import org.whispersystems.signalservice.internal.util.JsonUtil;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -119,7 +119,7 @@ public class AttachmentTable extends DatabaseTable {
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
           static final String CAPTION                = "caption";
-          static final String DATA_HASH              = "data_hash";
+  public  static final String DATA_HASH              = "data_hash";
           static final String VISUAL_HASH            = "blur_hash";
           static final String TRANSFORM_PROPERTIES   = "transform_properties";
           static final String DISPLAY_ORDER          = "display_order";
@@ -138,7 +138,6 @@ public class AttachmentTable extends DatabaseTable {
   public static final long PREUPLOAD_MESSAGE_ID = -8675309;
 
   private static final String PART_ID_WHERE     = ROW_ID + " = ? AND " + UNIQUE_ID + " = ?";
-  private static final String PART_ID_WHERE_NOT = ROW_ID + " != ? AND " + UNIQUE_ID + " != ?";
 
   private static final String[] PROJECTION = new String[] {ROW_ID,
                                                            MMS_ID, CONTENT_TYPE, NAME, CONTENT_DISPOSITION,
@@ -221,6 +220,19 @@ public class AttachmentTable extends DatabaseTable {
     else                    return dataStream;
   }
 
+  /**
+   * The precomputed thumbnail of an attachment, or null if it doesn't have one yet. See {@link AttachmentFileTable}.
+   */
+  public @Nullable InputStream getThumbnailStream(@NonNull AttachmentId attachmentId) throws IOException {
+    AttachmentFileTable.StoredFile thumbnail = SignalDatabase.attachmentFiles().getThumbnail(attachmentId);
+
+    if (thumbnail == null) {
+      return null;
+    }
+
+    return ModernDecryptingPartInputStream.createFor(attachmentSecret, thumbnail.getRandom(), thumbnail.getFile(), 0);
+  }
+
   public boolean containsStickerPackId(@NonNull String stickerPackId) {
     String   selection = STICKER_PACK_ID + " = ?";
     String[] args      = new String[] { stickerPackId };
@@ -485,10 +497,13 @@ public class AttachmentTable extends DatabaseTable {
     int deletes = db.delete(TABLE_NAME, where, null);
     if (deletes > 0) {
       Log.i(TAG, "Trimmed " + deletes + " abandoned attachments.");
+      SignalDatabase.attachmentFiles().deleteUnreferencedFiles();
     }
   }
 
   public int deleteAbandonedAttachmentFiles() {
+    SignalDatabase.attachmentFiles().deleteUnreferencedFiles();
+
     File[] diskFiles = context.getDir(DIRECTORY, Context.MODE_PRIVATE).listFiles();
 
     if (diskFiles == null) {
@@ -507,6 +522,7 @@ public class AttachmentTable extends DatabaseTable {
       }
     }
 
+    filesInDb.addAll(SignalDatabase.attachmentFiles().getAllThumbnailFiles());
     filesInDb.addAll(SignalDatabase.stickers().getAllStickerFiles());
 
     Set<String> onDiskButNotInDatabase = SetUtil.difference(filesOnDisk, filesInDb);
@@ -523,12 +539,17 @@ public class AttachmentTable extends DatabaseTable {
   void deleteAllAttachments() {
     SQLiteDatabase database = databaseHelper.getSignalWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    SignalDatabase.attachmentFiles().deleteAll();
 
     FileUtils.deleteDirectoryContents(context.getDir(DIRECTORY, Context.MODE_PRIVATE));
 
     notifyAttachmentListeners();
   }
 
+  /**
+   * Releases this attachment's hold on its file, which is deleted by {@link AttachmentFileTable#deleteUnreferencedFiles()} once the transaction is committed
+   * if nothing else points at it. Quotes don't keep a file around on their own, so they're cleared if they're the only other users of it.
+   */
   private void deleteAttachmentOnDisk(@Nullable String data,
                                       @Nullable String contentType,
                                       @NonNull AttachmentId attachmentId)
@@ -549,34 +570,30 @@ public class AttachmentTable extends DatabaseTable {
     Log.i(TAG, "[deleteAttachmentOnDisk] No other strong uses of this attachment. Safe to delete. " + data + " " + attachmentId);
 
     if (!TextUtils.isEmpty(data)) {
-      if (new File(data).delete()) {
-        Log.i(TAG, "[deleteAttachmentOnDisk] Deleted attachment file. " + data + " " + attachmentId);
-
-        List<AttachmentId> removableWeakReferences = dataUsage.getRemovableWeakReferences();
-
-        if (removableWeakReferences.size() > 0) {
-          Log.i(TAG, String.format(Locale.US, "[deleteAttachmentOnDisk] Deleting %d weak references for %s", removableWeakReferences.size(), data));
-          int deletedCount = 0;
-
-          for (AttachmentId weakReference : removableWeakReferences) {
-            Log.i(TAG, String.format("[deleteAttachmentOnDisk] Clearing weak reference for %s %s", data, weakReference));
-            ContentValues values = new ContentValues();
-            values.putNull(DATA);
-            values.putNull(DATA_RANDOM);
-            values.putNull(DATA_HASH);
-            deletedCount += db.update(TABLE_NAME, values, PART_ID_WHERE, weakReference.toStrings());
-          }
+      List<AttachmentId> removableWeakReferences = dataUsage.getRemovableWeakReferences();
+
+      if (removableWeakReferences.size() > 0) {
+        Log.i(TAG, String.format(Locale.US, "[deleteAttachmentOnDisk] Deleting %d weak references for %s", removableWeakReferences.size(), data));
+        int deletedCount = 0;
+
+        for (AttachmentId weakReference : removableWeakReferences) {
+          Log.i(TAG, String.format("[deleteAttachmentOnDisk] Clearing weak reference for %s %s", data, weakReference));
+          ContentValues values = new ContentValues();
+          values.putNull(DATA);
+          values.putNull(DATA_RANDOM);
+          values.putNull(DATA_HASH);
+          deletedCount += db.update(TABLE_NAME, values, PART_ID_WHERE, weakReference.toStrings());
+        }
 
-          String logMessage = String.format(Locale.US, "[deleteAttachmentOnDisk] Cleared %d/%d weak references for %s", deletedCount, removableWeakReferences.size(), data);
-          if (deletedCount != removableWeakReferences.size()) {
-            Log.w(TAG, logMessage);
-          } else {
-            Log.i(TAG, logMessage);
-          }
+        String logMessage = String.format(Locale.US, "[deleteAttachmentOnDisk] Cleared %d/%d weak references for %s", deletedCount, removableWeakReferences.size(), data);
+        if (deletedCount != removableWeakReferences.size()) {
+          Log.w(TAG, logMessage);
+        } else {
+          Log.i(TAG, logMessage);
         }
-      } else {
-        Log.w(TAG, "[deleteAttachmentOnDisk] Failed to delete attachment. " + data + " " + attachmentId);
       }
+
+      SignalDatabase.attachmentFiles().deleteUnreferencedFiles();
     }
 
     if (MediaUtil.isImageType(contentType) || MediaUtil.isVideoType(contentType)) {
@@ -611,34 +628,39 @@ public class AttachmentTable extends DatabaseTable {
     return new DataUsageResult(quoteRows);
   }
 
+  public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull InputStream inputStream)
+      throws MmsException
+  {
+    insertAttachmentsForPlaceholder(mmsId, attachmentId, storeAttachmentStream(inputStream));
+  }
+
   /**
-   * Check if data file is in use by another attachment row with a different hash. Rows with the same data and has
-   * will be fixed in a later call to {@link #updateAttachmentAndMatchingHashes(SQLiteDatabase, AttachmentId, String, ContentValues)}.
+   * Like {@link #insertAttachmentsForPlaceholder(long, AttachmentId, InputStream)}, but for data that has already been written to a
+   * {@link PartOutputStream}, which will be closed. If this throws, the caller is still responsible for discarding the stream.
    */
-  private boolean isAttachmentFileUsedByOtherAttachments(@Nullable AttachmentId attachmentId, @NonNull DataInfo dataInfo) {
-    if (attachmentId == null) {
-      return false;
+  public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull PartOutputStream outputStream)
+      throws MmsException
+  {
+    try {
+      insertAttachmentsForPlaceholder(mmsId, attachmentId, outputStream.complete());
+    } catch (IOException e) {
+      throw new MmsException(e);
     }
-
-    return SQLiteDatabaseExtensionsKt.exists(getReadableDatabase(), TABLE_NAME)
-                                     .where(DATA + " = ? AND " + DATA_HASH + " != ?", dataInfo.file.getAbsolutePath(), dataInfo.hash)
-                                     .run();
   }
 
-  public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull InputStream inputStream)
+  private void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull DataInfo dataInfo)
       throws MmsException
   {
     DatabaseAttachment placeholder  = getAttachment(attachmentId);
     SQLiteDatabase     database     = databaseHelper.getSignalWritableDatabase();
     ContentValues      values       = new ContentValues();
     DataInfo           oldInfo      = getAttachmentDataFileInfo(attachmentId, DATA);
-    DataInfo           dataInfo     = storeAttachmentStream(inputStream);
     File               transferFile = getTransferFile(databaseHelper.getSignalReadableDatabase(), attachmentId);
     boolean            updated      = false;
 
     database.beginTransaction();
     try {
-      dataInfo = deduplicateAttachment(dataInfo, attachmentId);
+      dataInfo = deduplicateAttachment(dataInfo);
       if (oldInfo != null) {
         updateAttachmentDataHash(database, oldInfo.hash, dataInfo);
       }
@@ -660,6 +682,8 @@ public class AttachmentTable extends DatabaseTable {
 
       updated = database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) > 0;
 
+      SignalDatabase.attachmentFiles().deleteUnreferencedFiles();
+
       database.setTransactionSuccessful();
     } finally {
       database.endTransaction();
@@ -675,7 +699,7 @@ public class AttachmentTable extends DatabaseTable {
       notifyConversationListeners(threadId);
       notifyConversationListListeners();
       notifyAttachmentListeners();
-    } else {
+    } else if (!SignalDatabase.attachmentFiles().isReferenced(dataInfo.file)) {
       if (!dataInfo.file.delete()) {
         Log.w(TAG, "Failed to delete unused attachment");
       }
@@ -702,42 +726,51 @@ public class AttachmentTable extends DatabaseTable {
   public void copyAttachmentData(@NonNull AttachmentId sourceId, @NonNull AttachmentId destinationId)
       throws MmsException
   {
-    DatabaseAttachment sourceAttachment = getAttachment(sourceId);
+    SQLiteDatabase database = databaseHelper.getSignalWritableDatabase();
 
-    if (sourceAttachment == null) {
-      throw new MmsException("Cannot find attachment for source!");
-    }
+    database.beginTransaction();
+    try {
+      DatabaseAttachment sourceAttachment = getAttachment(sourceId);
+
+      if (sourceAttachment == null) {
+        throw new MmsException("Cannot find attachment for source!");
+      }
 
-    SQLiteDatabase database       = databaseHelper.getSignalWritableDatabase();
-    DataInfo       sourceDataInfo = getAttachmentDataFileInfo(sourceId, DATA);
+      DataInfo sourceDataInfo = getAttachmentDataFileInfo(sourceId, DATA);
 
-    if (sourceDataInfo == null) {
-      throw new MmsException("No attachment data found for source!");
-    }
+      if (sourceDataInfo == null) {
+        throw new MmsException("No attachment data found for source!");
+      }
 
-    ContentValues contentValues = new ContentValues();
+      ContentValues contentValues = new ContentValues();
 
-    contentValues.put(DATA, sourceDataInfo.file.getAbsolutePath());
-    contentValues.put(DATA_HASH, sourceDataInfo.hash);
-    contentValues.put(SIZE, sourceDataInfo.length);
-    contentValues.put(DATA_RANDOM, sourceDataInfo.random);
-
-    contentValues.put(TRANSFER_STATE, sourceAttachment.getTransferState());
-    contentValues.put(CDN_NUMBER, sourceAttachment.getCdnNumber());
-    contentValues.put(CONTENT_LOCATION, sourceAttachment.getLocation());
-    contentValues.put(DIGEST, sourceAttachment.getDigest());
-    contentValues.put(MAC_DIGEST, sourceAttachment.getIncrementalDigest());
-    contentValues.put(CONTENT_DISPOSITION, sourceAttachment.getKey());
-    contentValues.put(NAME, sourceAttachment.getRelay());
-    contentValues.put(SIZE, sourceAttachment.getSize());
-    contentValues.put(FAST_PREFLIGHT_ID, sourceAttachment.getFastPreflightId());
-    contentValues.put(WIDTH, sourceAttachment.getWidth());
-    contentValues.put(HEIGHT, sourceAttachment.getHeight());
-    contentValues.put(CONTENT_TYPE, sourceAttachment.getContentType());
-    contentValues.put(VISUAL_HASH, getVisualHashStringOrNull(sourceAttachment));
-    contentValues.put(TRANSFORM_PROPERTIES, sourceAttachment.getTransformProperties().serialize());
-
-    database.update(TABLE_NAME, contentValues, PART_ID_WHERE, destinationId.toStrings());
+      contentValues.put(DATA, sourceDataInfo.file.getAbsolutePath());
+      contentValues.put(DATA_HASH, sourceDataInfo.hash);
+      contentValues.put(SIZE, sourceDataInfo.length);
+      contentValues.put(DATA_RANDOM, sourceDataInfo.random);
+
+      contentValues.put(TRANSFER_STATE, sourceAttachment.getTransferState());
+      contentValues.put(CDN_NUMBER, sourceAttachment.getCdnNumber());
+      contentValues.put(CONTENT_LOCATION, sourceAttachment.getLocation());
+      contentValues.put(DIGEST, sourceAttachment.getDigest());
+      contentValues.put(MAC_DIGEST, sourceAttachment.getIncrementalDigest());
+      contentValues.put(CONTENT_DISPOSITION, sourceAttachment.getKey());
+      contentValues.put(NAME, sourceAttachment.getRelay());
+      contentValues.put(SIZE, sourceAttachment.getSize());
+      contentValues.put(FAST_PREFLIGHT_ID, sourceAttachment.getFastPreflightId());
+      contentValues.put(WIDTH, sourceAttachment.getWidth());
+      contentValues.put(HEIGHT, sourceAttachment.getHeight());
+      contentValues.put(CONTENT_TYPE, sourceAttachment.getContentType());
+      contentValues.put(VISUAL_HASH, getVisualHashStringOrNull(sourceAttachment));
+      contentValues.put(TRANSFORM_PROPERTIES, sourceAttachment.getTransformProperties().serialize());
+
+      database.update(TABLE_NAME, contentValues, PART_ID_WHERE, destinationId.toStrings());
+      SignalDatabase.attachmentFiles().deleteUnreferencedFiles();
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
   }
 
   public void updateAttachmentCaption(@NonNull AttachmentId id, @Nullable String caption) {
@@ -877,21 +910,12 @@ public class AttachmentTable extends DatabaseTable {
       throw new MmsException("No attachment data found!");
     }
 
-    File destination = oldDataInfo.file;
-
-    boolean isSingleUseOfData = onlyModifyThisAttachment || oldDataInfo.hash == null;
-    if (isSingleUseOfData) {
-      if (fileReferencedByMoreThanOneAttachment(destination)) {
-        Log.i(TAG, "Creating a new file as this one is used by more than one attachment");
-        destination = newFile();
-      }
-    }
-
-    DataInfo dataInfo = storeAttachmentStream(destination, mediaStream.getStream());
+    boolean  isSingleUseOfData = onlyModifyThisAttachment || oldDataInfo.hash == null;
+    DataInfo dataInfo          = storeAttachmentStream(newFile(), mediaStream.getStream());
 
     database.beginTransaction();
     try {
-      dataInfo = deduplicateAttachment(dataInfo, databaseAttachment.getAttachmentId());
+      dataInfo = deduplicateAttachment(dataInfo);
 
       ContentValues contentValues = new ContentValues();
       contentValues.put(SIZE, dataInfo.length);
@@ -909,26 +933,14 @@ public class AttachmentTable extends DatabaseTable {
 
       Log.i(TAG, "[updateAttachmentData] Updated " + updateCount + " rows.");
 
+      SignalDatabase.attachmentFiles().deleteUnreferencedFiles();
+
       database.setTransactionSuccessful();
     } finally {
       database.endTransaction();
     }
   }
 
-  /**
-   * Returns true if the file referenced by two or more attachments.
-   * Returns false if the file is referenced by zero or one attachments.
-   */
-  private boolean fileReferencedByMoreThanOneAttachment(@NonNull File file) {
-    SQLiteDatabase database  = databaseHelper.getSignalReadableDatabase();
-    String         selection = DATA + " = ?";
-    String[]       args      = new String[]{file.getAbsolutePath()};
-
-    try (Cursor cursor = database.query(TABLE_NAME, null, selection, args, null, null, null, "2")) {
-      return cursor != null && cursor.moveToFirst() && cursor.moveToNext();
-    }
-  }
-
   public void markAttachmentAsTransformed(@NonNull AttachmentId attachmentId) {
     getWritableDatabase().beginTransaction();
     try {
@@ -1160,28 +1172,53 @@ public class AttachmentTable extends DatabaseTable {
     return newFile(context);
   }
 
+  /**
+   * Creates a stream that encrypts everything written to it into a new part file, hashing it along the way for deduplication. Once it's complete, hand it
+   * to {@link #insertAttachmentsForPlaceholder(long, AttachmentId, PartOutputStream)}, or {@link PartOutputStream#discard()} it.
+   */
+  public @NonNull PartOutputStream newPartOutputStream() throws MmsException {
+    try {
+      return newPartOutputStream(newFile());
+    } catch (IOException e) {
+      throw new MmsException(e);
+    }
+  }
+
+  private @NonNull PartOutputStream newPartOutputStream(@NonNull File file) throws MmsException {
+    try {
+      return new PartOutputStream(file, ModernEncryptingPartOutputStream.createFor(attachmentSecret, file, false), MessageDigest.getInstance("SHA-256"));
+    } catch (IOException | NoSuchAlgorithmException e) {
+      throw new MmsException(e);
+    }
+  }
+
   private File newTransferFile() throws IOException {
     File partsDirectory = context.getDir(DIRECTORY, Context.MODE_PRIVATE);
     return PartFileProtector.protect(() -> File.createTempFile("transfer", ".mms", partsDirectory));
   }
 
+  private File newThumbnailFile() throws IOException {
+    File partsDirectory = context.getDir(DIRECTORY, Context.MODE_PRIVATE);
+    return PartFileProtector.protect(() -> File.createTempFile("thumbnail", ".mms", partsDirectory));
+  }
+
   public static File newFile(Context context) throws IOException {
     File partsDirectory = context.getDir(DIRECTORY, Context.MODE_PRIVATE);
     return PartFileProtector.protect(() -> File.createTempFile("part", ".mms", partsDirectory));
   }
 
   /**
-   * Reads the entire stream and saves to disk. If you need to deduplicate attachments, call {@link #deduplicateAttachment(DataInfo, AttachmentId)}
+   * Reads the entire stream and saves to disk. If you need to deduplicate attachments, call {@link #deduplicateAttachment(DataInfo)}
    * afterwards and use the {@link DataInfo} returned by it instead.
    */
   private @NonNull DataInfo storeAttachmentStream(@NonNull File destination, @NonNull InputStream in) throws MmsException {
+    PartOutputStream out = newPartOutputStream();
+
     try {
-      File                       tempFile          = newFile();
-      MessageDigest              messageDigest     = MessageDigest.getInstance("SHA-256");
-      DigestInputStream          digestInputStream = new DigestInputStream(in, messageDigest);
-      Pair<byte[], OutputStream> out               = ModernEncryptingPartOutputStream.createFor(attachmentSecret, tempFile, false);
-      long                       length            = StreamUtil.copy(digestInputStream, out.second);
-      String                     hash              = Base64.encodeBytes(digestInputStream.getMessageDigest().digest());
+      StreamUtil.copy(in, out);
+
+      DataInfo tempInfo = out.complete();
+      File     tempFile = tempInfo.file;
 
       if (!tempFile.renameTo(destination)) {
         Log.w(TAG, "Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
@@ -1189,25 +1226,29 @@ public class AttachmentTable extends DatabaseTable {
         throw new IllegalStateException("Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
       }
 
-      return new DataInfo(destination, length, out.first, hash);
-    } catch (IOException | NoSuchAlgorithmException e) {
+      return new DataInfo(destination, tempInfo.length, tempInfo.random, tempInfo.hash);
+    } catch (IOException e) {
+      out.discard();
       throw new MmsException(e);
     }
   }
 
-  private @NonNull DataInfo deduplicateAttachment(@NonNull DataInfo dataInfo, @Nullable AttachmentId attachmentId) throws MmsException {
+  /**
+   * If there's already a file with the same plaintext, returns it to be used instead, and deletes the newly written one if nothing else points at it.
+   */
+  private @NonNull DataInfo deduplicateAttachment(@NonNull DataInfo dataInfo) {
     SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
 
     if (!db.inTransaction()) {
       throw new IllegalStateException("Must be in a transaction!");
     }
 
-    Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(db, dataInfo.hash, attachmentId);
+    Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(dataInfo.hash);
     if (sharedDataInfo.isPresent()) {
       Log.i(TAG, "[setAttachmentData] Duplicate data file found! " + sharedDataInfo.get().file.getAbsolutePath());
       if (!dataInfo.file.equals(sharedDataInfo.get().file)) {
-        if (isAttachmentFileUsedByOtherAttachments(attachmentId, dataInfo)) {
-          Log.i(TAG, "[setAttachmentData] Original file still in use by another attachment with a different hash.");
+        if (SignalDatabase.attachmentFiles().isReferenced(dataInfo.file)) {
+          Log.i(TAG, "[setAttachmentData] Original file still in use by another attachment.");
         } else if (dataInfo.file.delete()) {
           Log.i(TAG, "[setAttachmentData] Deleted original file. " + dataInfo.file);
         } else {
@@ -1222,55 +1263,37 @@ public class AttachmentTable extends DatabaseTable {
     return dataInfo;
   }
 
-  private static @NonNull Optional<DataInfo> findDuplicateDataFileInfo(@NonNull SQLiteDatabase database,
-                                                                       @NonNull String hash,
-                                                                       @Nullable AttachmentId excludedAttachmentId)
-  {
-    if (!database.inTransaction()) {
-      throw new IllegalArgumentException("Must be in a transaction!");
+  private static @NonNull Optional<DataInfo> findDuplicateDataFileInfo(@Nullable String hash) {
+    if (hash == null) {
+      return Optional.empty();
     }
 
-    Pair<String, String[]> selectorArgs = buildSharedFileSelectorArgs(hash, excludedAttachmentId);
-    try (Cursor cursor = database.query(TABLE_NAME,
-                                        new String[]{DATA, DATA_RANDOM, SIZE, TRANSFORM_PROPERTIES},
-                                        selectorArgs.first,
-                                        selectorArgs.second,
-                                        null,
-                                        null,
-                                        null,
-                                        "1"))
-    {
-      if (cursor == null || !cursor.moveToFirst()) return Optional.empty();
-
-      if (cursor.getCount() > 0) {
-        DataInfo dataInfo = new DataInfo(new File(CursorUtil.requireString(cursor, DATA)),
-                                         CursorUtil.requireLong(cursor, SIZE),
-                                         CursorUtil.requireBlob(cursor, DATA_RANDOM),
-                                         hash);
-        return Optional.of(dataInfo);
-      } else {
-        return Optional.empty();
-      }
+    AttachmentFileTable.StoredFile storedFile = SignalDatabase.attachmentFiles().getFileByHash(hash);
+    if (storedFile == null) {
+      return Optional.empty();
     }
+
+    return Optional.of(new DataInfo(storedFile.getFile(), storedFile.getLength(), storedFile.getRandom(), hash));
   }
 
-  private static Pair<String, String[]> buildSharedFileSelectorArgs(@NonNull String newHash,
-                                                                    @Nullable AttachmentId attachmentId)
-  {
-    final String   selector;
-    final String[] selection;
+  /**
+   * The data of an existing attachment, if it can be pointed at directly rather than copied into a new file. Must be called in the same transaction that
+   * goes on to point an attachment at it.
+   */
+  private @Nullable DataInfo getSharableDataInfo(@NonNull AttachmentId attachmentId) {
+    DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
 
-    if (attachmentId == null) {
-      selector  = DATA_HASH + " = ?";
-      selection = new String[]{newHash};
-    } else {
-      selector  = PART_ID_WHERE_NOT + " AND " + DATA_HASH + " = ?";
-      selection = new String[]{Long.toString(attachmentId.getRowId()),
-                               Long.toString(attachmentId.getUniqueId()),
-                               newHash};
+    if (dataInfo == null || dataInfo.random == null) {
+      return null;
     }
 
-    return Pair.create(selector, selection);
+    String hash = dataInfo.hash != null ? dataInfo.hash : SignalDatabase.attachmentFiles().getHash(dataInfo.file);
+
+    if (hash == null) {
+      return null;
+    }
+
+    return new DataInfo(dataInfo.file, dataInfo.length, dataInfo.random, hash);
   }
 
   public List<DatabaseAttachment> getAttachments(@NonNull Cursor cursor) {
@@ -1385,10 +1408,17 @@ public class AttachmentTable extends DatabaseTable {
       DataInfo       dataInfo        = null;
       long           uniqueId        = System.currentTimeMillis();
 
-      if (attachment.getUri() != null) {
+      if (attachment.getUri() != null && PartAuthority.isAttachmentUri(attachment.getUri())) {
+        dataInfo = getSharableDataInfo(PartAuthority.requireAttachmentId(attachment.getUri()));
+        if (dataInfo != null) {
+          Log.d(TAG, "Sharing the file of an existing attachment: " + dataInfo.file.getAbsolutePath());
+        }
+      }
+
+      if (attachment.getUri() != null && dataInfo == null) {
         DataInfo storeDataInfo = storeAttachmentStream(PartAuthority.getAttachmentStream(context, attachment.getUri()));
         Log.d(TAG, "Wrote part to file: " + storeDataInfo.file.getAbsolutePath());
-        dataInfo = deduplicateAttachment(storeDataInfo, attachmentId);
+        dataInfo = deduplicateAttachment(storeDataInfo);
       }
 
       Attachment template = attachment;
@@ -1459,6 +1489,10 @@ public class AttachmentTable extends DatabaseTable {
 
       long rowId = database.insert(TABLE_NAME, null, contentValues);
 
+      if (dataInfo != null && dataInfo.hash != null) {
+        SignalDatabase.attachmentFiles().setHashIfMissing(dataInfo.file, dataInfo.hash);
+      }
+
       attachmentId = new AttachmentId(rowId, uniqueId);
       notifyPacks  = attachment.isSticker() && !hasStickerAttachments();
 
@@ -1508,6 +1542,49 @@ public class AttachmentTable extends DatabaseTable {
   }
 
 
+  /**
+   * Encrypts a thumbnail for an attachment file and records it, so that every attachment pointing at the file can be shown from it.
+   */
+  @WorkerThread
+  public void writeThumbnail(@NonNull File dataFile, @NonNull InputStream in) throws MmsException {
+    PartOutputStream out;
+    try {
+      out = newPartOutputStream(newThumbnailFile());
+    } catch (IOException e) {
+      throw new MmsException(e);
+    }
+
+    try {
+      StreamUtil.copy(in, out);
+
+      DataInfo thumbnail = out.complete();
+
+      if (!SignalDatabase.attachmentFiles().setThumbnail(dataFile, thumbnail.file, thumbnail.random)) {
+        Log.i(TAG, "[writeThumbnail] Attachment file is no longer in use. Discarding thumbnail.");
+        //noinspection ResultOfMethodCallIgnored
+        thumbnail.file.delete();
+      }
+    } catch (IOException e) {
+      out.discard();
+      throw new MmsException(e);
+    }
+  }
+
+  /**
+   * Sets the blur hash of every visual attachment pointing at a file that doesn't already have one.
+   */
+  public void setBlurHashIfMissing(@NonNull File dataFile, @NonNull BlurHash blurHash) {
+    SQLiteDatabase database = databaseHelper.getSignalWritableDatabase();
+    ContentValues  values   = new ContentValues(1);
+
+    values.put(VISUAL_HASH, blurHash.getHash());
+
+    String   where = DATA + " = ? AND " + VISUAL_HASH + " IS NULL AND " + CONTENT_TYPE + " NOT LIKE 'audio/%'";
+    String[] args  = SqlUtil.buildArgs(dataFile.getAbsolutePath());
+
+    database.update(TABLE_NAME, values, where, args);
+  }
+
   @RequiresApi(23)
   public @Nullable MediaDataSource mediaDataSourceFor(@NonNull AttachmentId attachmentId) {
     DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
@@ -1567,6 +1644,68 @@ public class AttachmentTable extends DatabaseTable {
     }
   }
 
+  /**
+   * Encrypts attachment data into a new part file while computing its length and the hash used for deduplication, so that data arriving as a stream only has
+   * to be written once. See {@link #newPartOutputStream()}.
+   */
+  public static final class PartOutputStream extends FilterOutputStream {
+    private final File          file;
+    private final byte[]        random;
+    private final MessageDigest digest;
+
+    private long    length;
+    private boolean closed;
+
+    private PartOutputStream(@NonNull File file, @NonNull Pair<byte[], OutputStream> out, @NonNull MessageDigest digest) {
+      super(out.second);
+      this.file   = file;
+      this.random = out.first;
+      this.digest = digest;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      digest.update((byte) b);
+      length++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      out.write(buffer, offset, length);
+      digest.update(buffer, offset, length);
+      this.length += length;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        out.close();
+      }
+    }
+
+    /**
+     * Closes the stream and deletes the part file.
+     */
+    public void discard() {
+      try {
+        close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close part stream.", e);
+      }
+
+      if (!file.delete()) {
+        Log.w(TAG, "Failed to delete part file.");
+      }
+    }
+
+    private @NonNull DataInfo complete() throws IOException {
+      close();
+      return new DataInfo(file, length, random, Base64.encodeBytes(digest.digest()));
+    }
+  }
+
   private static final class DataUsageResult {
     private final boolean            hasStrongReference;
     private final List<AttachmentId> removableWeakReferences;
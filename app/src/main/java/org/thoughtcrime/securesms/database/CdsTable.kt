@@ -8,7 +8,9 @@ import org.signal.core.util.delete
 import org.signal.core.util.logging.Log
 import org.signal.core.util.requireNonNullString
 import org.signal.core.util.select
+import org.signal.core.util.update
 import org.signal.core.util.withinTransaction
+import org.thoughtcrime.securesms.contacts.sync.PackedE164Set
 
 /**
  * Keeps track of the numbers we've previously queried CDS for.
@@ -36,20 +38,20 @@ class CdsTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable
     """
   }
 
-  fun getAllE164s(): Set<String> {
-    val e164s: MutableSet<String> = mutableSetOf()
-
+  fun getAllE164s(): PackedE164Set {
     readableDatabase
       .select(E164)
       .from(TABLE_NAME)
       .run()
       .use { cursor ->
+        val e164s = PackedE164Set.Builder(cursor.count)
+
         while (cursor.moveToNext()) {
-          e164s += cursor.requireNonNullString(E164)
+          e164s.add(cursor.requireNonNullString(E164))
         }
-      }
 
-    return e164s
+        return e164s.build()
+      }
   }
 
   /**
@@ -57,14 +59,13 @@ class CdsTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable
    * @param fullE164s All of the e164s used in the last CDS query (previous and new).
    * @param seenE164s The E164s that were seen in either the system contacts or recipients table. This is different from [fullE164s] in that [fullE164s]
    *                  includes every number we've ever seen, even if it's not in our contacts anymore.
+   * @param lastSeen The time to mark [seenE164s] as last seen at.
    */
-  fun updateAfterFullCdsQuery(fullE164s: Set<String>, seenE164s: Set<String>) {
-    val lastSeen = System.currentTimeMillis()
-
+  fun updateAfterFullCdsQuery(fullE164s: PackedE164Set, seenE164s: PackedE164Set, lastSeen: Long) {
     writableDatabase.withinTransaction { db ->
-      val existingE164s: Set<String> = getAllE164s()
-      val removedE164s: Set<String> = existingE164s - fullE164s
-      val addedE164s: Set<String> = fullE164s - existingE164s
+      val existingE164s: PackedE164Set = getAllE164s()
+      val removedE164s: PackedE164Set = existingE164s - fullE164s
+      val addedE164s: PackedE164Set = fullE164s - existingE164s
 
       if (removedE164s.isNotEmpty()) {
         SqlUtil.buildCollectionQuery(E164, removedE164s)
@@ -87,6 +88,19 @@ class CdsTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable
     }
   }
 
+  /**
+   * Updates after a full CDS query that had no new numbers and saw exactly the same numbers as the previous full query, which finished at
+   * [previousLastSeen]. The table already holds the right numbers, and every one that was seen is marked at or after [previousLastSeen],
+   * so this moves them all up to [lastSeen] in a single statement rather than matching each number again.
+   */
+  fun updateAfterUnchangedFullCdsQuery(previousLastSeen: Long, lastSeen: Long) {
+    writableDatabase
+      .update(TABLE_NAME)
+      .values(LAST_SEEN_AT to lastSeen)
+      .where("$LAST_SEEN_AT >= ?", previousLastSeen)
+      .run()
+  }
+
   /**
    * Updates after a partial CDS query. Will not insert new entries. Instead, this will simply update the lastSeen timestamp of any entry we already have.
    * @param seenE164s The newly-added E164s that we hadn't previously queried for.
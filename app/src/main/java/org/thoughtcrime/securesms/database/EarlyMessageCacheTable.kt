@@ -0,0 +1,231 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.Context
+import android.database.Cursor
+import androidx.core.content.contentValuesOf
+import org.signal.core.util.delete
+import org.signal.core.util.exists
+import org.signal.core.util.readToList
+import org.signal.core.util.readToSet
+import org.signal.core.util.readToSingleLong
+import org.signal.core.util.requireBlob
+import org.signal.core.util.requireBoolean
+import org.signal.core.util.requireInt
+import org.signal.core.util.requireLong
+import org.signal.core.util.requireNonNullBlob
+import org.signal.core.util.requireNonNullString
+import org.signal.core.util.requireString
+import org.signal.core.util.select
+import org.signal.core.util.toInt
+import org.signal.core.util.update
+import org.signal.core.util.withinTransaction
+import org.thoughtcrime.securesms.database.model.ServiceMessageId
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.util.EarlyMessageCache
+import org.thoughtcrime.securesms.util.EarlyMessageCacheEntry
+import org.whispersystems.signalservice.api.crypto.EnvelopeMetadata
+import org.whispersystems.signalservice.api.messages.SignalServiceContent
+import org.whispersystems.signalservice.api.push.ServiceId
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Content
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope
+import java.util.function.Supplier
+
+/**
+ * The on-disk tier of the [EarlyMessageCache], holding early messages that didn't fit in memory.
+ *
+ * Do not use directly! The only class that should be accessing this is [EarlyMessageCache].
+ */
+class EarlyMessageCacheTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable(context, databaseHelper), EarlyMessageCache.Store, RecipientIdDatabaseReference {
+
+  companion object {
+    const val TABLE_NAME = "early_message_cache"
+
+    private const val ID = "_id"
+    private const val TARGET_RECIPIENT_ID = "target_recipient_id"
+    private const val TARGET_SENT_TIMESTAMP = "target_sent_timestamp"
+    private const val EXPIRES_AT = "expires_at"
+    private const val SIZE = "size"
+    private const val LEGACY_CONTENT = "legacy_content"
+    private const val ENVELOPE = "envelope"
+    private const val CONTENT = "content"
+    private const val SOURCE_SERVICE_ID = "source_service_id"
+    private const val SOURCE_E164 = "source_e164"
+    private const val SOURCE_DEVICE_ID = "source_device_id"
+    private const val SEALED_SENDER = "sealed_sender"
+    private const val GROUP_ID = "group_id"
+    private const val DESTINATION_SERVICE_ID = "destination_service_id"
+    private const val SERVER_DELIVERED_TIMESTAMP = "server_delivered_timestamp"
+
+    const val CREATE_TABLE = """
+      CREATE TABLE $TABLE_NAME (
+        $ID INTEGER PRIMARY KEY AUTOINCREMENT,
+        $TARGET_RECIPIENT_ID INTEGER NOT NULL REFERENCES ${RecipientTable.TABLE_NAME} (${RecipientTable.ID}) ON DELETE CASCADE,
+        $TARGET_SENT_TIMESTAMP INTEGER NOT NULL,
+        $EXPIRES_AT INTEGER NOT NULL,
+        $SIZE INTEGER NOT NULL,
+        $LEGACY_CONTENT BLOB DEFAULT NULL,
+        $ENVELOPE BLOB DEFAULT NULL,
+        $CONTENT BLOB DEFAULT NULL,
+        $SOURCE_SERVICE_ID TEXT DEFAULT NULL,
+        $SOURCE_E164 TEXT DEFAULT NULL,
+        $SOURCE_DEVICE_ID INTEGER DEFAULT 0,
+        $SEALED_SENDER INTEGER DEFAULT 0,
+        $GROUP_ID BLOB DEFAULT NULL,
+        $DESTINATION_SERVICE_ID TEXT DEFAULT NULL,
+        $SERVER_DELIVERED_TIMESTAMP INTEGER DEFAULT 0
+      )
+    """
+
+    val CREATE_INDEXES = arrayOf(
+      "CREATE INDEX early_message_cache_target_index ON $TABLE_NAME ($TARGET_RECIPIENT_ID, $TARGET_SENT_TIMESTAMP)"
+    )
+  }
+
+  override fun <T> runInTransaction(block: Supplier<T>): T {
+    return writableDatabase.withinTransaction { block.get() }
+  }
+
+  override fun insert(items: Map<ServiceMessageId, List<EarlyMessageCache.Item>>) {
+    writableDatabase.withinTransaction { db ->
+      for ((id, idItems) in items) {
+        for (item in idItems) {
+          val values = contentValuesOf(
+            TARGET_RECIPIENT_ID to id.sender.serialize(),
+            TARGET_SENT_TIMESTAMP to id.sentTimestamp,
+            EXPIRES_AT to item.expiresAt,
+            SIZE to item.size
+          )
+
+          if (item.isLegacy) {
+            values.put(LEGACY_CONTENT, item.content.serialize())
+          } else {
+            val entry: EarlyMessageCacheEntry = item.entry
+            values.put(ENVELOPE, entry.envelope.toByteArray())
+            values.put(CONTENT, entry.content.toByteArray())
+            values.put(SOURCE_SERVICE_ID, entry.metadata.sourceServiceId.toString())
+            values.put(SOURCE_E164, entry.metadata.sourceE164)
+            values.put(SOURCE_DEVICE_ID, entry.metadata.sourceDeviceId)
+            values.put(SEALED_SENDER, entry.metadata.sealedSender.toInt())
+            values.put(GROUP_ID, entry.metadata.groupId)
+            values.put(DESTINATION_SERVICE_ID, entry.metadata.destinationServiceId.toString())
+            values.put(SERVER_DELIVERED_TIMESTAMP, entry.serverDeliveredTimestamp)
+          }
+
+          db.insert(TABLE_NAME, null, values)
+        }
+      }
+    }
+  }
+
+  override fun remove(id: ServiceMessageId, legacy: Boolean): List<EarlyMessageCache.Item> {
+    val where = "$TARGET_RECIPIENT_ID = ? AND $TARGET_SENT_TIMESTAMP = ? AND $LEGACY_CONTENT ${if (legacy) "IS NOT NULL" else "IS NULL"}"
+
+    return writableDatabase.withinTransaction { db ->
+      val items: List<EarlyMessageCache.Item> = db
+        .select()
+        .from(TABLE_NAME)
+        .where(where, id.sender, id.sentTimestamp)
+        .orderBy("$ID ASC")
+        .run()
+        .readToList { it.toItem() }
+        .filterNotNull()
+
+      db.delete(TABLE_NAME)
+        .where(where, id.sender, id.sentTimestamp)
+        .run()
+
+      items
+    }
+  }
+
+  override fun contains(id: ServiceMessageId): Boolean {
+    return readableDatabase
+      .exists(TABLE_NAME)
+      .where("$TARGET_RECIPIENT_ID = ? AND $TARGET_SENT_TIMESTAMP = ?", id.sender, id.sentTimestamp)
+      .run()
+  }
+
+  override fun getAllIds(): Collection<ServiceMessageId> {
+    return readableDatabase
+      .select("DISTINCT $TARGET_RECIPIENT_ID, $TARGET_SENT_TIMESTAMP")
+      .from(TABLE_NAME)
+      .run()
+      .readToSet { ServiceMessageId(RecipientId.from(it.requireLong(TARGET_RECIPIENT_ID)), it.requireLong(TARGET_SENT_TIMESTAMP)) }
+  }
+
+  override fun deleteExpired(now: Long): Int {
+    return writableDatabase
+      .delete(TABLE_NAME)
+      .where("$EXPIRES_AT <= ?", now)
+      .run()
+  }
+
+  override fun trimToSize(maxBytes: Long): Int {
+    return writableDatabase.withinTransaction { db ->
+      val totalSize = db
+        .select("SUM($SIZE)")
+        .from(TABLE_NAME)
+        .run()
+        .readToSingleLong(0)
+
+      if (totalSize <= maxBytes) {
+        return@withinTransaction 0
+      }
+
+      var excess = totalSize - maxBytes
+      var lastId = -1L
+
+      db.select(ID, SIZE)
+        .from(TABLE_NAME)
+        .orderBy("$ID ASC")
+        .run()
+        .use { cursor ->
+          while (excess > 0 && cursor.moveToNext()) {
+            excess -= cursor.requireLong(SIZE)
+            lastId = cursor.requireLong(ID)
+          }
+        }
+
+      db.delete(TABLE_NAME)
+        .where("$ID <= ?", lastId)
+        .run()
+    }
+  }
+
+  override fun remapRecipient(fromId: RecipientId, toId: RecipientId) {
+    writableDatabase
+      .update(TABLE_NAME)
+      .values(TARGET_RECIPIENT_ID to toId.serialize())
+      .where("$TARGET_RECIPIENT_ID = ?", fromId)
+      .run()
+
+    writableDatabase.runPostSuccessfulTransaction { ApplicationDependencies.getEarlyMessageCache().invalidateStore() }
+  }
+
+  private fun Cursor.toItem(): EarlyMessageCache.Item? {
+    val expiresAt = requireLong(EXPIRES_AT)
+    val size = requireInt(SIZE)
+    val legacyContent: ByteArray? = requireBlob(LEGACY_CONTENT)
+
+    return if (legacyContent != null) {
+      SignalServiceContent.deserialize(legacyContent)?.let { EarlyMessageCache.Item(it, null, size, expiresAt) }
+    } else {
+      val entry = EarlyMessageCacheEntry(
+        envelope = Envelope.parseFrom(requireNonNullBlob(ENVELOPE)),
+        content = Content.parseFrom(requireNonNullBlob(CONTENT)),
+        metadata = EnvelopeMetadata(
+          sourceServiceId = ServiceId.parseOrThrow(requireNonNullString(SOURCE_SERVICE_ID)),
+          sourceE164 = requireString(SOURCE_E164),
+          sourceDeviceId = requireInt(SOURCE_DEVICE_ID),
+          sealedSender = requireBoolean(SEALED_SENDER),
+          groupId = requireBlob(GROUP_ID),
+          destinationServiceId = ServiceId.parseOrThrow(requireNonNullString(DESTINATION_SERVICE_ID))
+        ),
+        serverDeliveredTimestamp = requireLong(SERVER_DELIVERED_TIMESTAMP)
+      )
+
+      EarlyMessageCache.Item(null, entry, size, expiresAt)
+    }
+  }
+}
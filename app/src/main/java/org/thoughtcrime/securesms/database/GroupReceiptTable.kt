@@ -75,6 +75,22 @@ class GroupReceiptTable(context: Context?, databaseHelper: SignalDatabase?) : Da
       .run()
   }
 
+  /**
+   * Updates the receipts from [recipientId] for many messages at once, batching the messages into as few statements as possible.
+   */
+  fun update(recipientId: RecipientId, mmsIds: Collection<Long>, status: Int, timestamp: Long) {
+    for (query in SqlUtil.buildCollectionQuery(MMS_ID, mmsIds)) {
+      writableDatabase
+        .update(TABLE_NAME)
+        .values(
+          STATUS to status,
+          TIMESTAMP to timestamp
+        )
+        .where("${query.where} AND $RECIPIENT_ID = ? AND $STATUS < ?", query.whereArgs + SqlUtil.buildArgs(recipientId, status))
+        .run()
+    }
+  }
+
   fun setUnidentified(results: Collection<Pair<RecipientId, Boolean>>, mmsId: Long) {
     writableDatabase.withinTransaction { db ->
       for (result in results) {
@@ -0,0 +1,114 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.Context
+import org.intellij.lang.annotations.Language
+import org.signal.core.util.readToSingleInt
+import org.signal.core.util.select
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps a count of the messages visible in each conversation for every day, bucketed by [MessageTable.DATE_RECEIVED], so that the position of a message in
+ * a conversation can be found by summing a handful of days instead of counting every newer message.
+ *
+ * The counts are maintained by triggers on the message table, so they stay correct no matter how a message is inserted, deleted, edited, or moved.
+ */
+class MessageDayCountTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable(context, databaseHelper) {
+
+  companion object {
+    const val TABLE_NAME = "message_day_count"
+
+    private const val ID = "_id"
+    private const val THREAD_ID = "thread_id"
+    private const val DAY = "day"
+    private const val COUNT = "count"
+
+    private val DAY_DURATION: Long = TimeUnit.DAYS.toMillis(1)
+
+    private const val TRIGGER_AFTER_INSERT = "message_day_count_ai"
+    private const val TRIGGER_AFTER_DELETE = "message_day_count_ad"
+    private const val TRIGGER_AFTER_UPDATE = "message_day_count_au"
+
+    const val CREATE_TABLE = """
+      CREATE TABLE $TABLE_NAME (
+        $ID INTEGER PRIMARY KEY AUTOINCREMENT,
+        $THREAD_ID INTEGER NOT NULL REFERENCES ${ThreadTable.TABLE_NAME} (${ThreadTable.ID}) ON DELETE CASCADE,
+        $DAY INTEGER NOT NULL,
+        $COUNT INTEGER NOT NULL DEFAULT 0,
+        UNIQUE($THREAD_ID, $DAY)
+      )
+    """
+
+    private fun day(row: String): String = "$row.${MessageTable.DATE_RECEIVED} / $DAY_DURATION"
+
+    /** Mirrors the filter [MessageTable.getConversation] uses to decide which messages are shown. */
+    private fun isVisible(row: String): String {
+      return "$row.${MessageTable.STORY_TYPE} = 0 AND $row.${MessageTable.PARENT_STORY_ID} <= 0 AND $row.${MessageTable.SCHEDULED_DATE} = -1 AND $row.${MessageTable.LATEST_REVISION_ID} IS NULL"
+    }
+
+    private fun increment(row: String): String {
+      return """
+        INSERT OR IGNORE INTO $TABLE_NAME ($THREAD_ID, $DAY, $COUNT) SELECT $row.${MessageTable.THREAD_ID}, ${day(row)}, 0 WHERE ${isVisible(row)};
+        UPDATE $TABLE_NAME SET $COUNT = $COUNT + 1 WHERE $THREAD_ID = $row.${MessageTable.THREAD_ID} AND $DAY = ${day(row)} AND ${isVisible(row)};
+      """
+    }
+
+    private fun decrement(row: String): String {
+      return """
+        UPDATE $TABLE_NAME SET $COUNT = $COUNT - 1 WHERE $THREAD_ID = $row.${MessageTable.THREAD_ID} AND $DAY = ${day(row)} AND ${isVisible(row)};
+        DELETE FROM $TABLE_NAME WHERE $THREAD_ID = $row.${MessageTable.THREAD_ID} AND $DAY = ${day(row)} AND $COUNT <= 0;
+      """
+    }
+
+    @Language("sql")
+    val CREATE_TRIGGERS = arrayOf(
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_INSERT AFTER INSERT ON ${MessageTable.TABLE_NAME} BEGIN
+          ${increment("new")}
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_DELETE AFTER DELETE ON ${MessageTable.TABLE_NAME} BEGIN
+          ${decrement("old")}
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_UPDATE AFTER UPDATE OF ${MessageTable.THREAD_ID}, ${MessageTable.DATE_RECEIVED}, ${MessageTable.STORY_TYPE}, ${MessageTable.PARENT_STORY_ID}, ${MessageTable.SCHEDULED_DATE}, ${MessageTable.LATEST_REVISION_ID} ON ${MessageTable.TABLE_NAME} BEGIN
+          ${decrement("old")}
+          ${increment("new")}
+        END;
+      """
+    )
+  }
+
+  /**
+   * The number of visible messages in the thread received after [dateReceived], which is that message's position in [MessageTable.getConversation].
+   * Messages received at the same time aren't ordered by any column there, so this is the position of the first of them.
+   *
+   * Whole days newer than [dateReceived] come from the stored counts, and only the messages later in its own day are counted directly.
+   */
+  fun getCountReceivedAfter(threadId: Long, dateReceived: Long): Int {
+    val day = dateReceived / DAY_DURATION
+
+    val newerDays = readableDatabase
+      .select("SUM($COUNT)")
+      .from(TABLE_NAME)
+      .where("$THREAD_ID = ? AND $DAY > ?", threadId, day)
+      .run()
+      .readToSingleInt()
+
+    val sameDay = readableDatabase
+      .select("COUNT(*)")
+      .from(MessageTable.TABLE_NAME)
+      .where(
+        "${MessageTable.THREAD_ID} = ? AND ${MessageTable.DATE_RECEIVED} > ? AND ${MessageTable.DATE_RECEIVED} < ? AND ${day(MessageTable.TABLE_NAME)} = ? AND ${isVisible(MessageTable.TABLE_NAME)}",
+        threadId,
+        dateReceived,
+        (day + 1) * DAY_DURATION,
+        day
+      )
+      .run()
+      .readToSingleInt()
+
+    return newerDays + sameDay
+  }
+}
@@ -5,13 +5,17 @@ import android.content.Context
 import android.database.sqlite.SQLiteConstraintException
 import org.signal.core.util.CursorUtil
 import org.signal.core.util.SqlUtil
+import org.signal.core.util.delete
 import org.signal.core.util.logging.Log
 import org.signal.core.util.readToList
+import org.signal.core.util.readToSingleLong
 import org.signal.core.util.requireBoolean
 import org.signal.core.util.requireLong
+import org.signal.core.util.select
 import org.signal.core.util.toInt
 import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.database.model.MessageLogEntry
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.util.FeatureFlags
@@ -19,6 +23,7 @@ import org.thoughtcrime.securesms.util.RecipientAccessList
 import org.whispersystems.signalservice.api.crypto.ContentHint
 import org.whispersystems.signalservice.api.messages.SendMessageResult
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos
+import java.util.concurrent.TimeUnit
 
 /**
  * Stores a rolling buffer of all outgoing messages. Used for the retry logic required for sender key.
@@ -34,7 +39,8 @@ import org.whispersystems.signalservice.internal.push.SignalServiceProtos
  * - Whenever you get a delivery receipt, delete the entries in the 'recipient table'
  * - Whenever there's no more records in the 'recipient table' for a given message, delete the entry in the 'message table'
  * - Whenever you delete a message, delete the relevant entries from the 'payload table'
- * - Whenever you read an entry from the table, first trim off all the entries that are too old
+ * - Entries are grouped into buckets of [BUCKET_DURATION] by the time they were sent. Once a whole bucket is older than the max age, it's trimmed off in the
+ *   background by [org.thoughtcrime.securesms.service.TrimMessageSendLogManager]. Lookups ignore anything older than the max age in the meantime.
  *
  * Because of all of this, you can be sure that if an entry is in this store, it's safe to resend to someone upon request
  *
@@ -48,6 +54,7 @@ import org.whispersystems.signalservice.internal.push.SignalServiceProtos
  * - We should also optimize for when we delete messages from the sms/mms tables, since you can delete a bunch at once
  * - We *don't* really need to optimize for retrieval, since that happens very infrequently. In particular, we don't want to slow down inserts in order to
  *   improve retrieval time. That means we shouldn't be adding indexes that optimize for retrieval.
+ * - Retrieval shouldn't write. Trimming is done a bucket at a time in bounded batches, off of the lookup path, so that it never holds the write lock for long.
  */
 class MessageSendLogTables constructor(context: Context?, databaseHelper: SignalDatabase?) : DatabaseTable(context, databaseHelper), RecipientIdDatabaseReference {
 
@@ -62,6 +69,18 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
 
     @JvmField
     val CREATE_TRIGGERS: Array<String> = MslPayloadTable.CREATE_TRIGGERS
+
+    /** Entries are trimmed in buckets of this size, keyed off of when they were sent. */
+    @JvmField
+    val BUCKET_DURATION: Long = TimeUnit.DAYS.toMillis(1)
+
+    /** The most payloads deleted in a single transaction while trimming. */
+    private const val TRIM_BATCH_SIZE = 500
+
+    @JvmStatic
+    fun getBucketEnd(dateSent: Long): Long {
+      return (Math.floorDiv(dateSent, BUCKET_DURATION) + 1) * BUCKET_DURATION
+    }
   }
 
   private object MslPayloadTable {
@@ -83,7 +102,7 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
       )
     """
 
-    /** Created for [deleteEntriesForRecipient] */
+    /** Created for [deleteEntriesForRecipient] and [trimOldMessages] */
     val CREATE_INDEXES = arrayOf(
       "CREATE INDEX msl_payload_date_sent_index ON $TABLE_NAME ($DATE_SENT)"
     )
@@ -204,16 +223,7 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
 
       db.beginTransaction()
       try {
-        sendMessageResult.success.devices.forEach { device ->
-          val recipientValues = ContentValues().apply {
-            put(MslRecipientTable.PAYLOAD_ID, payloadId)
-            put(MslRecipientTable.RECIPIENT_ID, recipientId.serialize())
-            put(MslRecipientTable.DEVICE, device)
-          }
-
-          db.insert(MslRecipientTable.TABLE_NAME, null, recipientValues)
-        }
-
+        insertRecipientDevices(payloadId, listOf(RecipientDevice(recipientId, sendMessageResult.success.devices)))
         db.setTransactionSuccessful()
       } catch (e: SQLiteConstraintException) {
         Log.w(TAG, "Failed to append to existing entry. Creating a new one.")
@@ -228,8 +238,47 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
     return payloadId
   }
 
+  /**
+   * Like [addRecipientToExistingEntryIfPossible], but appends every successful result in a single transaction. Meant for multi-recipient sends, where results
+   * come back in large batches.
+   */
+  fun addRecipientsToExistingEntryIfPossible(payloadId: Long, sentTimestamp: Long, possibleRecipients: List<Recipient>, results: List<SendMessageResult>, contentHint: ContentHint, messageId: MessageId, urgent: Boolean): Long {
+    if (!FeatureFlags.retryReceipts()) return payloadId
+
+    val accessList = RecipientAccessList(possibleRecipients)
+
+    val recipientDevices: List<RecipientDevice> = results
+      .filter { it.isSuccess && it.success.content.isPresent }
+      .map { result ->
+        val recipient: Recipient = accessList.requireByAddress(result.address)
+        RecipientDevice(recipient.id, result.success.devices)
+      }
+
+    if (recipientDevices.isEmpty()) {
+      return payloadId
+    }
+
+    val db = databaseHelper.signalWritableDatabase
+
+    db.beginTransaction()
+    try {
+      insertRecipientDevices(payloadId, recipientDevices)
+      db.setTransactionSuccessful()
+    } catch (e: SQLiteConstraintException) {
+      Log.w(TAG, "Failed to append to existing entry. Creating a new one.")
+      val newPayloadId = insertIfPossible(sentTimestamp, possibleRecipients, results, contentHint, messageId, urgent)
+      db.setTransactionSuccessful()
+      return newPayloadId
+    } finally {
+      db.endTransaction()
+    }
+
+    return payloadId
+  }
+
   private fun insert(recipients: List<RecipientDevice>, dateSent: Long, content: SignalServiceProtos.Content, contentHint: ContentHint, messageIds: List<MessageId>, urgent: Boolean): Long {
     val db = databaseHelper.signalWritableDatabase
+    val payloadId: Long
 
     db.beginTransaction()
     try {
@@ -240,20 +289,9 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
         put(MslPayloadTable.URGENT, urgent.toInt())
       }
 
-      val payloadId: Long = db.insert(MslPayloadTable.TABLE_NAME, null, payloadValues)
+      payloadId = db.insert(MslPayloadTable.TABLE_NAME, null, payloadValues)
 
-      val recipientValues: MutableList<ContentValues> = mutableListOf()
-      recipients.forEach { recipientDevice ->
-        recipientDevice.devices.forEach { device ->
-          recipientValues += ContentValues().apply {
-            put(MslRecipientTable.PAYLOAD_ID, payloadId)
-            put(MslRecipientTable.RECIPIENT_ID, recipientDevice.recipientId.serialize())
-            put(MslRecipientTable.DEVICE, device)
-          }
-        }
-      }
-      SqlUtil.buildBulkInsert(MslRecipientTable.TABLE_NAME, arrayOf(MslRecipientTable.PAYLOAD_ID, MslRecipientTable.RECIPIENT_ID, MslRecipientTable.DEVICE), recipientValues)
-        .forEach { query -> db.execSQL(query.where, query.whereArgs) }
+      insertRecipientDevices(payloadId, recipients)
 
       val messageValues: MutableList<ContentValues> = mutableListOf()
       messageIds.forEach { messageId ->
@@ -266,16 +304,37 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
         .forEach { query -> db.execSQL(query.where, query.whereArgs) }
 
       db.setTransactionSuccessful()
-      return payloadId
     } finally {
       db.endTransaction()
     }
+
+    ApplicationDependencies.getTrimMessageSendLogManager().onEntryInserted()
+    return payloadId
+  }
+
+  private fun insertRecipientDevices(payloadId: Long, recipients: List<RecipientDevice>) {
+    val recipientValues: MutableList<ContentValues> = mutableListOf()
+    recipients.forEach { recipientDevice ->
+      recipientDevice.devices.forEach { device ->
+        recipientValues += ContentValues().apply {
+          put(MslRecipientTable.PAYLOAD_ID, payloadId)
+          put(MslRecipientTable.RECIPIENT_ID, recipientDevice.recipientId.serialize())
+          put(MslRecipientTable.DEVICE, device)
+        }
+      }
+    }
+
+    SqlUtil.buildBulkInsert(MslRecipientTable.TABLE_NAME, arrayOf(MslRecipientTable.PAYLOAD_ID, MslRecipientTable.RECIPIENT_ID, MslRecipientTable.DEVICE), recipientValues)
+      .forEach { query -> databaseHelper.signalWritableDatabase.execSQL(query.where, query.whereArgs) }
   }
 
   fun getLogEntry(recipientId: RecipientId, device: Int, dateSent: Long): MessageLogEntry? {
     if (!FeatureFlags.retryReceipts()) return null
 
-    trimOldMessages(System.currentTimeMillis(), FeatureFlags.retryRespondMaxAge())
+    if (dateSent < System.currentTimeMillis() - FeatureFlags.retryRespondMaxAge()) {
+      Log.i(TAG, "Entry for $dateSent is too old to resend.")
+      return null
+    }
 
     val db = databaseHelper.signalReadableDatabase
     val table = "${MslPayloadTable.TABLE_NAME} LEFT JOIN ${MslRecipientTable.TABLE_NAME} ON ${MslPayloadTable.TABLE_NAME}.${MslPayloadTable.ID} = ${MslRecipientTable.TABLE_NAME}.${MslRecipientTable.PAYLOAD_ID}"
@@ -366,14 +425,62 @@ class MessageSendLogTables constructor(context: Context?, databaseHelper: Signal
     databaseHelper.signalWritableDatabase.delete(MslPayloadTable.TABLE_NAME, null, null)
   }
 
-  fun trimOldMessages(currentTime: Long, maxAge: Long) {
-    if (!FeatureFlags.retryReceipts()) return
+  /**
+   * Deletes every entry sent more than [maxAge] before [currentTime]. Works through the expired buckets oldest first, deleting at most [TRIM_BATCH_SIZE]
+   * payloads per transaction, so that a large backlog doesn't block sends or receipts while it's being trimmed.
+   *
+   * @return The number of payloads deleted.
+   */
+  fun trimOldMessages(currentTime: Long, maxAge: Long): Int {
+    if (!FeatureFlags.retryReceipts()) return 0
+
+    val cutoff = currentTime - maxAge
+    var deleted = 0
+    var oldest = getOldestDateSent()
+
+    while (oldest != -1L && oldest < cutoff) {
+      deleted += deleteSentBefore(minOf(getBucketEnd(oldest), cutoff))
+      oldest = getOldestDateSent()
+    }
+
+    return deleted
+  }
+
+  /**
+   * @return When the oldest bucket in the log will have fully expired and should be trimmed, or -1 if the log is empty.
+   */
+  fun getNextTrimTime(maxAge: Long): Long {
+    if (!FeatureFlags.retryReceipts()) return -1
+
+    val oldest = getOldestDateSent()
+    return if (oldest == -1L) -1 else getBucketEnd(oldest) + maxAge
+  }
+
+  private fun getOldestDateSent(): Long {
+    return databaseHelper.signalReadableDatabase
+      .select(MslPayloadTable.DATE_SENT)
+      .from(MslPayloadTable.TABLE_NAME)
+      .orderBy("${MslPayloadTable.DATE_SENT} ASC")
+      .limit(1)
+      .run()
+      .readToSingleLong(-1)
+  }
 
+  private fun deleteSentBefore(dateSent: Long): Int {
     val db = databaseHelper.signalWritableDatabase
-    val query = "${MslPayloadTable.DATE_SENT} < ?"
-    val args = SqlUtil.buildArgs(currentTime - maxAge)
+    var deleted = 0
+    var batch: Int
 
-    db.delete(MslPayloadTable.TABLE_NAME, query, args)
+    do {
+      batch = db
+        .delete(MslPayloadTable.TABLE_NAME)
+        .where("${MslPayloadTable.ID} IN (SELECT ${MslPayloadTable.ID} FROM ${MslPayloadTable.TABLE_NAME} WHERE ${MslPayloadTable.DATE_SENT} < ? LIMIT $TRIM_BATCH_SIZE)", dateSent)
+        .run()
+
+      deleted += batch
+    } while (batch >= TRIM_BATCH_SIZE)
+
+    return deleted
   }
 
   override fun remapRecipient(oldRecipientId: RecipientId, newRecipientId: RecipientId) {
@@ -37,6 +37,8 @@ import org.signal.core.util.SqlUtil.buildCustomCollectionQuery
 import org.signal.core.util.SqlUtil.buildSingleCollectionQuery
 import org.signal.core.util.SqlUtil.buildTrueUpdateQuery
 import org.signal.core.util.SqlUtil.getNextAutoIncrementId
+import org.signal.core.util.collections.LongHashSet
+import org.signal.core.util.collections.LongList
 import org.signal.core.util.delete
 import org.signal.core.util.exists
 import org.signal.core.util.forEach
@@ -384,6 +386,9 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     private const val IS_STORY_CLAUSE = "$STORY_TYPE > 0 AND $REMOTE_DELETED = 0"
     private const val RAW_ID_WHERE = "$TABLE_NAME.$ID = ?"
 
+    /** Leaves room under the query argument limit for the author arguments that go alongside each batch of target timestamps. */
+    private const val RECEIPT_BATCH_SIZE = 900
+
     private val SNIPPET_QUERY =
       """
         SELECT 
@@ -689,7 +694,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
   }
 
   fun setIncomingMessageViewed(messageId: Long): MarkedMessageInfo? {
-    val results = setIncomingMessagesViewed(listOf(messageId))
+    val results = setIncomingMessagesViewed(LongList.of(messageId))
     return if (results.isEmpty()) {
       null
     } else {
@@ -698,40 +703,36 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
   }
 
   fun setIncomingMessagesViewed(messageIds: List<Long>): List<MarkedMessageInfo> {
-    if (messageIds.isEmpty()) {
+    return setIncomingMessagesViewed(LongList.from(messageIds))
+  }
+
+  fun setIncomingMessagesViewed(messageIds: LongList): List<MarkedMessageInfo> {
+    if (messageIds.isEmpty) {
       return emptyList()
     }
 
-    val results: List<MarkedMessageInfo> = readableDatabase
-      .select(ID, FROM_RECIPIENT_ID, DATE_SENT, TYPE, THREAD_ID, STORY_TYPE)
-      .from(TABLE_NAME)
-      .where("$ID IN (${Util.join(messageIds, ",")}) AND $VIEWED_RECEIPT_COUNT = 0")
-      .run()
-      .readToList { cursor ->
-        val type = cursor.requireLong(TYPE)
-
-        if (MessageTypes.isSecureType(type) && MessageTypes.isInboxType(type)) {
-          cursor.toMarkedMessageInfo(outgoing = false)
-        } else {
-          null
-        }
-      }
-      .filterNotNull()
-
-    val currentTime = System.currentTimeMillis()
-    SqlUtil
-      .buildCollectionQuery(ID, results.map { it.messageId.id })
-      .forEach { query ->
-        writableDatabase
-          .update(TABLE_NAME)
-          .values(
-            VIEWED_RECEIPT_COUNT to 1,
-            RECEIPT_TIMESTAMP to currentTime
-          )
+    val results: List<MarkedMessageInfo> = SqlUtil
+      .buildCollectionQuery(ID, messageIds, prefix = "$VIEWED_RECEIPT_COUNT = 0 AND")
+      .flatMap { query ->
+        readableDatabase
+          .select(ID, FROM_RECIPIENT_ID, DATE_SENT, TYPE, THREAD_ID, STORY_TYPE)
+          .from(TABLE_NAME)
           .where(query.where, query.whereArgs)
           .run()
+          .readToList { cursor ->
+            val type = cursor.requireLong(TYPE)
+
+            if (MessageTypes.isSecureType(type) && MessageTypes.isInboxType(type)) {
+              cursor.toMarkedMessageInfo(outgoing = false)
+            } else {
+              null
+            }
+          }
+          .filterNotNull()
       }
 
+    markViewed(results)
+
     val threadsUpdated: Set<Long> = results
       .map { it.threadId }
       .toSet()
@@ -749,16 +750,40 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
   }
 
   fun setOutgoingGiftsRevealed(messageIds: List<Long>): List<MarkedMessageInfo> {
-    val results: List<MarkedMessageInfo> = readableDatabase
-      .select(ID, TO_RECIPIENT_ID, DATE_SENT, THREAD_ID, STORY_TYPE)
-      .from(TABLE_NAME)
-      .where("""$ID IN (${Util.join(messageIds, ",")}) AND ($outgoingTypeClause) AND ($TYPE & ${MessageTypes.SPECIAL_TYPES_MASK} = ${MessageTypes.SPECIAL_TYPE_GIFT_BADGE}) AND $VIEWED_RECEIPT_COUNT = 0""")
-      .run()
-      .readToList { it.toMarkedMessageInfo(outgoing = true) }
+    return setOutgoingGiftsRevealed(LongList.from(messageIds))
+  }
+
+  fun setOutgoingGiftsRevealed(messageIds: LongList): List<MarkedMessageInfo> {
+    val results: List<MarkedMessageInfo> = SqlUtil
+      .buildCollectionQuery(ID, messageIds, prefix = "($outgoingTypeClause) AND ($TYPE & ${MessageTypes.SPECIAL_TYPES_MASK} = ${MessageTypes.SPECIAL_TYPE_GIFT_BADGE}) AND $VIEWED_RECEIPT_COUNT = 0 AND")
+      .flatMap { query ->
+        readableDatabase
+          .select(ID, TO_RECIPIENT_ID, DATE_SENT, THREAD_ID, STORY_TYPE)
+          .from(TABLE_NAME)
+          .where(query.where, query.whereArgs)
+          .run()
+          .readToList { it.toMarkedMessageInfo(outgoing = true) }
+      }
+
+    markViewed(results)
+
+    val threadsUpdated = results
+      .map { it.threadId }
+      .toSet()
+
+    notifyConversationListeners(threadsUpdated)
+    return results
+  }
+
+  private fun markViewed(messages: List<MarkedMessageInfo>) {
+    val messageIds = LongList(messages.size)
+    for (message in messages) {
+      messageIds.add(message.messageId.id)
+    }
 
     val currentTime = System.currentTimeMillis()
     SqlUtil
-      .buildCollectionQuery(ID, results.map { it.messageId.id })
+      .buildCollectionQuery(ID, messageIds)
       .forEach { query ->
         writableDatabase
           .update(TABLE_NAME)
@@ -769,13 +794,6 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
           .where(query.where, query.whereArgs)
           .run()
       }
-
-    val threadsUpdated = results
-      .map { it.threadId }
-      .toSet()
-
-    notifyConversationListeners(threadsUpdated)
-    return results
   }
 
   fun insertCallLog(recipientId: RecipientId, type: Long, timestamp: Long, outgoing: Boolean): InsertResult {
@@ -4024,9 +4042,9 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
    * Given a collection of MessageRecords, this will return a set of the IDs of the records that have been quoted by another message.
    * Does an efficient bulk lookup that makes it faster than [.isQuoted] for multiple records.
    */
-  fun isQuoted(records: Collection<MessageRecord>): Set<Long> {
+  fun isQuoted(records: Collection<MessageRecord>): LongHashSet {
     if (records.isEmpty()) {
-      return emptySet()
+      return LongHashSet()
     }
 
     val byQuoteDescriptor: MutableMap<QuoteDescriptor, MessageRecord> = HashMap(records.size)
@@ -4039,7 +4057,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       args.add(buildArgs(timestamp, record.fromRecipient.id, -1))
     }
 
-    val quotedIds: MutableSet<Long> = mutableSetOf()
+    val quotedIds = LongHashSet()
 
     buildCustomCollectionQuery("$QUOTE_ID = ?  AND $QUOTE_AUTHOR = ? AND $SCHEDULED_DATE = ?", args).forEach { query ->
       readableDatabase
@@ -4053,7 +4071,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
             author = RecipientId.from(cursor.requireNonNullString(QUOTE_AUTHOR))
           )
 
-          quotedIds += byQuoteDescriptor[quoteLocator]!!.id
+          quotedIds.add(byQuoteDescriptor[quoteLocator]!!.id)
         }
     }
 
@@ -4120,12 +4138,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       return -1
     }
 
-    return readableDatabase
-      .select("COUNT(*)")
-      .from(TABLE_NAME)
-      .where("$THREAD_ID = $threadId AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL AND $DATE_RECEIVED > $targetMessageDateReceived")
-      .run()
-      .readToSingleInt()
+    return SignalDatabase.messageDayCounts.getCountReceivedAfter(threadId, targetMessageDateReceived)
   }
 
   fun getMessagePositionInConversation(threadId: Long, receivedTimestamp: Long, authorId: RecipientId): Int {
@@ -4138,12 +4151,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       return -1
     }
 
-    return readableDatabase
-      .select("COUNT(*)")
-      .from(TABLE_NAME)
-      .where("$THREAD_ID = $threadId AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL AND $DATE_RECEIVED > $receivedTimestamp")
-      .run()
-      .readToSingleInt(-1)
+    return SignalDatabase.messageDayCounts.getCountReceivedAfter(threadId, receivedTimestamp)
   }
 
   fun getMessagePositionInConversation(threadId: Long, receivedTimestamp: Long): Int {
@@ -4161,22 +4169,14 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
    * @param groupStoryId Ignored if passed value is <= 0
    */
   fun getMessagePositionInConversation(threadId: Long, groupStoryId: Long, receivedTimestamp: Long): Int {
-    val order: String
-    val selection: String
-
-    if (groupStoryId > 0) {
-      order = "$DATE_RECEIVED ASC"
-      selection = "$THREAD_ID = $threadId AND $DATE_RECEIVED < $receivedTimestamp AND $STORY_TYPE = 0 AND $PARENT_STORY_ID = $groupStoryId AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL"
-    } else {
-      order = "$DATE_RECEIVED DESC"
-      selection = "$THREAD_ID = $threadId AND $DATE_RECEIVED > $receivedTimestamp AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL"
+    if (groupStoryId <= 0) {
+      return SignalDatabase.messageDayCounts.getCountReceivedAfter(threadId, receivedTimestamp)
     }
 
     return readableDatabase
       .select("COUNT(*)")
       .from(TABLE_NAME)
-      .where(selection)
-      .orderBy(order)
+      .where("$THREAD_ID = $threadId AND $DATE_RECEIVED < $receivedTimestamp AND $STORY_TYPE = 0 AND $PARENT_STORY_ID = $groupStoryId AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL")
       .run()
       .readToSingleInt(-1)
   }
@@ -4211,12 +4211,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
   }
 
   fun getMessagePositionOnOrAfterTimestamp(threadId: Long, timestamp: Long): Int {
-    return readableDatabase
-      .select("COUNT(*)")
-      .from(TABLE_NAME)
-      .where("$THREAD_ID = $threadId AND $DATE_RECEIVED >= $timestamp AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL")
-      .run()
-      .readToSingleInt()
+    return SignalDatabase.messageDayCounts.getCountReceivedAfter(threadId, timestamp - 1)
   }
 
   @Throws(NoSuchMessageException::class)
@@ -4360,31 +4355,20 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
   }
 
   fun incrementViewedStoryReceiptCounts(targetTimestamps: List<Long>, receiptAuthor: RecipientId, receiptSentTimestamp: Long): Set<Long> {
-    val messageUpdates: MutableSet<MessageReceiptUpdate> = HashSet()
-    val unhandled: MutableSet<Long> = HashSet()
-
-    writableDatabase.withinTransaction {
-      for (targetTimestamp in targetTimestamps) {
-        val updates = incrementReceiptCountInternal(targetTimestamp, receiptAuthor, receiptSentTimestamp, ReceiptType.VIEWED, MessageQualifier.STORY)
-
-        if (updates.isNotEmpty()) {
-          messageUpdates += updates
-        } else {
-          unhandled += targetTimestamp
-        }
-      }
+    val result: ReceiptUpdateResult = writableDatabase.withinTransaction {
+      incrementReceiptCountsInternal(targetTimestamps, receiptAuthor, receiptSentTimestamp, ReceiptType.VIEWED, MessageQualifier.STORY)
     }
 
-    for (update in messageUpdates) {
+    for (update in result.updates) {
       ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(update.messageId)
-      ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(setOf(update.threadId))
     }
 
-    if (messageUpdates.isNotEmpty()) {
+    if (result.updates.isNotEmpty()) {
+      ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(result.updates.map { it.threadId }.toSet())
       notifyConversationListListeners()
     }
 
-    return unhandled
+    return result.missingTargetTimestamps
   }
 
   /**
@@ -4393,14 +4377,14 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
    * @return Whether or not some thread was updated.
    */
   private fun incrementReceiptCount(targetTimestamp: Long, receiptAuthor: RecipientId, receiptSentTimestamp: Long, receiptType: ReceiptType, messageQualifier: MessageQualifier = MessageQualifier.ALL): Boolean {
-    var messageUpdates: Set<MessageReceiptUpdate> = HashSet()
-
-    writableDatabase.withinTransaction {
-      messageUpdates = incrementReceiptCountInternal(targetTimestamp, receiptAuthor, receiptSentTimestamp, receiptType, messageQualifier)
+    val messageUpdates: Set<MessageReceiptUpdate> = writableDatabase.withinTransaction {
+      val updates = incrementReceiptCountsInternal(listOf(targetTimestamp), receiptAuthor, receiptSentTimestamp, receiptType, messageQualifier).updates
 
-      for (messageUpdate in messageUpdates) {
-        threads.update(messageUpdate.threadId, false)
+      for (threadId in updates.map { it.threadId }.toSet()) {
+        threads.update(threadId, false)
       }
+
+      updates
     }
 
     for (threadUpdate in messageUpdates) {
@@ -4416,44 +4400,50 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
    * @return All of the target timestamps that couldn't be found in the table.
    */
   private fun incrementReceiptCounts(targetTimestamps: List<Long>, receiptAuthor: RecipientId, receiptSentTimestamp: Long, receiptType: ReceiptType, messageQualifier: MessageQualifier = MessageQualifier.ALL): Set<Long> {
-    val messageUpdates: MutableSet<MessageReceiptUpdate> = HashSet()
-    val missingTargetTimestamps: MutableSet<Long> = HashSet()
+    val result: ReceiptUpdateResult = writableDatabase.withinTransaction {
+      val result = incrementReceiptCountsInternal(targetTimestamps, receiptAuthor, receiptSentTimestamp, receiptType, messageQualifier)
 
-    writableDatabase.withinTransaction {
-      for (targetTimestamp in targetTimestamps) {
-        val updates: Set<MessageReceiptUpdate> = incrementReceiptCountInternal(targetTimestamp, receiptAuthor, receiptSentTimestamp, receiptType, messageQualifier)
-        if (updates.isNotEmpty()) {
-          messageUpdates += updates
-        } else {
-          missingTargetTimestamps += targetTimestamp
-        }
+      for (threadId in result.updates.filter { it.shouldUpdateSnippet }.map { it.threadId }.toSet()) {
+        threads.updateSilently(threadId, false)
       }
 
-      for (update in messageUpdates) {
-        if (update.shouldUpdateSnippet) {
-          threads.updateSilently(update.threadId, false)
-        }
-      }
+      result
     }
 
-    for (update in messageUpdates) {
+    val updatedThreadIds: Set<Long> = result.updates.map { it.threadId }.toSet()
+
+    for (update in result.updates) {
       ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(update.messageId)
-      ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(setOf(update.threadId))
+    }
+
+    if (updatedThreadIds.isNotEmpty()) {
+      ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(updatedThreadIds)
+    }
 
-      if (messageQualifier == MessageQualifier.STORY) {
-        ApplicationDependencies.getDatabaseObserver().notifyStoryObservers(threads.getRecipientIdForThreadId(update.threadId)!!)
+    if (messageQualifier == MessageQualifier.STORY) {
+      for (threadId in updatedThreadIds) {
+        ApplicationDependencies.getDatabaseObserver().notifyStoryObservers(threads.getRecipientIdForThreadId(threadId)!!)
       }
     }
 
-    if (messageUpdates.isNotEmpty()) {
+    if (result.updates.isNotEmpty()) {
       notifyConversationListListeners()
     }
 
-    return missingTargetTimestamps
+    return result.missingTargetTimestamps
   }
 
-  private fun incrementReceiptCountInternal(targetTimestamp: Long, receiptAuthor: RecipientId, receiptSentTimestamp: Long, receiptType: ReceiptType, messageQualifier: MessageQualifier): Set<MessageReceiptUpdate> {
+  /**
+   * Applies a receipt for every target timestamp from a single author. Rather than a statement per timestamp, the timestamps are matched in batches with a
+   * single `UPDATE` each, and the group receipts for all of the matched messages are updated together.
+   *
+   * A timestamp that appears more than once only counts as a single receipt.
+   */
+  private fun incrementReceiptCountsInternal(targetTimestamps: Collection<Long>, receiptAuthor: RecipientId, receiptSentTimestamp: Long, receiptType: ReceiptType, messageQualifier: MessageQualifier): ReceiptUpdateResult {
     val messageUpdates: MutableSet<MessageReceiptUpdate> = HashSet()
+    val updatedMessageIds: MutableList<Long> = mutableListOf()
+    val foundTimestamps: MutableSet<Long> = HashSet()
+    val storyTimestamps: MutableSet<Long> = HashSet()
 
     val qualifierWhere: String = when (messageQualifier) {
       MessageQualifier.NORMAL -> " AND NOT ($IS_STORY_CLAUSE)"
@@ -4461,59 +4451,70 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       MessageQualifier.ALL -> ""
     }
 
-    var found = false
-    var hasStory = false
-    writableDatabase.rawQuery(
-      """
-        UPDATE $TABLE_NAME
-        SET
-          ${receiptType.columnName} = ${receiptType.columnName} + 1,
-          $RECEIPT_TIMESTAMP = CASE 
-            WHEN ${receiptType.columnName} = 0 THEN MAX($RECEIPT_TIMESTAMP, $receiptSentTimestamp) 
-            ELSE $RECEIPT_TIMESTAMP 
-          END 
-        WHERE
-          $DATE_SENT = $targetTimestamp AND
-          $FROM_RECIPIENT_ID = ? AND
-          (
-            $TO_RECIPIENT_ID = ? OR 
-            EXISTS (
-              SELECT 1 
-              FROM ${RecipientTable.TABLE_NAME} 
-              WHERE 
-                ${RecipientTable.TABLE_NAME}.${RecipientTable.ID} = $TO_RECIPIENT_ID AND 
-                ${RecipientTable.TABLE_NAME}.${RecipientTable.TYPE} != ${RecipientTable.RecipientType.INDIVIDUAL.id}
-            )
-          )
-          $qualifierWhere
-        RETURNING $ID, $THREAD_ID, $STORY_TYPE, ${receiptType.columnName}
-      """,
-      buildArgs(Recipient.self().id, receiptAuthor)
-    ).forEach { cursor ->
-      val messageId = cursor.requireLong(ID)
-      val threadId = cursor.requireLong(THREAD_ID)
-      val storyType = StoryType.fromCode(cursor.requireInt(STORY_TYPE))
-      val receiptCount = cursor.requireInt(receiptType.columnName)
+    val authorArgs: Array<String> = buildArgs(Recipient.self().id, receiptAuthor)
 
-      groupReceipts.update(receiptAuthor, messageId, receiptType.groupStatus, receiptSentTimestamp)
-      messageUpdates += MessageReceiptUpdate(threadId, MessageId(messageId), receiptType != ReceiptType.VIEWED && receiptCount == 1)
+    for (query in SqlUtil.buildCollectionQuery(DATE_SENT, targetTimestamps.toSet(), maxSize = RECEIPT_BATCH_SIZE)) {
+      writableDatabase.rawQuery(
+        """
+          UPDATE $TABLE_NAME
+          SET
+            ${receiptType.columnName} = ${receiptType.columnName} + 1,
+            $RECEIPT_TIMESTAMP = CASE 
+              WHEN ${receiptType.columnName} = 0 THEN MAX($RECEIPT_TIMESTAMP, $receiptSentTimestamp) 
+              ELSE $RECEIPT_TIMESTAMP 
+            END 
+          WHERE
+            ${query.where} AND
+            $FROM_RECIPIENT_ID = ? AND
+            (
+              $TO_RECIPIENT_ID = ? OR 
+              EXISTS (
+                SELECT 1 
+                FROM ${RecipientTable.TABLE_NAME} 
+                WHERE 
+                  ${RecipientTable.TABLE_NAME}.${RecipientTable.ID} = $TO_RECIPIENT_ID AND 
+                  ${RecipientTable.TABLE_NAME}.${RecipientTable.TYPE} != ${RecipientTable.RecipientType.INDIVIDUAL.id}
+              )
+            )
+            $qualifierWhere
+          RETURNING $ID, $THREAD_ID, $DATE_SENT, $STORY_TYPE, ${receiptType.columnName}
+        """,
+        query.whereArgs + authorArgs
+      ).forEach { cursor ->
+        val messageId = cursor.requireLong(ID)
+        val threadId = cursor.requireLong(THREAD_ID)
+        val dateSent = cursor.requireLong(DATE_SENT)
+        val storyType = StoryType.fromCode(cursor.requireInt(STORY_TYPE))
+        val receiptCount = cursor.requireInt(receiptType.columnName)
 
-      found = true
-      hasStory = storyType != StoryType.NONE
-    }
+        updatedMessageIds += messageId
+        messageUpdates += MessageReceiptUpdate(threadId, MessageId(messageId), receiptType != ReceiptType.VIEWED && receiptCount == 1)
+        foundTimestamps += dateSent
 
-    if (!found && receiptType == ReceiptType.DELIVERY) {
-      earlyDeliveryReceiptCache.increment(targetTimestamp, receiptAuthor, receiptSentTimestamp)
+        if (storyType != StoryType.NONE) {
+          storyTimestamps += dateSent
+        }
+      }
     }
 
-    if (hasStory) {
+    for (targetTimestamp in storyTimestamps) {
       for (messageId in storySends.getStoryMessagesFor(receiptAuthor, targetTimestamp)) {
-        groupReceipts.update(receiptAuthor, messageId.id, receiptType.groupStatus, receiptSentTimestamp)
+        updatedMessageIds += messageId.id
         messageUpdates += MessageReceiptUpdate(-1, messageId, false)
       }
     }
 
-    return messageUpdates
+    groupReceipts.update(receiptAuthor, updatedMessageIds, receiptType.groupStatus, receiptSentTimestamp)
+
+    val missingTargetTimestamps: Set<Long> = targetTimestamps.toSet() - foundTimestamps
+
+    if (receiptType == ReceiptType.DELIVERY) {
+      for (targetTimestamp in missingTargetTimestamps) {
+        earlyDeliveryReceiptCache.increment(targetTimestamp, receiptAuthor, receiptSentTimestamp)
+      }
+    }
+
+    return ReceiptUpdateResult(messageUpdates, missingTargetTimestamps)
   }
 
   /**
@@ -4663,6 +4664,69 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       .run()
   }
 
+  /**
+   * A cursor containing the messages in a given thread that come after [anchor] in the order of [getConversation], skipping the first [skip] of them.
+   *
+   * Rather than stepping over every newer row the way an offset does, this seeks straight to the anchor in the index, so the cost of loading a page doesn't
+   * grow with how deep into the thread it is. Use [getConversationAnchors] to find an anchor near the page you want.
+   *
+   * Messages received at the same time are skipped by count rather than compared, so both queries can be served in the thread index's own order, just like
+   * [getConversation] with an offset.
+   * This does *not* have attachments in it.
+   */
+  fun getConversation(threadId: Long, anchor: ConversationAnchor, skip: Long, limit: Long): Cursor {
+    return readableDatabase
+      .select(*MMS_PROJECTION)
+      .from("$TABLE_NAME INDEXED BY $INDEX_THREAD_STORY_SCHEDULED_DATE_LATEST_REVISION_ID")
+      .where("$THREAD_ID = ? AND $DATE_RECEIVED <= ? AND $STORY_TYPE = ? AND $PARENT_STORY_ID <= ? AND $SCHEDULED_DATE = ? AND $LATEST_REVISION_ID IS NULL", threadId, anchor.dateReceived, 0, 0, -1)
+      .orderBy("$DATE_RECEIVED DESC")
+      .limit("${anchor.skipAtDate + skip}, $limit")
+      .run()
+  }
+
+  /**
+   * Returns the [ConversationAnchor] of every [stride]th message in the thread, counting from the oldest, which is at index 0. That is, the anchor at index
+   * `i` in the result is the message with exactly `i * stride` older messages in the conversation.
+   *
+   * Counting from the oldest message means the anchors stay valid as new messages arrive at the top of the conversation.
+   */
+  fun getConversationAnchors(threadId: Long, stride: Int): List<ConversationAnchor> {
+    // Each row is a distinct date_received, with the number of messages received before it and up to and including it. Only dates that hold a multiple of
+    // the stride are returned.
+    val query = """
+      SELECT $DATE_RECEIVED, older, through
+      FROM (
+        SELECT $DATE_RECEIVED, SUM(count) OVER (ORDER BY $DATE_RECEIVED ASC) - count AS older, SUM(count) OVER (ORDER BY $DATE_RECEIVED ASC) AS through
+        FROM (
+          SELECT $DATE_RECEIVED, COUNT(*) AS count
+          FROM $TABLE_NAME INDEXED BY $INDEX_THREAD_STORY_SCHEDULED_DATE_LATEST_REVISION_ID
+          WHERE $THREAD_ID = ? AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL
+          GROUP BY $DATE_RECEIVED
+        )
+      )
+      WHERE (older + ? - 1) / ? * ? < through
+      ORDER BY $DATE_RECEIVED ASC
+    """
+
+    val anchors: MutableList<ConversationAnchor> = mutableListOf()
+
+    readableDatabase.rawQuery(query, buildArgs(threadId, stride, stride, stride)).use { cursor ->
+      while (cursor.moveToNext()) {
+        val dateReceived = cursor.requireLong(DATE_RECEIVED)
+        val older = cursor.requireLong("older")
+        val through = cursor.requireLong("through")
+
+        var position = (older + stride - 1) / stride * stride
+        while (position < through) {
+          anchors += ConversationAnchor(dateReceived, through - position)
+          position += stride
+        }
+      }
+    }
+
+    return anchors
+  }
+
   /**
    * Returns messages ordered for display in a reverse list (newest first).
    */
@@ -5002,6 +5066,20 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     val shouldUpdateSnippet: Boolean
   )
 
+  private data class ReceiptUpdateResult(
+    val updates: Set<MessageReceiptUpdate>,
+    val missingTargetTimestamps: Set<Long>
+  )
+
+  /**
+   * Identifies a position in a conversation for use with [getConversation]: the message there was received at [dateReceived], and getting past it means
+   * skipping [skipAtDate] of the messages received at that time, newest first.
+   */
+  data class ConversationAnchor(
+    val dateReceived: Long,
+    val skipAtDate: Long
+  )
+
   data class ReportSpamData(
     val recipientId: RecipientId,
     val serverGuid: String,
@@ -0,0 +1,290 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.annotation.VisibleForTesting
+import org.signal.core.util.ThreadUtil
+import org.signal.core.util.concurrent.SignalExecutors
+import org.signal.core.util.logging.Log
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import net.zetetic.database.sqlcipher.SQLiteDatabase as SQLCipherDatabase
+
+/**
+ * Aggregates how long every statement run through [SQLiteDatabase] takes, grouped by the shape of the statement (its SQL with literals and placeholder
+ * lists collapsed). Alongside latency it tracks rows returned or changed, how often the statement ran on the main thread, and how long transactions
+ * waited for the database lock.
+ *
+ * The first time a shape is seen, its query plan is captured so that statements doing full table scans stand out. That happens in the background, so it
+ * never adds to the statement's own latency or runs inside the caller's transaction.
+ *
+ * Results are shown in the debug log and in Spinner. It's off unless enabled by [org.thoughtcrime.securesms.util.FeatureFlags.queryProfiler], or in Spinner
+ * builds.
+ */
+object QueryProfiler {
+
+  private val TAG = Log.tag(QueryProfiler::class.java)
+
+  /** Past this, new shapes are grouped together so a stream of unique statements can't grow the map without bound. */
+  private const val MAX_STATEMENTS = 500
+  private const val OVERFLOW_STATEMENT = "(other statements)"
+
+  /** Inserts are left out, as they can't scan (and [SQLiteDatabase] only has the table name for most of them). */
+  private val EXPLAINABLE_PREFIXES = listOf("SELECT", "WITH", "UPDATE", "DELETE")
+
+  /** Bucket i holds durations under 2^i microseconds, with the last bucket holding everything longer. */
+  private const val BUCKET_COUNT = 24
+
+  private val statements: ConcurrentHashMap<String, StatementStats> = ConcurrentHashMap()
+  private val lockWait = StatementStats("(waiting for the database lock)")
+
+  private val explainExecutor = SignalExecutors.newCachedSingleThreadExecutor("signal-query-profiler", ThreadUtil.PRIORITY_BACKGROUND_THREAD)
+
+  @JvmStatic
+  @Volatile
+  var isEnabled: Boolean = false
+
+  /**
+   * @param db The connection to explain new statement shapes on. This should be the read connection if there is one. The plan is captured on a background
+   *           thread that's never in a transaction, so even the main connection hands it a read-only connection from its pool.
+   */
+  @JvmStatic
+  fun onStatement(db: SQLCipherDatabase, sql: String, args: Array<out Any?>?, durationNanos: Long, rows: Int) {
+    val shape = normalize(sql)
+    val key = if (statements.size >= MAX_STATEMENTS && !statements.containsKey(shape)) OVERFLOW_STATEMENT else shape
+
+    var created = false
+    val stats = statements.getOrPut(key) {
+      created = true
+      StatementStats(key)
+    }
+
+    stats.record(durationNanos, rows, ThreadUtil.isMainThread())
+
+    if (created && key != OVERFLOW_STATEMENT) {
+      val argsCopy: Array<Any?>? = args?.let { arrayOf(*it) }
+      explainExecutor.execute { stats.explain(db, sql, argsCopy) }
+    }
+  }
+
+  @JvmStatic
+  fun onLockAcquired(waitNanos: Long) {
+    lockWait.record(waitNanos, 0, ThreadUtil.isMainThread())
+  }
+
+  /**
+   * @return A summary of every statement shape seen so far, slowest total time first.
+   */
+  fun getStatements(): List<StatementProfile> {
+    return statements.values
+      .map { it.snapshot() }
+      .sortedByDescending { it.totalMs }
+  }
+
+  fun getLockWait(): StatementProfile {
+    return lockWait.snapshot()
+  }
+
+  fun reset() {
+    statements.clear()
+    lockWait.reset()
+  }
+
+  /**
+   * Strips literals out of a statement and collapses runs of placeholders, so that statements that only differ by their values are grouped together. This
+   * also keeps any inlined values out of the debug log.
+   */
+  @VisibleForTesting
+  fun normalize(sql: String): String {
+    val output = StringBuilder(sql.length)
+    var i = 0
+
+    while (i < sql.length) {
+      val c = sql[i]
+
+      when {
+        c == '\'' -> {
+          i++
+          while (i < sql.length) {
+            if (sql[i] == '\'') {
+              if (i + 1 < sql.length && sql[i + 1] == '\'') {
+                i += 2
+                continue
+              }
+              break
+            }
+            i++
+          }
+          i++
+          appendPlaceholder(output)
+        }
+        c.isDigit() && (output.isEmpty() || !isIdentifierChar(output[output.length - 1])) -> {
+          while (i < sql.length && (sql[i].isLetterOrDigit() || sql[i] == '.')) {
+            i++
+          }
+          appendPlaceholder(output)
+        }
+        c == '?' -> {
+          i++
+          appendPlaceholder(output)
+        }
+        c.isWhitespace() -> {
+          if (output.isNotEmpty() && output[output.length - 1] != ' ') {
+            output.append(' ')
+          }
+          i++
+        }
+        else -> {
+          output.append(c)
+          i++
+        }
+      }
+    }
+
+    return output.trim().toString()
+  }
+
+  /**
+   * Whether a line of `EXPLAIN QUERY PLAN` output is a scan of a whole table without an index.
+   */
+  @VisibleForTesting
+  fun isFullTableScan(planDetail: String): Boolean {
+    return planDetail.startsWith("SCAN ") &&
+      !planDetail.contains(" USING ") &&
+      !planDetail.contains("CONSTANT ROW") &&
+      !planDetail.contains("VIRTUAL TABLE") &&
+      !planDetail.contains("SUBQUERY", ignoreCase = true) &&
+      !planDetail.contains(" CTE ")
+  }
+
+  private fun appendPlaceholder(output: StringBuilder) {
+    val length = output.length
+
+    when {
+      length >= 1 && output[length - 1] == '?' -> Unit
+      length >= 2 && output[length - 1] == ',' && output[length - 2] == '?' -> output.setLength(length - 1)
+      length >= 3 && output[length - 1] == ' ' && output[length - 2] == ',' && output[length - 3] == '?' -> output.setLength(length - 2)
+      else -> output.append('?')
+    }
+  }
+
+  private fun isIdentifierChar(c: Char): Boolean {
+    return c.isLetterOrDigit() || c == '_' || c == '$'
+  }
+
+  private class StatementStats(private val statement: String) {
+    private val buckets = LongArray(BUCKET_COUNT)
+    private var count = 0L
+    private var totalNanos = 0L
+    private var maxNanos = 0L
+    private var rows = 0L
+    private var mainThreadCount = 0L
+
+    @Volatile
+    private var plan: String? = null
+
+    @Volatile
+    private var fullTableScan = false
+
+    @Synchronized
+    fun record(durationNanos: Long, rowCount: Int, mainThread: Boolean) {
+      val micros = TimeUnit.NANOSECONDS.toMicros(durationNanos)
+      val bucket = (64 - java.lang.Long.numberOfLeadingZeros(micros)).coerceAtMost(BUCKET_COUNT - 1)
+
+      buckets[bucket]++
+      count++
+      totalNanos += durationNanos
+      maxNanos = maxOf(maxNanos, durationNanos)
+      rows += rowCount
+
+      if (mainThread) {
+        mainThreadCount++
+      }
+    }
+
+    @Synchronized
+    fun reset() {
+      buckets.fill(0)
+      count = 0
+      totalNanos = 0
+      maxNanos = 0
+      rows = 0
+      mainThreadCount = 0
+    }
+
+    fun explain(db: SQLCipherDatabase, sql: String, args: Array<Any?>?) {
+      val trimmed = sql.trimStart()
+      val explainable = EXPLAINABLE_PREFIXES.any { trimmed.startsWith(it, ignoreCase = true) }
+
+      if (!explainable) {
+        return
+      }
+
+      try {
+        val details: MutableList<String> = mutableListOf()
+
+        db.rawQuery("EXPLAIN QUERY PLAN $sql", args).use { cursor ->
+          val detailIndex = cursor.getColumnIndexOrThrow("detail")
+          while (cursor.moveToNext()) {
+            details += cursor.getString(detailIndex)
+          }
+        }
+
+        plan = details.joinToString("; ")
+        fullTableScan = details.any { isFullTableScan(it) }
+      } catch (e: Exception) {
+        Log.w(TAG, "Failed to get a query plan.", e)
+      }
+    }
+
+    @Synchronized
+    fun snapshot(): StatementProfile {
+      return StatementProfile(
+        statement = statement,
+        count = count,
+        totalMs = totalNanos.nanosToMillis(),
+        maxMs = maxNanos.nanosToMillis(),
+        p50Ms = percentileMs(0.5),
+        p90Ms = percentileMs(0.9),
+        p99Ms = percentileMs(0.99),
+        rows = rows,
+        mainThreadCount = mainThreadCount,
+        plan = plan,
+        fullTableScan = fullTableScan
+      )
+    }
+
+    /** The upper bound of the bucket the percentile falls in. */
+    private fun percentileMs(percentile: Double): Double {
+      if (count == 0L) {
+        return 0.0
+      }
+
+      val target = (count * percentile).toLong().coerceAtLeast(1)
+      var seen = 0L
+
+      for (i in buckets.indices) {
+        seen += buckets[i]
+        if (seen >= target) {
+          return if (i == BUCKET_COUNT - 1) maxNanos.nanosToMillis() else (1L shl i) / 1000.0
+        }
+      }
+
+      return maxNanos.nanosToMillis()
+    }
+
+    private fun Long.nanosToMillis(): Double = this / 1_000_000.0
+  }
+
+  data class StatementProfile(
+    val statement: String,
+    val count: Long,
+    val totalMs: Double,
+    val maxMs: Double,
+    val p50Ms: Double,
+    val p90Ms: Double,
+    val p99Ms: Double,
+    val rows: Long,
+    val mainThreadCount: Long,
+    val plan: String?,
+    val fullTableScan: Boolean
+  )
+}
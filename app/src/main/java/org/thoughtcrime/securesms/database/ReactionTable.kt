@@ -5,6 +5,8 @@ import android.content.Context
 import android.database.Cursor
 import org.signal.core.util.CursorUtil
 import org.signal.core.util.SqlUtil
+import org.signal.core.util.collections.LongList
+import org.signal.core.util.collections.LongObjectMap
 import org.signal.core.util.delete
 import org.signal.core.util.update
 import org.thoughtcrime.securesms.database.model.MessageId
@@ -75,23 +77,33 @@ class ReactionTable(context: Context, databaseHelper: SignalDatabase) : Database
       return emptyMap()
     }
 
-    val messageIdToReactions: MutableMap<MessageId, MutableList<ReactionRecord>> = mutableMapOf()
+    val ids = LongList(messageIds.size)
+    messageIds.forEach { ids.add(it.id) }
 
-    val args: List<Array<String>> = messageIds.map { SqlUtil.buildArgs(it.id) }
+    val reactionsById: LongObjectMap<MutableList<ReactionRecord>> = getReactionsForMessageIds(ids)
 
-    for (query: SqlUtil.Query in SqlUtil.buildCustomCollectionQuery("$MESSAGE_ID = ?", args)) {
+    return messageIds
+      .mapNotNull { messageId -> reactionsById[messageId.id]?.let { messageId to it } }
+      .toMap()
+  }
+
+  /**
+   * Same as [getReactionsForMessages], but keyed by raw message ids so that loading a page of a conversation doesn't have to box an id for every message.
+   */
+  fun getReactionsForMessageIds(messageIds: LongList): LongObjectMap<MutableList<ReactionRecord>> {
+    val messageIdToReactions: LongObjectMap<MutableList<ReactionRecord>> = LongObjectMap(messageIds.size())
+
+    for (query: SqlUtil.Query in SqlUtil.buildCollectionQuery(MESSAGE_ID, messageIds)) {
       readableDatabase.query(TABLE_NAME, null, query.where, query.whereArgs, null, null, null).use { cursor ->
         while (cursor.moveToNext()) {
           val reaction: ReactionRecord = readReaction(cursor)
-          val messageId = MessageId(
-            id = CursorUtil.requireLong(cursor, MESSAGE_ID)
-          )
+          val messageId: Long = CursorUtil.requireLong(cursor, MESSAGE_ID)
 
           var reactionsList: MutableList<ReactionRecord>? = messageIdToReactions[messageId]
 
           if (reactionsList == null) {
             reactionsList = mutableListOf()
-            messageIdToReactions[messageId] = reactionsList
+            messageIdToReactions.put(messageId, reactionsList)
           }
 
           reactionsList.add(reaction)
@@ -0,0 +1,63 @@
+package org.thoughtcrime.securesms.database
+
+import android.app.Application
+import org.signal.core.util.logging.Log
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import net.zetetic.database.sqlcipher.SQLiteDatabase as SQLCipherDatabase
+
+/**
+ * A fixed set of read-only connections to the database, handed out round-robin. The database is in WAL mode, so a query on one of these sees the last
+ * committed state without waiting on the writer's connection, and without making the writer wait on it.
+ *
+ * Connections are opened the first time they're handed out, which must be after the main connection has finished any migrations.
+ */
+class ReadConnectionPool(
+  private val context: Application,
+  private val databaseName: String,
+  private val password: String,
+  private val size: Int
+) : Closeable {
+
+  companion object {
+    private val TAG = Log.tag(ReadConnectionPool::class.java)
+  }
+
+  private val connections: AtomicReferenceArray<SQLCipherDatabase?> = AtomicReferenceArray(size)
+  private val next = AtomicInteger()
+
+  fun get(): SQLCipherDatabase {
+    val index = Math.floorMod(next.getAndIncrement(), size)
+    return connections.get(index) ?: open(index)
+  }
+
+  @Synchronized
+  private fun open(index: Int): SQLCipherDatabase {
+    connections.get(index)?.let { return it }
+
+    val connection = SQLCipherDatabase.openDatabase(
+      context.getDatabasePath(databaseName).absolutePath,
+      password,
+      null,
+      SQLCipherDatabase.OPEN_READONLY,
+      SqlCipherErrorHandler(databaseName),
+      SqlCipherDatabaseHook(true)
+    )
+
+    connections.set(index, connection)
+    Log.i(TAG, "Opened read connection ${index + 1} of $size.")
+
+    return connection
+  }
+
+  /**
+   * Closes every open connection. Queries that are still running keep their connection until they finish, and later calls to [get] open new ones.
+   */
+  @Synchronized
+  override fun close() {
+    for (i in 0 until size) {
+      connections.getAndSet(i, null)?.close()
+    }
+  }
+}
@@ -14,6 +14,7 @@ import com.google.protobuf.InvalidProtocolBufferException
 import org.signal.core.util.Bitmask
 import org.signal.core.util.CursorUtil
 import org.signal.core.util.SqlUtil
+import org.signal.core.util.collections.LongHashSet
 import org.signal.core.util.delete
 import org.signal.core.util.exists
 import org.signal.core.util.logging.Log
@@ -2239,10 +2240,14 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
 
     db.beginTransaction()
     try {
+      val upToDate: Map<String, RecipientId> = getUpToDateCdsResults(mapping)
+
       for ((e164, result) in mapping) {
-        ids += getAndPossiblyMerge(aci = result.aci, pni = result.pni, e164 = e164, pniVerified = false, changeSelf = false)
+        ids += upToDate[e164] ?: getAndPossiblyMerge(aci = result.aci, pni = result.pni, e164 = e164, pniVerified = false, changeSelf = false)
       }
 
+      Log.d(TAG, "[bulkProcessCdsResult] ${upToDate.size} of ${mapping.size} results were already up to date.")
+
       db.setTransactionSuccessful()
     } finally {
       db.endTransaction()
@@ -2251,10 +2256,46 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     return ids
   }
 
+  /**
+   * Finds the CDS results whose e164, PNI and ACI already all belong to the same recipient, which [processPnpTuple] would resolve to that
+   * recipient without changing anything. Looking these up in batches means a refresh only pays for a full merge on the results that changed.
+   *
+   * Results that share a service ID with another result are never considered up to date, since merging the other one could change them.
+   */
+  private fun getUpToDateCdsResults(mapping: Map<String, CdsV2Result>): Map<String, RecipientId> {
+    val pniCounts: Map<PNI, Int> = mapping.values.groupingBy { it.pni }.eachCount()
+    val aciCounts: Map<ACI, Int> = mapping.values.mapNotNull { it.aci }.groupingBy { it }.eachCount()
+    val upToDate: MutableMap<String, RecipientId> = HashMap()
+
+    for (query in SqlUtil.buildCollectionQuery(E164, mapping.keys)) {
+      readableDatabase
+        .select(ID, E164, ACI_COLUMN, PNI_COLUMN)
+        .from(TABLE_NAME)
+        .where(query.where, query.whereArgs)
+        .run()
+        .use { cursor ->
+          while (cursor.moveToNext()) {
+            val e164: String = cursor.requireNonNullString(E164)
+            val result: CdsV2Result = mapping[e164] ?: continue
+
+            if (pniCounts[result.pni] != 1 || (result.aci != null && aciCounts[result.aci] != 1)) {
+              continue
+            }
+
+            if (cursor.requireString(PNI_COLUMN) == result.pni.toString() && cursor.requireString(ACI_COLUMN) == result.aci?.toString()) {
+              upToDate[e164] = RecipientId.from(cursor.requireLong(ID))
+            }
+          }
+        }
+    }
+
+    return upToDate
+  }
+
   fun bulkUpdatedRegisteredStatus(registered: Set<RecipientId>, unregistered: Collection<RecipientId>) {
     writableDatabase.withinTransaction {
-      val existingRegistered: Set<RecipientId> = getRegistered()
-      val needsMarkRegistered: Set<RecipientId> = registered - existingRegistered
+      val existingRegistered: LongHashSet = getRegisteredIds()
+      val needsMarkRegistered: List<RecipientId> = registered.filterNot { existingRegistered.contains(it.toLong()) }
 
       val registeredValues = contentValuesOf(
         REGISTERED to RegisteredState.REGISTERED.id,
@@ -2964,12 +3005,15 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     return operations
   }
 
-  fun getRegistered(): Set<RecipientId> {
-    val results: MutableSet<RecipientId> = mutableSetOf()
+  /**
+   * The ids of every registered recipient, kept as raw longs since this covers every contact in the system.
+   */
+  fun getRegisteredIds(): LongHashSet {
+    val results = LongHashSet()
 
     readableDatabase.query(TABLE_NAME, ID_PROJECTION, "$REGISTERED = ? and $HIDDEN = ?", arrayOf("1", "${Recipient.HiddenState.NOT_HIDDEN.serialize()}"), null, null, null).use { cursor ->
       while (cursor != null && cursor.moveToNext()) {
-        results += RecipientId.from(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))
+        results.add(cursor.requireLong(ID))
       }
     }
 
@@ -4265,6 +4309,41 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
       update(id, otherValues)
     }
 
+    /**
+     * The [SYSTEM_CONTACT_URI] of every recipient that's currently linked to a system contact.
+     */
+    fun getSystemContactUris(): Map<RecipientId, String> {
+      val uris: MutableMap<RecipientId, String> = HashMap()
+
+      database
+        .select(ID, SYSTEM_CONTACT_URI)
+        .from(TABLE_NAME)
+        .where("$SYSTEM_CONTACT_URI NOT NULL")
+        .run()
+        .use { cursor ->
+          while (cursor.moveToNext()) {
+            uris[RecipientId.from(cursor.requireLong(ID))] = cursor.requireNonNullString(SYSTEM_CONTACT_URI)
+          }
+        }
+
+      return uris
+    }
+
+    /**
+     * Marks the system info of these recipients as pending, so that it's cleared by [finish] unless it's set again before then. Incremental syncs use
+     * this for the contacts they know changed or were deleted, since they don't visit every contact.
+     */
+    fun markSystemInfoPending(ids: Collection<RecipientId>) {
+      SqlUtil.buildCollectionQuery(ID, ids)
+        .forEach { query ->
+          database
+            .update(TABLE_NAME)
+            .values(SYSTEM_INFO_PENDING to 1)
+            .where(query.where, query.whereArgs)
+            .run()
+        }
+    }
+
     fun finish() {
       markAllRelevantEntriesDirty()
       clearSystemDataForPendingInfo()
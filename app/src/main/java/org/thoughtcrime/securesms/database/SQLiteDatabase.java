@@ -4,10 +4,13 @@ package org.thoughtcrime.securesms.database;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.os.CancellationSignal;
+import android.text.TextUtils;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteQuery;
 
@@ -17,6 +20,8 @@ import net.zetetic.database.sqlcipher.SQLiteTransactionListener;
 import org.signal.core.util.tracing.Tracer;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -46,6 +51,7 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
   private static final String NAME_LOCK  = "LOCK";
 
   private final net.zetetic.database.sqlcipher.SQLiteDatabase wrapped;
+  private final net.zetetic.database.sqlcipher.SQLiteDatabase reader;
   private final Tracer                                        tracer;
 
   private static final ThreadLocal<Set<Runnable>> PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS;
@@ -59,10 +65,30 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
   }
 
   public SQLiteDatabase(net.zetetic.database.sqlcipher.SQLiteDatabase wrapped) {
+    this(wrapped, null);
+  }
+
+  /**
+   * @param reader A read-only connection that queries should run on instead of {@code wrapped}. Everything else, including transactions, still goes
+   *               through {@code wrapped}.
+   */
+  public SQLiteDatabase(net.zetetic.database.sqlcipher.SQLiteDatabase wrapped, @Nullable net.zetetic.database.sqlcipher.SQLiteDatabase reader) {
     this.wrapped = wrapped;
+    this.reader  = reader;
     this.tracer  = Tracer.getInstance();
   }
 
+  /**
+   * Queries go to the read connection if there is one, unless this thread is in a transaction, in which case they need to see its uncommitted writes.
+   */
+  private net.zetetic.database.sqlcipher.SQLiteDatabase readConnection() {
+    if (reader != null && !wrapped.inTransaction()) {
+      return reader;
+    } else {
+      return wrapped;
+    }
+  }
+
   private void traceLockStart() {
     tracer.start(NAME_LOCK, Tracer.TrackId.DB_LOCK, KEY_THREAD, Thread.currentThread().getName());
   }
@@ -174,6 +200,51 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
     E run();
   }
 
+  private interface RowCounter<E> {
+    int count(E result);
+  }
+
+  /**
+   * Times the statement for the {@link QueryProfiler}. Cursors are counted before returning, which is when the query actually runs. Doing it here rather
+   * than on first access costs nothing extra, as the first move on a cursor counts it anyway. The SQL and arguments are only built when the profiler is
+   * enabled.
+   */
+  private <E> E profile(Returnable<String> sql, Returnable<Object[]> args, Returnable<E> returnable, RowCounter<E> rowCounter) {
+    if (!QueryProfiler.isEnabled()) {
+      return returnable.run();
+    }
+
+    long start  = System.nanoTime();
+    E    result = returnable.run();
+    int  rows   = rowCounter.count(result);
+
+    QueryProfiler.onStatement(reader != null ? reader : wrapped, sql.run(), args.run(), System.nanoTime() - start, rows);
+
+    return result;
+  }
+
+  private Cursor profileQuery(Returnable<String> sql, Returnable<Object[]> args, Returnable<Cursor> returnable) {
+    return profile(sql, args, returnable, cursor -> cursor != null ? cursor.getCount() : 0);
+  }
+
+  private void profileExec(Returnable<String> sql, Returnable<Object[]> args, Runnable runnable) {
+    profile(sql, args, () -> {
+      runnable.run();
+      return null;
+    }, result -> 0);
+  }
+
+  private void beginProfiled(Runnable begin) {
+    if (!QueryProfiler.isEnabled() || wrapped.inTransaction()) {
+      begin.run();
+      return;
+    }
+
+    long start = System.nanoTime();
+    begin.run();
+    QueryProfiler.onLockAcquired(System.nanoTime() - start);
+  }
+
   /**
    * Runnable whose equals/hashcode is determined by a key you pass in.
    */
@@ -232,13 +303,13 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
   @Override
   public Cursor query(SupportSQLiteQuery query) {
     DatabaseMonitor.onSql(query.getSql(), null);
-    return wrapped.query(query);
+    return readConnection().query(query);
   }
 
   @Override
   public Cursor query(SupportSQLiteQuery query, CancellationSignal cancellationSignal) {
     DatabaseMonitor.onSql(query.getSql(), null);
-    return wrapped.query(query, cancellationSignal);
+    return readConnection().query(query, cancellationSignal);
   }
 
   @Override
@@ -287,7 +358,7 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
     if (wrapped.inTransaction()) {
       trace("beginTransaction()", wrapped::beginTransaction);
     } else {
-      trace("beginTransaction()", () -> {
+      trace("beginTransaction()", () -> beginProfiled(() -> {
         wrapped.beginTransactionWithListener(new SQLiteTransactionListener() {
           @Override
           public void onBegin() { }
@@ -306,7 +377,7 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
             getPendingPostSuccessfulTransactionTasks().clear();
           }
         });
-      });
+      }));
     }
   }
 
@@ -328,37 +399,37 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
 
   public Cursor query(boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
     DatabaseMonitor.onQuery(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
-    return traceSql("query(9)", table, selection, false, () -> wrapped.query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+    return traceSql("query(9)", table, selection, false, () -> profileQuery(() -> SQLiteQueryBuilder.buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit), () -> selectionArgs, () -> readConnection().query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit)));
   }
 
   public Cursor queryWithFactory(net.zetetic.database.sqlcipher.SQLiteDatabase.CursorFactory cursorFactory, boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
     DatabaseMonitor.onQuery(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
-    return traceSql("queryWithFactory()", table, selection, false, () -> wrapped.queryWithFactory(cursorFactory, distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+    return traceSql("queryWithFactory()", table, selection, false, () -> profileQuery(() -> SQLiteQueryBuilder.buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit), () -> selectionArgs, () -> readConnection().queryWithFactory(cursorFactory, distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit)));
   }
 
   public Cursor query(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy) {
     DatabaseMonitor.onQuery(false, table, columns, selection, selectionArgs, groupBy, having, orderBy, null);
-    return traceSql("query(7)", table, selection, false, () -> wrapped.query(table, columns, selection, selectionArgs, groupBy, having, orderBy));
+    return traceSql("query(7)", table, selection, false, () -> profileQuery(() -> SQLiteQueryBuilder.buildQueryString(false, table, columns, selection, groupBy, having, orderBy, null), () -> selectionArgs, () -> readConnection().query(table, columns, selection, selectionArgs, groupBy, having, orderBy)));
   }
 
   public Cursor query(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
     DatabaseMonitor.onQuery(false, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
-    return traceSql("query(8)", table, selection, false, () -> wrapped.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+    return traceSql("query(8)", table, selection, false, () -> profileQuery(() -> SQLiteQueryBuilder.buildQueryString(false, table, columns, selection, groupBy, having, orderBy, limit), () -> selectionArgs, () -> readConnection().query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit)));
   }
 
   public Cursor rawQuery(String sql, String[] selectionArgs) {
     DatabaseMonitor.onSql(sql, selectionArgs);
-    return traceSql("rawQuery(2a)", sql, false, () -> wrapped.rawQuery(sql, selectionArgs));
+    return traceSql("rawQuery(2a)", sql, false, () -> profileQuery(() -> sql, () -> selectionArgs, () -> readConnection().rawQuery(sql, selectionArgs)));
   }
 
   public Cursor rawQuery(String sql, Object[] args) {
     DatabaseMonitor.onSql(sql, args);
-    return traceSql("rawQuery(2b)", sql, false,() -> wrapped.rawQuery(sql, args));
+    return traceSql("rawQuery(2b)", sql, false,() -> profileQuery(() -> sql, () -> args, () -> readConnection().rawQuery(sql, args)));
   }
 
   public Cursor rawQueryWithFactory(net.zetetic.database.sqlcipher.SQLiteDatabase.CursorFactory cursorFactory, String sql, String[] selectionArgs, String editTable) {
     DatabaseMonitor.onSql(sql, selectionArgs);
-    return traceSql("rawQueryWithFactory()", sql, false, () -> wrapped.rawQueryWithFactory(cursorFactory, sql, selectionArgs, editTable));
+    return traceSql("rawQueryWithFactory()", sql, false, () -> profileQuery(() -> sql, () -> selectionArgs, () -> readConnection().rawQueryWithFactory(cursorFactory, sql, selectionArgs, editTable)));
   }
 
   public Cursor rawQuery(String sql, String[] selectionArgs, int initialRead, int maxRead) {
@@ -367,55 +438,84 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
   }
 
   public long insert(String table, String nullColumnHack, ContentValues values) {
-    return traceSql("insert()", table, null, true, () -> wrapped.insert(table, nullColumnHack, values));
+    return traceSql("insert()", table, null, true, () -> profile(() -> "INSERT INTO " + table, () -> null, () -> wrapped.insert(table, nullColumnHack, values), SQLiteDatabase::insertedRows));
   }
 
   public long insertOrThrow(String table, String nullColumnHack, ContentValues values) throws SQLException {
-    return traceSql("insertOrThrow()", table, null, true, () -> wrapped.insertOrThrow(table, nullColumnHack, values));
+    return traceSql("insertOrThrow()", table, null, true, () -> profile(() -> "INSERT INTO " + table, () -> null, () -> wrapped.insertOrThrow(table, nullColumnHack, values), SQLiteDatabase::insertedRows));
   }
 
   public long replace(String table, String nullColumnHack, ContentValues initialValues) {
-    return traceSql("replace()", table, null, true,() -> wrapped.replace(table, nullColumnHack, initialValues));
+    return traceSql("replace()", table, null, true,() -> profile(() -> "REPLACE INTO " + table, () -> null, () -> wrapped.replace(table, nullColumnHack, initialValues), SQLiteDatabase::insertedRows));
   }
 
   public long replaceOrThrow(String table, String nullColumnHack, ContentValues initialValues) throws SQLException {
-    return traceSql("replaceOrThrow()", table, null, true, () -> wrapped.replaceOrThrow(table, nullColumnHack, initialValues));
+    return traceSql("replaceOrThrow()", table, null, true, () -> profile(() -> "REPLACE INTO " + table, () -> null, () -> wrapped.replaceOrThrow(table, nullColumnHack, initialValues), SQLiteDatabase::insertedRows));
   }
 
   public long insertWithOnConflict(String table, String nullColumnHack, ContentValues initialValues, int conflictAlgorithm) {
-    return traceSql("insertWithOnConflict()", table, null, true, () -> wrapped.insertWithOnConflict(table, nullColumnHack, initialValues, conflictAlgorithm));
+    return traceSql("insertWithOnConflict()", table, null, true, () -> profile(() -> "INSERT INTO " + table, () -> null, () -> wrapped.insertWithOnConflict(table, nullColumnHack, initialValues, conflictAlgorithm), SQLiteDatabase::insertedRows));
   }
 
   public int delete(String table, String whereClause, String[] whereArgs) {
     DatabaseMonitor.onDelete(table, whereClause, whereArgs);
-    return traceSql("delete()", table, whereClause, true, () -> wrapped.delete(table, whereClause, whereArgs));
+    return traceSql("delete()", table, whereClause, true, () -> profile(() -> deleteSql(table, whereClause), () -> whereArgs, () -> wrapped.delete(table, whereClause, whereArgs), rows -> rows));
   }
 
   public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
     DatabaseMonitor.onUpdate(table, values, whereClause, whereArgs);
-    return traceSql("update()", table, whereClause, true, () -> wrapped.update(table, values, whereClause, whereArgs));
+    return traceSql("update()", table, whereClause, true, () -> profile(() -> updateSql(table, values, whereClause), () -> updateArgs(values, whereArgs), () -> wrapped.update(table, values, whereClause, whereArgs), rows -> rows));
   }
 
   public int updateWithOnConflict(String table, ContentValues values, String whereClause, String[] whereArgs, int conflictAlgorithm) {
     DatabaseMonitor.onUpdate(table, values, whereClause, whereArgs);
-    return traceSql("updateWithOnConflict()", table, whereClause, true, () -> wrapped.updateWithOnConflict(table, values, whereClause, whereArgs, conflictAlgorithm));
+    return traceSql("updateWithOnConflict()", table, whereClause, true, () -> profile(() -> updateSql(table, values, whereClause), () -> updateArgs(values, whereArgs), () -> wrapped.updateWithOnConflict(table, values, whereClause, whereArgs, conflictAlgorithm), rows -> rows));
   }
 
   public void execSQL(String sql) throws SQLException {
     DatabaseMonitor.onSql(sql, null);
-    traceSql("execSQL(1)", sql, true, () -> wrapped.execSQL(sql));
+    traceSql("execSQL(1)", sql, true, () -> profileExec(() -> sql, () -> null, () -> wrapped.execSQL(sql)));
   }
 
   public void rawExecSQL(String sql) {
     DatabaseMonitor.onSql(sql, null);
-    traceSql("rawExecSQL()", sql, true, () -> wrapped.rawExecSQL(sql));
+    traceSql("rawExecSQL()", sql, true, () -> profileExec(() -> sql, () -> null, () -> wrapped.rawExecSQL(sql)));
   }
 
   public void execSQL(String sql, Object[] bindArgs) throws SQLException {
     DatabaseMonitor.onSql(sql, null);
-    traceSql("execSQL(2)", sql, true, () -> wrapped.execSQL(sql, bindArgs));
+    traceSql("execSQL(2)", sql, true, () -> profileExec(() -> sql, () -> bindArgs, () -> wrapped.execSQL(sql, bindArgs)));
+  }
+
+
+  private static int insertedRows(long rowId) {
+    return rowId != -1 ? 1 : 0;
+  }
+
+  private static String deleteSql(String table, String whereClause) {
+    return "DELETE FROM " + table + (whereClause != null ? " WHERE " + whereClause : "");
+  }
+
+  private static String updateSql(String table, ContentValues values, String whereClause) {
+    return "UPDATE " + table + " SET " + TextUtils.join(" = ?, ", values.keySet()) + " = ?" + (whereClause != null ? " WHERE " + whereClause : "");
   }
 
+  /**
+   * The values are bound ahead of the where clause arguments, matching {@link #updateSql(String, ContentValues, String)}.
+   */
+  private static Object[] updateArgs(ContentValues values, String[] whereArgs) {
+    List<Object> args = new ArrayList<>(values.size() + (whereArgs != null ? whereArgs.length : 0));
+
+    for (String key : values.keySet()) {
+      args.add(values.get(key));
+    }
+
+    if (whereArgs != null) {
+      args.addAll(Arrays.asList(whereArgs));
+    }
+
+    return args.toArray();
+  }
 
   // =======================================================
   // Ignored
@@ -21,10 +21,20 @@ import org.thoughtcrime.securesms.jobs.PreKeysSyncJob
 import org.thoughtcrime.securesms.migrations.LegacyMigrationJob
 import org.thoughtcrime.securesms.migrations.LegacyMigrationJob.DatabaseUpgradeListener
 import org.thoughtcrime.securesms.service.KeyCachingService
+import org.thoughtcrime.securesms.util.FeatureFlags
 import org.thoughtcrime.securesms.util.TextSecurePreferences
 import java.io.File
 
-open class SignalDatabase(private val context: Application, databaseSecret: DatabaseSecret, attachmentSecret: AttachmentSecret) :
+/**
+ * @param tunedConnections Whether queries on [signalReadableDatabase] should go to a [ReadConnectionPool], with every connection using
+ *                         [SqlCipherDatabaseHook]'s tuned settings.
+ */
+open class SignalDatabase(
+  private val context: Application,
+  databaseSecret: DatabaseSecret,
+  attachmentSecret: AttachmentSecret,
+  tunedConnections: Boolean = false
+) :
   SQLiteOpenHelper(
     context,
     DATABASE_NAME,
@@ -33,7 +43,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     SignalDatabaseMigrations.DATABASE_VERSION,
     0,
     SqlCipherErrorHandler(DATABASE_NAME),
-    SqlCipherDatabaseHook(),
+    SqlCipherDatabaseHook(tunedConnections),
     true
   ),
   SignalDatabaseOpenHelper {
@@ -75,6 +85,14 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
   val callTable: CallTable = CallTable(context, this)
   val kyberPreKeyTable: KyberPreKeyTable = KyberPreKeyTable(context, this)
   val callLinkTable: CallLinkTable = CallLinkTable(context, this)
+  val earlyMessageCacheTable: EarlyMessageCacheTable = EarlyMessageCacheTable(context, this)
+  val messageDayCountTable: MessageDayCountTable = MessageDayCountTable(context, this)
+  val attachmentFileTable: AttachmentFileTable = AttachmentFileTable(context, this)
+
+  private val databasePassword: String = databaseSecret.asString()
+
+  @Volatile
+  private var readConnectionPool: ReadConnectionPool? = if (tunedConnections) createReadConnectionPool() else null
 
   override fun onOpen(db: net.zetetic.database.sqlcipher.SQLiteDatabase) {
     db.setForeignKeyConstraintsEnabled(true)
@@ -112,6 +130,9 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     db.execSQL(CallLinkTable.CREATE_TABLE)
     db.execSQL(CallTable.CREATE_TABLE)
     db.execSQL(KyberPreKeyTable.CREATE_TABLE)
+    db.execSQL(EarlyMessageCacheTable.CREATE_TABLE)
+    db.execSQL(MessageDayCountTable.CREATE_TABLE)
+    db.execSQL(AttachmentFileTable.CREATE_TABLE)
     executeStatements(db, SearchTable.CREATE_TABLE)
     executeStatements(db, RemappedRecordTables.CREATE_TABLE)
     executeStatements(db, MessageSendLogTables.CREATE_TABLE)
@@ -138,9 +159,13 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     executeStatements(db, CallTable.CREATE_INDEXES)
     executeStatements(db, ReactionTable.CREATE_INDEXES)
     executeStatements(db, KyberPreKeyTable.CREATE_INDEXES)
+    executeStatements(db, EarlyMessageCacheTable.CREATE_INDEXES)
+    executeStatements(db, AttachmentFileTable.CREATE_INDEXES)
 
     executeStatements(db, SearchTable.CREATE_TRIGGERS)
     executeStatements(db, MessageSendLogTables.CREATE_TRIGGERS)
+    executeStatements(db, MessageDayCountTable.CREATE_TRIGGERS)
+    executeStatements(db, AttachmentFileTable.CREATE_TRIGGERS)
 
     DistributionListTables.insertInitialDistributionListAtCreationTime(db)
 
@@ -198,7 +223,15 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     get() = super.getWritableDatabase()
 
   open val signalReadableDatabase: SQLiteDatabase
-    get() = SQLiteDatabase(super.getReadableDatabase())
+    get() {
+      val pool = readConnectionPool
+
+      return if (pool != null) {
+        SQLiteDatabase(super.getWritableDatabase(), pool.get())
+      } else {
+        SQLiteDatabase(super.getReadableDatabase())
+      }
+    }
 
   open val signalWritableDatabase: SQLiteDatabase
     get() = SQLiteDatabase(super.getWritableDatabase())
@@ -211,6 +244,27 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     db.version = SignalDatabaseMigrations.DATABASE_VERSION
   }
 
+  @VisibleForTesting
+  fun setReadConnectionPoolEnabled(enabled: Boolean) {
+    synchronized(this) {
+      if (enabled && readConnectionPool == null) {
+        readConnectionPool = createReadConnectionPool()
+      } else if (!enabled) {
+        readConnectionPool?.close()
+        readConnectionPool = null
+      }
+    }
+  }
+
+  @VisibleForTesting
+  fun isReadConnectionPoolEnabled(): Boolean {
+    return readConnectionPool != null
+  }
+
+  private fun createReadConnectionPool(): ReadConnectionPool {
+    return ReadConnectionPool(context, DATABASE_NAME, databasePassword, READ_CONNECTION_POOL_SIZE)
+  }
+
   private fun executeStatements(db: net.zetetic.database.sqlcipher.SQLiteDatabase, statements: Array<String>) {
     for (statement in statements) db.execSQL(statement)
   }
@@ -218,6 +272,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
   companion object {
     private val TAG = Log.tag(SignalDatabase::class.java)
     private const val DATABASE_NAME = "signal.db"
+    private const val READ_CONNECTION_POOL_SIZE = 4
 
     @JvmStatic
     @Volatile
@@ -229,7 +284,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
       if (instance == null) {
         synchronized(SignalDatabase::class.java) {
           if (instance == null) {
-            instance = SignalDatabase(application, databaseSecret, attachmentSecret)
+            instance = SignalDatabase(application, databaseSecret, attachmentSecret, FeatureFlags.tunedDatabaseConnections())
           }
         }
       }
@@ -301,6 +356,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
           database.setForeignKeyConstraintsEnabled(true)
         }
 
+        instance!!.readConnectionPool?.close()
         instance!!.rawWritableDatabase.close()
         triggerDatabaseAccess()
       }
@@ -542,5 +598,20 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     @get:JvmName("callLinks")
     val callLinks: CallLinkTable
       get() = instance!!.callLinkTable
+
+    @get:JvmStatic
+    @get:JvmName("earlyMessageCache")
+    val earlyMessageCache: EarlyMessageCacheTable
+      get() = instance!!.earlyMessageCacheTable
+
+    @get:JvmStatic
+    @get:JvmName("messageDayCounts")
+    val messageDayCounts: MessageDayCountTable
+      get() = instance!!.messageDayCountTable
+
+    @get:JvmStatic
+    @get:JvmName("attachmentFiles")
+    val attachmentFiles: AttachmentFileTable
+      get() = instance!!.attachmentFileTable
   }
 }
@@ -8,6 +8,22 @@ import net.zetetic.database.sqlcipher.SQLiteDatabaseHook;
  */
 public class SqlCipherDatabaseHook implements SQLiteDatabaseHook {
 
+  /** In KiB, as a negative cache_size is a size rather than a page count. */
+  private static final int TUNED_CACHE_SIZE_KIB = 8 * 1024;
+
+  private final boolean tuned;
+
+  public SqlCipherDatabaseHook() {
+    this(false);
+  }
+
+  /**
+   * @param tuned Whether to give each connection a larger page cache and in-memory temp storage, and to skip wiping SQLCipher's freed memory.
+   */
+  public SqlCipherDatabaseHook(boolean tuned) {
+    this.tuned = tuned;
+  }
+
   @Override
   public void preKey(SQLiteConnection connection) {
     connection.execute("PRAGMA cipher_default_kdf_iter = 1;", null, null);
@@ -19,5 +35,11 @@ public class SqlCipherDatabaseHook implements SQLiteDatabaseHook {
     connection.execute("PRAGMA cipher_compatibility = 3;", null, null);
     connection.execute("PRAGMA kdf_iter = '1';", null, null);
     connection.execute("PRAGMA cipher_page_size = 4096;", null, null);
+
+    if (tuned) {
+      connection.execute("PRAGMA cipher_memory_security = OFF;", null, null);
+      connection.execute("PRAGMA cache_size = -" + TUNED_CACHE_SIZE_KIB + ";", null, null);
+      connection.execute("PRAGMA temp_store = MEMORY;", null, null);
+    }
   }
 }
@@ -1218,6 +1218,25 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     return Recipient.resolved(id)
   }
 
+  fun getRecipientIdsByThreadId(threadIds: Collection<Long>): Map<Long, RecipientId> {
+    val recipientIds: MutableMap<Long, RecipientId> = HashMap(threadIds.size)
+
+    for (query in SqlUtil.buildCollectionQuery(ID, threadIds)) {
+      readableDatabase
+        .select(ID, RECIPIENT_ID)
+        .from(TABLE_NAME)
+        .where(query.where, *query.whereArgs)
+        .run()
+        .use { cursor ->
+          while (cursor.moveToNext()) {
+            recipientIds[cursor.requireLong(ID)] = RecipientId.from(cursor.requireLong(RECIPIENT_ID))
+          }
+        }
+    }
+
+    return recipientIds
+  }
+
   fun getRecipientIdsForThreadIds(threadIds: Collection<Long>): List<RecipientId> {
     val query = SqlUtil.buildSingleCollectionQuery(ID, threadIds)
 
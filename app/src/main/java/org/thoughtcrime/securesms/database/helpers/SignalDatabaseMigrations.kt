@@ -57,6 +57,10 @@ import org.thoughtcrime.securesms.database.helpers.migration.V198_AddMacDigestCo
 import org.thoughtcrime.securesms.database.helpers.migration.V199_AddThreadActiveColumn
 import org.thoughtcrime.securesms.database.helpers.migration.V200_ResetPniColumn
 import org.thoughtcrime.securesms.database.helpers.migration.V201_RecipientTableValidations
+import org.thoughtcrime.securesms.database.helpers.migration.V202_EarlyMessageCacheTable
+import org.thoughtcrime.securesms.database.helpers.migration.V203_MessageDayCountTable
+import org.thoughtcrime.securesms.database.helpers.migration.V204_AttachmentFileTable
+import org.thoughtcrime.securesms.database.helpers.migration.V205_AttachmentFileThumbnails
 
 /**
  * Contains all of the database migrations for [SignalDatabase]. Broken into a separate file for cleanliness.
@@ -65,7 +69,7 @@ object SignalDatabaseMigrations {
 
   val TAG: String = Log.tag(SignalDatabaseMigrations.javaClass)
 
-  const val DATABASE_VERSION = 201
+  const val DATABASE_VERSION = 205
 
   @JvmStatic
   fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
@@ -280,6 +284,22 @@ object SignalDatabaseMigrations {
     if (oldVersion < 201) {
       V201_RecipientTableValidations.migrate(context, db, oldVersion, newVersion)
     }
+
+    if (oldVersion < 202) {
+      V202_EarlyMessageCacheTable.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 203) {
+      V203_MessageDayCountTable.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 204) {
+      V204_AttachmentFileTable.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 205) {
+      V205_AttachmentFileThumbnails.migrate(context, db, oldVersion, newVersion)
+    }
   }
 
   @JvmStatic
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a table for early messages that spill over from the in-memory [org.thoughtcrime.securesms.util.EarlyMessageCache].
+ */
+@Suppress("ClassName")
+object V202_EarlyMessageCacheTable : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL(
+      """
+      CREATE TABLE early_message_cache (
+        _id INTEGER PRIMARY KEY AUTOINCREMENT,
+        target_recipient_id INTEGER NOT NULL REFERENCES recipient (_id) ON DELETE CASCADE,
+        target_sent_timestamp INTEGER NOT NULL,
+        expires_at INTEGER NOT NULL,
+        size INTEGER NOT NULL,
+        legacy_content BLOB DEFAULT NULL,
+        envelope BLOB DEFAULT NULL,
+        content BLOB DEFAULT NULL,
+        source_service_id TEXT DEFAULT NULL,
+        source_e164 TEXT DEFAULT NULL,
+        source_device_id INTEGER DEFAULT 0,
+        sealed_sender INTEGER DEFAULT 0,
+        group_id BLOB DEFAULT NULL,
+        destination_service_id TEXT DEFAULT NULL,
+        server_delivered_timestamp INTEGER DEFAULT 0
+      )
+      """
+    )
+
+    db.execSQL("CREATE INDEX early_message_cache_target_index ON early_message_cache (target_recipient_id, target_sent_timestamp)")
+  }
+}
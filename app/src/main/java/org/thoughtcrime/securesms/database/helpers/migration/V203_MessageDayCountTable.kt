@@ -0,0 +1,68 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a table of per-day message counts for each thread, kept up to date by triggers, so message positions don't need to count every newer message.
+ */
+@Suppress("ClassName")
+object V203_MessageDayCountTable : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL(
+      """
+      CREATE TABLE message_day_count (
+        _id INTEGER PRIMARY KEY AUTOINCREMENT,
+        thread_id INTEGER NOT NULL REFERENCES thread (_id) ON DELETE CASCADE,
+        day INTEGER NOT NULL,
+        count INTEGER NOT NULL DEFAULT 0,
+        UNIQUE(thread_id, day)
+      )
+      """
+    )
+
+    db.execSQL(
+      """
+      INSERT INTO message_day_count (thread_id, day, count)
+      SELECT thread_id, date_received / 86400000, COUNT(*)
+      FROM message
+      WHERE story_type = 0 AND parent_story_id <= 0 AND scheduled_date = -1 AND latest_revision_id IS NULL
+      GROUP BY thread_id, date_received / 86400000
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER message_day_count_ai AFTER INSERT ON message BEGIN
+        INSERT OR IGNORE INTO message_day_count (thread_id, day, count) SELECT new.thread_id, new.date_received / 86400000, 0 WHERE new.story_type = 0 AND new.parent_story_id <= 0 AND new.scheduled_date = -1 AND new.latest_revision_id IS NULL;
+        UPDATE message_day_count SET count = count + 1 WHERE thread_id = new.thread_id AND day = new.date_received / 86400000 AND new.story_type = 0 AND new.parent_story_id <= 0 AND new.scheduled_date = -1 AND new.latest_revision_id IS NULL;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER message_day_count_ad AFTER DELETE ON message BEGIN
+        UPDATE message_day_count SET count = count - 1 WHERE thread_id = old.thread_id AND day = old.date_received / 86400000 AND old.story_type = 0 AND old.parent_story_id <= 0 AND old.scheduled_date = -1 AND old.latest_revision_id IS NULL;
+        DELETE FROM message_day_count WHERE thread_id = old.thread_id AND day = old.date_received / 86400000 AND count <= 0;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER message_day_count_au AFTER UPDATE OF thread_id, date_received, story_type, parent_story_id, scheduled_date, latest_revision_id ON message BEGIN
+        UPDATE message_day_count SET count = count - 1 WHERE thread_id = old.thread_id AND day = old.date_received / 86400000 AND old.story_type = 0 AND old.parent_story_id <= 0 AND old.scheduled_date = -1 AND old.latest_revision_id IS NULL;
+        DELETE FROM message_day_count WHERE thread_id = old.thread_id AND day = old.date_received / 86400000 AND count <= 0;
+        INSERT OR IGNORE INTO message_day_count (thread_id, day, count) SELECT new.thread_id, new.date_received / 86400000, 0 WHERE new.story_type = 0 AND new.parent_story_id <= 0 AND new.scheduled_date = -1 AND new.latest_revision_id IS NULL;
+        UPDATE message_day_count SET count = count + 1 WHERE thread_id = new.thread_id AND day = new.date_received / 86400000 AND new.story_type = 0 AND new.parent_story_id <= 0 AND new.scheduled_date = -1 AND new.latest_revision_id IS NULL;
+      END;
+      """
+    )
+  }
+}
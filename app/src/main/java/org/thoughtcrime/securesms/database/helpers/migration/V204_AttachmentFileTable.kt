@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a table of attachment files keyed by path, with the hash of their plaintext and a reference count kept up to date by triggers, so identical
+ * attachments can share one file and files can be deleted as soon as nothing points at them.
+ *
+ * Attachments with the same hash that ended up in separate files are moved onto one of them. The files left without references are deleted by the next
+ * attachment cleanup.
+ */
+@Suppress("ClassName")
+object V204_AttachmentFileTable : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL(
+      """
+      CREATE TABLE attachment_file (
+        _id INTEGER PRIMARY KEY AUTOINCREMENT,
+        _data TEXT UNIQUE NOT NULL,
+        data_hash TEXT DEFAULT NULL,
+        data_random BLOB DEFAULT NULL,
+        data_size INTEGER DEFAULT 0,
+        ref_count INTEGER NOT NULL DEFAULT 0
+      )
+      """
+    )
+
+    // A file's hash is only trusted if every attachment pointing at it agrees on the hash and the key.
+    db.execSQL(
+      """
+      INSERT INTO attachment_file (_data, data_hash, data_random, data_size, ref_count)
+      SELECT
+        _data,
+        CASE WHEN COUNT(DISTINCT data_hash) = 1 AND COUNT(DISTINCT data_random) = 1 THEN MAX(data_hash) ELSE NULL END,
+        MAX(data_random),
+        MAX(data_size),
+        COUNT(*)
+      FROM part
+      WHERE _data NOT NULL
+      GROUP BY _data
+      """
+    )
+
+    db.execSQL("CREATE INDEX attachment_file_data_hash_index ON attachment_file (data_hash)")
+    db.execSQL("CREATE INDEX attachment_file_unreferenced_index ON attachment_file (ref_count) WHERE ref_count <= 0")
+
+    db.execSQL(
+      """
+      CREATE TEMPORARY TABLE canonical_attachment_file AS
+      SELECT file._data AS _data, canonical._data AS canonical_data, canonical.data_random AS canonical_random
+      FROM attachment_file AS file
+      INNER JOIN attachment_file AS canonical ON canonical._id = (SELECT MIN(_id) FROM attachment_file WHERE data_hash = file.data_hash)
+      WHERE file.data_hash NOT NULL AND file._id != canonical._id
+      """
+    )
+
+    db.execSQL("CREATE INDEX canonical_attachment_file_data_index ON canonical_attachment_file (_data)")
+
+    db.execSQL(
+      """
+      UPDATE part
+      SET
+        data_random = (SELECT canonical_random FROM canonical_attachment_file WHERE canonical_attachment_file._data = part._data),
+        _data = (SELECT canonical_data FROM canonical_attachment_file WHERE canonical_attachment_file._data = part._data)
+      WHERE _data IN (SELECT _data FROM canonical_attachment_file)
+      """
+    )
+
+    db.execSQL("DROP TABLE canonical_attachment_file")
+
+    db.execSQL("UPDATE attachment_file SET ref_count = (SELECT COUNT(*) FROM part WHERE part._data = attachment_file._data)")
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_file_ai AFTER INSERT ON part BEGIN
+        INSERT OR IGNORE INTO attachment_file (_data, data_hash, data_random, data_size, ref_count) SELECT new._data, new.data_hash, new.data_random, new.data_size, 0 WHERE new._data NOT NULL;
+        UPDATE attachment_file SET ref_count = ref_count + 1, data_hash = COALESCE(data_hash, new.data_hash) WHERE _data = new._data;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_file_ad AFTER DELETE ON part BEGIN
+        UPDATE attachment_file SET ref_count = ref_count - 1 WHERE _data = old._data;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_file_au AFTER UPDATE OF _data, data_hash ON part BEGIN
+        UPDATE attachment_file SET ref_count = ref_count - 1 WHERE _data = old._data;
+        INSERT OR IGNORE INTO attachment_file (_data, data_hash, data_random, data_size, ref_count) SELECT new._data, new.data_hash, new.data_random, new.data_size, 0 WHERE new._data NOT NULL;
+        UPDATE attachment_file SET ref_count = ref_count + 1, data_hash = COALESCE(data_hash, new.data_hash) WHERE _data = new._data;
+      END;
+      """
+    )
+  }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a precomputed thumbnail to each attachment file, so that media can be shown without decoding the full file.
+ *
+ * Files that already exist are marked as skipped rather than queued, so that upgrading doesn't generate thumbnails for an entire media library at once.
+ * They keep being decoded on demand, as before.
+ */
+@Suppress("ClassName")
+object V205_AttachmentFileThumbnails : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("ALTER TABLE attachment_file ADD COLUMN thumbnail_file TEXT DEFAULT NULL")
+    db.execSQL("ALTER TABLE attachment_file ADD COLUMN thumbnail_random BLOB DEFAULT NULL")
+    db.execSQL("ALTER TABLE attachment_file ADD COLUMN thumbnail_state INTEGER NOT NULL DEFAULT 0")
+    db.execSQL("UPDATE attachment_file SET thumbnail_state = 2")
+
+    db.execSQL("CREATE INDEX attachment_file_thumbnail_pending_index ON attachment_file (thumbnail_state) WHERE thumbnail_state = 0")
+  }
+}
@@ -36,6 +36,7 @@ import org.thoughtcrime.securesms.service.ExpiringMessageManager;
 import org.thoughtcrime.securesms.service.ExpiringStoriesManager;
 import org.thoughtcrime.securesms.service.PendingRetryReceiptManager;
 import org.thoughtcrime.securesms.service.ScheduledMessageManager;
+import org.thoughtcrime.securesms.service.TrimMessageSendLogManager;
 import org.thoughtcrime.securesms.service.TrimThreadsByDateManager;
 import org.thoughtcrime.securesms.service.webrtc.SignalCallManager;
 import org.thoughtcrime.securesms.shakereport.ShakeToReport;
@@ -111,6 +112,7 @@ public class ApplicationDependencies {
   private static volatile TypingStatusSender           typingStatusSender;
   private static volatile DatabaseObserver             databaseObserver;
   private static volatile TrimThreadsByDateManager     trimThreadsByDateManager;
+  private static volatile TrimMessageSendLogManager    trimMessageSendLogManager;
   private static volatile ViewOnceMessageManager       viewOnceMessageManager;
   private static volatile ExpiringStoriesManager       expiringStoriesManager;
   private static volatile ExpiringMessageManager       expiringMessageManager;
@@ -386,6 +388,18 @@ public class ApplicationDependencies {
     return trimThreadsByDateManager;
   }
 
+  public static @NonNull TrimMessageSendLogManager getTrimMessageSendLogManager() {
+    if (trimMessageSendLogManager == null) {
+      synchronized (LOCK) {
+        if (trimMessageSendLogManager == null) {
+          trimMessageSendLogManager = provider.provideTrimMessageSendLogManager();
+        }
+      }
+    }
+
+    return trimMessageSendLogManager;
+  }
+
   public static @NonNull ViewOnceMessageManager getViewOnceMessageManager() {
     if (viewOnceMessageManager == null) {
       synchronized (LOCK) {
@@ -715,6 +729,7 @@ public class ApplicationDependencies {
     @NonNull MessageNotifier provideMessageNotifier();
     @NonNull IncomingMessageObserver provideIncomingMessageObserver();
     @NonNull TrimThreadsByDateManager provideTrimThreadsByDateManager();
+    @NonNull TrimMessageSendLogManager provideTrimMessageSendLogManager();
     @NonNull ViewOnceMessageManager provideViewOnceMessageManager();
     @NonNull ExpiringStoriesManager provideExpiringStoriesManager();
     @NonNull ExpiringMessageManager provideExpiringMessageManager();
@@ -30,6 +30,7 @@ import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
 import org.thoughtcrime.securesms.database.DatabaseObserver;
 import org.thoughtcrime.securesms.database.JobDatabase;
 import org.thoughtcrime.securesms.database.PendingRetryReceiptCache;
+import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobmanager.JobMigrator;
 import org.thoughtcrime.securesms.jobmanager.impl.FactoryJobPredicate;
@@ -63,6 +64,7 @@ import org.thoughtcrime.securesms.service.ExpiringMessageManager;
 import org.thoughtcrime.securesms.service.ExpiringStoriesManager;
 import org.thoughtcrime.securesms.service.PendingRetryReceiptManager;
 import org.thoughtcrime.securesms.service.ScheduledMessageManager;
+import org.thoughtcrime.securesms.service.TrimMessageSendLogManager;
 import org.thoughtcrime.securesms.service.TrimThreadsByDateManager;
 import org.thoughtcrime.securesms.service.webrtc.SignalCallManager;
 import org.thoughtcrime.securesms.shakereport.ShakeToReport;
@@ -119,7 +121,12 @@ public class ApplicationDependencyProvider implements ApplicationDependencies.Pr
 
   @Override
   public @NonNull GroupsV2Operations provideGroupsV2Operations(@NonNull SignalServiceConfiguration signalServiceConfiguration) {
-    return new GroupsV2Operations(provideClientZkOperations(signalServiceConfiguration), FeatureFlags.groupLimits().getHardLimit());
+    int decryptParallelism = Runtime.getRuntime().availableProcessors();
+
+    return new GroupsV2Operations(provideClientZkOperations(signalServiceConfiguration),
+                                  FeatureFlags.groupLimits().getHardLimit(),
+                                  SignalExecutors.newCachedBoundedExecutor("signal-groups-decrypt", ThreadUtil.PRIORITY_BACKGROUND_THREAD, 1, Math.max(1, decryptParallelism - 1), 30),
+                                  decryptParallelism);
   }
 
   @Override
@@ -196,7 +203,7 @@ public class ApplicationDependencyProvider implements ApplicationDependencies.Pr
 
   @Override
   public @NonNull EarlyMessageCache provideEarlyMessageCache() {
-    return new EarlyMessageCache();
+    return new EarlyMessageCache(SignalDatabase.earlyMessageCache());
   }
 
   @Override
@@ -214,6 +221,11 @@ public class ApplicationDependencyProvider implements ApplicationDependencies.Pr
     return new TrimThreadsByDateManager(context);
   }
 
+  @Override
+  public @NonNull TrimMessageSendLogManager provideTrimMessageSendLogManager() {
+    return new TrimMessageSendLogManager(context);
+  }
+
   @Override
   public @NonNull ViewOnceMessageManager provideViewOnceMessageManager() {
     return new ViewOnceMessageManager(context);
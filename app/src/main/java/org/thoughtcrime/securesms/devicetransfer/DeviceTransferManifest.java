@@ -0,0 +1,232 @@
+package org.thoughtcrime.securesms.devicetransfer;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the attachment files received by the new device during a device transfer, keyed by the
+ * hash of their plaintext, so an interrupted transfer can be resumed without sending them again.
+ * <p>
+ * The database restore is a single transaction that is rolled back if the transfer fails, but the
+ * attachment files written along the way remain on disk. Each file is recorded here as soon as it
+ * is complete, and the hashes are sent to the old device when a transfer is (re)started. The old
+ * device then only sends a reference for any attachment whose data hash is already known.
+ */
+public final class DeviceTransferManifest {
+
+  private static final String TAG = Log.tag(DeviceTransferManifest.class);
+
+  private static final String FILE_NAME     = "device_transfer_manifest";
+  private static final int    STATE_VERSION = 1;
+
+  private final File               file;
+  private final List<Entry>        entries;
+  private final Map<String, Entry> entriesByHash;
+  private final Set<String>        referencedFiles;
+
+  public static @NonNull DeviceTransferManifest load(@NonNull Context context) {
+    return load(new File(context.getFilesDir(), FILE_NAME));
+  }
+
+  @VisibleForTesting
+  static @NonNull DeviceTransferManifest load(@NonNull File file) {
+    List<Entry> entries = new ArrayList<>();
+
+    if (file.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        while (true) {
+          Entry entry = Entry.read(in);
+          if (entry.file.exists()) {
+            entries.add(entry);
+          }
+        }
+      } catch (EOFException e) {
+        // End of manifest, or a partially written last entry which is safe to ignore
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to read manifest, ignoring remaining entries", e);
+      }
+    }
+
+    Log.i(TAG, "Loaded manifest with entries: " + entries.size());
+    return new DeviceTransferManifest(file, entries);
+  }
+
+  private DeviceTransferManifest(@NonNull File file, @NonNull List<Entry> entries) {
+    this.file            = file;
+    this.entries         = entries;
+    this.entriesByHash   = new HashMap<>();
+    this.referencedFiles = new HashSet<>();
+
+    for (Entry entry : entries) {
+      entriesByHash.put(entry.dataHash, entry);
+    }
+  }
+
+  /**
+   * Find a previously received attachment file with the given plaintext hash. The file is
+   * considered in use by the current transfer after this call.
+   */
+  public synchronized @Nullable Entry get(@NonNull String dataHash) {
+    Entry entry = entriesByHash.get(dataHash);
+    if (entry != null) {
+      referencedFiles.add(entry.file.getAbsolutePath());
+    }
+    return entry;
+  }
+
+  /**
+   * Record a fully received attachment file. The entry is persisted immediately so that it
+   * survives the transfer being interrupted.
+   */
+  public synchronized void add(@NonNull String dataHash, @NonNull File dataFile, @NonNull byte[] random, long length) throws IOException {
+    Entry entry = new Entry(dataHash, dataFile, random, length);
+
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+      entry.write(out);
+    }
+
+    entries.add(entry);
+    entriesByHash.put(dataHash, entry);
+    referencedFiles.add(dataFile.getAbsolutePath());
+  }
+
+  /**
+   * @return Resume state for {@link org.signal.devicetransfer.ServerTask#getResumeState(Context)}, the
+   *         data hashes of all known attachment files.
+   */
+  public synchronized @NonNull byte[] encodeDataHashes() {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream      out   = new DataOutputStream(bytes);
+
+      out.writeInt(STATE_VERSION);
+      out.writeInt(entriesByHash.size());
+      for (String dataHash : entriesByHash.keySet()) {
+        out.writeUTF(dataHash);
+      }
+      out.flush();
+
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Inverse of {@link #encodeDataHashes()}, used by the old device. Unknown or empty state results
+   * in no attachments being skipped.
+   */
+  public static @NonNull Set<String> decodeDataHashes(@NonNull byte[] resumeState) {
+    if (resumeState.length == 0) {
+      return Collections.emptySet();
+    }
+
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(resumeState))) {
+      int version = in.readInt();
+      if (version != STATE_VERSION) {
+        Log.w(TAG, "Unknown resume state version: " + version);
+        return Collections.emptySet();
+      }
+
+      int         count      = in.readInt();
+      Set<String> dataHashes = new HashSet<>(count);
+      for (int i = 0; i < count; i++) {
+        dataHashes.add(in.readUTF());
+      }
+      return dataHashes;
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to decode resume state", e);
+      return Collections.emptySet();
+    }
+  }
+
+  /**
+   * Called once the restore has been committed. Deletes any files from previous attempts that did not
+   * end up being used, and removes the manifest.
+   */
+  public synchronized void complete() {
+    int deleted = 0;
+    for (Entry entry : entries) {
+      if (!referencedFiles.contains(entry.file.getAbsolutePath()) && entry.file.delete()) {
+        deleted++;
+      }
+    }
+
+    Log.i(TAG, "Transfer complete, referenced: " + referencedFiles.size() + " deleted unused: " + deleted);
+
+    entries.clear();
+    entriesByHash.clear();
+    referencedFiles.clear();
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Unable to delete manifest");
+    }
+  }
+
+  public static final class Entry {
+    private final String dataHash;
+    private final File   file;
+    private final byte[] random;
+    private final long   length;
+
+    private Entry(@NonNull String dataHash, @NonNull File file, @NonNull byte[] random, long length) {
+      this.dataHash = dataHash;
+      this.file     = file;
+      this.random   = random;
+      this.length   = length;
+    }
+
+    public @NonNull File getFile() {
+      return file;
+    }
+
+    public @NonNull byte[] getRandom() {
+      return random;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    private void write(@NonNull DataOutputStream out) throws IOException {
+      out.writeUTF(dataHash);
+      out.writeUTF(file.getAbsolutePath());
+      out.writeInt(random.length);
+      out.write(random);
+      out.writeLong(length);
+    }
+
+    private static @NonNull Entry read(@NonNull DataInputStream in) throws IOException {
+      String dataHash = in.readUTF();
+      String path     = in.readUTF();
+      byte[] random   = new byte[in.readInt()];
+      in.readFully(random);
+      long   length   = in.readLong();
+
+      return new Entry(dataHash, new File(path), random, length);
+    }
+  }
+}
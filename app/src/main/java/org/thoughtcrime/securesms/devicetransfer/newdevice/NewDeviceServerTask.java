@@ -17,6 +17,7 @@ import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupImporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.devicetransfer.DeviceTransferManifest;
 import org.thoughtcrime.securesms.jobmanager.impl.DataRestoreConstraint;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 
@@ -42,14 +43,18 @@ final class NewDeviceServerTask implements ServerTask {
       DataRestoreConstraint.setRestoringData(true);
       SQLiteDatabase database = SignalDatabase.getBackupDatabase();
 
-      String passphrase = "deadbeef";
+      String                 passphrase = "deadbeef";
+      DeviceTransferManifest manifest   = DeviceTransferManifest.load(context);
 
       BackupPassphrase.set(context, passphrase);
       FullBackupImporter.importFile(context,
                                     AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
                                     database,
                                     inputStream,
-                                    passphrase);
+                                    passphrase,
+                                    manifest);
+
+      manifest.complete();
 
       SignalDatabase.runPostBackupRestoreTasks(database);
       NotificationChannels.getInstance().restoreContactNotificationChannels();
@@ -75,6 +80,11 @@ final class NewDeviceServerTask implements ServerTask {
     Log.i(TAG, "Receive took: " + (end - start));
   }
 
+  @Override
+  public @NonNull byte[] getResumeState(@NonNull Context context) {
+    return DeviceTransferManifest.load(context).encodeDataHashes();
+  }
+
   @Subscribe(threadMode = ThreadMode.POSTING)
   public void onEvent(BackupEvent event) {
     if (event.getType() == BackupEvent.Type.PROGRESS) {
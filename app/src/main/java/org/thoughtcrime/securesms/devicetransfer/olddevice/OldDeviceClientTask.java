@@ -13,11 +13,14 @@ import org.thoughtcrime.securesms.backup.BackupEvent;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.devicetransfer.DeviceTransferManifest;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.net.DeviceTransferBlockingInterceptor;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
 
 /**
  * Create the backup stream of the old device and sends it over the wire via the output stream.
@@ -28,8 +31,10 @@ final class OldDeviceClientTask implements ClientTask {
   private static final String TAG = Log.tag(OldDeviceClientTask.class);
 
   private static final long PROGRESS_UPDATE_THROTTLE = 250;
+  private static final int  TRANSFER_STREAM_COUNT    = 4;
 
-  private long lastProgressUpdate = 0;
+  private long        lastProgressUpdate = 0;
+  private Set<String> reusableDataHashes = Collections.emptySet();
 
   @Override
   public void run(@NonNull Context context, @NonNull OutputStream outputStream) throws IOException {
@@ -43,7 +48,8 @@ final class OldDeviceClientTask implements ClientTask {
                                   AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
                                   SignalDatabase.getBackupDatabase(),
                                   outputStream,
-                                  "deadbeef");
+                                  "deadbeef",
+                                  reusableDataHashes);
     } catch (Exception e) {
       DeviceTransferBlockingInterceptor.getInstance().unblockNetwork();
       throw e;
@@ -55,6 +61,17 @@ final class OldDeviceClientTask implements ClientTask {
     Log.i(TAG, "Sending took: " + (end - start));
   }
 
+  @Override
+  public int getStreamCount() {
+    return TRANSFER_STREAM_COUNT;
+  }
+
+  @Override
+  public void setResumeState(@NonNull byte[] resumeState) {
+    reusableDataHashes = DeviceTransferManifest.decodeDataHashes(resumeState);
+    Log.i(TAG, "New device already has attachments: " + reusableDataHashes.size());
+  }
+
   @Subscribe(threadMode = ThreadMode.POSTING)
   public void onEvent(BackupEvent event) {
     if (event.getType() == BackupEvent.Type.PROGRESS) {
@@ -45,6 +45,85 @@ final class GroupStateMapper {
     return cleanDuplicatedChanges(groupStateResult, inputState.getLocalState());
   }
 
+  /**
+   * As {@link #partiallyAdvanceGroupState(GlobalGroupState, int)}, but for when only the new local
+   * state is needed, so the result has no processed log entries.
+   * <p>
+   * The changes between server supplied states are applied in one batch, so no intermediate
+   * {@link DecryptedGroup} is built. A change that can not be applied is skipped, as it would be by
+   * {@link #partiallyAdvanceGroupState(GlobalGroupState, int)}.
+   */
+  static @NonNull AdvanceGroupStateResult advanceGroupStateWithoutHistory(@NonNull GlobalGroupState inputState,
+                                                                          int maximumRevisionToApply)
+  {
+    HashMap<Integer, ServerGroupLogEntry> statesToApplyNow   = new HashMap<>(inputState.getServerHistory().size());
+    ArrayList<ServerGroupLogEntry>        statesToApplyLater = new ArrayList<>(inputState.getServerHistory().size());
+    DecryptedGroup                        current            = inputState.getLocalState();
+    List<DecryptedGroupChange>            changes            = new ArrayList<>();
+
+    if (inputState.getServerHistory().isEmpty()) {
+      return new AdvanceGroupStateResult(Collections.emptyList(), new GlobalGroupState(current, Collections.emptyList()));
+    }
+
+    for (ServerGroupLogEntry entry : inputState.getServerHistory()) {
+      if (entry.getRevision() > maximumRevisionToApply) {
+        statesToApplyLater.add(entry);
+      } else {
+        statesToApplyNow.put(entry.getRevision(), entry);
+      }
+    }
+
+    Collections.sort(statesToApplyLater, BY_REVISION);
+
+    final int from = Math.max(0, inputState.getEarliestRevisionNumber());
+    final int to   = Math.min(inputState.getLatestRevisionNumber(), maximumRevisionToApply);
+
+    DecryptedGroup latest = current != null && current.getRevision() == PLACEHOLDER_REVISION ? null : current;
+
+    for (int revision = from; revision >= 0 && revision <= to; revision++) {
+      ServerGroupLogEntry entry = statesToApplyNow.get(revision);
+      if (entry == null) {
+        Log.w(TAG, "Could not find group log on server V" + revision);
+        continue;
+      }
+
+      if (entry.getGroup() != null) {
+        latest = entry.getGroup();
+        changes.clear();
+      } else if (latest != null && entry.getChange() != null) {
+        changes.add(entry.getChange());
+      }
+    }
+
+    if (latest != null && !changes.isEmpty()) {
+      latest = applyAll(latest, changes);
+    }
+
+    if (latest != null && latest.equals(current)) {
+      latest = current;
+    }
+
+    return new AdvanceGroupStateResult(Collections.emptyList(), new GlobalGroupState(latest, statesToApplyLater));
+  }
+
+  private static @NonNull DecryptedGroup applyAll(@NonNull DecryptedGroup group, @NonNull List<DecryptedGroupChange> changes) {
+    try {
+      return DecryptedGroupUtil.applyAllWithoutRevisionCheck(group, changes);
+    } catch (NotAbleToApplyGroupV2ChangeException e) {
+      Log.w(TAG, "Unable to apply V" + changes.get(0).getRevision() + "..V" + changes.get(changes.size() - 1).getRevision() + " in one batch, applying one at a time", e);
+    }
+
+    for (DecryptedGroupChange change : changes) {
+      try {
+        group = DecryptedGroupUtil.applyWithoutRevisionCheck(group, change);
+      } catch (NotAbleToApplyGroupV2ChangeException e) {
+        Log.w(TAG, "Unable to apply V" + change.getRevision(), e);
+      }
+    }
+
+    return group;
+  }
+
   private static @NonNull AdvanceGroupStateResult processChanges(@NonNull GlobalGroupState inputState,
                                                                  int maximumRevisionToApply)
   {
@@ -453,8 +453,11 @@ public class GroupsV2StateProcessor {
 
       boolean hasMore = true;
 
+      boolean restoringPlaceholder = localState != null && localState.getRevision() == GroupsV2StateProcessor.RESTORE_PLACEHOLDER_REVISION;
+
       while (hasMore) {
-        AdvanceGroupStateResult advanceGroupStateResult = GroupStateMapper.partiallyAdvanceGroupState(inputGroupState, revision);
+        AdvanceGroupStateResult advanceGroupStateResult = restoringPlaceholder ? GroupStateMapper.advanceGroupStateWithoutHistory(inputGroupState, revision)
+                                                                               : GroupStateMapper.partiallyAdvanceGroupState(inputGroupState, revision);
         DecryptedGroup          newLocalState           = advanceGroupStateResult.getNewGlobalGroupState().getLocalState();
         info("Advanced group to revision: " + (newLocalState != null ? newLocalState.getRevision() : "null"));
 
@@ -473,7 +476,7 @@ public class GroupsV2StateProcessor {
 
         updateLocalDatabaseGroupState(inputGroupState, newLocalState);
 
-        if (localState == null || localState.getRevision() != GroupsV2StateProcessor.RESTORE_PLACEHOLDER_REVISION) {
+        if (!restoringPlaceholder) {
           timestamp = profileAndMessageHelper.insertUpdateMessages(timestamp, localState, advanceGroupStateResult.getProcessedLogEntries());
         }
 
@@ -496,7 +499,7 @@ public class GroupsV2StateProcessor {
         }
       }
 
-      if (localState != null && localState.getRevision() == GroupsV2StateProcessor.RESTORE_PLACEHOLDER_REVISION) {
+      if (restoringPlaceholder) {
         info("Inserting single update message for restore placeholder");
         profileAndMessageHelper.insertUpdateMessages(timestamp, null, Collections.singleton(new LocalGroupLogEntry(finalState, null)));
       }
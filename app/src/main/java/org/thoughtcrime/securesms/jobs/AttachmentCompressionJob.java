@@ -138,6 +138,7 @@ public final class AttachmentCompressionJob extends BaseJob {
 
     if (databaseAttachment.getTransformProperties().shouldSkipTransform()) {
       Log.i(TAG, "Skipping at the direction of the TransformProperties.");
+      AttachmentThumbnailJob.enqueue();
       return;
     }
 
@@ -145,6 +146,7 @@ public final class AttachmentCompressionJob extends BaseJob {
                                             : MediaConstraints.getPushMediaConstraints(SentMediaQuality.fromCode(databaseAttachment.getTransformProperties().getSentMediaQuality()));
 
     compress(database, mediaConstraints, databaseAttachment);
+    AttachmentThumbnailJob.enqueue();
   }
 
   @Override
@@ -221,7 +223,7 @@ public final class AttachmentCompressionJob extends BaseJob {
         }
 
         if (FeatureFlags.useStreamingVideoMuxer() || !MemoryFileDescriptor.supported()) {
-          StreamingTranscoder transcoder = new StreamingTranscoder(dataSource, options, constraints.getCompressedVideoMaxSize(context));
+          StreamingTranscoder transcoder = new StreamingTranscoder(dataSource, options, constraints.getCompressedVideoMaxSize(context), FeatureFlags.fragmentedVideoMuxer());
 
           if (transcoder.isTranscodeRequired()) {
             Log.i(TAG, "Compressing with streaming muxer");
@@ -42,7 +42,6 @@ import org.whispersystems.signalservice.api.push.exceptions.RangeException;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
@@ -121,6 +120,7 @@ public final class AttachmentDownloadJob extends BaseJob {
   @Override
   public void onRun() throws Exception {
     doWork();
+    AttachmentThumbnailJob.enqueue();
 
     if (!SignalDatabase.messages().isStory(messageId)) {
       ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(0));
@@ -186,8 +186,9 @@ public final class AttachmentDownloadJob extends BaseJob {
   {
     long maxReceiveSize = FeatureFlags.maxAttachmentReceiveSizeBytes();
 
-    AttachmentTable database       = SignalDatabase.attachments();
-    File            attachmentFile = database.getOrCreateTransferFile(attachmentId);
+    AttachmentTable                  database       = SignalDatabase.attachments();
+    File                             attachmentFile = database.getOrCreateTransferFile(attachmentId);
+    AttachmentTable.PartOutputStream partStream     = null;
 
     try {
       if (attachment.getSize() > maxReceiveSize) {
@@ -195,12 +196,17 @@ public final class AttachmentDownloadJob extends BaseJob {
       }
       SignalServiceMessageReceiver   messageReceiver = ApplicationDependencies.getSignalServiceMessageReceiver();
       SignalServiceAttachmentPointer pointer         = createAttachmentPointer(attachment);
-      InputStream                    stream          = messageReceiver.retrieveAttachment(pointer,
-                                                                                          attachmentFile,
-                                                                                          maxReceiveSize,
-                                                                                          (total, progress) -> EventBus.getDefault().postSticky(new PartProgressEvent(attachment, PartProgressEvent.Type.NETWORK, total, progress)));
 
-      database.insertAttachmentsForPlaceholder(messageId, attachmentId, stream);
+      partStream = database.newPartOutputStream();
+
+      messageReceiver.retrieveAttachment(pointer,
+                                         attachmentFile,
+                                         maxReceiveSize,
+                                         (total, progress) -> EventBus.getDefault().postSticky(new PartProgressEvent(attachment, PartProgressEvent.Type.NETWORK, total, progress)),
+                                         partStream);
+
+      database.insertAttachmentsForPlaceholder(messageId, attachmentId, partStream);
+      partStream = null;
     } catch (RangeException e) {
       Log.w(TAG, "Range exception, file size " + attachmentFile.length(), e);
       if (attachmentFile.delete()) {
@@ -220,6 +226,10 @@ public final class AttachmentDownloadJob extends BaseJob {
       } else {
         markFailed(messageId, attachmentId);
       }
+    } finally {
+      if (partStream != null) {
+        partStream.discard();
+      }
     }
   }
 
@@ -0,0 +1,160 @@
+package org.thoughtcrime.securesms.jobs
+
+import android.graphics.Bitmap
+import com.bumptech.glide.load.engine.DiskCacheStrategy
+import com.bumptech.glide.load.resource.bitmap.DownsampleStrategy
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.blurhash.BlurHash
+import org.thoughtcrime.securesms.blurhash.BlurHashEncoder
+import org.thoughtcrime.securesms.database.AttachmentFileTable.PendingThumbnail
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri
+import org.thoughtcrime.securesms.mms.GlideApp
+import org.thoughtcrime.securesms.mms.PartAuthority
+import org.thoughtcrime.securesms.util.BitmapUtil
+import org.thoughtcrime.securesms.util.MediaUtil
+import java.io.ByteArrayOutputStream
+import java.lang.Exception
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * Makes thumbnails and blur hashes for newly stored images and videos ahead of time, so that scrolling through them doesn't have to decode the full files.
+ *
+ * The work to do lives in the database, so a single queue with a limited number of instances is enough to bound it: any run picks up everything that's
+ * pending. Each batch starts with media from the conversation that's currently on screen, and then goes from newest to oldest.
+ */
+class AttachmentThumbnailJob private constructor(parameters: Parameters) : BaseJob(parameters) {
+
+  companion object {
+    const val KEY = "AttachmentThumbnailJob"
+
+    private val TAG = Log.tag(AttachmentThumbnailJob::class.java)
+
+    /** Thumbnails are scaled down to cover a square of this size, so they can stand in for any load that fits in it. They're JPEGs, or PNGs if transparent. */
+    const val THUMBNAIL_SIZE = 512
+
+    private const val BLUR_HASH_SIZE = 64
+    /** Ignored for PNGs, which are lossless. */
+    private const val JPEG_QUALITY = 80
+    private const val BATCH_SIZE = 10
+    private val MAX_RUN_TIME = 20.seconds
+
+    @JvmStatic
+    fun enqueue() {
+      ApplicationDependencies.getJobManager().add(AttachmentThumbnailJob())
+    }
+  }
+
+  private constructor() : this(
+    Parameters.Builder()
+      .setQueue("AttachmentThumbnailJob")
+      .setMaxAttempts(1)
+      .setMaxInstancesForQueue(2)
+      .build()
+  )
+
+  override fun serialize(): ByteArray? = null
+  override fun getFactoryKey() = KEY
+  override fun onFailure() = Unit
+  override fun onShouldRetry(e: Exception) = false
+
+  override fun onRun() {
+    val startTime = System.currentTimeMillis()
+    var count = 0
+
+    while (System.currentTimeMillis() - startTime < MAX_RUN_TIME.inWholeMilliseconds) {
+      val visibleThreadId = ApplicationDependencies.getMessageNotifier().visibleThread.map { it.threadId }.orElse(-1L)
+      val batch = SignalDatabase.attachmentFiles.getPendingThumbnails(visibleThreadId, BATCH_SIZE)
+
+      if (batch.isEmpty()) {
+        if (count > 0) {
+          Log.i(TAG, "Made $count thumbnails in ${System.currentTimeMillis() - startTime} ms.")
+        }
+        return
+      }
+
+      for (pending in batch) {
+        if (isCanceled) {
+          return
+        }
+
+        makeThumbnail(pending)
+        count++
+      }
+    }
+
+    Log.i(TAG, "Made $count thumbnails in ${System.currentTimeMillis() - startTime} ms, continuing in another run.")
+    enqueue()
+  }
+
+  private fun makeThumbnail(pending: PendingThumbnail) {
+    if (!isThumbnailable(pending)) {
+      SignalDatabase.attachmentFiles.skipThumbnail(pending.file)
+      return
+    }
+
+    val target = GlideApp.with(context)
+      .asBitmap()
+      .load(DecryptableUri(PartAuthority.getAttachmentDataUri(pending.attachmentId)))
+      .downsample(DownsampleStrategy.CENTER_OUTSIDE)
+      .dontTransform()
+      .skipMemoryCache(true)
+      .diskCacheStrategy(DiskCacheStrategy.NONE)
+      .submit(THUMBNAIL_SIZE, THUMBNAIL_SIZE)
+
+    try {
+      val bitmap: Bitmap = target.get()
+
+      if (bitmap.width * bitmap.height > 4 * THUMBNAIL_SIZE * THUMBNAIL_SIZE) {
+        Log.i(TAG, "Thumbnail for ${pending.attachmentId} would be ${bitmap.width}x${bitmap.height}, skipping.")
+        SignalDatabase.attachmentFiles.skipThumbnail(pending.file)
+        return
+      }
+
+      // JPEG has no alpha channel, so transparent images would get a black background
+      val format = if (bitmap.hasAlpha()) Bitmap.CompressFormat.PNG else Bitmap.CompressFormat.JPEG
+      val thumbnail = ByteArrayOutputStream()
+      bitmap.compress(format, JPEG_QUALITY, thumbnail)
+      SignalDatabase.attachments.writeThumbnail(pending.file, thumbnail.toByteArray().inputStream())
+
+      val blurHashBitmap = BitmapUtil.createScaledBitmap(bitmap, BLUR_HASH_SIZE, BLUR_HASH_SIZE)
+      val blurHash = BlurHash.parseOrNull(BlurHashEncoder.encode(blurHashBitmap))
+      if (blurHashBitmap !== bitmap) {
+        blurHashBitmap.recycle()
+      }
+
+      if (blurHash != null) {
+        SignalDatabase.attachments.setBlurHashIfMissing(pending.file, blurHash)
+      }
+    } catch (e: Exception) {
+      Log.w(TAG, "Failed to make a thumbnail for ${pending.attachmentId}, skipping.", e)
+      SignalDatabase.attachmentFiles.skipThumbnail(pending.file)
+    } finally {
+      GlideApp.with(context).clear(target)
+    }
+  }
+
+  /**
+   * Only still images and videos get thumbnails. Formats that can be animated, like GIF and WebP, would lose their animation, and view-once media isn't
+   * shown until it's opened.
+   */
+  private fun isThumbnailable(pending: PendingThumbnail): Boolean {
+    val contentType = pending.contentType ?: return false
+
+    if (pending.viewOnce) {
+      return false
+    }
+
+    return MediaUtil.isJpegType(contentType) ||
+      MediaUtil.isHeicType(contentType) ||
+      MediaUtil.isHeifType(contentType) ||
+      contentType == MediaUtil.IMAGE_PNG ||
+      MediaUtil.isVideoType(contentType)
+  }
+
+  class Factory : Job.Factory<AttachmentThumbnailJob> {
+    override fun create(parameters: Parameters, serializedData: ByteArray?) = AttachmentThumbnailJob(parameters)
+  }
+}
@@ -68,7 +68,7 @@ public abstract class BaseJob extends Job {
    * Whether or not the job should be traced with the {@link org.signal.core.util.tracing.Tracer}.
    */
   protected boolean shouldTrace() {
-    return false;
+    return true;
   }
 
   /**
@@ -63,6 +63,8 @@ class PushProcessEarlyMessagesJob private constructor(parameters: Parameters) :
     } else {
       Log.i(TAG, "There are no items in the early message cache with matches.")
     }
+
+    Log.i(TAG, "Early message cache: ${ApplicationDependencies.getEarlyMessageCache().metrics}")
   }
 
   override fun onShouldRetry(e: Exception): Boolean {
@@ -9,6 +9,7 @@ import com.annimon.stream.Stream;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.signal.libsignal.protocol.InvalidKeyException;
 import org.thoughtcrime.securesms.crypto.UnidentifiedAccessUtil;
@@ -26,6 +27,7 @@ import org.thoughtcrime.securesms.storage.AccountRecordProcessor;
 import org.thoughtcrime.securesms.storage.ContactRecordProcessor;
 import org.thoughtcrime.securesms.storage.GroupV1RecordProcessor;
 import org.thoughtcrime.securesms.storage.GroupV2RecordProcessor;
+import org.thoughtcrime.securesms.storage.StorageRecordChunkReader;
 import org.thoughtcrime.securesms.storage.StorageRecordUpdate;
 import org.thoughtcrime.securesms.storage.StorageSyncHelper;
 import org.thoughtcrime.securesms.storage.StorageSyncHelper.IdDifferenceResult;
@@ -145,6 +147,10 @@ public class StorageSyncJob extends BaseJob {
 
   private static final String TAG = Log.tag(StorageSyncJob.class);
 
+  /** Matches the number of records the storage service returns per read request. */
+  private static final int READ_CHUNK_SIZE       = 1000;
+  private static final int READ_CHUNKS_IN_FLIGHT = 2;
+
   public StorageSyncJob() {
     this(new Parameters.Builder().addConstraint(NetworkConstraint.KEY)
                                  .setQueue(QUEUE_KEY)
@@ -276,33 +282,48 @@ public class StorageSyncJob extends BaseJob {
       if (!idDifference.isEmpty()) {
         Log.i(TAG, "[Remote Sync] Retrieving records for key difference.");
 
-        List<SignalStorageRecord> remoteOnlyRecords = accountManager.readStorageRecords(storageServiceKey, idDifference.getRemoteOnlyIds());
+        List<StorageId>          remoteOnlyIds = idDifference.getRemoteOnlyIds();
+        RecordProcessors         processors    = new RecordProcessors(context);
+        StorageRecordChunkReader chunkReader   = new StorageRecordChunkReader(ids -> accountManager.readStorageRecords(storageServiceKey, ids),
+                                                                              SignalExecutors.BOUNDED_IO,
+                                                                              READ_CHUNK_SIZE,
+                                                                              READ_CHUNKS_IN_FLIGHT);
 
-        stopwatch.split("remote-records");
+        try {
+          int found = chunkReader.readAll(remoteOnlyIds, (records, chunk, chunkCount) -> {
+            StorageRecordCollection remoteOnly = new StorageRecordCollection(records);
 
-        if (remoteOnlyRecords.size() != idDifference.getRemoteOnlyIds().size()) {
-          Log.w(TAG, "[Remote Sync] Could not find all remote-only records! Requested: " + idDifference.getRemoteOnlyIds().size() + ", Found: " + remoteOnlyRecords.size() + ". These stragglers should naturally get deleted during the sync.");
-        }
+            db.beginTransaction();
+            try {
+              Log.i(TAG, "[Remote Sync] [" + (chunk + 1) + "/" + chunkCount + "] Remote-Only :: Contacts: " + remoteOnly.contacts.size() + ", GV1: " + remoteOnly.gv1.size() + ", GV2: " + remoteOnly.gv2.size() + ", Account: " + remoteOnly.account.size() + ", DLists: " + remoteOnly.storyDistributionLists.size() + ", Unknown: " + remoteOnly.unknown.size());
 
-        StorageRecordCollection remoteOnly = new StorageRecordCollection(remoteOnlyRecords);
+              processors.process(remoteOnly);
+              storageIdDatabase.insert(remoteOnly.unknown);
 
-        db.beginTransaction();
-        try {
-          Log.i(TAG, "[Remote Sync] Remote-Only :: Contacts: " + remoteOnly.contacts.size() + ", GV1: " + remoteOnly.gv1.size() + ", GV2: " + remoteOnly.gv2.size() + ", Account: " + remoteOnly.account.size() + ", DLists: " + remoteOnly.storyDistributionLists.size());
+              db.setTransactionSuccessful();
+            } finally {
+              db.endTransaction();
+            }
+          });
 
-          processKnownRecords(context, remoteOnly);
+          stopwatch.split("remote-records");
 
-          List<SignalStorageRecord> unknownInserts = remoteOnly.unknown;
-          List<StorageId>           unknownDeletes = Stream.of(idDifference.getLocalOnlyIds()).filter(StorageId::isUnknown).toList();
+          if (found != remoteOnlyIds.size()) {
+            Log.w(TAG, "[Remote Sync] Could not find all remote-only records! Requested: " + remoteOnlyIds.size() + ", Found: " + found + ". These stragglers should naturally get deleted during the sync.");
+          }
 
-          Log.i(TAG, "[Remote Sync] Unknowns :: " + unknownInserts.size() + " inserts, " + unknownDeletes.size() + " deletes");
+          List<StorageId> unknownDeletes = Stream.of(idDifference.getLocalOnlyIds()).filter(StorageId::isUnknown).toList();
 
-          storageIdDatabase.insert(unknownInserts);
-          storageIdDatabase.delete(unknownDeletes);
+          Log.i(TAG, "[Remote Sync] Unknowns :: " + unknownDeletes.size() + " deletes");
 
-          db.setTransactionSuccessful();
+          db.beginTransaction();
+          try {
+            storageIdDatabase.delete(unknownDeletes);
+            db.setTransactionSuccessful();
+          } finally {
+            db.endTransaction();
+          }
         } finally {
-          db.endTransaction();
           ApplicationDependencies.getDatabaseObserver().notifyConversationListListeners();
           stopwatch.split("remote-merge-transaction");
         }
@@ -384,7 +405,7 @@ public class StorageSyncJob extends BaseJob {
 
       db.beginTransaction();
       try {
-        processKnownRecords(context, records);
+        new RecordProcessors(context).process(records);
         SignalDatabase.unknownStorageIds().getAllWithTypes(knownTypes);
         db.setTransactionSuccessful();
       } finally {
@@ -406,17 +427,6 @@ public class StorageSyncJob extends BaseJob {
     return needsMultiDeviceSync;
   }
 
-  private static void processKnownRecords(@NonNull Context context, @NonNull StorageRecordCollection records) throws IOException {
-    new ContactRecordProcessor().process(records.contacts, StorageSyncHelper.KEY_GENERATOR);
-    new GroupV1RecordProcessor(context).process(records.gv1, StorageSyncHelper.KEY_GENERATOR);
-    new GroupV2RecordProcessor(context).process(records.gv2, StorageSyncHelper.KEY_GENERATOR);
-    new AccountRecordProcessor(context, freshSelf()).process(records.account, StorageSyncHelper.KEY_GENERATOR);
-
-    if (getKnownTypes().contains(ManifestRecord.Identifier.Type.STORY_DISTRIBUTION_LIST_VALUE)) {
-      new StoryDistributionListRecordProcessor().process(records.storyDistributionLists, StorageSyncHelper.KEY_GENERATOR);
-    }
-  }
-
   private static @NonNull List<StorageId> getAllLocalStorageIds(@NonNull Recipient self) {
     return Util.concatenatedList(SignalDatabase.recipients().getContactStorageSyncIds(),
                                  Collections.singletonList(StorageId.forAccount(self.getStorageServiceId())),
@@ -522,6 +532,37 @@ public class StorageSyncJob extends BaseJob {
     }
   }
 
+  /**
+   * The record processors for a single merge. Kept around while the records are merged over several
+   * chunks, so that records in different chunks are still checked for duplicates of each other.
+   */
+  private static final class RecordProcessors {
+    private final Context                              context;
+    private final ContactRecordProcessor               contacts;
+    private final GroupV1RecordProcessor               gv1;
+    private final GroupV2RecordProcessor               gv2;
+    private final StoryDistributionListRecordProcessor storyDistributionLists;
+
+    RecordProcessors(@NonNull Context context) {
+      this.context                = context;
+      this.contacts               = new ContactRecordProcessor();
+      this.gv1                    = new GroupV1RecordProcessor(context);
+      this.gv2                    = new GroupV2RecordProcessor(context);
+      this.storyDistributionLists = new StoryDistributionListRecordProcessor();
+    }
+
+    void process(@NonNull StorageRecordCollection records) throws IOException {
+      contacts.process(records.contacts, StorageSyncHelper.KEY_GENERATOR);
+      gv1.process(records.gv1, StorageSyncHelper.KEY_GENERATOR);
+      gv2.process(records.gv2, StorageSyncHelper.KEY_GENERATOR);
+      new AccountRecordProcessor(context, freshSelf()).process(records.account, StorageSyncHelper.KEY_GENERATOR);
+
+      if (getKnownTypes().contains(ManifestRecord.Identifier.Type.STORY_DISTRIBUTION_LIST_VALUE)) {
+        storyDistributionLists.process(records.storyDistributionLists, StorageSyncHelper.KEY_GENERATOR);
+      }
+    }
+  }
+
   private static final class MissingGv2MasterKeyError extends Error {}
 
   private static final class MissingRecipientModelError extends Error {
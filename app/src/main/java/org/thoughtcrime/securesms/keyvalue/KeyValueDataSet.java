@@ -7,8 +7,21 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class KeyValueDataSet implements KeyValueReader {
-  private final Map<String, Object> values = new HashMap<>();
-  private final Map<String, Class>  types  = new HashMap<>();
+  private final Map<String, Object> values;
+  private final Map<String, Class>  types;
+
+  public KeyValueDataSet() {
+    this.values = new HashMap<>();
+    this.types  = new HashMap<>();
+  }
+
+  /**
+   * Creates a copy of the provided data set.
+   */
+  KeyValueDataSet(@NonNull KeyValueDataSet other) {
+    this.values = new HashMap<>(other.values);
+    this.types  = new HashMap<>(other.types);
+  }
 
   public void putBlob(@NonNull String key, byte[] value) {
     values.put(key, value);
@@ -22,6 +22,9 @@ import java.util.concurrent.ExecutorService;
  *
  * Implemented as a write-through cache that is safe to read and write to on the main thread.
  *
+ * The cache is an immutable snapshot published through a volatile field. Reads never lock, and
+ * writes are serialized, copy the current snapshot with the changes applied, and then publish it.
+ *
  * Writes are enqueued on a separate executor, but writes are finished up in
  * {@link SignalUncaughtExceptionHandler}, meaning all write should finish barring a native crash
  * or the system killing us unexpectedly (i.e. a force-stop).
@@ -33,7 +36,7 @@ public final class KeyValueStore implements KeyValueReader {
   private final ExecutorService           executor;
   private final KeyValuePersistentStorage storage;
 
-  private KeyValueDataSet dataSet;
+  private volatile KeyValueDataSet dataSet;
 
   public KeyValueStore(@NonNull KeyValuePersistentStorage storage) {
     this.executor = SignalExecutors.newCachedSingleThreadExecutor("signal-KeyValueStore", ThreadUtil.PRIORITY_BACKGROUND_THREAD);
@@ -42,51 +45,44 @@ public final class KeyValueStore implements KeyValueReader {
 
   @AnyThread
   @Override
-  public synchronized byte[] getBlob(@NonNull String key, byte[] defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBlob(key, defaultValue);
+  public byte[] getBlob(@NonNull String key, byte[] defaultValue) {
+    return getDataSet().getBlob(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean getBoolean(@NonNull String key, boolean defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBoolean(key, defaultValue);
+  public boolean getBoolean(@NonNull String key, boolean defaultValue) {
+    return getDataSet().getBoolean(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized float getFloat(@NonNull String key, float defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getFloat(key, defaultValue);
+  public float getFloat(@NonNull String key, float defaultValue) {
+    return getDataSet().getFloat(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized int getInteger(@NonNull String key, int defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getInteger(key, defaultValue);
+  public int getInteger(@NonNull String key, int defaultValue) {
+    return getDataSet().getInteger(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized long getLong(@NonNull String key, long defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getLong(key, defaultValue);
+  public long getLong(@NonNull String key, long defaultValue) {
+    return getDataSet().getLong(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized String getString(@NonNull String key, String defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getString(key, defaultValue);
+  public String getString(@NonNull String key, String defaultValue) {
+    return getDataSet().getString(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean containsKey(@NonNull String key) {
-    initializeIfNecessary();
-    return dataSet.containsKey(key);
+  public boolean containsKey(@NonNull String key) {
+    return getDataSet().containsKey(key);
   }
 
   /**
@@ -100,17 +96,12 @@ public final class KeyValueStore implements KeyValueReader {
 
   /**
    * @return A reader that lets you read from an immutable snapshot of the store, ensuring that data
-   *         is consistent between reads. If you're only reading a single value, it is more
-   *         efficient to use the various get* methods instead.
+   *         is consistent between reads. The snapshot is shared rather than copied, so this is as
+   *         cheap as reading a single value.
    */
   @AnyThread
-  synchronized @NonNull KeyValueReader beginRead() {
-    initializeIfNecessary();
-
-    KeyValueDataSet copy = new KeyValueDataSet();
-    copy.putAll(dataSet);
-
-    return copy;
+  @NonNull KeyValueReader beginRead() {
+    return getDataSet();
   }
 
   /**
@@ -133,19 +124,34 @@ public final class KeyValueStore implements KeyValueReader {
    * Forces the store to re-fetch all of it's data from the database.
    */
   synchronized void resetCache() {
-    dataSet = null;
-    initializeIfNecessary();
+    dataSet = storage.getDataSet();
   }
 
   private synchronized void write(@NonNull KeyValueDataSet newDataSet, @NonNull Collection<String> removes) {
-    initializeIfNecessary();
+    KeyValueDataSet updated = new KeyValueDataSet(getDataSet());
+    updated.putAll(newDataSet);
+    updated.removeAll(removes);
 
-    dataSet.putAll(newDataSet);
-    dataSet.removeAll(removes);
+    dataSet = updated;
 
     executor.execute(() -> storage.writeDataSet(newDataSet, removes));
   }
 
+  /**
+   * @return The current snapshot. It must never be modified, as it is shared with any reader.
+   */
+  private @NonNull KeyValueDataSet getDataSet() {
+    KeyValueDataSet current = dataSet;
+    if (current != null) {
+      return current;
+    }
+
+    synchronized (this) {
+      initializeIfNecessary();
+      return dataSet;
+    }
+  }
+
   private void initializeIfNecessary() {
     if (dataSet != null) return;
     this.dataSet = storage.getDataSet();
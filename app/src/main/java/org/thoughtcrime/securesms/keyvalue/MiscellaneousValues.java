@@ -29,6 +29,8 @@ public final class MiscellaneousValues extends SignalStoreValues {
   private static final String LAST_GV2_PROFILE_CHECK_TIME    = "misc.last_gv2_profile_check_time";
   private static final String CDS_TOKEN                      = "misc.cds_token";
   private static final String CDS_BLOCKED_UNTIL              = "misc.cds_blocked_until";
+  private static final String CDS_SEEN_DIGEST                = "misc.cds_seen_digest";
+  private static final String CDS_SEEN_AT                    = "misc.cds_seen_at";
   private static final String LAST_FOREGROUND_TIME           = "misc.last_foreground_time";
   private static final String PNI_INITIALIZED_DEVICES        = "misc.pni_initialized_devices";
   private static final String LINKED_DEVICES_REMINDER        = "misc.linked_devices_reminder";
@@ -39,6 +41,8 @@ public final class MiscellaneousValues extends SignalStoreValues {
   private static final String LAST_CONSISTENCY_CHECK_TIME    = "misc.last_consistency_check_time";
   private static final String SERVER_TIME_OFFSET             = "misc.server_time_offset";
   private static final String LAST_SERVER_TIME_OFFSET_UPDATE = "misc.last_server_time_offset_update";
+  private static final String SYSTEM_CONTACTS_WATERMARK      = "misc.system_contacts_watermark";
+  private static final String LAST_FULL_CONTACT_SYNC_TIME    = "misc.last_full_contact_sync_time";
 
   MiscellaneousValues(@NonNull KeyValueStore store) {
     super(store);
@@ -174,8 +178,35 @@ public final class MiscellaneousValues extends SignalStoreValues {
   }
 
   public void setCdsToken(@Nullable byte[] token) {
+    KeyValueStore.Writer writer = getStore().beginWrite()
+                                            .putBlob(CDS_TOKEN, token);
+
+    if (token == null) {
+      writer.remove(CDS_SEEN_DIGEST)
+            .remove(CDS_SEEN_AT);
+    }
+
+    writer.commit();
+  }
+
+  /**
+   * A digest of the numbers seen by the last full CDS query, used to tell when nothing has changed since.
+   */
+  public @Nullable byte[] getCdsSeenDigest() {
+    return getBlob(CDS_SEEN_DIGEST, null);
+  }
+
+  /**
+   * The time the last full CDS query marked its numbers as seen, or 0 if there hasn't been one since the token was last cleared.
+   */
+  public long getCdsSeenAt() {
+    return getLong(CDS_SEEN_AT, 0);
+  }
+
+  public void setCdsSeen(@NonNull byte[] digest, long seenAt) {
     getStore().beginWrite()
-              .putBlob(CDS_TOKEN, token)
+              .putBlob(CDS_SEEN_DIGEST, digest)
+              .putLong(CDS_SEEN_AT, seenAt)
               .commit();
   }
 
@@ -331,4 +362,30 @@ public final class MiscellaneousValues extends SignalStoreValues {
   public long getLastKnownServerTimeOffsetUpdateTime() {
     return getLong(LAST_SERVER_TIME_OFFSET_UPDATE, 0);
   }
+
+  /**
+   * The system contacts change timestamp that the last successful contact sync was up to date with. Incremental syncs only read contacts that changed after this.
+   */
+  public long getSystemContactsWatermark() {
+    return getLong(SYSTEM_CONTACTS_WATERMARK, 0);
+  }
+
+  public void setSystemContactsWatermark(long watermark) {
+    putLong(SYSTEM_CONTACTS_WATERMARK, watermark);
+  }
+
+  /**
+   * The last time (using our local clock) we synced recipients with every system contact, rather than just the ones that changed.
+   */
+  public long getLastFullContactSyncTime() {
+    return getLong(LAST_FULL_CONTACT_SYNC_TIME, 0);
+  }
+
+  public void setLastFullContactSync(long time, long watermark) {
+    getStore()
+        .beginWrite()
+        .putLong(LAST_FULL_CONTACT_SYNC_TIME, time)
+        .putLong(SYSTEM_CONTACTS_WATERMARK, watermark)
+        .apply();
+  }
 }
@@ -0,0 +1,59 @@
+package org.thoughtcrime.securesms.logsubmit
+
+import android.content.Context
+import org.thoughtcrime.securesms.database.QueryProfiler
+import java.util.Locale
+
+/**
+ * Prints off the slowest database statements seen by the [QueryProfiler], along with any that ran on the main thread or scan a whole table.
+ */
+class LogSectionQueryProfile : LogSection {
+
+  companion object {
+    private const val MAX_SLOWEST = 25
+  }
+
+  override fun getTitle(): String = "QUERY PROFILE"
+
+  override fun getContent(context: Context): CharSequence {
+    if (!QueryProfiler.isEnabled) {
+      return "Disabled"
+    }
+
+    val statements = QueryProfiler.getStatements()
+    val output = StringBuilder()
+
+    output.append("Lock wait: ").append(QueryProfiler.getLockWait().describe()).append("\n\n")
+
+    output.append("Slowest by total time:\n")
+    for (profile in statements.take(MAX_SLOWEST)) {
+      output.append("  ").append(profile.statement).append('\n')
+      output.append("    ").append(profile.describe()).append('\n')
+    }
+
+    val mainThread = statements.filter { it.mainThreadCount > 0 }.sortedByDescending { it.mainThreadCount }
+    output.append("\nRan on the main thread:\n")
+    if (mainThread.isEmpty()) {
+      output.append("  None\n")
+    }
+    for (profile in mainThread) {
+      output.append("  ").append(profile.mainThreadCount).append("x ").append(profile.statement).append('\n')
+    }
+
+    val fullScans = statements.filter { it.fullTableScan }
+    output.append("\nFull table scans:\n")
+    if (fullScans.isEmpty()) {
+      output.append("  None\n")
+    }
+    for (profile in fullScans) {
+      output.append("  ").append(profile.statement).append('\n')
+      output.append("    ").append(profile.plan).append('\n')
+    }
+
+    return output
+  }
+
+  private fun QueryProfiler.StatementProfile.describe(): String {
+    return String.format(Locale.US, "count: %d, total: %.1f ms, p50: %.2f ms, p90: %.2f ms, p99: %.2f ms, max: %.1f ms, rows: %d", count, totalMs, p50Ms, p90Ms, p99Ms, maxMs, rows)
+  }
+}
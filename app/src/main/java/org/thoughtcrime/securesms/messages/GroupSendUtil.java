@@ -317,9 +317,7 @@ public final class GroupSendUtil {
             if (entryId.get() == -1) {
               entryId.set(messageLogDatabase.insertIfPossible(sendOperation.getSentTimestamp(), senderKeyTargets, partialResults, sendOperation.getContentHint(), sendOperation.getRelatedMessageId(), sendOperation.isUrgent()));
             } else {
-              for (SendMessageResult result : partialResults) {
-                entryId.set(messageLogDatabase.addRecipientToExistingEntryIfPossible(entryId.get(), recipients.requireRecipientId(result.getAddress()), sendOperation.getSentTimestamp(), result, sendOperation.getContentHint(), sendOperation.getRelatedMessageId(), sendOperation.isUrgent()));
-              }
+              entryId.set(messageLogDatabase.addRecipientsToExistingEntryIfPossible(entryId.get(), sendOperation.getSentTimestamp(), senderKeyTargets, partialResults, sendOperation.getContentHint(), sendOperation.getRelatedMessageId(), sendOperation.isUrgent()));
             }
           }
         });
@@ -15,6 +15,7 @@ import com.google.protobuf.ByteString;
 import com.mobilecoin.lib.exceptions.SerializationException;
 
 import org.signal.core.util.Hex;
+import org.signal.core.util.collections.LongList;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.signal.libsignal.protocol.SignalProtocolAddress;
@@ -1569,9 +1570,10 @@ public class MessageContentProcessor {
                                         .filter(message -> message != null && message.isMms())
                                         .toList();
 
-    List<Long> toMarkViewed = Stream.of(records)
-                                    .map(MessageRecord::getId)
-                                    .toList();
+    LongList toMarkViewed = new LongList(records.size());
+    for (MessageRecord record : records) {
+      toMarkViewed.add(record.getId());
+    }
 
     List<MediaMmsMessageRecord> toEnqueueDownload = Stream.of(records)
                                                           .filter(MessageRecord::isMms)
@@ -4,6 +4,7 @@ import android.content.Context
 import com.google.protobuf.ByteString
 import com.mobilecoin.lib.exceptions.SerializationException
 import org.signal.core.util.Hex
+import org.signal.core.util.collections.LongList
 import org.signal.core.util.orNull
 import org.signal.libsignal.protocol.util.Pair
 import org.signal.ringrtc.CallException
@@ -930,7 +931,8 @@ object SyncMessageProcessor {
         SignalDatabase.messages.getMessageFor(message.timestamp, author)
       }
 
-    val toMarkViewed = records.map { it.id }
+    val toMarkViewed = LongList(records.size)
+    records.forEach { toMarkViewed.add(it.id) }
 
     val toEnqueueDownload = records
       .map { it as MediaMmsMessageRecord }
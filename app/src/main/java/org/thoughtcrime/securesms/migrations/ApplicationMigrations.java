@@ -136,9 +136,10 @@ public class ApplicationMigrations {
     static final int ATTACHMENT_CLEANUP_3          = 92;
     static final int EMOJI_SEARCH_INDEX_CHECK      = 93;
     static final int IDENTITY_FIX                  = 94;
+    static final int ATTACHMENT_CLEANUP_4          = 95;
   }
 
-  public static final int CURRENT_VERSION = 94;
+  public static final int CURRENT_VERSION = 95;
 
   /**
    * This *must* be called after the {@link JobManager} has been instantiated, but *before* the call
@@ -616,6 +617,10 @@ public class ApplicationMigrations {
       jobs.put(Version.IDENTITY_FIX, new IdentityTableCleanupMigrationJob());
     }
 
+    if (lastSeenVersion < Version.ATTACHMENT_CLEANUP_4) {
+      jobs.put(Version.ATTACHMENT_CLEANUP_4, new AttachmentCleanupMigrationJob());
+    }
+
     return jobs;
   }
 
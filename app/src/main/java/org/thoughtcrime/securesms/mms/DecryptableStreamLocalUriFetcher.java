@@ -8,6 +8,7 @@ import android.net.Uri;
 import com.bumptech.glide.load.data.StreamLocalUriFetcher;
 
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.util.MediaUtil;
 
 import java.io.ByteArrayInputStream;
@@ -21,14 +22,28 @@ class DecryptableStreamLocalUriFetcher extends StreamLocalUriFetcher {
   private static final String TAG = Log.tag(DecryptableStreamLocalUriFetcher.class);
 
   private Context context;
+  private boolean useStoredThumbnail;
 
-  DecryptableStreamLocalUriFetcher(Context context, Uri uri) {
+  DecryptableStreamLocalUriFetcher(Context context, Uri uri, boolean useStoredThumbnail) {
     super(context.getContentResolver(), uri);
-    this.context = context;
+    this.context            = context;
+    this.useStoredThumbnail = useStoredThumbnail;
   }
 
   @Override
   protected InputStream loadResource(Uri uri, ContentResolver contentResolver) throws FileNotFoundException {
+    if (useStoredThumbnail) {
+      try {
+        InputStream thumbnail = SignalDatabase.attachments().getThumbnailStream(PartAuthority.requireAttachmentId(uri));
+
+        if (thumbnail != null) {
+          return thumbnail;
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read the stored thumbnail, loading the attachment instead.", e);
+      }
+    }
+
     if (MediaUtil.hasVideoThumbnail(context, uri)) {
       Bitmap thumbnail = MediaUtil.getVideoThumbnail(context, uri, 1000);
 
@@ -11,7 +11,9 @@ import com.bumptech.glide.load.Options;
 import com.bumptech.glide.load.model.ModelLoader;
 import com.bumptech.glide.load.model.ModelLoaderFactory;
 import com.bumptech.glide.load.model.MultiModelLoaderFactory;
+import com.bumptech.glide.signature.ObjectKey;
 
+import org.thoughtcrime.securesms.jobs.AttachmentThumbnailJob;
 import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri;
 
 import java.io.InputStream;
@@ -25,10 +27,22 @@ public class DecryptableStreamUriLoader implements ModelLoader<DecryptableUri, I
     this.context = context;
   }
 
+  /**
+   * Attachments loaded at or under this size are served from their precomputed thumbnail when there is one, and it's kept under its own cache key so that
+   * it's never handed to a larger load.
+   */
   @Nullable
   @Override
   public LoadData<InputStream> buildLoadData(@NonNull DecryptableUri decryptableUri, int width, int height, @NonNull Options options) {
-    return new LoadData<>(decryptableUri, new DecryptableStreamLocalUriFetcher(context, decryptableUri.uri));
+    boolean fitsThumbnail = width > 0 && width <= AttachmentThumbnailJob.THUMBNAIL_SIZE &&
+                            height > 0 && height <= AttachmentThumbnailJob.THUMBNAIL_SIZE &&
+                            PartAuthority.isAttachmentUri(decryptableUri.uri);
+
+    if (fitsThumbnail) {
+      return new LoadData<>(new ObjectKey("thumbnail:" + decryptableUri.uri), new DecryptableStreamLocalUriFetcher(context, decryptableUri.uri, true));
+    } else {
+      return new LoadData<>(decryptableUri, new DecryptableStreamLocalUriFetcher(context, decryptableUri.uri, false));
+    }
   }
 
   @Override
@@ -2,9 +2,10 @@ package org.thoughtcrime.securesms.notifications.v2
 
 import androidx.annotation.WorkerThread
 import org.signal.core.util.CursorUtil
+import org.signal.core.util.Stopwatch
 import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment
 import org.thoughtcrime.securesms.database.MessageTable
-import org.thoughtcrime.securesms.database.NoSuchMessageException
 import org.thoughtcrime.securesms.database.RecipientTable
 import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord
@@ -14,7 +15,9 @@ import org.thoughtcrime.securesms.database.model.ReactionRecord
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.notifications.profiles.NotificationProfile
 import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.util.isStoryReaction
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * Queries the message databases to determine messages that should be in notifications.
@@ -23,65 +26,89 @@ object NotificationStateProvider {
 
   private val TAG = Log.tag(NotificationStateProvider::class.java)
 
+  /**
+   * Attachments of the messages in the most recent notification state, by message id. Attachments rarely change once a
+   * message is unread, so they are only fetched for messages that are new since the last update. The whole cache is
+   * dropped whenever any attachment changes, and entries for messages no longer in the state are pruned on each update.
+   *
+   * Attachments are fetched outside of the lock, so every invalidation bumps [attachmentCacheGeneration], and fetched attachments are only written back
+   * if nothing was invalidated while they were being read.
+   */
+  private val attachmentCache: MutableMap<Long, List<DatabaseAttachment>> = HashMap()
+  private var attachmentCacheGeneration = 0L
+  private val observersRegistered = AtomicBoolean(false)
+
   @WorkerThread
   fun constructNotificationState(stickyThreads: Map<ConversationId, DefaultMessageNotifier.StickyThread>, notificationProfile: NotificationProfile?): NotificationState {
-    val messages: MutableList<NotificationMessage> = mutableListOf()
+    val stopwatch = Stopwatch("notification-state")
+    var queries = 1
 
-    SignalDatabase.messages.getMessagesForNotificationState(stickyThreads.values).use { unreadMessages ->
-      if (unreadMessages.count == 0) {
-        return NotificationState.EMPTY
-      }
+    registerObserversIfNecessary()
 
-      MessageTable.mmsReaderFor(unreadMessages).use { reader ->
-        var record: MessageRecord? = reader.getNext()
-        while (record != null) {
-          val threadRecipient: Recipient? = SignalDatabase.threads.getRecipientForThreadId(record.threadId)
-          if (threadRecipient != null) {
-            val hasUnreadReactions = CursorUtil.requireInt(unreadMessages, MessageTable.REACTIONS_UNREAD) == 1
-            val conversationId = ConversationId.fromMessageRecord(record)
-
-            val parentRecord = conversationId.groupStoryId?.let {
-              try {
-                SignalDatabase.messages.getMessageRecord(it)
-              } catch (e: NoSuchMessageException) {
-                null
-              }
-            }
+    val unreadMessages: List<UnreadMessage> = readUnreadMessages(stickyThreads)
+    stopwatch.split("messages")
 
-            val hasSelfRepliedToGroupStory = conversationId.groupStoryId?.let {
-              SignalDatabase.messages.hasGroupReplyOrReactionInStory(it)
-            }
+    if (unreadMessages.isEmpty()) {
+      invalidateAttachments { it.clear() }
+      return NotificationState.EMPTY
+    }
 
-            if (record is MediaMmsMessageRecord) {
-              val attachments = SignalDatabase.attachments.getAttachmentsForMessage(record.id)
-              if (attachments.isNotEmpty()) {
-                record = record.withAttachments(ApplicationDependencies.getApplication(), attachments)
-              }
-            }
+    val threadRecipientIds: Map<Long, RecipientId> = SignalDatabase.threads.getRecipientIdsByThreadId(unreadMessages.map { it.record.threadId }.toSet())
+    queries++
 
-            messages += NotificationMessage(
-              messageRecord = record,
-              reactions = if (hasUnreadReactions) SignalDatabase.reactions.getReactions(MessageId(record.id)) else emptyList(),
-              threadRecipient = threadRecipient,
-              thread = conversationId,
-              stickyThread = stickyThreads.containsKey(conversationId),
-              isUnreadMessage = CursorUtil.requireInt(unreadMessages, MessageTable.READ) == 0,
-              hasUnreadReactions = hasUnreadReactions,
-              lastReactionRead = CursorUtil.requireLong(unreadMessages, MessageTable.REACTIONS_LAST_SEEN),
-              isParentStorySentBySelf = parentRecord?.isOutgoing ?: false,
-              hasSelfRepliedToStory = hasSelfRepliedToGroupStory ?: false
-            )
-          }
-          try {
-            record = reader.getNext()
-          } catch (e: IllegalStateException) {
-            // XXX Weird SQLCipher bug that's being investigated
-            record = null
-            Log.w(TAG, "Failed to read next record!", e)
-          }
+    val groupStoryIds: Set<Long> = unreadMessages.mapNotNull { it.conversationId.groupStoryId }.toSet()
+    val parentRecords: Map<Long, MessageRecord> = if (groupStoryIds.isNotEmpty()) {
+      queries++
+      SignalDatabase.messages.getMessages(groupStoryIds).use { reader -> reader.associateBy { it.id } }
+    } else {
+      emptyMap()
+    }
+    val hasSelfRepliedToGroupStory: Map<Long, Boolean> = groupStoryIds.associateWith {
+      queries++
+      SignalDatabase.messages.hasGroupReplyOrReactionInStory(it)
+    }
+
+    val attachments: Map<Long, List<DatabaseAttachment>> = getAttachments(unreadMessages.filter { it.record is MediaMmsMessageRecord }.map { it.record.id }) {
+      queries++
+    }
+
+    val reactionMessageIds: List<MessageId> = unreadMessages.filter { it.hasUnreadReactions }.map { MessageId(it.record.id) }
+    val reactions: Map<MessageId, List<ReactionRecord>> = if (reactionMessageIds.isNotEmpty()) {
+      queries++
+      SignalDatabase.reactions.getReactionsForMessages(reactionMessageIds)
+    } else {
+      emptyMap()
+    }
+    stopwatch.split("related")
+
+    val messages: MutableList<NotificationMessage> = mutableListOf()
+
+    for (unread in unreadMessages) {
+      val threadRecipient: Recipient = threadRecipientIds[unread.record.threadId]?.let { Recipient.resolved(it) } ?: continue
+      val conversationId = unread.conversationId
+
+      var record: MessageRecord = unread.record
+      if (record is MediaMmsMessageRecord) {
+        val messageAttachments = attachments[record.id]
+        if (!messageAttachments.isNullOrEmpty()) {
+          record = record.withAttachments(ApplicationDependencies.getApplication(), messageAttachments)
         }
       }
+
+      messages += NotificationMessage(
+        messageRecord = record,
+        reactions = if (unread.hasUnreadReactions) reactions[MessageId(record.id)] ?: emptyList() else emptyList(),
+        threadRecipient = threadRecipient,
+        thread = conversationId,
+        stickyThread = stickyThreads.containsKey(conversationId),
+        isUnreadMessage = unread.isUnreadMessage,
+        hasUnreadReactions = unread.hasUnreadReactions,
+        lastReactionRead = unread.lastReactionRead,
+        isParentStorySentBySelf = conversationId.groupStoryId?.let { parentRecords[it]?.isOutgoing } ?: false,
+        hasSelfRepliedToStory = conversationId.groupStoryId?.let { hasSelfRepliedToGroupStory[it] } ?: false
+      )
     }
+    stopwatch.split("build")
 
     val conversations: MutableList<NotificationConversation> = mutableListOf()
     val muteFilteredMessages: MutableList<NotificationState.FilteredMessage> = mutableListOf()
@@ -122,9 +149,105 @@ object NotificationStateProvider {
         }
       }
 
+    stopwatch.split("group")
+    stopwatch.stop(TAG)
+    Log.d(TAG, "Constructed state for ${unreadMessages.size} messages with $queries queries.")
+
     return NotificationState(conversations, muteFilteredMessages, profileFilteredMessages)
   }
 
+  private fun readUnreadMessages(stickyThreads: Map<ConversationId, DefaultMessageNotifier.StickyThread>): List<UnreadMessage> {
+    val unreadMessages: MutableList<UnreadMessage> = mutableListOf()
+
+    SignalDatabase.messages.getMessagesForNotificationState(stickyThreads.values).use { cursor ->
+      if (cursor.count == 0) {
+        return emptyList()
+      }
+
+      MessageTable.mmsReaderFor(cursor).use { reader ->
+        var record: MessageRecord? = reader.getNext()
+        while (record != null) {
+          unreadMessages += UnreadMessage(
+            record = record,
+            conversationId = ConversationId.fromMessageRecord(record),
+            isUnreadMessage = CursorUtil.requireInt(cursor, MessageTable.READ) == 0,
+            hasUnreadReactions = CursorUtil.requireInt(cursor, MessageTable.REACTIONS_UNREAD) == 1,
+            lastReactionRead = CursorUtil.requireLong(cursor, MessageTable.REACTIONS_LAST_SEEN)
+          )
+
+          try {
+            record = reader.getNext()
+          } catch (e: IllegalStateException) {
+            // XXX Weird SQLCipher bug that's being investigated
+            record = null
+            Log.w(TAG, "Failed to read next record!", e)
+          }
+        }
+      }
+    }
+
+    return unreadMessages
+  }
+
+  /**
+   * Returns the attachments for the provided messages, only querying for those not already cached. Messages that are
+   * not part of this request are dropped from the cache, as they are no longer in the notification state.
+   */
+  private fun getAttachments(messageIds: List<Long>, onQuery: () -> Unit): Map<Long, List<DatabaseAttachment>> {
+    val (generation, attachments, missing) = synchronized(attachmentCache) {
+      attachmentCache.keys.retainAll(messageIds.toSet())
+      Triple(attachmentCacheGeneration, HashMap(attachmentCache), messageIds.filterNot { attachmentCache.containsKey(it) })
+    }
+
+    if (missing.isNotEmpty()) {
+      onQuery()
+      val fetched: Map<Long, List<DatabaseAttachment>> = SignalDatabase.attachments.getAttachmentsForMessages(missing)
+
+      for (id in missing) {
+        attachments[id] = fetched[id] ?: emptyList()
+      }
+
+      synchronized(attachmentCache) {
+        if (attachmentCacheGeneration == generation) {
+          for (id in missing) {
+            attachmentCache[id] = attachments[id]!!
+          }
+        }
+      }
+    }
+
+    return attachments
+  }
+
+  private fun invalidateAttachments(block: (MutableMap<Long, List<DatabaseAttachment>>) -> Unit) {
+    synchronized(attachmentCache) {
+      attachmentCacheGeneration++
+      block(attachmentCache)
+    }
+  }
+
+  private fun registerObserversIfNecessary() {
+    if (!observersRegistered.compareAndSet(false, true)) {
+      return
+    }
+
+    val observer = ApplicationDependencies.getDatabaseObserver()
+    observer.registerAttachmentObserver {
+      invalidateAttachments { it.clear() }
+    }
+    observer.registerMessageUpdateObserver { messageId ->
+      invalidateAttachments { it.remove(messageId.id) }
+    }
+  }
+
+  private data class UnreadMessage(
+    val record: MessageRecord,
+    val conversationId: ConversationId,
+    val isUnreadMessage: Boolean,
+    val hasUnreadReactions: Boolean,
+    val lastReactionRead: Long
+  )
+
   private data class NotificationMessage(
     val messageRecord: MessageRecord,
     val reactions: List<ReactionRecord>,
@@ -0,0 +1,92 @@
+package org.thoughtcrime.securesms.service
+
+import android.app.Application
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import androidx.annotation.AnyThread
+import androidx.annotation.WorkerThread
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.MessageSendLogTables
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.util.FeatureFlags
+
+/**
+ * Manages trimming the [MessageSendLogTables] in the background. Rather than trimming as each entry expires, waits for the oldest bucket of
+ * [MessageSendLogTables.BUCKET_DURATION] to expire completely and trims all of it at once.
+ */
+class TrimMessageSendLogManager(
+  application: Application
+) : TimedEventManager<TrimMessageSendLogManager.Event>(application, "TrimMessageSendLogManager") {
+
+  companion object {
+    private val TAG = Log.tag(TrimMessageSendLogManager::class.java)
+  }
+
+  /** True when the log was empty the last time we checked, meaning nothing is scheduled. */
+  @Volatile
+  private var idle = true
+
+  init {
+    scheduleIfNecessary()
+  }
+
+  /**
+   * Cheap enough to call after every insert. Only schedules a trim if nothing is currently scheduled, since otherwise the new entry will be in the
+   * same bucket as, or a later bucket than, the one we're already waiting on.
+   */
+  @AnyThread
+  fun onEntryInserted() {
+    if (idle) {
+      idle = false
+      scheduleIfNecessary()
+    }
+  }
+
+  @WorkerThread
+  override fun getNextClosestEvent(): Event? {
+    idle = true
+
+    val trimTime = SignalDatabase.messageLog.getNextTrimTime(FeatureFlags.retryRespondMaxAge())
+    if (trimTime < 0) {
+      Log.i(TAG, "No entries in the log.")
+      return null
+    }
+
+    idle = false
+
+    val delay = (trimTime - System.currentTimeMillis()).coerceAtLeast(0)
+    Log.i(TAG, "The oldest bucket in the log needs to be trimmed in $delay ms.")
+
+    return Event(delay)
+  }
+
+  @WorkerThread
+  override fun executeEvent(event: Event) {
+    val deleted = SignalDatabase.messageLog.trimOldMessages(System.currentTimeMillis(), FeatureFlags.retryRespondMaxAge())
+    Log.i(TAG, "Trimmed $deleted entries from the log.")
+  }
+
+  @WorkerThread
+  override fun getDelayForEvent(event: Event): Long = event.delay
+
+  @WorkerThread
+  override fun scheduleAlarm(application: Application, event: Event, delay: Long) {
+    setAlarm(application, delay, TrimMessageSendLogAlarm::class.java)
+  }
+
+  data class Event(val delay: Long)
+
+  class TrimMessageSendLogAlarm : BroadcastReceiver() {
+
+    companion object {
+      private val TAG = Log.tag(TrimMessageSendLogAlarm::class.java)
+    }
+
+    override fun onReceive(context: Context?, intent: Intent?) {
+      Log.d(TAG, "onReceive()")
+      ApplicationDependencies.getTrimMessageSendLogManager().scheduleIfNecessary()
+    }
+  }
+}
@@ -25,6 +25,8 @@ abstract class DefaultStorageRecordProcessor<E extends SignalRecord> implements
 
   private static final String TAG = Log.tag(DefaultStorageRecordProcessor.class);
 
+  private final Set<E> matchedRecords = new TreeSet<>(this);
+
   /**
    * One type of invalid remote data this handles is two records mapping to the same local data. We
    * have to trim this bad data out, because if we don't, we'll upload an ID set that only has one
@@ -38,11 +40,13 @@ abstract class DefaultStorageRecordProcessor<E extends SignalRecord> implements
    * comparator for checking equality. Then we delegate to the subclass to tell us if two items are
    * the same based on their actual data (i.e. two contacts having the same UUID, or two groups
    * having the same MasterKey).
+   *
+   * The matched records are remembered for the lifetime of the processor, so remote records that
+   * are processed over several calls (i.e. in chunks) are still checked against each other.
    */
   @Override
   public void process(@NonNull Collection<E> remoteRecords, @NonNull StorageKeyGenerator keyGenerator) throws IOException {
-    Set<E> matchedRecords = new TreeSet<>(this);
-    int    i              = 0;
+    int i = 0;
 
     for (E remote : remoteRecords) {
       if (isInvalid(remote)) {
@@ -0,0 +1,131 @@
+package org.thoughtcrime.securesms.storage;
+
+import androidx.annotation.NonNull;
+
+import org.signal.libsignal.protocol.InvalidKeyException;
+import org.whispersystems.signalservice.api.storage.SignalStorageRecord;
+import org.whispersystems.signalservice.api.storage.StorageId;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Reads remote storage records in bounded chunks and hands them to a consumer one chunk at a time.
+ * <p>
+ * While the consumer is merging one chunk, up to {@code maxChunksInFlight} of the following chunks
+ * are being fetched and decrypted concurrently on the executor, so network, decryption and database
+ * work overlap, and at most {@code chunkSize * (maxChunksInFlight + 1)} records are held in memory
+ * regardless of how many ids are read.
+ * <p>
+ * Chunks are always delivered to the consumer in order and on the calling thread. If a chunk can't
+ * be read, or the consumer throws, no further chunks are delivered and the error is rethrown.
+ */
+public final class StorageRecordChunkReader {
+
+  private final Reader   reader;
+  private final Executor executor;
+  private final int      chunkSize;
+  private final int      maxChunksInFlight;
+
+  public StorageRecordChunkReader(@NonNull Reader reader, @NonNull Executor executor, int chunkSize, int maxChunksInFlight) {
+    if (chunkSize < 1 || maxChunksInFlight < 1) {
+      throw new IllegalArgumentException();
+    }
+
+    this.reader            = reader;
+    this.executor          = executor;
+    this.chunkSize         = chunkSize;
+    this.maxChunksInFlight = maxChunksInFlight;
+  }
+
+  /**
+   * @return The number of records read, which may be less than the number of ids if some records
+   *         could not be found remotely.
+   */
+  public int readAll(@NonNull List<StorageId> ids, @NonNull ChunkConsumer consumer) throws IOException, InvalidKeyException {
+    Deque<FutureTask<List<SignalStorageRecord>>> inFlight   = new ArrayDeque<>(maxChunksInFlight);
+    int                                          chunkCount = (ids.size() + chunkSize - 1) / chunkSize;
+    int                                          nextChunk  = 0;
+    int                                          readCount  = 0;
+
+    try {
+      while (nextChunk < chunkCount && inFlight.size() < maxChunksInFlight) {
+        inFlight.add(submit(getChunk(ids, nextChunk++)));
+      }
+
+      for (int chunk = 0; chunk < chunkCount; chunk++) {
+        FutureTask<List<SignalStorageRecord>> head = inFlight.remove();
+
+        // Reads it here if the executor hasn't got to it yet, a no-op otherwise
+        head.run();
+
+        List<SignalStorageRecord> records = await(head);
+
+        if (nextChunk < chunkCount) {
+          inFlight.add(submit(getChunk(ids, nextChunk++)));
+        }
+
+        readCount += records.size();
+        consumer.accept(records, chunk, chunkCount);
+      }
+    } finally {
+      for (FutureTask<List<SignalStorageRecord>> task : inFlight) {
+        task.cancel(false);
+      }
+    }
+
+    return readCount;
+  }
+
+  private @NonNull List<StorageId> getChunk(@NonNull List<StorageId> ids, int chunk) {
+    return new ArrayList<>(ids.subList(chunk * chunkSize, Math.min((chunk + 1) * chunkSize, ids.size())));
+  }
+
+  private @NonNull FutureTask<List<SignalStorageRecord>> submit(@NonNull List<StorageId> chunk) {
+    FutureTask<List<SignalStorageRecord>> task = new FutureTask<>(() -> reader.read(chunk));
+
+    executor.execute(task);
+
+    return task;
+  }
+
+  private static @NonNull List<SignalStorageRecord> await(@NonNull FutureTask<List<SignalStorageRecord>> task) throws IOException, InvalidKeyException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new AssertionError(cause);
+      }
+    }
+  }
+
+  /**
+   * Fetches and decrypts the records for a single chunk of ids. Called concurrently.
+   */
+  public interface Reader {
+    @NonNull List<SignalStorageRecord> read(@NonNull List<StorageId> ids) throws IOException, InvalidKeyException;
+  }
+
+  public interface ChunkConsumer {
+    void accept(@NonNull List<SignalStorageRecord> records, int chunk, int chunkCount) throws IOException;
+  }
+}
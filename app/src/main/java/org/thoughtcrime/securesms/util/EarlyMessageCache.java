@@ -1,82 +1,503 @@
 package org.thoughtcrime.securesms.util;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
+import org.signal.core.util.ByteUnit;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.model.ServiceMessageId;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 /**
  * Sometimes a message that is referencing another message can arrive out of order. In these cases,
- * we want to temporarily hold on (i.e. keep a memory cache) to these messages and apply them after
- * we receive the referenced message.
+ * we want to temporarily hold on to these messages and apply them after we receive the referenced message.
+ *
+ * Messages are held in memory up to a byte budget. Past that, the least-recently-used messages spill
+ * over to a {@link Store} on disk, so a large backlog of early messages (e.g. receipts while catching up)
+ * isn't dropped. The disk store has its own, larger budget, and every message expires after a TTL.
+ *
+ * Callers are often in the middle of a database transaction, so this class never takes the database lock while holding its own monitor. Anything that
+ * touches the {@link Store} enters the store's transaction first and only then synchronizes on the cache. Spills and expirations are written on a
+ * dedicated executor in their own transactions, so they neither block the caller nor get rolled back along with it.
  */
 public final class EarlyMessageCache {
 
-  private final LRUCache<ServiceMessageId, List<SignalServiceContent>>   cache   = new LRUCache<>(100);
-  private final LRUCache<ServiceMessageId, List<EarlyMessageCacheEntry>> cacheV2 = new LRUCache<>(100);
+  private static final String TAG = Log.tag(EarlyMessageCache.class);
+
+  private static final long DEFAULT_MEMORY_BUDGET = ByteUnit.MEGABYTES.toBytes(2);
+  private static final long DEFAULT_DISK_BUDGET   = ByteUnit.MEGABYTES.toBytes(20);
+  private static final long DEFAULT_TTL           = TimeUnit.DAYS.toMillis(1);
+
+  /** Rough per-message overhead of the metadata we hold alongside the serialized protos. */
+  private static final int ITEM_OVERHEAD = 64;
+
+  private final Store        disk;
+  private final long         memoryBudget;
+  private final long         diskBudget;
+  private final long         ttl;
+  private final LongSupplier clock;
+  private final Executor     writeExecutor;
+
+  private final LinkedHashMap<ServiceMessageId, List<Item>> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Spilled out of memory, waiting for the write executor to put them on disk. */
+  private final Map<ServiceMessageId, List<Item>> pendingWrites = new LinkedHashMap<>();
+
+  /** Being written to disk right now. Only non-null while the write executor holds the store's transaction. */
+  private Map<ServiceMessageId, List<Item>> writing;
+
+  private long                  memoryBytes;
+  private Set<ServiceMessageId> diskIds;
+
+  private long hits;
+  private long misses;
+  private long spills;
+  private long evictions;
+  private long expirations;
+
+  public EarlyMessageCache(@NonNull Store disk) {
+    this(disk,
+         DEFAULT_MEMORY_BUDGET,
+         DEFAULT_DISK_BUDGET,
+         DEFAULT_TTL,
+         System::currentTimeMillis,
+         SignalExecutors.newCachedSingleThreadExecutor("signal-early-message-cache", ThreadUtil.PRIORITY_BACKGROUND_THREAD));
+  }
+
+  @VisibleForTesting
+  public EarlyMessageCache(@NonNull Store disk, long memoryBudget, long diskBudget, long ttl, @NonNull LongSupplier clock, @NonNull Executor writeExecutor) {
+    this.disk          = disk;
+    this.memoryBudget  = memoryBudget;
+    this.diskBudget    = diskBudget;
+    this.ttl           = ttl;
+    this.clock         = clock;
+    this.writeExecutor = writeExecutor;
+  }
 
   /**
    * @param targetSender        The sender of the message this message depends on.
    * @param targetSentTimestamp The sent timestamp of the message this message depends on.
    */
-  public synchronized void store(@NonNull RecipientId targetSender, long targetSentTimestamp, @NonNull SignalServiceContent content) {
-    ServiceMessageId           messageId   = new ServiceMessageId(targetSender, targetSentTimestamp);
-    List<SignalServiceContent> contentList = cache.get(messageId);
+  public void store(@NonNull RecipientId targetSender, long targetSentTimestamp, @NonNull SignalServiceContent content) {
+    store(new ServiceMessageId(targetSender, targetSentTimestamp), Item.forContent(content, clock.getAsLong() + ttl));
+  }
 
-    if (contentList == null) {
-      contentList = new LinkedList<>();
+  public void store(@NonNull RecipientId targetSender,
+                    long targetSentTimestamp,
+                    @NonNull EarlyMessageCacheEntry cacheEntry)
+  {
+    store(new ServiceMessageId(targetSender, targetSentTimestamp), Item.forEntry(cacheEntry, clock.getAsLong() + ttl));
+  }
+
+  /**
+   * Returns and removes any content that is dependent on the provided message id.
+   *
+   * @param sender        The sender of the message in question.
+   * @param sentTimestamp The sent timestamp of the message in question.
+   */
+  public Optional<List<SignalServiceContent>> retrieve(@NonNull RecipientId sender, long sentTimestamp) {
+    List<SignalServiceContent> contents = new ArrayList<>();
+
+    for (Item item : remove(new ServiceMessageId(sender, sentTimestamp), true)) {
+      contents.add(item.getContent());
     }
 
-    contentList.add(content);
+    return contents.isEmpty() ? Optional.empty() : Optional.of(contents);
+  }
+
+  public Optional<List<EarlyMessageCacheEntry>> retrieveV2(@NonNull RecipientId sender, long sentTimestamp) {
+    List<EarlyMessageCacheEntry> entries = new ArrayList<>();
+
+    for (Item item : remove(new ServiceMessageId(sender, sentTimestamp), false)) {
+      entries.add(item.getEntry());
+    }
 
-    cache.put(messageId, contentList);
+    return entries.isEmpty() ? Optional.empty() : Optional.of(entries);
   }
 
-  public synchronized void store(@NonNull RecipientId targetSender,
-                                 long targetSentTimestamp,
-                                 @NonNull EarlyMessageCacheEntry cacheEntry)
-  {
-    ServiceMessageId             messageId    = new ServiceMessageId(targetSender, targetSentTimestamp);
-    List<EarlyMessageCacheEntry> envelopeList = cacheV2.get(messageId);
+  /**
+   * Returns a collection of all of the {@link ServiceMessageId}s referenced in the cache at the moment of inquiry, after dropping anything that's expired.
+   * Caution: There is no guarantee that this list will be relevant for any amount of time afterwards.
+   */
+  public @NonNull Collection<ServiceMessageId> getAllReferencedIds() {
+    writeExecutor.execute(this::deleteExpiredFromDisk);
+
+    return withDisk(() -> {
+      long now = clock.getAsLong();
+
+      Iterator<List<Item>> iterator = memory.values().iterator();
+      while (iterator.hasNext()) {
+        List<Item> items = iterator.next();
+        Iterator<Item> itemIterator = items.iterator();
+
+        while (itemIterator.hasNext()) {
+          Item item = itemIterator.next();
+          if (item.getExpiresAt() <= now) {
+            itemIterator.remove();
+            memoryBytes -= item.getSize();
+            expirations++;
+          }
+        }
+
+        if (items.isEmpty()) {
+          iterator.remove();
+        }
+      }
 
-    if (envelopeList == null) {
-      envelopeList = new LinkedList<>();
+      Set<ServiceMessageId> allIds = new HashSet<>(memory.keySet());
+      allIds.addAll(pendingWrites.keySet());
+      allIds.addAll(getDiskIds());
+      return allIds;
+    });
+  }
+
+  public @NonNull Metrics getMetrics() {
+    return withDisk(() -> {
+      int memoryCount = 0;
+      for (List<Item> items : memory.values()) {
+        memoryCount += items.size();
+      }
+
+      return new Metrics(memoryCount, memoryBytes, getDiskIds().size(), hits, misses, spills, evictions, expirations);
+    });
+  }
+
+  /**
+   * Forgets what we know about the contents of the {@link Store}, for when it's been changed out from under us.
+   */
+  public synchronized void invalidateStore() {
+    diskIds = null;
+  }
+
+  private void store(@NonNull ServiceMessageId id, @NonNull Item item) {
+    boolean spilled = false;
+
+    synchronized (this) {
+      List<Item> items = memory.get(id);
+
+      if (items == null) {
+        items = new ArrayList<>(1);
+        memory.put(id, items);
+      }
+
+      items.add(item);
+      memoryBytes += item.getSize();
+
+      if (memoryBytes > memoryBudget) {
+        spill();
+        spilled = true;
+      }
     }
 
-    envelopeList.add(cacheEntry);
+    if (spilled) {
+      writeExecutor.execute(this::writePending);
+    }
+  }
+
+  /**
+   * Moves the least-recently-used messages into {@link #pendingWrites} until we're a quarter under the memory budget, so that spills happen in batches
+   * rather than on every store. They're written to disk later by {@link #writePending()}.
+   */
+  private synchronized void spill() {
+    long target = memoryBudget - memoryBudget / 4;
 
-    cacheV2.put(messageId, envelopeList);
+    Iterator<Map.Entry<ServiceMessageId, List<Item>>> iterator = memory.entrySet().iterator();
+
+    while (memoryBytes > target && iterator.hasNext()) {
+      Map.Entry<ServiceMessageId, List<Item>> eldest  = iterator.next();
+      List<Item>                              pending = pendingWrites.get(eldest.getKey());
+
+      if (pending == null) {
+        pending = new ArrayList<>(eldest.getValue().size());
+        pendingWrites.put(eldest.getKey(), pending);
+      }
+
+      for (Item item : eldest.getValue()) {
+        pending.add(item);
+        memoryBytes -= item.getSize();
+        spills++;
+      }
+
+      iterator.remove();
+    }
   }
 
   /**
-   * Returns and removes any content that is dependent on the provided message id.
-   *
-   * @param sender        The sender of the message in question.
-   * @param sentTimestamp The sent timestamp of the message in question.
+   * Runs on the write executor. Writes everything that's been spilled, then trims the disk back down to its own budget. The store's transaction is held
+   * throughout, so anyone who needs the disk waits for the write to finish instead of missing the messages in flight.
+   */
+  private void writePending() {
+    disk.runInTransaction(() -> {
+      Map<ServiceMessageId, List<Item>> batch;
+
+      synchronized (this) {
+        if (pendingWrites.isEmpty()) {
+          return null;
+        }
+
+        batch   = new LinkedHashMap<>(pendingWrites);
+        writing = batch;
+        pendingWrites.clear();
+      }
+
+      disk.insert(batch);
+      int diskEvictions = disk.trimToSize(diskBudget);
+
+      synchronized (this) {
+        writing = null;
+
+        if (diskEvictions > 0) {
+          Log.w(TAG, "Evicted " + diskEvictions + " early messages from disk.");
+          evictions += diskEvictions;
+          diskIds = null;
+        } else if (diskIds != null) {
+          diskIds.addAll(batch.keySet());
+        }
+      }
+
+      return null;
+    });
+  }
+
+  /**
+   * Runs on the write executor.
    */
-  public synchronized Optional<List<SignalServiceContent>> retrieve(@NonNull RecipientId sender, long sentTimestamp) {
-    return Optional.ofNullable(cache.remove(new ServiceMessageId(sender, sentTimestamp)));
+  private void deleteExpiredFromDisk() {
+    disk.runInTransaction(() -> {
+      int diskExpirations = disk.deleteExpired(clock.getAsLong());
+
+      if (diskExpirations > 0) {
+        synchronized (this) {
+          expirations += diskExpirations;
+          diskIds = null;
+        }
+      }
+
+      return null;
+    });
   }
 
-  public synchronized Optional<List<EarlyMessageCacheEntry>> retrieveV2(@NonNull RecipientId sender, long sentTimestamp) {
-    return Optional.ofNullable(cacheV2.remove(new ServiceMessageId(sender, sentTimestamp)));
+  private @NonNull List<Item> remove(@NonNull ServiceMessageId id, boolean legacy) {
+    synchronized (this) {
+      if (diskIds != null && !diskIds.contains(id) && (writing == null || !writing.containsKey(id))) {
+        return removeLocked(id, legacy);
+      }
+    }
+
+    return withDisk(() -> removeLocked(id, legacy));
   }
 
   /**
-   * Returns a collection of all of the {@link ServiceMessageId}s referenced in the cache at the moment of inquiry.
-   * Caution: There is no guarantee that this list will be relevant for any amount of time afterwards.
+   * Must hold the monitor, and must also hold the store's transaction if the id might be on disk.
+   */
+  private @NonNull List<Item> removeLocked(@NonNull ServiceMessageId id, boolean legacy) {
+    long       now     = clock.getAsLong();
+    List<Item> removed = new ArrayList<>();
+
+    if (getDiskIds().contains(id)) {
+      removed.addAll(disk.remove(id, legacy));
+
+      if (!disk.contains(id)) {
+        diskIds.remove(id);
+      }
+    }
+
+    List<Item> pending = pendingWrites.get(id);
+    if (pending != null) {
+      Iterator<Item> iterator = pending.iterator();
+
+      while (iterator.hasNext()) {
+        Item item = iterator.next();
+        if (item.isLegacy() == legacy) {
+          removed.add(item);
+          iterator.remove();
+        }
+      }
+
+      if (pending.isEmpty()) {
+        pendingWrites.remove(id);
+      }
+    }
+
+    List<Item> items = memory.get(id);
+    if (items != null) {
+      Iterator<Item> iterator = items.iterator();
+
+      while (iterator.hasNext()) {
+        Item item = iterator.next();
+        if (item.isLegacy() == legacy) {
+          removed.add(item);
+          memoryBytes -= item.getSize();
+          iterator.remove();
+        }
+      }
+
+      if (items.isEmpty()) {
+        memory.remove(id);
+      }
+    }
+
+    Iterator<Item> iterator = removed.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getExpiresAt() <= now) {
+        iterator.remove();
+        expirations++;
+      }
+    }
+
+    if (removed.isEmpty()) {
+      misses++;
+    } else {
+      hits += removed.size();
+    }
+
+    return removed;
+  }
+
+  /**
+   * Runs the block in the store's transaction and then under this cache's monitor, always in that order.
+   */
+  private <T> T withDisk(@NonNull Supplier<T> block) {
+    return disk.runInTransaction(() -> {
+      synchronized (this) {
+        return block.get();
+      }
+    });
+  }
+
+  /**
+   * Must hold the monitor, and must also hold the store's transaction unless {@link #diskIds} is already loaded.
+   */
+  private @NonNull Set<ServiceMessageId> getDiskIds() {
+    if (diskIds == null) {
+      diskIds = new HashSet<>(disk.getAllIds());
+    }
+    return diskIds;
+  }
+
+  /**
+   * The on-disk tier of the cache. Items for a given id must be returned in the order they were inserted.
+   */
+  public interface Store {
+    /** Runs the block in a transaction, joining the caller's if there is one. */
+    <T> T runInTransaction(@NonNull Supplier<T> block);
+
+    /** Inserts all of the items in a single transaction. */
+    void insert(@NonNull Map<ServiceMessageId, List<Item>> items);
+
+    /** Removes and returns every item for the id of the requested kind, expired or not. */
+    @NonNull List<Item> remove(@NonNull ServiceMessageId id, boolean legacy);
+
+    boolean contains(@NonNull ServiceMessageId id);
+
+    @NonNull Collection<ServiceMessageId> getAllIds();
+
+    /** @return The number of items deleted. */
+    int deleteExpired(long now);
+
+    /** Deletes the oldest items until the store is no larger than the provided size. @return The number of items deleted. */
+    int trimToSize(long maxBytes);
+  }
+
+  /**
+   * A single early message, either legacy {@link SignalServiceContent} or an {@link EarlyMessageCacheEntry}, with its approximate size and expiration.
    */
-  public synchronized @NonNull Collection<ServiceMessageId> getAllReferencedIds() {
-    Set<ServiceMessageId> allIds = new HashSet<>(cache.keySet());
-    allIds.addAll(cacheV2.keySet());
-    return allIds;
+  public static final class Item {
+    private final SignalServiceContent   content;
+    private final EarlyMessageCacheEntry entry;
+    private final int                    size;
+    private final long                   expiresAt;
+
+    public Item(@Nullable SignalServiceContent content, @Nullable EarlyMessageCacheEntry entry, int size, long expiresAt) {
+      if ((content == null) == (entry == null)) {
+        throw new IllegalArgumentException("Exactly one of content or entry must be set!");
+      }
+
+      this.content   = content;
+      this.entry     = entry;
+      this.size      = size;
+      this.expiresAt = expiresAt;
+    }
+
+    static @NonNull Item forContent(@NonNull SignalServiceContent content, long expiresAt) {
+      return new Item(content, null, content.serialize().length + ITEM_OVERHEAD, expiresAt);
+    }
+
+    static @NonNull Item forEntry(@NonNull EarlyMessageCacheEntry entry, long expiresAt) {
+      int groupIdSize = entry.getMetadata().getGroupId() != null ? entry.getMetadata().getGroupId().length : 0;
+      int size        = entry.getEnvelope().getSerializedSize() + entry.getContent().getSerializedSize() + groupIdSize + ITEM_OVERHEAD;
+
+      return new Item(null, entry, size, expiresAt);
+    }
+
+    public boolean isLegacy() {
+      return content != null;
+    }
+
+    public @NonNull SignalServiceContent getContent() {
+      if (content == null) throw new IllegalStateException();
+      return content;
+    }
+
+    public @NonNull EarlyMessageCacheEntry getEntry() {
+      if (entry == null) throw new IllegalStateException();
+      return entry;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public long getExpiresAt() {
+      return expiresAt;
+    }
+  }
+
+  public static final class Metrics {
+    public final int  memoryCount;
+    public final long memoryBytes;
+    public final int  diskIdCount;
+    public final long hits;
+    public final long misses;
+    public final long spills;
+    public final long evictions;
+    public final long expirations;
+
+    Metrics(int memoryCount, long memoryBytes, int diskIdCount, long hits, long misses, long spills, long evictions, long expirations) {
+      this.memoryCount = memoryCount;
+      this.memoryBytes = memoryBytes;
+      this.diskIdCount = diskIdCount;
+      this.hits        = hits;
+      this.misses      = misses;
+      this.spills      = spills;
+      this.evictions   = evictions;
+      this.expirations = expirations;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.US,
+                           "memory: %d items (%d bytes), disk: %d ids, hits: %d, misses: %d, spills: %d, evictions: %d, expirations: %d",
+                           memoryCount, memoryBytes, diskIdCount, hits, misses, spills, evictions, expirations);
+    }
   }
 }
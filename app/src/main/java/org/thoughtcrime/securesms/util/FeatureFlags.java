@@ -22,6 +22,7 @@ import org.thoughtcrime.securesms.notifications.Configuration;
 import org.whispersystems.signalservice.api.RemoteConfigResult;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -29,6 +30,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -47,6 +49,7 @@ import java.util.concurrent.TimeUnit;
  * - Make a flag {@link #HOT_SWAPPABLE}
  * - Make a flag {@link #STICKY} -- booleans only!
  * - Register a listener for flag changes in {@link #FLAG_CHANGE_LISTENERS}
+ * - Invalidate a cache derived from flag values with {@link #addFlagsChangedListener(FlagsChangedListener)}
  */
 public final class FeatureFlags {
 
@@ -112,6 +115,9 @@ public final class FeatureFlags {
   private static final String SAFETY_NUMBER_ACI                 = "global.safetyNumberAci";
   public  static final String PROMPT_FOR_NOTIFICATION_LOGS      = "android.logs.promptNotifications";
   private static final String PROMPT_FOR_NOTIFICATION_CONFIG    = "android.logs.promptNotificationsConfig";
+  private static final String TUNED_DATABASE_CONNECTIONS        = "android.database.tunedConnections";
+  private static final String QUERY_PROFILER                    = "android.database.queryProfiler";
+  private static final String FRAGMENTED_VIDEO_MUXER            = "android.video.fragmentedMuxer";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -174,7 +180,10 @@ public final class FeatureFlags {
       SAFETY_NUMBER_ACI,
       FCM_MAY_HAVE_MESSAGES_KILL_SWITCH,
       PROMPT_FOR_NOTIFICATION_LOGS,
-      PROMPT_FOR_NOTIFICATION_CONFIG
+      PROMPT_FOR_NOTIFICATION_CONFIG,
+      TUNED_DATABASE_CONNECTIONS,
+      QUERY_PROFILER,
+      FRAGMENTED_VIDEO_MUXER
   );
 
   @VisibleForTesting
@@ -271,8 +280,21 @@ public final class FeatureFlags {
     put(MESSAGE_PROCESSOR_ALARM_INTERVAL, change -> MessageProcessReceiver.startOrUpdateAlarm(ApplicationDependencies.getApplication()));
   }};
 
+  /**
+   * Listeners that are called after any new set of values has been published, for things like caches
+   * that are derived from several flags. Like {@link #FLAG_CHANGE_LISTENERS}, these can be called on
+   * any thread.
+   */
+  private static final Set<FlagsChangedListener> FLAGS_CHANGED_LISTENERS = new CopyOnWriteArraySet<>();
+
   private static final Map<String, Object> REMOTE_VALUES = new TreeMap<>();
 
+  /**
+   * Pre-parsed copy of {@link #REMOTE_VALUES} and {@link #FORCED_VALUES} that all flag reads go
+   * through, so that reads never lock or parse. Rebuilt and replaced whenever either changes.
+   */
+  private static volatile FeatureFlagsSnapshot snapshot = FeatureFlagsSnapshot.compile(Collections.emptyMap(), FORCED_VALUES);
+
   private FeatureFlags() {}
 
   public static synchronized void init() {
@@ -282,6 +304,7 @@ public final class FeatureFlags {
 
     SignalStore.remoteConfigValues().setCurrentConfig(mapToJson(pending));
     REMOTE_VALUES.putAll(pending);
+    publishSnapshot();
     triggerFlagChangeListeners(changes);
 
     Log.i(TAG, "init() " + REMOTE_VALUES.toString());
@@ -312,6 +335,9 @@ public final class FeatureFlags {
     SignalStore.remoteConfigValues().setPendingConfig(mapToJson(result.getDisk()));
     REMOTE_VALUES.clear();
     REMOTE_VALUES.putAll(result.getMemory());
+    if (!result.getMemoryChanges().isEmpty()) {
+      publishSnapshot();
+    }
     triggerFlagChangeListeners(result.getMemoryChanges());
 
     SignalStore.remoteConfigValues().setLastFetchTime(System.currentTimeMillis());
@@ -632,6 +658,43 @@ public final class FeatureFlags {
   public static String delayedNotificationsPromptConfig() {
     return getString(PROMPT_FOR_NOTIFICATION_CONFIG, "");
   }
+
+  /**
+   * Whether the database should send reads to a pool of read-only connections, with tuned cache settings. Takes effect on the next app start.
+   */
+  public static boolean tunedDatabaseConnections() {
+    return getBoolean(TUNED_DATABASE_CONNECTIONS, false);
+  }
+
+  /**
+   * Whether the database should profile every statement for the debug log. Takes effect on the next app start.
+   */
+  public static boolean queryProfiler() {
+    return getBoolean(QUERY_PROFILER, false);
+  }
+
+  /**
+   * Whether the streaming muxer should write fragmented MP4s, which are written out as they are encoded.
+   */
+  public static boolean fragmentedVideoMuxer() {
+    return getBoolean(FRAGMENTED_VIDEO_MUXER, false);
+  }
+
+  public static void addFlagsChangedListener(@NonNull FlagsChangedListener listener) {
+    FLAGS_CHANGED_LISTENERS.add(listener);
+  }
+
+  public static void removeFlagsChangedListener(@NonNull FlagsChangedListener listener) {
+    FLAGS_CHANGED_LISTENERS.remove(listener);
+  }
+
+  /** Only for tests. Forces a value until the process is restarted. */
+  @VisibleForTesting
+  static synchronized void forceValue(@NonNull String key, @NonNull Object value) {
+    FORCED_VALUES.put(key, value);
+    publishSnapshot();
+  }
+
   /** Only for rendering debug info. */
   public static synchronized @NonNull Map<String, Object> getMemoryValues() {
     return new TreeMap<>(REMOTE_VALUES);
@@ -794,78 +857,19 @@ public final class FeatureFlags {
   }
 
   private static boolean getBoolean(@NonNull String key, boolean defaultValue) {
-    Boolean forced = (Boolean) FORCED_VALUES.get(key);
-    if (forced != null) {
-      return forced;
-    }
-
-    Object remote = REMOTE_VALUES.get(key);
-    if (remote instanceof Boolean) {
-      return (boolean) remote;
-    } else if (remote instanceof String) {
-      String stringValue = ((String) remote).toLowerCase();
-      if (stringValue.equals("true")) {
-        return true;
-      } else if (stringValue.equals("false")) {
-        return false;
-      } else {
-        Log.w(TAG, "Expected a boolean for key '" + key + "', but got something else (" + stringValue + ")! Falling back to the default.");
-      }
-    } else if (remote != null) {
-      Log.w(TAG, "Expected a boolean for key '" + key + "', but got something else! Falling back to the default.");
-    }
-
-    return defaultValue;
+    return snapshot.getBoolean(key, defaultValue);
   }
 
   private static int getInteger(@NonNull String key, int defaultValue) {
-    Integer forced = (Integer) FORCED_VALUES.get(key);
-    if (forced != null) {
-      return forced;
-    }
-
-    Object remote = REMOTE_VALUES.get(key);
-    if (remote instanceof String) {
-      try {
-        return Integer.parseInt((String) remote);
-      } catch (NumberFormatException e) {
-        Log.w(TAG, "Expected an int for key '" + key + "', but got something else! Falling back to the default.");
-      }
-    }
-
-    return defaultValue;
+    return snapshot.getInteger(key, defaultValue);
   }
 
   private static long getLong(@NonNull String key, long defaultValue) {
-    Long forced = (Long) FORCED_VALUES.get(key);
-    if (forced != null) {
-      return forced;
-    }
-
-    Object remote = REMOTE_VALUES.get(key);
-    if (remote instanceof String) {
-      try {
-        return Long.parseLong((String) remote);
-      } catch (NumberFormatException e) {
-        Log.w(TAG, "Expected a long for key '" + key + "', but got something else! Falling back to the default.");
-      }
-    }
-
-    return defaultValue;
+    return snapshot.getLong(key, defaultValue);
   }
 
   private static String getString(@NonNull String key, String defaultValue) {
-    String forced = (String) FORCED_VALUES.get(key);
-    if (forced != null) {
-      return forced;
-    }
-
-    Object remote = REMOTE_VALUES.get(key);
-    if (remote instanceof String) {
-      return (String) remote;
-    }
-
-    return defaultValue;
+    return snapshot.getString(key, defaultValue);
   }
 
   private static Map<String, Object> parseStoredConfig(String stored) {
@@ -905,6 +909,14 @@ public final class FeatureFlags {
     }
   }
 
+  private static void publishSnapshot() {
+    snapshot = FeatureFlagsSnapshot.compile(REMOTE_VALUES, FORCED_VALUES);
+
+    for (FlagsChangedListener listener : FLAGS_CHANGED_LISTENERS) {
+      listener.onFlagsChanged();
+    }
+  }
+
   private static void triggerFlagChangeListeners(Map<String, Change> changes) {
     for (Map.Entry<String, Change> change : changes.entrySet()) {
       OnFlagChange listener = FLAG_CHANGE_LISTENERS.get(change.getKey());
@@ -946,6 +958,10 @@ public final class FeatureFlags {
     void onFlagChange(@NonNull Change change);
   }
 
+  public interface FlagsChangedListener {
+    void onFlagsChanged();
+  }
+
   enum Change {
     ENABLED, DISABLED, CHANGED, REMOVED
   }
@@ -0,0 +1,138 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable view of the {@link FeatureFlags} values, with every value parsed up front into the
+ * types it can be read as. Reading a flag is then a single map lookup, without any string parsing
+ * or allocation.
+ *
+ * A new snapshot is built whenever the remote or forced values change, and published as a whole.
+ */
+final class FeatureFlagsSnapshot {
+
+  private static final String TAG = Log.tag(FeatureFlagsSnapshot.class);
+
+  private final Map<String, Object>  remote;
+  private final Map<String, Boolean> booleans;
+  private final Map<String, Integer> integers;
+  private final Map<String, Long>    longs;
+  private final Map<String, String>  strings;
+
+  private FeatureFlagsSnapshot(@NonNull Map<String, Object> remote) {
+    this.remote   = remote;
+    this.booleans = new HashMap<>();
+    this.integers = new HashMap<>();
+    this.longs    = new HashMap<>();
+    this.strings  = new HashMap<>();
+  }
+
+  /**
+   * @param remote Values received from the server. Strings are parsed into any type they can represent.
+   * @param forced Values forced locally, which take precedence over remote values of the same type.
+   */
+  static @NonNull FeatureFlagsSnapshot compile(@NonNull Map<String, Object> remote, @NonNull Map<String, Object> forced) {
+    FeatureFlagsSnapshot snapshot = new FeatureFlagsSnapshot(new HashMap<>(remote));
+
+    for (Map.Entry<String, Object> entry : remote.entrySet()) {
+      snapshot.putRemote(entry.getKey(), entry.getValue());
+    }
+
+    for (Map.Entry<String, Object> entry : forced.entrySet()) {
+      snapshot.putForced(entry.getKey(), entry.getValue());
+    }
+
+    return snapshot;
+  }
+
+  boolean getBoolean(@NonNull String key, boolean defaultValue) {
+    Boolean value = booleans.get(key);
+    if (value != null) {
+      return value;
+    }
+
+    if (remote.get(key) != null) {
+      Log.w(TAG, "Expected a boolean for key '" + key + "', but got something else! Falling back to the default.");
+    }
+
+    return defaultValue;
+  }
+
+  int getInteger(@NonNull String key, int defaultValue) {
+    Integer value = integers.get(key);
+    if (value != null) {
+      return value;
+    }
+
+    if (remote.get(key) instanceof String) {
+      Log.w(TAG, "Expected an int for key '" + key + "', but got something else! Falling back to the default.");
+    }
+
+    return defaultValue;
+  }
+
+  long getLong(@NonNull String key, long defaultValue) {
+    Long value = longs.get(key);
+    if (value != null) {
+      return value;
+    }
+
+    if (remote.get(key) instanceof String) {
+      Log.w(TAG, "Expected a long for key '" + key + "', but got something else! Falling back to the default.");
+    }
+
+    return defaultValue;
+  }
+
+  String getString(@NonNull String key, String defaultValue) {
+    String value = strings.get(key);
+    return value != null ? value : defaultValue;
+  }
+
+  private void putRemote(@NonNull String key, Object value) {
+    if (value instanceof Boolean) {
+      booleans.put(key, (Boolean) value);
+    } else if (value instanceof String) {
+      String stringValue = (String) value;
+
+      strings.put(key, stringValue);
+
+      if (stringValue.equalsIgnoreCase("true")) {
+        booleans.put(key, true);
+      } else if (stringValue.equalsIgnoreCase("false")) {
+        booleans.put(key, false);
+      }
+
+      try {
+        integers.put(key, Integer.parseInt(stringValue));
+      } catch (NumberFormatException e) {
+        // Not an int
+      }
+
+      try {
+        longs.put(key, Long.parseLong(stringValue));
+      } catch (NumberFormatException e) {
+        // Not a long
+      }
+    }
+  }
+
+  private void putForced(@NonNull String key, Object value) {
+    if (value instanceof Boolean) {
+      booleans.put(key, (Boolean) value);
+    } else if (value instanceof Integer) {
+      integers.put(key, (Integer) value);
+    } else if (value instanceof Long) {
+      longs.put(key, (Long) value);
+    } else if (value instanceof String) {
+      strings.put(key, (String) value);
+    } else {
+      Log.w(TAG, "Unsupported forced value type for key '" + key + "'. Ignoring.");
+    }
+  }
+}
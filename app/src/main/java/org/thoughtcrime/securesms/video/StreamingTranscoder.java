@@ -33,17 +33,21 @@ public final class StreamingTranscoder {
   private final           boolean                        transcodeRequired;
   private final           long                           fileSizeEstimate;
   private final @Nullable TranscoderOptions              options;
+  private final           boolean                        fragmented;
 
   /**
    * @param upperSizeLimit A upper size to transcode to. The actual output size can be up to 10% smaller.
+   * @param fragmented     If true, the output is a fragmented MP4 that is written to the stream as it is encoded.
    */
   public StreamingTranscoder(@NonNull MediaDataSource dataSource,
                              @Nullable TranscoderOptions options,
-                             long upperSizeLimit)
+                             long upperSizeLimit,
+                             boolean fragmented)
       throws IOException, VideoSourceException
   {
     this.dataSource = dataSource;
     this.options    = options;
+    this.fragmented = fragmented;
 
     final MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
     try {
@@ -80,7 +84,7 @@ public final class StreamingTranscoder {
     Log.i(TAG, String.format(Locale.US,
                              "Transcoding:\n" +
                              "Target bitrate : %s + %s = %s\n" +
-                             "Target format  : %dp\n" +
+                             "Target format  : %dp%s\n" +
                              "Video duration : %.1fs\n" +
                              "Size limit     : %s kB\n" +
                              "Estimate       : %s kB\n" +
@@ -90,6 +94,7 @@ public final class StreamingTranscoder {
                              numberFormat.format(targetQuality.getTargetAudioBitRate()),
                              numberFormat.format(targetQuality.getTargetTotalBitRate()),
                              targetQuality.getOutputResolution(),
+                             fragmented ? " (fragmented)" : "",
                              durationSec,
                              numberFormat.format(upperSizeLimit / 1024),
                              numberFormat.format(fileSizeEstimate / 1024),
@@ -106,7 +111,7 @@ public final class StreamingTranscoder {
     final LimitedSizeOutputStream limitedSizeOutputStream = new LimitedSizeOutputStream(stream, upperSizeLimit);
 
     converter.setInput(new MediaInput.MediaDataSourceMediaInput(dataSource));
-    converter.setOutput(limitedSizeOutputStream);
+    converter.setOutput(limitedSizeOutputStream, fragmented);
     converter.setVideoResolution(targetQuality.getOutputResolution());
     converter.setVideoBitrate(targetQuality.getTargetVideoBitRate());
     converter.setAudioBitrate(targetQuality.getTargetAudioBitRate());
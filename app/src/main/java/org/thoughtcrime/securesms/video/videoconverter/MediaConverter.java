@@ -88,7 +88,14 @@ public final class MediaConverter {
     }
 
     public void setOutput(final @NonNull OutputStream stream) {
-        mOutput = new StreamOutput(stream);
+        setOutput(stream, false);
+    }
+
+    /**
+     * @param fragmented If true, the output is a fragmented MP4 that is written to the stream as it is encoded.
+     */
+    public void setOutput(final @NonNull OutputStream stream, boolean fragmented) {
+        mOutput = new StreamOutput(stream, fragmented);
     }
 
     @SuppressWarnings("unused")
@@ -342,14 +349,16 @@ public final class MediaConverter {
      private static class StreamOutput implements Output {
 
         final OutputStream outputStream;
+        final boolean      fragmented;
 
-        StreamOutput(final @NonNull OutputStream outputStream) {
+        StreamOutput(final @NonNull OutputStream outputStream, boolean fragmented) {
             this.outputStream = outputStream;
+            this.fragmented   = fragmented;
         }
 
         @Override
         public @NonNull Muxer createMuxer() {
-            return new StreamingMuxer(outputStream);
+            return new StreamingMuxer(outputStream, fragmented);
         }
     }
 }
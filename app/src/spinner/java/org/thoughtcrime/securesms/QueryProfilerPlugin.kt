@@ -0,0 +1,43 @@
+package org.thoughtcrime.securesms
+
+import org.signal.spinner.Plugin
+import org.signal.spinner.PluginResult
+import org.thoughtcrime.securesms.database.QueryProfiler
+import java.util.Locale
+
+class QueryProfilerPlugin : Plugin {
+  override val name: String = "Queries"
+  override val path: String = PATH
+
+  override fun get(): PluginResult {
+    val columns = listOf("Statement", "Count", "Total (ms)", "p50 (ms)", "p90 (ms)", "p99 (ms)", "Max (ms)", "Rows", "Main Thread", "Full Scan", "Plan")
+    val rows = mutableListOf<List<String>>()
+
+    for (profile in listOf(QueryProfiler.getLockWait()) + QueryProfiler.getStatements()) {
+      rows += listOf(
+        profile.statement,
+        profile.count.toString(),
+        profile.totalMs.format(),
+        profile.p50Ms.format(),
+        profile.p90Ms.format(),
+        profile.p99Ms.format(),
+        profile.maxMs.format(),
+        profile.rows.toString(),
+        profile.mainThreadCount.toString(),
+        if (profile.fullTableScan) "Yes" else "",
+        profile.plan ?: ""
+      )
+    }
+
+    return PluginResult.TableResult(
+      columns = columns,
+      rows = rows
+    )
+  }
+
+  private fun Double.format(): String = String.format(Locale.US, "%.2f", this)
+
+  companion object {
+    const val PATH = "/queries"
+  }
+}
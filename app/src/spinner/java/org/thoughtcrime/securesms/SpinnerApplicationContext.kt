@@ -18,6 +18,7 @@ import org.thoughtcrime.securesms.database.MessageBitmaskColumnTransformer
 import org.thoughtcrime.securesms.database.MessageRangesTransformer
 import org.thoughtcrime.securesms.database.ProfileKeyCredentialTransformer
 import org.thoughtcrime.securesms.database.QueryMonitor
+import org.thoughtcrime.securesms.database.QueryProfiler
 import org.thoughtcrime.securesms.database.RecipientTransformer
 import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.database.TimestampTransformer
@@ -62,10 +63,13 @@ class SpinnerApplicationContext : ApplicationContext() {
         "logs" to DatabaseConfig(db = { LogDatabase.getInstance(this).sqlCipherDatabase })
       ),
       linkedMapOf(
-        StorageServicePlugin.PATH to StorageServicePlugin()
+        StorageServicePlugin.PATH to StorageServicePlugin(),
+        QueryProfilerPlugin.PATH to QueryProfilerPlugin()
       )
     )
 
+    QueryProfiler.isEnabled = true
+
     DatabaseMonitor.initialize(object : QueryMonitor {
       override fun onSql(sql: String, args: Array<Any>?) {
         Spinner.onSql("signal", sql, args)
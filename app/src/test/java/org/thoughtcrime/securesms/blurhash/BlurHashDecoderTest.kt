@@ -0,0 +1,112 @@
+package org.thoughtcrime.securesms.blurhash
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class BlurHashDecoderTest {
+
+  @Test
+  fun `Given hashes with any number of components, when I decode, then I expect the same pixels as the reference decoder`() {
+    val random = Random(1)
+
+    for ((componentX, componentY) in listOf(1 to 1, 4 to 3, 3 to 4, 9 to 9)) {
+      val hash = BlurHashEncoder.encode(syntheticPixels(random, 32, 32), 32, 32, componentX, componentY)
+
+      for ((width, height) in listOf(20 to 20, 20 to 13, 7 to 20, 1 to 1)) {
+        val pixels = IntArray(width * height)
+
+        assertTrue(BlurHashDecoder.decode(hash, width, height, 1.0, pixels))
+        assertArrayEquals("$hash at ${width}x$height", referenceDecode(hash, width, height, 1.0), pixels)
+      }
+    }
+  }
+
+  @Test
+  fun `Given a size that changes between decodes, when I decode, then I expect the cosine tables to follow`() {
+    val hash = BlurHashEncoder.encode(syntheticPixels(Random(2), 32, 32), 32, 32, 4, 3)
+
+    for ((width, height) in listOf(20 to 20, 10 to 20, 20 to 10, 20 to 20)) {
+      val pixels = IntArray(width * height)
+
+      BlurHashDecoder.decode(hash, width, height, 1.0, pixels)
+
+      assertArrayEquals(referenceDecode(hash, width, height, 1.0), pixels)
+    }
+  }
+
+  @Test
+  fun `Given an invalid hash, when I decode, then I expect it to fail`() {
+    val pixels = IntArray(4)
+
+    assertFalse(BlurHashDecoder.decode(null, 2, 2, 1.0, pixels))
+    assertFalse(BlurHashDecoder.decode("LEHV6", 2, 2, 1.0, pixels))
+    assertFalse(BlurHashDecoder.decode("LEHV6nWB2yk8pyo0adR*.7kCMdn", 2, 2, 1.0, pixels))
+  }
+
+  /**
+   * How [BlurHashDecoder] used to decode, computing every cosine and allocating its colors on each call, and returning the pixels instead of a bitmap.
+   */
+  private fun referenceDecode(blurHash: String, width: Int, height: Int, punch: Double): IntArray {
+    val numCompEnc = Base83.decode(blurHash, 0, 1)
+    val numCompX = numCompEnc % 9 + 1
+    val numCompY = numCompEnc / 9 + 1
+    val maxAcEnc = Base83.decode(blurHash, 1, 2)
+    val maxAc = ((maxAcEnc + 1) / 166f).toDouble() * punch
+
+    val colors = Array(numCompX * numCompY) { i ->
+      if (i == 0) {
+        val colorEnc = Base83.decode(blurHash, 2, 6)
+        doubleArrayOf(
+          BlurHashUtil.sRGBToLinear((colorEnc shr 16).toLong()),
+          BlurHashUtil.sRGBToLinear((colorEnc shr 8 and 255).toLong()),
+          BlurHashUtil.sRGBToLinear((colorEnc and 255).toLong())
+        )
+      } else {
+        val from = 4 + i * 2
+        val value = Base83.decode(blurHash, from, from + 2)
+        doubleArrayOf(
+          BlurHashUtil.signPow(((value / (19 * 19) - 9) / 9.0f).toDouble(), 2.0) * maxAc,
+          BlurHashUtil.signPow(((value / 19 % 19 - 9) / 9.0f).toDouble(), 2.0) * maxAc,
+          BlurHashUtil.signPow(((value % 19 - 9) / 9.0f).toDouble(), 2.0) * maxAc
+        )
+      }
+    }
+
+    val pixels = IntArray(width * height)
+    for (y in 0 until height) {
+      for (x in 0 until width) {
+        var r = 0.0
+        var g = 0.0
+        var b = 0.0
+
+        for (j in 0 until numCompY) {
+          for (i in 0 until numCompX) {
+            val basis = Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height)
+            val color = colors[j * numCompX + i]
+            r += color[0] * basis
+            g += color[1] * basis
+            b += color[2] * basis
+          }
+        }
+
+        pixels[y * width + x] = (0xFF shl 24) or (BlurHashUtil.linearTosRGB(r).toInt() shl 16) or (BlurHashUtil.linearTosRGB(g).toInt() shl 8) or BlurHashUtil.linearTosRGB(b).toInt()
+      }
+    }
+
+    return pixels
+  }
+
+  private fun syntheticPixels(random: Random, width: Int, height: Int): IntArray {
+    return IntArray(width * height) { i ->
+      val x = i % width
+      val y = i / width
+      val r = (x * 255 / width + random.nextInt(16)).coerceAtMost(255)
+      val g = (y * 255 / height + random.nextInt(16)).coerceAtMost(255)
+      val b = ((x + y) * 255 / (width + height) + random.nextInt(16)).coerceAtMost(255)
+      (0xFF shl 24) or (r shl 16) or (g shl 8) or b
+    }
+  }
+}
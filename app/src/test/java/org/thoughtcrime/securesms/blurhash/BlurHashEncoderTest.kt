@@ -0,0 +1,42 @@
+package org.thoughtcrime.securesms.blurhash
+
+import android.app.Application
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import kotlin.math.abs
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class BlurHashEncoderTest {
+
+  @Test
+  fun `Given a solid color, when I encode and decode it, then I expect the same color back`() {
+    val color = 0xFF336699.toInt()
+    val hash = BlurHashEncoder.encode(IntArray(32 * 32) { color }, 32, 32, 4, 3)
+
+    val bitmap = BlurHashDecoder.decode(hash, 8, 8)
+
+    assertNotNull(bitmap)
+    for (x in 0 until 8) {
+      for (y in 0 until 8) {
+        assertColorEquals(color, bitmap!!.getPixel(x, y))
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun `Given pixels that do not match the size, when I encode, then I expect an IllegalArgumentException`() {
+    BlurHashEncoder.encode(IntArray(10), 4, 4, 4, 3)
+  }
+
+  private fun assertColorEquals(expected: Int, actual: Int) {
+    for (shift in listOf(16, 8, 0)) {
+      val difference = abs(((expected shr shift) and 0xFF) - ((actual shr shift) and 0xFF))
+      assertTrue("Channel differs by $difference", difference <= 2)
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package org.thoughtcrime.securesms.contacts.sync
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class PackedE164SetTest {
+
+  @Test
+  fun `fromE164s keeps only normalized e164s in numeric order`() {
+    val set = PackedE164Set.fromE164s(listOf("+15555550101", "+15555550101", "15555550102", "+05555550103", "+1555-555-0104", "+", "", "+99999999999999999999", "+442071838750"))
+
+    assertEquals(listOf("+15555550101", "+442071838750"), set.toList())
+  }
+
+  @Test
+  fun `parse matches the previous sanitize check`() {
+    val inputs = listOf("+1", "+10", "+01", "+-1", "++1", "+1a", "+9223372036854775807", "+9223372036854775808", "1", "+ 1")
+
+    for (input in inputs) {
+      val legacy = try {
+        input.startsWith("+") && input.length > 1 && input[1] != '0' && input.toLong() > 0
+      } catch (e: NumberFormatException) {
+        false
+      }
+
+      assertEquals(input, legacy, PackedE164Set.parse(input) > 0)
+    }
+  }
+
+  @Test
+  fun `contains only matches exact numbers`() {
+    val set = PackedE164Set.fromE164s(listOf("+15555550101", "+15555550102"))
+
+    assertTrue(set.contains("+15555550101"))
+    assertFalse(set.contains("+15555550103"))
+    assertFalse(set.contains("15555550101"))
+    assertFalse(set.contains("+015555550101"))
+  }
+
+  @Test
+  fun `plus and minus match string sets`() {
+    val random = Random(1)
+
+    repeat(50) {
+      val a: Set<String> = randomE164s(random, random.nextInt(200))
+      val b: Set<String> = randomE164s(random, random.nextInt(200)) + a.take(random.nextInt(a.size + 1))
+
+      val packedA = PackedE164Set.fromE164s(a)
+      val packedB = PackedE164Set.fromE164s(b)
+
+      assertEquals(a + b, packedA + packedB)
+      assertEquals(a - b, packedA - packedB)
+      assertEquals(b - a, packedB - packedA)
+      assertEquals((a + b).size, (packedA + packedB).size)
+    }
+  }
+
+  @Test
+  fun `equals and hashCode match string sets`() {
+    val strings = setOf("+15555550101", "+15555550102", "+442071838750")
+    val packed = PackedE164Set.fromE164s(strings.reversed())
+
+    assertEquals(strings, packed)
+    assertEquals(packed, strings)
+    assertEquals(strings.hashCode(), packed.hashCode())
+    assertEquals(PackedE164Set.fromE164s(strings), packed)
+  }
+
+  @Test
+  fun `digest ignores order and duplicates`() {
+    val random = Random(2)
+    val strings = randomE164s(random, 5000).toList()
+
+    val forwards = PackedE164Set.fromE164s(strings)
+    val backwards = PackedE164Set.fromE164s(strings.reversed() + strings.take(10))
+
+    assertArrayEquals(forwards.digest(), backwards.digest())
+    assertNotEquals(forwards.digest().toList(), PackedE164Set.fromE164s(strings.drop(1)).digest().toList())
+    assertNotEquals(PackedE164Set.EMPTY.digest().toList(), forwards.digest().toList())
+  }
+
+  @Test
+  fun `diff of a large address book matches string sets`() {
+    val random = Random(3)
+    val previous: List<String> = randomE164s(random, 50_000).toList()
+    val current: List<String> = previous.drop(100) + randomE164s(random, 100)
+
+    val packedPrevious = PackedE164Set.fromE164s(previous)
+    val packedCurrent = PackedE164Set.fromE164s(current)
+
+    assertEquals(current.toSet() - previous.toSet(), packedCurrent - packedPrevious)
+    assertEquals(previous.toSet() - current.toSet(), packedPrevious - packedCurrent)
+    assertEquals(100, (packedCurrent - packedPrevious).size)
+  }
+
+  private fun randomE164s(random: Random, count: Int): Set<String> {
+    val e164s: MutableSet<String> = HashSet(count)
+    while (e164s.size < count) {
+      e164s += "+1" + random.nextLong(2_000_000_000L, 9_999_999_999L)
+    }
+    return e164s
+  }
+}
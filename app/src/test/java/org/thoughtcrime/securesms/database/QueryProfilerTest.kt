@@ -0,0 +1,49 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class QueryProfilerTest {
+
+  @Test
+  fun `normalize replaces literals with placeholders`() {
+    assertEquals(
+      "SELECT * FROM message WHERE thread_id = ? AND body = ? AND date_received > ?",
+      QueryProfiler.normalize("SELECT * FROM message WHERE thread_id = 12 AND body = 'it''s' AND date_received > 1.5")
+    )
+  }
+
+  @Test
+  fun `normalize collapses placeholder lists`() {
+    assertEquals(
+      "SELECT * FROM message WHERE _id IN (?)",
+      QueryProfiler.normalize("SELECT * FROM message WHERE _id IN (?, ?, ?,?)")
+    )
+    assertEquals(
+      QueryProfiler.normalize("SELECT * FROM message WHERE _id IN (1, 2)"),
+      QueryProfiler.normalize("SELECT * FROM message WHERE _id IN (3, 4, 5, 6)")
+    )
+  }
+
+  @Test
+  fun `normalize keeps digits inside identifiers`() {
+    assertEquals("SELECT e164, col_2 FROM t1 LIMIT ?", QueryProfiler.normalize("SELECT e164, col_2 FROM t1 LIMIT 10"))
+  }
+
+  @Test
+  fun `normalize collapses whitespace`() {
+    assertEquals("SELECT * FROM message WHERE _id = ?", QueryProfiler.normalize("\n  SELECT *\n    FROM message\n    WHERE _id = ?\n"))
+  }
+
+  @Test
+  fun `isFullTableScan only flags scans without an index`() {
+    assertTrue(QueryProfiler.isFullTableScan("SCAN message"))
+    assertTrue(QueryProfiler.isFullTableScan("SCAN TABLE message"))
+    assertFalse(QueryProfiler.isFullTableScan("SCAN message USING INDEX message_thread_date_index"))
+    assertFalse(QueryProfiler.isFullTableScan("SEARCH message USING INDEX message_thread_date_index (thread_id=?)"))
+    assertFalse(QueryProfiler.isFullTableScan("SCAN CONSTANT ROW"))
+    assertFalse(QueryProfiler.isFullTableScan("USE TEMP B-TREE FOR ORDER BY"))
+  }
+}
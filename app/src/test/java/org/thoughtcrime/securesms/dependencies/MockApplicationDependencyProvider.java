@@ -25,6 +25,7 @@ import org.thoughtcrime.securesms.service.ExpiringMessageManager;
 import org.thoughtcrime.securesms.service.ExpiringStoriesManager;
 import org.thoughtcrime.securesms.service.PendingRetryReceiptManager;
 import org.thoughtcrime.securesms.service.ScheduledMessageManager;
+import org.thoughtcrime.securesms.service.TrimMessageSendLogManager;
 import org.thoughtcrime.securesms.service.TrimThreadsByDateManager;
 import org.thoughtcrime.securesms.service.webrtc.SignalCallManager;
 import org.thoughtcrime.securesms.shakereport.ShakeToReport;
@@ -123,6 +124,11 @@ public class MockApplicationDependencyProvider implements ApplicationDependencie
     return null;
   }
 
+  @Override
+  public @NonNull TrimMessageSendLogManager provideTrimMessageSendLogManager() {
+    return mock(TrimMessageSendLogManager.class);
+  }
+
   @Override
   public @NonNull ViewOnceMessageManager provideViewOnceMessageManager() {
     return null;
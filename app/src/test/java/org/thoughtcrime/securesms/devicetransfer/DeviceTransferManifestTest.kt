@@ -0,0 +1,115 @@
+package org.thoughtcrime.securesms.devicetransfer
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.testutil.EmptyLogger
+import java.io.File
+import java.nio.file.Files
+
+class DeviceTransferManifestTest {
+
+  companion object {
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(EmptyLogger())
+    }
+  }
+
+  private lateinit var directory: File
+  private lateinit var manifestFile: File
+
+  @Before
+  fun setUp() {
+    directory = Files.createTempDirectory("manifest").toFile()
+    manifestFile = File(directory, "manifest")
+  }
+
+  @After
+  fun tearDown() {
+    directory.deleteRecursively()
+  }
+
+  @Test
+  fun `Given no manifest, when I encode, then I expect no data hashes`() {
+    val manifest = DeviceTransferManifest.load(manifestFile)
+
+    assertEquals(emptySet<String>(), DeviceTransferManifest.decodeDataHashes(manifest.encodeDataHashes()))
+    assertEquals(emptySet<String>(), DeviceTransferManifest.decodeDataHashes(ByteArray(0)))
+  }
+
+  @Test
+  fun `Given an interrupted transfer, when I reload, then I expect received attachments to be available`() {
+    val first = DeviceTransferManifest.load(manifestFile)
+    first.add("hash-a", newAttachment("a"), byteArrayOf(1, 2, 3), 10)
+    first.add("hash-b", newAttachment("b"), byteArrayOf(4, 5, 6), 20)
+
+    val second = DeviceTransferManifest.load(manifestFile)
+    val entry = second.get("hash-b")
+
+    assertEquals(setOf("hash-a", "hash-b"), DeviceTransferManifest.decodeDataHashes(second.encodeDataHashes()))
+    assertNotNull(entry)
+    assertEquals(File(directory, "b"), entry!!.file)
+    assertArrayEquals(byteArrayOf(4, 5, 6), entry.random)
+    assertEquals(20, entry.length)
+    assertNull(second.get("hash-c"))
+  }
+
+  @Test
+  fun `Given a deleted attachment file, when I reload, then I expect it to be skipped`() {
+    val first = DeviceTransferManifest.load(manifestFile)
+    first.add("hash-a", newAttachment("a"), byteArrayOf(1), 10)
+    first.add("hash-b", newAttachment("b"), byteArrayOf(2), 20)
+
+    File(directory, "a").delete()
+
+    val second = DeviceTransferManifest.load(manifestFile)
+
+    assertEquals(setOf("hash-b"), DeviceTransferManifest.decodeDataHashes(second.encodeDataHashes()))
+  }
+
+  @Test
+  fun `Given a partially written entry, when I reload, then I expect the complete entries`() {
+    val first = DeviceTransferManifest.load(manifestFile)
+    first.add("hash-a", newAttachment("a"), byteArrayOf(1), 10)
+    first.add("hash-b", newAttachment("b"), byteArrayOf(2), 20)
+
+    val bytes = manifestFile.readBytes()
+    manifestFile.writeBytes(bytes.copyOf(bytes.size - 3))
+
+    val second = DeviceTransferManifest.load(manifestFile)
+
+    assertEquals(setOf("hash-a"), DeviceTransferManifest.decodeDataHashes(second.encodeDataHashes()))
+  }
+
+  @Test
+  fun `Given a resumed transfer, when I complete, then I expect unused attachments and the manifest to be deleted`() {
+    val first = DeviceTransferManifest.load(manifestFile)
+    first.add("hash-a", newAttachment("a"), byteArrayOf(1), 10)
+    first.add("hash-b", newAttachment("b"), byteArrayOf(2), 20)
+
+    val second = DeviceTransferManifest.load(manifestFile)
+    assertNotNull(second.get("hash-a"))
+    second.add("hash-c", newAttachment("c"), byteArrayOf(3), 30)
+    second.complete()
+
+    assertTrue(File(directory, "a").exists())
+    assertFalse(File(directory, "b").exists())
+    assertTrue(File(directory, "c").exists())
+    assertFalse(manifestFile.exists())
+    assertEquals(emptySet<String>(), DeviceTransferManifest.decodeDataHashes(DeviceTransferManifest.load(manifestFile).encodeDataHashes()))
+  }
+
+  private fun newAttachment(name: String): File {
+    return File(directory, name).apply { writeBytes(ByteArray(4)) }
+  }
+}
@@ -2,10 +2,12 @@ package org.thoughtcrime.securesms.groups.v2.processing;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.signal.storageservice.protos.groups.Member;
 import org.signal.core.util.logging.Log;
 import org.signal.storageservice.protos.groups.local.DecryptedGroup;
 import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
 import org.signal.storageservice.protos.groups.local.DecryptedMember;
+import org.signal.storageservice.protos.groups.local.DecryptedModifyMemberRole;
 import org.signal.storageservice.protos.groups.local.DecryptedString;
 import org.thoughtcrime.securesms.testutil.LogRecorder;
 import org.whispersystems.signalservice.api.push.ServiceId;
@@ -465,6 +467,60 @@ public final class GroupStateMapperTest {
     assertEquals(log2.getGroup(), advanceGroupStateResult.getNewGlobalGroupState().getLocalState());
   }
 
+  @Test
+  public void without_history_applies_changes_after_the_last_state() {
+    DecryptedGroup      currentState = state(0);
+    ServerGroupLogEntry log1         = serverLogEntry(1);
+    ServerGroupLogEntry log2         = logEntryMissingState(2);
+    ServerGroupLogEntry log3         = logEntryMissingState(3);
+    ServerGroupLogEntry log4         = logEntryMissingState(4);
+
+    AdvanceGroupStateResult advanceGroupStateResult = GroupStateMapper.advanceGroupStateWithoutHistory(new GlobalGroupState(currentState, asList(log1, log2, log3, log4)), 3);
+
+    assertThat(advanceGroupStateResult.getProcessedLogEntries(), is(emptyList()));
+    assertNewState(new GlobalGroupState(state(3), singletonList(log4)), advanceGroupStateResult.getNewGlobalGroupState());
+  }
+
+  @Test
+  public void without_history_matches_partially_advance() {
+    DecryptedGroup   currentState = state(0);
+    GlobalGroupState inputState   = new GlobalGroupState(currentState, asList(logEntryMissingState(1),
+                                                                              serverLogEntryWholeStateOnly(2),
+                                                                              logEntryMissingState(3),
+                                                                              logEntryMissingState(5),
+                                                                              serverLogEntry(6),
+                                                                              logEntryMissingState(7)));
+
+    assertNewState(GroupStateMapper.partiallyAdvanceGroupState(inputState, LATEST).getNewGlobalGroupState(),
+                   GroupStateMapper.advanceGroupStateWithoutHistory(inputState, LATEST).getNewGlobalGroupState());
+  }
+
+  @Test
+  public void without_history_skips_a_change_that_can_not_be_applied() {
+    DecryptedGroup      currentState = state(0);
+    ServerGroupLogEntry log1         = logEntryMissingState(1);
+    ServerGroupLogEntry log2         = new ServerGroupLogEntry(null, DecryptedGroupChange.newBuilder()
+                                                                                         .setRevision(2)
+                                                                                         .addModifyMemberRoles(DecryptedModifyMemberRole.newBuilder()
+                                                                                                                                        .setAciBytes(UuidUtil.toByteString(UUID.randomUUID()))
+                                                                                                                                        .setRole(Member.Role.ADMINISTRATOR))
+                                                                                         .build());
+    ServerGroupLogEntry log3         = logEntryMissingState(3);
+
+    AdvanceGroupStateResult advanceGroupStateResult = GroupStateMapper.advanceGroupStateWithoutHistory(new GlobalGroupState(currentState, asList(log1, log2, log3)), LATEST);
+
+    assertEquals(state(3), advanceGroupStateResult.getNewGlobalGroupState().getLocalState());
+  }
+
+  @Test
+  public void without_history_keeps_the_local_state_when_nothing_changes() {
+    DecryptedGroup currentState = state(1);
+
+    AdvanceGroupStateResult advanceGroupStateResult = GroupStateMapper.advanceGroupStateWithoutHistory(new GlobalGroupState(currentState, singletonList(serverLogEntry(1))), LATEST);
+
+    assertSame(currentState, advanceGroupStateResult.getNewGlobalGroupState().getLocalState());
+  }
+
   private static void assertNewState(GlobalGroupState expected, GlobalGroupState actual) {
     assertEquals(expected.getLocalState(), actual.getLocalState());
     assertThat(actual.getServerHistory(), is(expected.getServerHistory()));
@@ -0,0 +1,124 @@
+package org.thoughtcrime.securesms.keyvalue
+
+import android.app.Application
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class KeyValueStoreTest {
+
+  @Test
+  fun `Given a write, when I read, then I expect the new value`() {
+    val store = KeyValueStore(MockKeyValuePersistentStorage.withDataSet(KeyValueDataSet()))
+
+    store.beginWrite().putLong("a", 1).putString("b", "two").apply()
+
+    assertEquals(1, store.getLong("a", 0))
+    assertEquals("two", store.getString("b", null))
+  }
+
+  @Test
+  fun `Given a read snapshot, when I write, then I expect the snapshot to be unchanged`() {
+    val store = KeyValueStore(MockKeyValuePersistentStorage.withDataSet(KeyValueDataSet()))
+    store.beginWrite().putLong("a", 1).commit()
+
+    val snapshot = store.beginRead()
+    store.beginWrite().putLong("a", 2).putLong("b", 3).apply()
+
+    assertEquals(1, snapshot.getLong("a", 0))
+    assertFalse(snapshot.containsKey("b"))
+    assertEquals(2, store.getLong("a", 0))
+  }
+
+  @Test
+  fun `Given a remove, when I read, then I expect the key to be gone and the removal persisted`() {
+    val persisted = KeyValueDataSet().apply { putLong("a", 1) }
+    val store = KeyValueStore(MockKeyValuePersistentStorage.withDataSet(persisted))
+
+    store.beginWrite().remove("a").commit()
+
+    assertFalse(store.containsKey("a"))
+    assertFalse(persisted.containsKey("a"))
+  }
+
+  @Test
+  fun `Given writes, when they finish, then I expect them to be persisted`() {
+    val persisted = KeyValueDataSet()
+    val store = KeyValueStore(MockKeyValuePersistentStorage.withDataSet(persisted))
+
+    for (i in 1..100) {
+      store.beginWrite().putInteger("a", i).apply()
+    }
+    store.blockUntilAllWritesFinished()
+
+    assertEquals(100, persisted.getInteger("a", 0))
+  }
+
+  /**
+   * Readers race a writer that's constantly updating the store, and must never observe a value going
+   * backwards or a torn snapshot.
+   */
+  @Test
+  fun `Given concurrent readers and writers, when I read, then I expect consistent values`() {
+    val store = KeyValueStore(MockKeyValuePersistentStorage.withDataSet(KeyValueDataSet()))
+    store.beginWrite().putLong("counter", 0).putLong("counter_copy", 0).commit()
+
+    val readerCount = 4
+    val executor = Executors.newFixedThreadPool(readerCount + 1)
+    val start = CountDownLatch(1)
+    val stop = AtomicBoolean(false)
+    val reads = AtomicLong()
+    val writes = AtomicLong()
+    val failure = AtomicBoolean(false)
+
+    repeat(readerCount) {
+      executor.execute {
+        start.await()
+        var last = 0L
+        var count = 0L
+        while (!stop.get()) {
+          val snapshot = store.beginRead()
+          val counter = snapshot.getLong("counter", -1)
+          if (counter < last || counter != snapshot.getLong("counter_copy", -1) || store.getLong("counter", -1) < counter) {
+            failure.set(true)
+          }
+          last = counter
+          count++
+        }
+        reads.addAndGet(count)
+      }
+    }
+
+    executor.execute {
+      start.await()
+      var i = 0L
+      while (!stop.get()) {
+        i++
+        store.beginWrite().putLong("counter", i).putLong("counter_copy", i).apply()
+      }
+      writes.set(i)
+    }
+
+    start.countDown()
+    Thread.sleep(200)
+    stop.set(true)
+    executor.shutdown()
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS))
+    store.blockUntilAllWritesFinished()
+
+    assertTrue(reads.get() > 0)
+    assertFalse(failure.get())
+    assertEquals(writes.get(), store.getLong("counter", 0))
+  }
+}
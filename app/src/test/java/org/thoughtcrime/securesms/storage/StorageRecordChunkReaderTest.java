@@ -0,0 +1,265 @@
+package org.thoughtcrime.securesms.storage;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.libsignal.protocol.InvalidKeyException;
+import org.whispersystems.signalservice.api.storage.SignalStorageRecord;
+import org.whispersystems.signalservice.api.storage.StorageId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class StorageRecordChunkReaderTest {
+
+  private static final int RECORD_COUNT = 20_000;
+  private static final int CHUNK_SIZE   = 1000;
+  private static final int IN_FLIGHT    = 2;
+  private static final int UNKNOWN_TYPE = 1000;
+
+  private ExecutorService    executor;
+  private FakeStorageService storageService;
+  private List<StorageId>    ids;
+
+  @Before
+  public void setUp() {
+    executor       = Executors.newFixedThreadPool(4);
+    storageService = new FakeStorageService();
+    ids            = new ArrayList<>(RECORD_COUNT);
+
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      StorageId id = StorageId.forType(ByteBuffer.allocate(16).putInt(i).array(), UNKNOWN_TYPE);
+      storageService.put(id);
+      ids.add(id);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void readAll_deliversEveryRecordInOrderInBoundedChunks() throws Exception {
+    List<StorageId> delivered  = new ArrayList<>(RECORD_COUNT);
+    AtomicInteger   chunkCalls = new AtomicInteger();
+
+    int found = reader().readAll(ids, (records, chunk, chunkCount) -> {
+      assertEquals(chunkCalls.getAndIncrement(), chunk);
+      assertEquals(RECORD_COUNT / CHUNK_SIZE, chunkCount);
+      assertTrue(records.size() <= CHUNK_SIZE);
+
+      for (SignalStorageRecord record : records) {
+        delivered.add(record.getId());
+      }
+    });
+
+    assertEquals(RECORD_COUNT, found);
+    assertEquals(RECORD_COUNT / CHUNK_SIZE, chunkCalls.get());
+    assertEquals(RECORD_COUNT / CHUNK_SIZE, storageService.requests.get());
+    assertEquals(CHUNK_SIZE, storageService.largestRequest.get());
+    assertEquals(RECORD_COUNT, delivered.size());
+
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      assertArrayEquals(ids.get(i).getRaw(), delivered.get(i).getRaw());
+    }
+  }
+
+  @Test
+  public void readAll_readsAheadWhileTheConsumerIsMerging() throws Exception {
+    reader().readAll(ids, (records, chunk, chunkCount) -> {
+      if (chunk + 1 < chunkCount) {
+        assertTrue("Chunk " + (chunk + 1) + " was not read ahead of the consumer", storageService.awaitRead(chunk + 1));
+      }
+    });
+  }
+
+  @Test
+  public void readAll_boundsTheNumberOfChunksHeldInMemory() throws Exception {
+    AtomicInteger consumed = new AtomicInteger();
+
+    reader().readAll(ids, (records, chunk, chunkCount) -> {
+      int read = storageService.requests.get();
+      assertTrue("Read " + read + " chunks while merging chunk " + chunk, read - consumed.get() <= IN_FLIGHT + 1);
+
+      consumed.incrementAndGet();
+    });
+
+    assertTrue(storageService.maxConcurrentRequests.get() <= IN_FLIGHT);
+  }
+
+  @Test
+  public void readAll_withMissingRecords() throws Exception {
+    Set<Integer> missing = new HashSet<>(Arrays.asList(0, 999, 1000, 12_345, RECORD_COUNT - 1));
+
+    for (int i : missing) {
+      storageService.remove(ids.get(i));
+    }
+
+    AtomicInteger delivered = new AtomicInteger();
+
+    int found = reader().readAll(ids, (records, chunk, chunkCount) -> delivered.addAndGet(records.size()));
+
+    assertEquals(RECORD_COUNT - missing.size(), found);
+    assertEquals(RECORD_COUNT - missing.size(), delivered.get());
+  }
+
+  @Test
+  public void readAll_withNoIds() throws Exception {
+    int found = reader().readAll(new ArrayList<>(), (records, chunk, chunkCount) -> fail());
+
+    assertEquals(0, found);
+    assertEquals(0, storageService.requests.get());
+  }
+
+  @Test
+  public void readAll_stopsAtTheFirstChunkThatFailsToRead() throws Exception {
+    storageService.failOnRequestContaining(ids.get(5 * CHUNK_SIZE + 10));
+
+    AtomicInteger delivered = new AtomicInteger();
+
+    try {
+      reader().readAll(ids, (records, chunk, chunkCount) -> delivered.incrementAndGet());
+      fail();
+    } catch (IOException e) {
+      assertEquals(5, delivered.get());
+    }
+
+    assertTrue(storageService.requests.get() <= 5 + IN_FLIGHT + 1);
+  }
+
+  @Test
+  public void readAll_stopsReadingWhenTheConsumerFails() throws Exception {
+    try {
+      reader().readAll(ids, (records, chunk, chunkCount) -> {
+        if (chunk == 3) {
+          throw new IOException();
+        }
+      });
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertTrue(storageService.requests.get() <= 4 + IN_FLIGHT);
+  }
+
+  @Test
+  public void readAll_onASaturatedExecutor() throws Exception {
+    ExecutorService saturated = Executors.newSingleThreadExecutor();
+    CountDownLatch  release   = new CountDownLatch(1);
+
+    saturated.execute(() -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    try {
+      int found = new StorageRecordChunkReader(storageService, saturated, CHUNK_SIZE, IN_FLIGHT).readAll(ids, (records, chunk, chunkCount) -> {});
+
+      assertEquals(RECORD_COUNT, found);
+    } finally {
+      release.countDown();
+      saturated.shutdownNow();
+    }
+  }
+
+  private @NonNull StorageRecordChunkReader reader() {
+    return new StorageRecordChunkReader(storageService, executor, CHUNK_SIZE, IN_FLIGHT);
+  }
+
+  /**
+   * Stands in for the storage service, returning an unknown record for every id it holds.
+   */
+  private static final class FakeStorageService implements StorageRecordChunkReader.Reader {
+
+    private final Map<ByteBuffer, SignalStorageRecord> records               = new HashMap<>();
+    private final AtomicInteger                        requests              = new AtomicInteger();
+    private final AtomicInteger                        largestRequest        = new AtomicInteger();
+    private final AtomicInteger                        concurrentRequests    = new AtomicInteger();
+    private final AtomicInteger                        maxConcurrentRequests = new AtomicInteger();
+    private final List<CountDownLatch>                 reads                 = new ArrayList<>();
+
+    private volatile ByteBuffer failOn;
+
+    void put(@NonNull StorageId id) {
+      records.put(ByteBuffer.wrap(id.getRaw()), SignalStorageRecord.forUnknown(id));
+    }
+
+    void remove(@NonNull StorageId id) {
+      records.remove(ByteBuffer.wrap(id.getRaw()));
+    }
+
+    void failOnRequestContaining(@NonNull StorageId id) {
+      failOn = ByteBuffer.wrap(id.getRaw());
+    }
+
+    boolean awaitRead(int request) {
+      try {
+        return latch(request).await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public @NonNull List<SignalStorageRecord> read(@NonNull List<StorageId> ids) throws IOException, InvalidKeyException {
+      int request = requests.getAndIncrement();
+      int current = concurrentRequests.incrementAndGet();
+
+      maxConcurrentRequests.accumulateAndGet(current, Math::max);
+      largestRequest.accumulateAndGet(ids.size(), Math::max);
+
+      try {
+        List<SignalStorageRecord> result = new ArrayList<>(ids.size());
+
+        for (StorageId id : ids) {
+          ByteBuffer key = ByteBuffer.wrap(id.getRaw());
+
+          if (key.equals(failOn)) {
+            throw new IOException("Read failed");
+          }
+
+          SignalStorageRecord record = records.get(key);
+          if (record != null) {
+            result.add(record);
+          }
+        }
+
+        return result;
+      } finally {
+        concurrentRequests.decrementAndGet();
+        latch(request).countDown();
+      }
+    }
+
+    private synchronized @NonNull CountDownLatch latch(int request) {
+      while (reads.size() <= request) {
+        reads.add(new CountDownLatch(1));
+      }
+      return reads.get(request);
+    }
+  }
+}
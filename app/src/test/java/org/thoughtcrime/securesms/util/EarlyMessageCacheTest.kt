@@ -0,0 +1,196 @@
+package org.thoughtcrime.securesms.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.thoughtcrime.securesms.database.model.ServiceMessageId
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.whispersystems.signalservice.api.crypto.EnvelopeMetadata
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Content
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.ReceiptMessage
+import java.util.UUID
+import java.util.function.Supplier
+import kotlin.random.Random
+
+class EarlyMessageCacheTest {
+
+  private val store = FakeStore()
+  private var now = 1_000_000L
+
+  @Test
+  fun `replaying out-of-order envelopes loses nothing when memory fills up`() {
+    val cache = EarlyMessageCache(store, 16 * 1024, Long.MAX_VALUE, TTL, { now }, { it.run() })
+    val random = Random(1)
+
+    val targets: List<ServiceMessageId> = (1..1000).map { ServiceMessageId(RecipientId.from(random.nextLong(1, 50)), it.toLong()) }.distinct()
+    val early: List<Pair<ServiceMessageId, Long>> = targets.flatMap { target -> (0 until random.nextInt(1, 4)).map { target to random.nextLong() } }.shuffled(random)
+
+    for ((target, receiptTimestamp) in early) {
+      cache.store(target.sender, target.sentTimestamp, receipt(target.sentTimestamp, receiptTimestamp))
+      now++
+    }
+
+    assertTrue(cache.metrics.spills > 0)
+    assertEquals(targets.toSet(), cache.allReferencedIds.toSet())
+
+    for (target in targets.shuffled(random)) {
+      val expected: List<Long> = early.filter { it.first == target }.map { it.second }
+      val actual: List<Long> = cache.retrieveV2(target.sender, target.sentTimestamp).get().map { it.envelope.serverTimestamp }
+
+      assertEquals(expected, actual)
+    }
+
+    val metrics = cache.metrics
+    assertEquals(early.size.toLong(), metrics.hits)
+    assertEquals(0L, metrics.evictions)
+    assertEquals(0, metrics.memoryCount)
+    assertEquals(0L, metrics.memoryBytes)
+    assertTrue(store.rows.isEmpty())
+    assertTrue(cache.allReferencedIds.isEmpty())
+  }
+
+  @Test
+  fun `entries expire after the ttl in memory and on disk`() {
+    val cache = EarlyMessageCache(store, 1024, Long.MAX_VALUE, TTL, { now }, { it.run() })
+
+    for (i in 1L..50L) {
+      cache.store(RecipientId.from(1), i, receipt(i, i))
+    }
+    assertFalse(store.rows.isEmpty())
+
+    now += TTL
+
+    assertTrue(cache.allReferencedIds.isEmpty())
+    assertFalse(cache.retrieveV2(RecipientId.from(1), 50).isPresent)
+    assertEquals(50L, cache.metrics.expirations)
+    assertTrue(store.rows.isEmpty())
+  }
+
+  @Test
+  fun `the oldest entries are evicted once the disk budget is full`() {
+    val cache = EarlyMessageCache(store, 1024, 4 * 1024, TTL, { now }, { it.run() })
+
+    for (i in 1L..200L) {
+      cache.store(RecipientId.from(1), i, receipt(i, i))
+    }
+
+    val metrics = cache.metrics
+    assertTrue(metrics.evictions > 0)
+    assertTrue(store.rows.sumOf { it.second.size } <= 4 * 1024)
+    assertFalse(cache.retrieveV2(RecipientId.from(1), 1).isPresent)
+    assertTrue(cache.retrieveV2(RecipientId.from(1), 200).isPresent)
+  }
+
+  @Test
+  fun `spills are written later on the write executor and can be retrieved before then`() {
+    val writes: MutableList<Runnable> = mutableListOf()
+    val cache = EarlyMessageCache(store, 1024, Long.MAX_VALUE, TTL, { now }, { writes += it })
+
+    for (i in 1L..50L) {
+      cache.store(RecipientId.from(1), i, receipt(i, i))
+    }
+
+    assertTrue(writes.isNotEmpty())
+    assertTrue(store.rows.isEmpty())
+    assertEquals(listOf(1L), cache.retrieveV2(RecipientId.from(1), 1).get().map { it.envelope.serverTimestamp })
+
+    writes.forEach { it.run() }
+
+    assertFalse(store.rows.isEmpty())
+    assertFalse(store.rows.any { it.first.sentTimestamp == 1L })
+    assertEquals((2L..50L).toSet(), cache.allReferencedIds.map { it.sentTimestamp }.toSet())
+  }
+
+  @Test
+  fun `a miss does not touch the disk store`() {
+    val cache = EarlyMessageCache(store, 1024, Long.MAX_VALUE, TTL, { now }, { it.run() })
+
+    cache.retrieveV2(RecipientId.from(1), 1)
+    cache.retrieveV2(RecipientId.from(2), 2)
+
+    assertEquals(2L, cache.metrics.misses)
+    assertEquals(1, store.getAllIdsCalls)
+    assertEquals(0, store.removeCalls)
+  }
+
+  private fun receipt(targetTimestamp: Long, serverTimestamp: Long): EarlyMessageCacheEntry {
+    val envelope = Envelope.newBuilder()
+      .setTimestamp(targetTimestamp + 1)
+      .setServerTimestamp(serverTimestamp)
+      .build()
+
+    val content = Content.newBuilder()
+      .setReceiptMessage(ReceiptMessage.newBuilder().setType(ReceiptMessage.Type.DELIVERY).addTimestamp(targetTimestamp))
+      .build()
+
+    val metadata = EnvelopeMetadata(
+      sourceServiceId = SENDER,
+      sourceE164 = null,
+      sourceDeviceId = 1,
+      sealedSender = true,
+      groupId = null,
+      destinationServiceId = SELF
+    )
+
+    return EarlyMessageCacheEntry(envelope, content, metadata, serverTimestamp)
+  }
+
+  /**
+   * Stands in for the database table, keeping rows in insertion order like its auto-incrementing ids.
+   */
+  private class FakeStore : EarlyMessageCache.Store {
+    val rows: MutableList<Pair<ServiceMessageId, EarlyMessageCache.Item>> = mutableListOf()
+    var getAllIdsCalls = 0
+    var removeCalls = 0
+
+    override fun <T> runInTransaction(block: Supplier<T>): T {
+      return block.get()
+    }
+
+    override fun insert(items: Map<ServiceMessageId, List<EarlyMessageCache.Item>>) {
+      for ((id, idItems) in items) {
+        idItems.forEach { rows += id to it }
+      }
+    }
+
+    override fun remove(id: ServiceMessageId, legacy: Boolean): List<EarlyMessageCache.Item> {
+      removeCalls++
+      val removed = rows.filter { it.first == id && it.second.isLegacy == legacy }
+      rows.removeAll(removed)
+      return removed.map { it.second }
+    }
+
+    override fun contains(id: ServiceMessageId): Boolean {
+      return rows.any { it.first == id }
+    }
+
+    override fun getAllIds(): Collection<ServiceMessageId> {
+      getAllIdsCalls++
+      return rows.map { it.first }.toSet()
+    }
+
+    override fun deleteExpired(now: Long): Int {
+      val expired = rows.filter { it.second.expiresAt <= now }
+      rows.removeAll(expired)
+      return expired.size
+    }
+
+    override fun trimToSize(maxBytes: Long): Int {
+      var deleted = 0
+      while (rows.sumOf { it.second.size.toLong() } > maxBytes) {
+        rows.removeAt(0)
+        deleted++
+      }
+      return deleted
+    }
+  }
+
+  companion object {
+    private const val TTL = 60_000L
+    private val SENDER = ACI.from(UUID.randomUUID())
+    private val SELF = ACI.from(UUID.randomUUID())
+  }
+}
@@ -0,0 +1,95 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureFlagsSnapshotTest {
+
+  private static final String A = "A";
+  private static final String B = "B";
+  private static final String C = "C";
+
+  @BeforeClass
+  public static void setUpClass() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void getBoolean_parsesBooleansAndStrings() {
+    FeatureFlagsSnapshot snapshot = FeatureFlagsSnapshot.compile(values(A, true, B, "FALSE", C, "maybe"), values());
+
+    assertTrue(snapshot.getBoolean(A, false));
+    assertFalse(snapshot.getBoolean(B, true));
+    assertTrue(snapshot.getBoolean(C, true));
+    assertFalse(snapshot.getBoolean("missing", false));
+  }
+
+  @Test
+  public void getInteger_onlyParsesStrings() {
+    FeatureFlagsSnapshot snapshot = FeatureFlagsSnapshot.compile(values(A, "42", B, 7, C, "nope"), values());
+
+    assertEquals(42, snapshot.getInteger(A, 0));
+    assertEquals(0, snapshot.getInteger(B, 0));
+    assertEquals(-1, snapshot.getInteger(C, -1));
+  }
+
+  @Test
+  public void getLong_parsesValuesLargerThanAnInt() {
+    FeatureFlagsSnapshot snapshot = FeatureFlagsSnapshot.compile(values(A, "10000000000"), values());
+
+    assertEquals(10000000000L, snapshot.getLong(A, 0));
+    assertEquals(-1, snapshot.getInteger(A, -1));
+  }
+
+  @Test
+  public void getString_onlyReturnsStrings() {
+    FeatureFlagsSnapshot snapshot = FeatureFlagsSnapshot.compile(values(A, "value", B, true), values());
+
+    assertEquals("value", snapshot.getString(A, null));
+    assertNull(snapshot.getString(B, null));
+  }
+
+  @Test
+  public void forcedValues_takePrecedence() {
+    FeatureFlagsSnapshot snapshot = FeatureFlagsSnapshot.compile(values(A, false, B, "1", C, "remote"),
+                                                                 values(A, true, B, 2, C, "forced"));
+
+    assertTrue(snapshot.getBoolean(A, false));
+    assertEquals(2, snapshot.getInteger(B, 0));
+    assertEquals("forced", snapshot.getString(C, null));
+  }
+
+  @Test
+  public void getters_matchParsingTheRawValues() {
+    Map<String, Object> remote = new TreeMap<>();
+    for (int i = 0; i < 100; i++) {
+      remote.put("android.flag." + i, i % 2 == 0 ? "true" : String.valueOf(i * 1000));
+    }
+
+    FeatureFlagsSnapshot snapshot = FeatureFlagsSnapshot.compile(remote, values());
+
+    for (int i = 0; i < 100; i += 2) {
+      assertTrue(snapshot.getBoolean("android.flag." + i, false));
+      assertEquals(Integer.parseInt((String) remote.get("android.flag." + (i + 1))), snapshot.getInteger("android.flag." + (i + 1), 0));
+    }
+  }
+
+  private static Map<String, Object> values(Object... keyValues) {
+    Map<String, Object> values = new HashMap<>();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      values.put((String) keyValues[i], keyValues[i + 1]);
+    }
+    return values;
+  }
+}
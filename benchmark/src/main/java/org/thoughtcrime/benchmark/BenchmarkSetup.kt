@@ -5,8 +5,8 @@ import androidx.test.uiautomator.UiDevice
 import androidx.test.uiautomator.Until
 
 object BenchmarkSetup {
-  fun setup(type: String, device: UiDevice) {
+  fun setup(type: String, device: UiDevice, timeout: Long = 25_000L) {
     device.executeShellCommand("am start -W -n org.thoughtcrime.securesms/org.signal.benchmark.BenchmarkSetupActivity --es setup-type $type")
-    device.wait(Until.hasObject(By.textContains("done")), 25_000L)
+    device.wait(Until.hasObject(By.textContains("done")), timeout)
   }
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import androidx.benchmark.macro.TraceSectionMetric
 import androidx.benchmark.macro.junit4.MacrobenchmarkRule
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.uiautomator.By
+import androidx.test.uiautomator.Direction
 import androidx.test.uiautomator.Until
 import org.junit.Rule
 import org.junit.Test
@@ -51,4 +52,71 @@ class ConversationBenchmarks {
       device.wait(Until.hasObject(By.textContains("Test")), 5_000L)
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Opens a conversation of 20,000 messages at its first unread message, near the start of the thread, so the first pages are
+   * loaded from deep in the thread.
+   */
+  @OptIn(ExperimentalMetricApi::class)
+  @Test
+  fun largeConversationOpen() {
+    var setup = false
+    benchmarkRule.measureRepeated(
+      packageName = "org.thoughtcrime.securesms",
+      metrics = listOf(
+        TraceSectionMetric("6-ConversationOpen"),
+        TraceSectionMetric("ConversationDataSource#load"),
+      ),
+      iterations = 10,
+      compilationMode = CompilationMode.Partial(),
+      setupBlock = {
+        if (!setup) {
+          BenchmarkSetup.setup("conversation-open-large", device, timeout = 180_000L)
+          setup = true
+        }
+        killProcess()
+        if (Build.VERSION.SDK_INT >= 33) {
+          device.executeShellCommand("pm grant $packageName ${Manifest.permission.POST_NOTIFICATIONS}")
+        }
+        startActivityAndWait()
+        device.waitForIdle()
+      }) {
+      device.findObject(By.textContains("Buddy")).click()
+      device.wait(Until.hasObject(By.textContains("Signal message")), 10_000L)
+      device.wait(Until.hasObject(By.textContains("Test")), 5_000L)
+    }
+  }
+
+  @OptIn(ExperimentalMetricApi::class)
+  @Test
+  fun conversationPageLoad() {
+    var setup = false
+    benchmarkRule.measureRepeated(
+      packageName = "org.thoughtcrime.securesms",
+      metrics = listOf(
+        TraceSectionMetric("ConversationDataSource#load"),
+      ),
+      iterations = 10,
+      compilationMode = CompilationMode.Partial(),
+      setupBlock = {
+        if (!setup) {
+          BenchmarkSetup.setup("conversation-open", device)
+          setup = true
+        }
+        killProcess()
+        if (Build.VERSION.SDK_INT >= 33) {
+          device.executeShellCommand("pm grant $packageName ${Manifest.permission.POST_NOTIFICATIONS}")
+        }
+        startActivityAndWait()
+        device.waitForIdle()
+        device.findObject(By.textContains("Buddy")).click()
+        device.wait(Until.hasObject(By.textContains("Test")), 10_000L)
+      }) {
+      val list = device.findObject(By.res(packageName, "conversation_item_recycler"))
+      repeat(5) {
+        list.fling(Direction.UP)
+        device.waitForIdle()
+      }
+    }
+  }
+}
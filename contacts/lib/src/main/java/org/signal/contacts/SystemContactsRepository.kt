@@ -91,26 +91,86 @@ object SystemContactsRepository {
    */
   @JvmStatic
   fun getAllSystemContacts(context: Context, e164Formatter: (String) -> String): ContactIterator {
-    val uri = ContactsContract.Data.CONTENT_URI
-    val projection = arrayOf(
-      ContactsContract.Data.MIMETYPE,
-      ContactsContract.CommonDataKinds.Phone.NUMBER,
-      ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME,
-      ContactsContract.CommonDataKinds.Phone.LABEL,
-      ContactsContract.CommonDataKinds.Phone.PHOTO_URI,
-      ContactsContract.CommonDataKinds.Phone._ID,
-      ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY,
-      ContactsContract.CommonDataKinds.Phone.TYPE,
-      ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME,
-      ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME
+    return queryContactDetails(context, where = null, args = emptyArray(), e164Formatter = e164Formatter)
+  }
+
+  /**
+   * Gets the contacts that were added, changed or deleted after [since], which should be a value previously returned by [getLastChangeTimestamp].
+   *
+   * This lets a sync only visit what changed rather than walking every contact. Changed contacts are returned in full, in the same form as
+   * [getAllSystemContacts]. Deleted contacts only leave behind their contact ID, which isn't stable, so all we can say is whether there were any.
+   * Callers can compare the lookup keys they know about against [getAllLookupKeys] to find them.
+   *
+   * @return The changes, or null if the system no longer remembers everything that changed since then, in which case a full sync is needed.
+   */
+  @JvmStatic
+  fun getSystemContactChangesSince(context: Context, since: Long, e164Formatter: (String) -> String): SystemContactChanges? {
+    if (since <= 0 || since < System.currentTimeMillis() - ContactsContract.DeletedContacts.DAYS_KEPT_MILLISECONDS) {
+      return null
+    }
+
+    val hasDeletions: Boolean = context.contentResolver.query(
+      ContactsContract.DeletedContacts.CONTENT_URI.withLimit(1),
+      arrayOf(ContactsContract.DeletedContacts.CONTACT_ID),
+      "${ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP} > ?",
+      SqlUtil.buildArgs(since),
+      null
+    )?.use { it.moveToFirst() } ?: false
+
+    val changedContacts: ContactIterator = queryContactDetails(
+      context = context,
+      where = "${ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP} > ?",
+      args = SqlUtil.buildArgs(since),
+      e164Formatter = e164Formatter
     )
-    val where = "${ContactsContract.Data.MIMETYPE} IN (?, ?)"
-    val args = SqlUtil.buildArgs(ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
-    val orderBy = "${ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY} ASC, ${ContactsContract.Data.MIMETYPE} DESC, ${ContactsContract.CommonDataKinds.Phone._ID} DESC"
 
-    val cursor: Cursor = context.contentResolver.query(uri, projection, where, args, orderBy) ?: return EmptyContactIterator()
+    return SystemContactChanges(changedContacts, hasDeletions)
+  }
 
-    return CursorContactIterator(cursor, e164Formatter)
+  /**
+   * The time of the most recent change to the system contacts, whether an update or a deletion. Read this before reading the contacts themselves
+   * and pass it to [getSystemContactChangesSince] on the next sync, so that anything that changes while syncing is picked up next time.
+   */
+  @JvmStatic
+  fun getLastChangeTimestamp(context: Context): Long {
+    val lastUpdated: Long = getLatestTimestamp(context, ContactsContract.Contacts.CONTENT_URI, ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP)
+    val lastDeleted: Long = getLatestTimestamp(context, ContactsContract.DeletedContacts.CONTENT_URI, ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP)
+
+    return maxOf(lastUpdated, lastDeleted)
+  }
+
+  /**
+   * Retrieves the lookup keys of every contact currently in the system contacts.
+   */
+  @JvmStatic
+  fun getAllLookupKeys(context: Context): Set<String> {
+    val lookupKeys: MutableSet<String> = mutableSetOf()
+
+    context.contentResolver.query(ContactsContract.Contacts.CONTENT_URI, arrayOf(ContactsContract.Contacts.LOOKUP_KEY), null, null, null)?.use { cursor ->
+      while (cursor.moveToNext()) {
+        val lookupKey: String? = cursor.requireString(ContactsContract.Contacts.LOOKUP_KEY)
+        if (lookupKey != null) {
+          lookupKeys += lookupKey
+        }
+      }
+    }
+
+    return lookupKeys
+  }
+
+  /**
+   * Gets the lookup key out of a [ContactPhoneDetails.contactUri], or null if it isn't a lookup URI.
+   */
+  @JvmStatic
+  fun getLookupKey(contactUri: String): String? {
+    val segments: List<String> = Uri.parse(contactUri).encodedPath?.split('/') ?: return null
+    val lookupIndex: Int = segments.indexOf("lookup")
+
+    return if (lookupIndex >= 0 && lookupIndex + 1 < segments.size && segments[lookupIndex + 1].isNotEmpty()) {
+      segments[lookupIndex + 1]
+    } else {
+      null
+    }
   }
 
   @JvmStatic
@@ -133,28 +193,14 @@ object SystemContactsRepository {
       return EmptyContactIterator()
     }
 
-    val uri = ContactsContract.Data.CONTENT_URI
-    val projection = arrayOf(
-      ContactsContract.Data.MIMETYPE,
-      ContactsContract.CommonDataKinds.Phone.NUMBER,
-      ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME,
-      ContactsContract.CommonDataKinds.Phone.LABEL,
-      ContactsContract.CommonDataKinds.Phone.PHOTO_URI,
-      ContactsContract.CommonDataKinds.Phone._ID,
-      ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY,
-      ContactsContract.CommonDataKinds.Phone.TYPE,
-      ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME,
-      ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME
-    )
-
     val lookupPlaceholder = lookupKeys.map { "?" }.joinToString(separator = ",")
 
-    val where = "${ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY} IN ($lookupPlaceholder) AND ${ContactsContract.Data.MIMETYPE} IN (?, ?)"
-    val args = lookupKeys.toTypedArray() + SqlUtil.buildArgs(ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
-    val orderBy = "${ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY} ASC, ${ContactsContract.Data.MIMETYPE} DESC, ${ContactsContract.CommonDataKinds.Phone._ID} DESC"
-
-    val cursor: Cursor = context.contentResolver.query(uri, projection, where, args, orderBy) ?: return EmptyContactIterator()
-    return CursorContactIterator(cursor, e164Formatter)
+    return queryContactDetails(
+      context = context,
+      where = "${ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY} IN ($lookupPlaceholder)",
+      args = lookupKeys.toTypedArray(),
+      e164Formatter = e164Formatter
+    )
   }
 
   /**
@@ -443,6 +489,49 @@ object SystemContactsRepository {
     return null
   }
 
+  /**
+   * Queries the phone and structured name data for the contacts matching [where], grouped together by lookup key as described in [CursorContactIterator].
+   */
+  private fun queryContactDetails(context: Context, where: String?, args: Array<String>, e164Formatter: (String) -> String): ContactIterator {
+    val uri = ContactsContract.Data.CONTENT_URI
+    val projection = arrayOf(
+      ContactsContract.Data.MIMETYPE,
+      ContactsContract.CommonDataKinds.Phone.NUMBER,
+      ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME,
+      ContactsContract.CommonDataKinds.Phone.LABEL,
+      ContactsContract.CommonDataKinds.Phone.PHOTO_URI,
+      ContactsContract.CommonDataKinds.Phone._ID,
+      ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY,
+      ContactsContract.CommonDataKinds.Phone.TYPE,
+      ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME,
+      ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME
+    )
+    val mimeTypeWhere = "${ContactsContract.Data.MIMETYPE} IN (?, ?)"
+    val mimeTypeArgs = SqlUtil.buildArgs(ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
+    val orderBy = "${ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY} ASC, ${ContactsContract.Data.MIMETYPE} DESC, ${ContactsContract.CommonDataKinds.Phone._ID} DESC"
+
+    val fullWhere = if (where != null) "$where AND $mimeTypeWhere" else mimeTypeWhere
+    val fullArgs = args + mimeTypeArgs
+
+    val cursor: Cursor = context.contentResolver.query(uri, projection, fullWhere, fullArgs, orderBy) ?: return EmptyContactIterator()
+
+    return CursorContactIterator(cursor, e164Formatter)
+  }
+
+  private fun getLatestTimestamp(context: Context, uri: Uri, column: String): Long {
+    context.contentResolver.query(uri.withLimit(1), arrayOf(column), null, null, "$column DESC")?.use { cursor ->
+      if (cursor.moveToFirst()) {
+        return cursor.requireLong(column)
+      }
+    }
+
+    return 0
+  }
+
+  private fun Uri.withLimit(limit: Int): Uri {
+    return buildUpon().appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY, limit.toString()).build()
+  }
+
   private fun buildUpdateDisplayNameOperations(
     displayName: String?,
     rawContactId: Long,
@@ -634,6 +723,18 @@ object SystemContactsRepository {
     }
   }
 
+  /**
+   * See [getSystemContactChangesSince].
+   */
+  class SystemContactChanges(
+    val changedContacts: ContactIterator,
+    val hasDeletions: Boolean
+  ) : Closeable {
+    override fun close() {
+      changedContacts.close()
+    }
+  }
+
   private class EmptyContactIterator : ContactIterator {
     override fun close() {}
     override fun hasNext(): Boolean = false
@@ -698,7 +799,8 @@ object SystemContactsRepository {
       return ContactDetails(
         givenName = structuredName?.givenName,
         familyName = structuredName?.familyName,
-        numbers = phoneDetails
+        numbers = phoneDetails,
+        lookupKey = lookupKey
       )
     }
 
@@ -770,7 +872,8 @@ object SystemContactsRepository {
   data class ContactDetails(
     val givenName: String?,
     val familyName: String?,
-    val numbers: List<ContactPhoneDetails>
+    val numbers: List<ContactPhoneDetails>,
+    val lookupKey: String
   )
 
   data class ContactPhoneDetails(
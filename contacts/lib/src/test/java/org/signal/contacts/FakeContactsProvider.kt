@@ -0,0 +1,144 @@
+package org.signal.contacts
+
+import android.content.ContentProvider
+import android.content.ContentValues
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import android.net.Uri
+import android.provider.BaseColumns
+import android.provider.ContactsContract
+import androidx.core.content.contentValuesOf
+import androidx.test.core.app.ApplicationProvider
+
+/**
+ * Stands in for the system contacts provider, backed by an in-memory database.
+ *
+ * Only models what [SystemContactsRepository] reads: the data table (with the contact's last updated timestamp joined in, like the real one), the
+ * contacts table and the deleted contacts table. Queries are passed straight through to the table named by the last path segment of the URI.
+ */
+class FakeContactsProvider : ContentProvider() {
+
+  private val database: InMemoryDatabase = InMemoryDatabase()
+
+  override fun onCreate(): Boolean {
+    return false
+  }
+
+  override fun query(uri: Uri, projection: Array<out String>?, selection: String?, selectionArgs: Array<out String>?, sortOrder: String?): Cursor? {
+    val limit: String? = uri.getQueryParameter(ContactsContract.LIMIT_PARAM_KEY)
+    return database.readableDatabase.query(uri.lastPathSegment, projection, selection, selectionArgs, null, null, sortOrder, limit)
+  }
+
+  override fun getType(uri: Uri): String? = null
+
+  override fun insert(uri: Uri, values: ContentValues?): Uri? = null
+
+  override fun delete(uri: Uri, selection: String?, selectionArgs: Array<out String>?): Int = 0
+
+  override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<out String>?): Int = 0
+
+  /**
+   * Adds a contact, or replaces all of the data for an existing one, the way an edit in the contacts app would.
+   */
+  fun upsertContact(lookupKey: String, givenName: String?, familyName: String?, numbers: List<String>, time: Long) {
+    val db = database.writableDatabase
+
+    db.delete(DATA, "${ContactsContract.Data.LOOKUP_KEY} = ?", arrayOf(lookupKey))
+
+    val updated = db.update(CONTACTS, contentValuesOf(ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP to time), "${ContactsContract.Contacts.LOOKUP_KEY} = ?", arrayOf(lookupKey))
+    if (updated == 0) {
+      db.insert(CONTACTS, null, contentValuesOf(ContactsContract.Contacts.LOOKUP_KEY to lookupKey, ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP to time))
+    }
+
+    val displayName = listOfNotNull(givenName, familyName).joinToString(" ")
+
+    for (number in numbers) {
+      db.insert(
+        DATA,
+        null,
+        contentValuesOf(
+          ContactsContract.Data.MIMETYPE to ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE,
+          ContactsContract.CommonDataKinds.Phone.NUMBER to number,
+          ContactsContract.CommonDataKinds.Phone.TYPE to ContactsContract.CommonDataKinds.Phone.TYPE_MOBILE,
+          ContactsContract.Data.DISPLAY_NAME to displayName,
+          ContactsContract.Data.LOOKUP_KEY to lookupKey,
+          ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP to time
+        )
+      )
+    }
+
+    db.insert(
+      DATA,
+      null,
+      contentValuesOf(
+        ContactsContract.Data.MIMETYPE to ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE,
+        ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME to givenName,
+        ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME to familyName,
+        ContactsContract.Data.DISPLAY_NAME to displayName,
+        ContactsContract.Data.LOOKUP_KEY to lookupKey,
+        ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP to time
+      )
+    )
+  }
+
+  fun deleteContact(lookupKey: String, time: Long) {
+    val db = database.writableDatabase
+
+    db.query(CONTACTS, arrayOf(BaseColumns._ID), "${ContactsContract.Contacts.LOOKUP_KEY} = ?", arrayOf(lookupKey), null, null, null).use { cursor ->
+      while (cursor.moveToNext()) {
+        db.insert(DELETED_CONTACTS, null, contentValuesOf(ContactsContract.DeletedContacts.CONTACT_ID to cursor.getLong(0), ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP to time))
+      }
+    }
+
+    db.delete(CONTACTS, "${ContactsContract.Contacts.LOOKUP_KEY} = ?", arrayOf(lookupKey))
+    db.delete(DATA, "${ContactsContract.Data.LOOKUP_KEY} = ?", arrayOf(lookupKey))
+  }
+
+  private class InMemoryDatabase : SQLiteOpenHelper(ApplicationProvider.getApplicationContext(), null, null, 1) {
+    override fun onCreate(db: SQLiteDatabase) {
+      db.execSQL(
+        """
+        CREATE TABLE $DATA (
+          ${BaseColumns._ID} INTEGER PRIMARY KEY AUTOINCREMENT,
+          ${ContactsContract.Data.MIMETYPE} TEXT,
+          ${ContactsContract.Data.DATA1} TEXT,
+          ${ContactsContract.Data.DATA2} TEXT,
+          ${ContactsContract.Data.DATA3} TEXT,
+          ${ContactsContract.Data.DISPLAY_NAME} TEXT,
+          ${ContactsContract.Data.PHOTO_URI} TEXT,
+          ${ContactsContract.Data.LOOKUP_KEY} TEXT,
+          ${ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP} INTEGER
+        )
+        """
+      )
+
+      db.execSQL(
+        """
+        CREATE TABLE $CONTACTS (
+          ${BaseColumns._ID} INTEGER PRIMARY KEY AUTOINCREMENT,
+          ${ContactsContract.Contacts.LOOKUP_KEY} TEXT UNIQUE,
+          ${ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP} INTEGER
+        )
+        """
+      )
+
+      db.execSQL(
+        """
+        CREATE TABLE $DELETED_CONTACTS (
+          ${ContactsContract.DeletedContacts.CONTACT_ID} INTEGER,
+          ${ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP} INTEGER
+        )
+        """
+      )
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) = Unit
+  }
+
+  companion object {
+    private val DATA = ContactsContract.Data.CONTENT_URI.lastPathSegment!!
+    private val CONTACTS = ContactsContract.Contacts.CONTENT_URI.lastPathSegment!!
+    private val DELETED_CONTACTS = ContactsContract.DeletedContacts.CONTENT_URI.lastPathSegment!!
+  }
+}
@@ -0,0 +1,129 @@
+package org.signal.contacts
+
+import android.app.Application
+import android.content.Context
+import android.provider.ContactsContract
+import androidx.test.core.app.ApplicationProvider
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowContentResolver
+import org.signal.contacts.SystemContactsRepository.ContactDetails
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class SystemContactsRepositoryTest {
+
+  private lateinit var context: Context
+  private lateinit var provider: FakeContactsProvider
+
+  private var time: Long = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)
+
+  @Before
+  fun setUp() {
+    context = ApplicationProvider.getApplicationContext()
+    provider = FakeContactsProvider()
+    ShadowContentResolver.registerProviderInternal(ContactsContract.AUTHORITY, provider)
+
+    for (i in 0 until 100) {
+      provider.upsertContact(lookupKey(i), "Given $i", "Family $i", listOf(number(i)), time)
+    }
+  }
+
+  @Test
+  fun `applying the changes since a full scan matches another full scan`() {
+    val contacts: MutableMap<String, ContactDetails> = readAllContacts().toMutableMap()
+    val watermark: Long = SystemContactsRepository.getLastChangeTimestamp(context)
+
+    provider.upsertContact(lookupKey(5), "Renamed", null, listOf(number(5)), ++time)
+    provider.upsertContact(lookupKey(6), "Given 6", "Family 6", listOf(number(6), number(1006)), ++time)
+    provider.upsertContact(lookupKey(7), "Given 7", "Family 7", listOf(number(1007)), ++time)
+    provider.upsertContact(lookupKey(100), "Given 100", "Family 100", listOf(number(100)), ++time)
+    provider.deleteContact(lookupKey(8), ++time)
+    provider.deleteContact(lookupKey(9), ++time)
+
+    val changes = SystemContactsRepository.getSystemContactChangesSince(context, watermark) { it }
+    assertNotNull(changes)
+
+    val changed: List<ContactDetails> = changes!!.use { it.changedContacts.asSequence().toList() }
+
+    assertEquals(setOf(lookupKey(5), lookupKey(6), lookupKey(7), lookupKey(100)), changed.map { it.lookupKey }.toSet())
+    assertTrue(changes.hasDeletions)
+
+    contacts.keys.retainAll(SystemContactsRepository.getAllLookupKeys(context))
+    changed.forEach { contacts[it.lookupKey] = it }
+
+    assertEquals(readAllContacts(), contacts)
+  }
+
+  @Test
+  fun `only deletions since the watermark`() {
+    val watermark: Long = SystemContactsRepository.getLastChangeTimestamp(context)
+
+    provider.deleteContact(lookupKey(3), ++time)
+
+    val changes = SystemContactsRepository.getSystemContactChangesSince(context, watermark) { it }!!
+
+    changes.use {
+      assertFalse(it.changedContacts.hasNext())
+      assertTrue(it.hasDeletions)
+    }
+
+    assertEquals(time, SystemContactsRepository.getLastChangeTimestamp(context))
+  }
+
+  @Test
+  fun `no changes since the watermark`() {
+    val watermark: Long = SystemContactsRepository.getLastChangeTimestamp(context)
+
+    val changes = SystemContactsRepository.getSystemContactChangesSince(context, watermark) { it }!!
+
+    changes.use {
+      assertFalse(it.changedContacts.hasNext())
+      assertFalse(it.hasDeletions)
+    }
+  }
+
+  @Test
+  fun `no changes when the watermark is older than deletions are kept`() {
+    val tooOld = System.currentTimeMillis() - ContactsContract.DeletedContacts.DAYS_KEPT_MILLISECONDS - 1
+
+    assertNull(SystemContactsRepository.getSystemContactChangesSince(context, tooOld) { it })
+    assertNull(SystemContactsRepository.getSystemContactChangesSince(context, 0) { it })
+  }
+
+  @Test
+  fun `getLookupKey reads the key back out of a contact uri`() {
+    val contacts: Map<String, ContactDetails> = readAllContacts()
+
+    for ((lookupKey, details) in contacts) {
+      for (phone in details.numbers) {
+        assertEquals(lookupKey, SystemContactsRepository.getLookupKey(phone.contactUri.toString()))
+      }
+    }
+
+    assertNull(SystemContactsRepository.getLookupKey("content://com.android.contacts/contacts/1"))
+  }
+
+  private fun readAllContacts(): Map<String, ContactDetails> {
+    return SystemContactsRepository.getAllSystemContacts(context) { it }.use { iterator ->
+      iterator.asSequence().associateBy { it.lookupKey }
+    }
+  }
+
+  private fun lookupKey(i: Int): String {
+    return "0r$i-${i * 31}"
+  }
+
+  private fun number(i: Int): String {
+    return "+1555555" + i.toString().padStart(4, '0')
+  }
+}
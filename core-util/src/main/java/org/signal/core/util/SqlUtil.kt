@@ -4,6 +4,7 @@ import android.content.ContentValues
 import android.text.TextUtils
 import androidx.annotation.VisibleForTesting
 import androidx.sqlite.db.SupportSQLiteDatabase
+import org.signal.core.util.collections.LongCollection
 import org.signal.core.util.logging.Log
 import java.lang.Exception
 import java.util.LinkedList
@@ -281,6 +282,47 @@ object SqlUtil {
     }
   }
 
+  /**
+   * Same as [buildCollectionQuery], but for ids that are already in a [LongCollection], so that they don't have to be boxed into a List<Long> first.
+   * Each id still becomes a String argument.
+   */
+  @JvmOverloads
+  @JvmStatic
+  fun buildCollectionQuery(
+    column: String,
+    values: LongCollection,
+    prefix: String = "",
+    maxSize: Int = MAX_QUERY_ARGS,
+    collectionOperator: CollectionOperator = CollectionOperator.IN
+  ): List<Query> {
+    if (values.isEmpty) {
+      return emptyList()
+    }
+
+    val array = values.toArray()
+    val queries = ArrayList<Query>((array.size + maxSize - 1) / maxSize)
+    var start = 0
+
+    while (start < array.size) {
+      val end = minOf(start + maxSize, array.size)
+      val count = end - start
+      val placeholders = StringBuilder(count * 3)
+
+      for (i in 0 until count) {
+        if (i > 0) {
+          placeholders.append(", ")
+        }
+        placeholders.append("?")
+      }
+
+      val args = Array(count) { array[start + it].toString() }
+      queries += Query("$prefix $column ${collectionOperator.sql} ($placeholders)".trim(), args)
+      start = end
+    }
+
+    return queries
+  }
+
   /**
    * A convenient way of making queries in the form: WHERE [column] IN (?, ?, ..., ?)
    *
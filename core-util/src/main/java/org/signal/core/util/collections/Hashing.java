@@ -0,0 +1,58 @@
+package org.signal.core.util.collections;
+
+/**
+ * Shared sizing and hashing for the open addressing tables in this package.
+ *
+ * Tables are a power of two in size and at most three quarters full, which keeps the linear probe sequences short. Hashes are spread with a Fibonacci multiply
+ * first and then taking the top bits, because ids tend to be sequential and would otherwise fill runs of neighbouring slots.
+ */
+final class Hashing {
+
+  static final int MIN_CAPACITY = 8;
+  static final int MAX_CAPACITY = 1 << 30;
+
+  private Hashing() {}
+
+  /**
+   * @return The slot for the value in a table of 2^(64 - shift) slots, taken from the top bits of the product where the multiply has mixed in every bit.
+   */
+  static int slot(long value, int shift) {
+    return (int) ((value * 0x9E3779B97F4A7C15L) >>> shift);
+  }
+
+  /**
+   * Same as {@link #slot(long, int)} for an int hash code, so the shift is still in terms of 64 bits.
+   */
+  static int slot(int hashCode, int shift) {
+    return slot((long) hashCode, shift);
+  }
+
+  /**
+   * @return The shift to pass to the slot functions for a table of the given size.
+   */
+  static int shiftFor(int capacity) {
+    return 64 - Integer.numberOfTrailingZeros(capacity);
+  }
+
+  /**
+   * @return The table size needed to hold the expected number of entries without growing.
+   */
+  static int capacityFor(int expectedSize) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("Expected size must not be negative! size: " + expectedSize);
+    }
+
+    int capacity = MIN_CAPACITY;
+    while (resizeThreshold(capacity) < expectedSize && capacity < MAX_CAPACITY) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  /**
+   * @return The number of entries a table of the given size can hold before it has to grow.
+   */
+  static int resizeThreshold(int capacity) {
+    return capacity == MAX_CAPACITY ? capacity - 1 : capacity - (capacity >> 2);
+  }
+}
@@ -0,0 +1,20 @@
+package org.signal.core.util.collections;
+
+/**
+ * A collection of primitive longs, so that large sets of ids don't have to be boxed one {@link Long} at a time.
+ */
+public interface LongCollection {
+
+  int size();
+
+  default boolean isEmpty() {
+    return size() == 0;
+  }
+
+  boolean contains(long value);
+
+  /**
+   * @return A new array with every value in the collection, in iteration order.
+   */
+  long[] toArray();
+}
@@ -0,0 +1,238 @@
+package org.signal.core.util.collections;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A set of primitive longs, backed by a single open addressing array rather than a node and a boxed {@link Long} for every value.
+ *
+ * Zero marks an empty slot in the table, so whether the set holds zero is tracked on its own.
+ */
+public final class LongHashSet implements LongCollection {
+
+  private long[]  keys;
+  private int     mask;
+  private int     shift;
+  private int     resizeAt;
+  private int     tableSize;
+  private boolean hasZero;
+
+  public LongHashSet() {
+    this(0);
+  }
+
+  public LongHashSet(int expectedSize) {
+    allocate(Hashing.capacityFor(expectedSize));
+  }
+
+  public static LongHashSet of(long... values) {
+    LongHashSet set = new LongHashSet(values.length);
+    set.addAll(values);
+    return set;
+  }
+
+  public static LongHashSet from(Collection<Long> values) {
+    LongHashSet set = new LongHashSet(values.size());
+    for (Long value : values) {
+      set.add(value);
+    }
+    return set;
+  }
+
+  /**
+   * @return True if the value was added, false if it was already in the set.
+   */
+  public boolean add(long value) {
+    if (value == 0) {
+      if (hasZero) {
+        return false;
+      }
+      hasZero = true;
+      return true;
+    }
+
+    int  index = slot(value);
+    long key;
+
+    while ((key = keys[index]) != 0) {
+      if (key == value) {
+        return false;
+      }
+      index = (index + 1) & mask;
+    }
+
+    keys[index] = value;
+
+    if (++tableSize > resizeAt) {
+      rehash(keys.length << 1);
+    }
+
+    return true;
+  }
+
+  public void addAll(long... values) {
+    for (long value : values) {
+      add(value);
+    }
+  }
+
+  public void addAll(LongCollection values) {
+    addAll(values.toArray());
+  }
+
+  @Override
+  public boolean contains(long value) {
+    if (value == 0) {
+      return hasZero;
+    }
+
+    int  index = slot(value);
+    long key;
+
+    while ((key = keys[index]) != 0) {
+      if (key == value) {
+        return true;
+      }
+      index = (index + 1) & mask;
+    }
+
+    return false;
+  }
+
+  /**
+   * @return True if the value was removed, false if it wasn't in the set.
+   */
+  public boolean remove(long value) {
+    if (value == 0) {
+      boolean removed = hasZero;
+      hasZero = false;
+      return removed;
+    }
+
+    int index = slot(value);
+
+    while (true) {
+      long key = keys[index];
+      if (key == 0) {
+        return false;
+      }
+      if (key == value) {
+        break;
+      }
+      index = (index + 1) & mask;
+    }
+
+    closeGap(index);
+    tableSize--;
+
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return tableSize + (hasZero ? 1 : 0);
+  }
+
+  public void clear() {
+    Arrays.fill(keys, 0);
+    tableSize = 0;
+    hasZero   = false;
+  }
+
+  @Override
+  public long[] toArray() {
+    long[] values = new long[size()];
+    int    i      = 0;
+
+    if (hasZero) {
+      i++;
+    }
+
+    for (long key : keys) {
+      if (key != 0) {
+        values[i++] = key;
+      }
+    }
+
+    return values;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof LongHashSet)) return false;
+
+    LongHashSet other = (LongHashSet) o;
+    if (size() != other.size() || hasZero != other.hasZero) return false;
+
+    for (long key : keys) {
+      if (key != 0 && !other.contains(key)) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = 0;
+    for (long key : keys) {
+      result += Long.hashCode(key);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+
+  private int slot(long value) {
+    return Hashing.slot(value, shift);
+  }
+
+  /**
+   * Linear probing can't leave holes in a probe sequence, so rather than marking the slot as deleted, later keys that would have landed in it are moved back.
+   */
+  private void closeGap(int gap) {
+    int index = gap;
+
+    while (true) {
+      index = (index + 1) & mask;
+
+      long key = keys[index];
+      if (key == 0) {
+        break;
+      }
+
+      int home = slot(key);
+      if (((index - home) & mask) >= ((index - gap) & mask)) {
+        keys[gap] = key;
+        gap       = index;
+      }
+    }
+
+    keys[gap] = 0;
+  }
+
+  private void allocate(int capacity) {
+    keys     = new long[capacity];
+    mask     = capacity - 1;
+    shift    = Hashing.shiftFor(capacity);
+    resizeAt = Hashing.resizeThreshold(capacity);
+  }
+
+  private void rehash(int capacity) {
+    long[] old = keys;
+
+    allocate(capacity);
+
+    for (long key : old) {
+      if (key != 0) {
+        int index = slot(key);
+        while (keys[index] != 0) {
+          index = (index + 1) & mask;
+        }
+        keys[index] = key;
+      }
+    }
+  }
+}
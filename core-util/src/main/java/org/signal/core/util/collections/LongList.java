@@ -0,0 +1,135 @@
+package org.signal.core.util.collections;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A growable list of primitive longs.
+ */
+public final class LongList implements LongCollection {
+
+  private static final long[] EMPTY = new long[0];
+
+  private long[] values;
+  private int    size;
+
+  public LongList() {
+    this.values = EMPTY;
+  }
+
+  public LongList(int initialCapacity) {
+    if (initialCapacity < 0) {
+      throw new IllegalArgumentException("Capacity must not be negative! capacity: " + initialCapacity);
+    }
+    this.values = initialCapacity == 0 ? EMPTY : new long[initialCapacity];
+  }
+
+  public static LongList of(long... values) {
+    LongList list = new LongList(values.length);
+    list.addAll(values);
+    return list;
+  }
+
+  public static LongList from(Collection<Long> values) {
+    LongList list = new LongList(values.size());
+    for (Long value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  public void add(long value) {
+    ensureCapacity(size + 1);
+    values[size++] = value;
+  }
+
+  public void addAll(long... values) {
+    ensureCapacity(size + values.length);
+    System.arraycopy(values, 0, this.values, size, values.length);
+    size += values.length;
+  }
+
+  public void addAll(LongCollection values) {
+    addAll(values.toArray());
+  }
+
+  public long get(int index) {
+    checkIndex(index);
+    return values[index];
+  }
+
+  public long set(int index, long value) {
+    checkIndex(index);
+    long previous = values[index];
+    values[index] = value;
+    return previous;
+  }
+
+  public int indexOf(long value) {
+    for (int i = 0; i < size; i++) {
+      if (values[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public boolean contains(long value) {
+    return indexOf(value) >= 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  @Override
+  public long[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof LongList)) return false;
+
+    LongList other = (LongList) o;
+    if (size != other.size) return false;
+
+    for (int i = 0; i < size; i++) {
+      if (values[i] != other.values[i]) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = 1;
+    for (int i = 0; i < size; i++) {
+      result = 31 * result + Long.hashCode(values[i]);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > values.length) {
+      values = Arrays.copyOf(values, Math.max(capacity, Math.max(8, values.length + (values.length >> 1))));
+    }
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    }
+  }
+}
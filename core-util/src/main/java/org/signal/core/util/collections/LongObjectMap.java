@@ -0,0 +1,215 @@
+package org.signal.core.util.collections;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive longs to objects, backed by open addressing arrays rather than an entry and a boxed {@link Long} key for every mapping.
+ *
+ * Zero marks an empty slot in the table, so a mapping for zero is kept on its own. Null values are allowed, but just like {@link java.util.Map#get}, use
+ * {@link #containsKey(long)} to tell them apart from missing keys.
+ */
+public final class LongObjectMap<V> {
+
+  private long[]   keys;
+  private Object[] values;
+  private int      mask;
+  private int      shift;
+  private int      resizeAt;
+  private int      tableSize;
+  private boolean  hasZeroKey;
+  private V        zeroValue;
+
+  public LongObjectMap() {
+    this(0);
+  }
+
+  public LongObjectMap(int expectedSize) {
+    allocate(Hashing.capacityFor(expectedSize));
+  }
+
+  public @Nullable V get(long key) {
+    return getOrDefault(key, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  public V getOrDefault(long key, V defaultValue) {
+    if (key == 0) {
+      return hasZeroKey ? zeroValue : defaultValue;
+    }
+
+    int index = find(key);
+    return index >= 0 ? (V) values[index] : defaultValue;
+  }
+
+  public boolean containsKey(long key) {
+    return key == 0 ? hasZeroKey : find(key) >= 0;
+  }
+
+  /**
+   * @return The value previously mapped to the key, if any.
+   */
+  @SuppressWarnings("unchecked")
+  public @Nullable V put(long key, V value) {
+    if (key == 0) {
+      V previous = zeroValue;
+      hasZeroKey = true;
+      zeroValue  = value;
+      return previous;
+    }
+
+    int  index = slot(key);
+    long existing;
+
+    while ((existing = keys[index]) != 0) {
+      if (existing == key) {
+        V previous = (V) values[index];
+        values[index] = value;
+        return previous;
+      }
+      index = (index + 1) & mask;
+    }
+
+    keys[index]   = key;
+    values[index] = value;
+
+    if (++tableSize > resizeAt) {
+      rehash(keys.length << 1);
+    }
+
+    return null;
+  }
+
+  /**
+   * @return The value that was mapped to the key, if any.
+   */
+  @SuppressWarnings("unchecked")
+  public @Nullable V remove(long key) {
+    if (key == 0) {
+      V previous = zeroValue;
+      hasZeroKey = false;
+      zeroValue  = null;
+      return previous;
+    }
+
+    int index = find(key);
+    if (index < 0) {
+      return null;
+    }
+
+    V previous = (V) values[index];
+
+    closeGap(index);
+    tableSize--;
+
+    return previous;
+  }
+
+  public int size() {
+    return tableSize + (hasZeroKey ? 1 : 0);
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, 0);
+    Arrays.fill(values, null);
+    tableSize  = 0;
+    hasZeroKey = false;
+    zeroValue  = null;
+  }
+
+  /**
+   * @return Every key in the map, in no particular order.
+   */
+  public @NonNull LongHashSet keySet() {
+    LongHashSet keySet = new LongHashSet(size());
+
+    if (hasZeroKey) {
+      keySet.add(0);
+    }
+
+    for (long key : keys) {
+      if (key != 0) {
+        keySet.add(key);
+      }
+    }
+
+    return keySet;
+  }
+
+  private int find(long key) {
+    int  index = slot(key);
+    long existing;
+
+    while ((existing = keys[index]) != 0) {
+      if (existing == key) {
+        return index;
+      }
+      index = (index + 1) & mask;
+    }
+
+    return -1;
+  }
+
+  private int slot(long key) {
+    return Hashing.slot(key, shift);
+  }
+
+  /**
+   * Works the same way as in {@link LongHashSet}: later entries that would have landed in the removed slot are moved back.
+   */
+  private void closeGap(int gap) {
+    int index = gap;
+
+    while (true) {
+      index = (index + 1) & mask;
+
+      long key = keys[index];
+      if (key == 0) {
+        break;
+      }
+
+      int home = slot(key);
+      if (((index - home) & mask) >= ((index - gap) & mask)) {
+        keys[gap]   = key;
+        values[gap] = values[index];
+        gap         = index;
+      }
+    }
+
+    keys[gap]   = 0;
+    values[gap] = null;
+  }
+
+  private void allocate(int capacity) {
+    keys     = new long[capacity];
+    values   = new Object[capacity];
+    mask     = capacity - 1;
+    shift    = Hashing.shiftFor(capacity);
+    resizeAt = Hashing.resizeThreshold(capacity);
+  }
+
+  private void rehash(int capacity) {
+    long[]   oldKeys   = keys;
+    Object[] oldValues = values;
+
+    allocate(capacity);
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      long key = oldKeys[i];
+      if (key != 0) {
+        int index = slot(key);
+        while (keys[index] != 0) {
+          index = (index + 1) & mask;
+        }
+        keys[index]   = key;
+        values[index] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package org.signal.core.util.collections;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A map from objects to primitive ints, backed by open addressing arrays rather than an entry and a boxed {@link Integer} value for every mapping.
+ *
+ * Null marks an empty slot in the table, so the mapping for a null key is tracked on its own.
+ */
+public final class ObjectIntMap<K> {
+
+  private Object[] keys;
+  private int[]    values;
+  private int      mask;
+  private int      shift;
+  private int      resizeAt;
+  private int      tableSize;
+  private boolean  hasNullKey;
+  private int      nullKeyValue;
+
+  public ObjectIntMap() {
+    this(0);
+  }
+
+  public ObjectIntMap(int expectedSize) {
+    allocate(Hashing.capacityFor(expectedSize));
+  }
+
+  public int getOrDefault(@Nullable K key, int defaultValue) {
+    if (key == null) {
+      return hasNullKey ? nullKeyValue : defaultValue;
+    }
+
+    int index = find(key);
+    return index >= 0 ? values[index] : defaultValue;
+  }
+
+  public boolean containsKey(@Nullable K key) {
+    if (key == null) {
+      return hasNullKey;
+    }
+
+    return find(key) >= 0;
+  }
+
+  public void put(@Nullable K key, int value) {
+    if (key == null) {
+      hasNullKey   = true;
+      nullKeyValue = value;
+      return;
+    }
+
+    int    index = slot(key);
+    Object existing;
+
+    while ((existing = keys[index]) != null) {
+      if (existing.equals(key)) {
+        values[index] = value;
+        return;
+      }
+      index = (index + 1) & mask;
+    }
+
+    keys[index]   = key;
+    values[index] = value;
+
+    if (++tableSize > resizeAt) {
+      rehash(keys.length << 1);
+    }
+  }
+
+  /**
+   * @return True if the key was removed, false if it wasn't in the map.
+   */
+  public boolean remove(@Nullable K key) {
+    if (key == null) {
+      boolean removed = hasNullKey;
+      hasNullKey = false;
+      return removed;
+    }
+
+    int index = find(key);
+    if (index < 0) {
+      return false;
+    }
+
+    closeGap(index);
+    tableSize--;
+
+    return true;
+  }
+
+  public int size() {
+    return tableSize + (hasNullKey ? 1 : 0);
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, null);
+    tableSize  = 0;
+    hasNullKey = false;
+  }
+
+  private int find(@NonNull K key) {
+    int    index = slot(key);
+    Object existing;
+
+    while ((existing = keys[index]) != null) {
+      if (existing.equals(key)) {
+        return index;
+      }
+      index = (index + 1) & mask;
+    }
+
+    return -1;
+  }
+
+  private int slot(@NonNull Object key) {
+    return Hashing.slot(key.hashCode(), shift);
+  }
+
+  /**
+   * Works the same way as in {@link LongHashSet}: later entries that would have landed in the removed slot are moved back.
+   */
+  private void closeGap(int gap) {
+    int index = gap;
+
+    while (true) {
+      index = (index + 1) & mask;
+
+      Object key = keys[index];
+      if (key == null) {
+        break;
+      }
+
+      int home = slot(key);
+      if (((index - home) & mask) >= ((index - gap) & mask)) {
+        keys[gap]   = key;
+        values[gap] = values[index];
+        gap         = index;
+      }
+    }
+
+    keys[gap] = null;
+  }
+
+  private void allocate(int capacity) {
+    keys     = new Object[capacity];
+    values   = new int[capacity];
+    mask     = capacity - 1;
+    shift    = Hashing.shiftFor(capacity);
+    resizeAt = Hashing.resizeThreshold(capacity);
+  }
+
+  private void rehash(int capacity) {
+    Object[] oldKeys   = keys;
+    int[]    oldValues = values;
+
+    allocate(capacity);
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      Object key = oldKeys[i];
+      if (key != null) {
+        int index = slot(key);
+        while (keys[index] != null) {
+          index = (index + 1) & mask;
+        }
+        keys[index]   = key;
+        values[index] = oldValues[i];
+      }
+    }
+  }
+}
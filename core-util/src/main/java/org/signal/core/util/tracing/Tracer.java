@@ -4,6 +4,7 @@ import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.google.protobuf.ByteString;
 
@@ -12,15 +13,19 @@ import org.signal.core.util.tracing.TraceProtos.TracePacket;
 import org.signal.core.util.tracing.TraceProtos.TrackDescriptor;
 import org.signal.core.util.tracing.TraceProtos.TrackEvent;
 
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A class to create Perfetto-compatible traces. Currently keeps the entire trace in memory to
@@ -35,17 +40,18 @@ import java.util.concurrent.atomic.AtomicInteger;
  *   - End of a method
  *   - (And a bunch of other stuff that's not relevant to use at this point)
  *
- * We keep a circular buffer of TracePackets for method calls, and we keep a separate list of
- * TracePackets for threads so we don't lose any of those.
- *
- * Serializing is just a matter of throwing all the TracePackets we have into a proto.
+ * Every thread records into its own fixed-capacity ring buffer of primitive event records (a
+ * timestamp, a track, an interned name id, and interned argument keys). Recording an event doesn't
+ * take a lock or allocate once a thread's buffer has grown to its capacity, so tracing is cheap
+ * enough to leave on in production. The TracePackets are only built in {@link #serialize()}, where
+ * the buffers are merged in timestamp order.
  *
  * Note: This class aims to be largely-thread-safe, but prioritizes speed and memory efficiency
  * above all else. These methods are going to be called very quickly from every thread imaginable,
- * and we want to create as little overhead as possible. The idea being that it's ok if we don't,
- * for example, keep a perfect circular buffer size if it allows us to reduce overhead. The only
- * cost of screwing up would be dropping a trace packet or something, which, while sad, won't affect
- * how the app functions
+ * and we want to create as little overhead as possible. Only the owning thread writes to a buffer.
+ * {@link #serialize()} reads them from another thread and drops any event that may have been
+ * overwritten while it was being read. The only cost of screwing up would be dropping a trace
+ * packet or something, which, while sad, won't affect how the app functions.
  */
 public final class Tracer {
 
@@ -55,42 +61,68 @@ public final class Tracer {
     private static final String DB_LOCK_NAME = "Database Lock";
   }
 
-  private static final Tracer INSTANCE = new Tracer();
+  private static final Tracer INSTANCE = new Tracer(SystemClock::elapsedRealtimeNanos, 1_000);
+
+  private static final int    TRUSTED_SEQUENCE_ID    = 1;
+  private static final byte[] SYNCHRONIZATION_MARKER = toByteArray(UUID.fromString("82477a76-b28d-42ba-81dc-33326d57a079"));
+
+  private static final byte TYPE_START = 1;
+  private static final byte TYPE_END   = 2;
+
+  /** Buffers start small and double until they reach their capacity, so idle threads stay cheap. */
+  private static final int INITIAL_BUFFER_SIZE = 64;
+
+  /** Arguments past this are dropped. The database only ever passes two. */
+  private static final int MAX_ARGS = 4;
+
+  /** Past this, new names are recorded as {@link #OVERFLOW_NAME} so that unique names can't grow the table without bound. */
+  private static final int    MAX_NAMES     = 8_192;
+  private static final int    OVERFLOW_ID   = 0;
+  private static final String OVERFLOW_NAME = "(unknown)";
 
-  private static final int    TRUSTED_SEQUENCE_ID      = 1;
-  private static final byte[] SYNCHRONIZATION_MARKER   = toByteArray(UUID.fromString("82477a76-b28d-42ba-81dc-33326d57a079"));
-  private static final long   SYNCHRONIZATION_INTERVAL = TimeUnit.SECONDS.toNanos(3);
+  /** Past this many buffers, the buffers of threads that have died are dropped when a new thread starts tracing. */
+  private static final int MAX_BUFFERS = 64;
 
-  private final Clock                  clock;
-  private final Map<Long, TracePacket> threadPackets;
-  private final Queue<TracePacket>     eventPackets;
-  private final AtomicInteger          eventCount;
+  private final Clock                        clock;
+  private final ThreadLocal<ThreadBuffer>    threadBuffer;
+  private final List<ThreadBuffer>           buffers;
+  private final Map<String, Integer>         nameIds;
+  private final AtomicReferenceArray<String> names;
 
-  private long lastSyncTime;
-  private long maxBufferSize;
+  private          int nameCount;
+  private volatile int bufferCapacity;
 
-  private Tracer() {
-    this.clock         = SystemClock::elapsedRealtimeNanos;
-    this.threadPackets = new ConcurrentHashMap<>();
-    this.eventPackets  = new ConcurrentLinkedQueue<>();
-    this.eventCount    = new AtomicInteger(0);
-    this.maxBufferSize = 3_500;
+  @VisibleForTesting
+  Tracer(@NonNull Clock clock, int bufferCapacity) {
+    this.clock          = clock;
+    this.threadBuffer   = new ThreadLocal<>();
+    this.buffers        = new CopyOnWriteArrayList<>();
+    this.nameIds        = new ConcurrentHashMap<>();
+    this.names          = new AtomicReferenceArray<>(MAX_NAMES);
+    this.bufferCapacity = bufferCapacity;
+    this.nameCount      = 1;
+
+    names.set(OVERFLOW_ID, OVERFLOW_NAME);
   }
 
   public static @NonNull Tracer getInstance() {
     return INSTANCE;
   }
 
+  /**
+   * Sets how many events are kept for each thread. Only applies to threads that haven't traced
+   * anything yet, so this should be called as early as possible.
+   */
   public void setMaxBufferSize(long maxBufferSize) {
-    this.maxBufferSize = maxBufferSize;
+    this.bufferCapacity = (int) Math.min(maxBufferSize, Integer.MAX_VALUE);
   }
 
   public void start(@NonNull String methodName) {
-    start(methodName, Thread.currentThread().getId(), null);
+    getThreadBuffer().add(TYPE_START, clock.getTimeNanos(), Thread.currentThread().getId(), intern(methodName));
   }
 
   public void start(@NonNull String methodName, long trackId) {
-    start(methodName, trackId, null);
+    getThreadBuffer().add(TYPE_START, clock.getTimeNanos(), trackId, intern(methodName));
   }
 
   public void start(@NonNull String methodName, @NonNull String key, @Nullable String value) {
@@ -98,7 +130,11 @@ public final class Tracer {
   }
 
   public void start(@NonNull String methodName, long trackId, @NonNull String key, @Nullable String value) {
-    start(methodName, trackId, Collections.singletonMap(key, value));
+    ThreadBuffer buffer = getThreadBuffer();
+    int          index  = buffer.reserve(TYPE_START, clock.getTimeNanos(), trackId, intern(methodName));
+
+    buffer.setArg(index, 0, intern(key), value);
+    buffer.publish(index, 1);
   }
 
   public void start(@NonNull String methodName, @Nullable Map<String, String> values) {
@@ -106,37 +142,66 @@ public final class Tracer {
   }
 
   public void start(@NonNull String methodName, long trackId, @Nullable Map<String, String> values) {
-    long time = clock.getTimeNanos();
-
-    if (time - lastSyncTime > SYNCHRONIZATION_INTERVAL) {
-      addPacket(forSynchronization(time));
-      lastSyncTime = time;
-    }
+    ThreadBuffer buffer = getThreadBuffer();
+    int          index  = buffer.reserve(TYPE_START, clock.getTimeNanos(), trackId, intern(methodName));
+    int          count  = 0;
 
-    if (!threadPackets.containsKey(trackId)) {
-      threadPackets.put(trackId, forTrackId(trackId));
+    if (values != null) {
+      for (Map.Entry<String, String> entry : values.entrySet()) {
+        if (count == MAX_ARGS) {
+          break;
+        }
+        buffer.setArg(index, count++, intern(entry.getKey()), entry.getValue());
+      }
     }
 
-    addPacket(forMethodStart(methodName, time, trackId, values));
+    buffer.publish(index, count);
   }
 
   public void end(@NonNull String methodName) {
-    addPacket(forMethodEnd(methodName, clock.getTimeNanos(), Thread.currentThread().getId()));
+    getThreadBuffer().add(TYPE_END, clock.getTimeNanos(), Thread.currentThread().getId(), intern(methodName));
   }
 
   public void end(@NonNull String methodName, long trackId) {
-    addPacket(forMethodEnd(methodName, clock.getTimeNanos(), trackId));
+    getThreadBuffer().add(TYPE_END, clock.getTimeNanos(), trackId, intern(methodName));
   }
 
   public @NonNull byte[] serialize() {
-    Trace.Builder trace = Trace.newBuilder();
+    Trace.Builder trace  = Trace.newBuilder();
+    List<Event>   events = new ArrayList<>();
+
+    trace.addPacket(forSynchronization(clock.getTimeNanos()));
+
+    for (ThreadBuffer buffer : buffers) {
+      trace.addPacket(forTrack(buffer.threadId, buffer.threadName));
+    }
+
+    Set<Long> describedTracks = new HashSet<>();
+    for (ThreadBuffer buffer : buffers) {
+      describedTracks.add(buffer.threadId);
+    }
+
+    for (ThreadBuffer buffer : buffers) {
+      int start = events.size();
+      buffer.snapshot(events);
 
-    for (TracePacket thread : threadPackets.values()) {
-      trace.addPacket(thread);
+      for (int i = start; i < events.size(); i++) {
+        long trackId = events.get(i).trackId;
+
+        if (describedTracks.add(trackId)) {
+          trace.addPacket(forTrack(trackId, trackId == TrackId.DB_LOCK ? TrackId.DB_LOCK_NAME : buffer.threadName));
+        }
+      }
     }
 
-    for (TracePacket event : eventPackets) {
-      trace.addPacket(event);
+    Collections.sort(events, (lhs, rhs) -> Long.compare(lhs.time, rhs.time));
+
+    for (Event event : events) {
+      if (event.type == TYPE_START) {
+        trace.addPacket(forMethodStart(event));
+      } else {
+        trace.addPacket(forMethodEnd(event));
+      }
     }
 
     trace.addPacket(forSynchronization(clock.getTimeNanos()));
@@ -144,33 +209,67 @@ public final class Tracer {
     return trace.build().toByteArray();
   }
 
+  private @NonNull ThreadBuffer getThreadBuffer() {
+    ThreadBuffer buffer = threadBuffer.get();
+
+    if (buffer == null) {
+      buffer = new ThreadBuffer(Thread.currentThread(), bufferCapacity);
+      threadBuffer.set(buffer);
+
+      if (buffers.size() >= MAX_BUFFERS) {
+        removeDeadThreadBuffers();
+      }
+      buffers.add(buffer);
+    }
+
+    return buffer;
+  }
+
+  private void removeDeadThreadBuffers() {
+    List<ThreadBuffer> dead = new ArrayList<>();
+
+    for (ThreadBuffer buffer : buffers) {
+      Thread thread = buffer.thread.get();
+      if (thread == null || !thread.isAlive()) {
+        dead.add(buffer);
+      }
+    }
+
+    buffers.removeAll(dead);
+  }
+
   /**
-   * Attempts to add a packet to our list while keeping the size of our circular buffer in-check.
-   * The tracking of the event count is not perfectly thread-safe, but doing it in a thread-safe
-   * way would likely involve adding a lock, which we really don't want to do, since it'll add
-   * unnecessary overhead.
-   *
-   * Note that we keep track of the event count separately because
-   * {@link ConcurrentLinkedQueue#size()} is NOT a constant-time operation.
+   * Names are almost always string constants, so after the first call this is a single map lookup.
    */
-  private void addPacket(@NonNull TracePacket packet) {
-    eventPackets.add(packet);
+  private int intern(@NonNull String name) {
+    Integer id = nameIds.get(name);
+
+    if (id != null) {
+      return id;
+    }
+
+    synchronized (nameIds) {
+      id = nameIds.get(name);
+
+      if (id != null) {
+        return id;
+      }
+
+      if (nameCount >= MAX_NAMES) {
+        return OVERFLOW_ID;
+      }
 
-    int size = eventCount.incrementAndGet();
+      int newId = nameCount++;
+      names.set(newId, name);
+      nameIds.put(name, newId);
 
-    for (int i = size; i > maxBufferSize; i--) {
-      eventPackets.poll();
-      eventCount.decrementAndGet();
+      return newId;
     }
   }
 
-  private TracePacket forTrackId(long id) {
-    if (id == TrackId.DB_LOCK) {
-      return forTrack(id, TrackId.DB_LOCK_NAME);
-    } else {
-      Thread currentThread = Thread.currentThread();
-      return forTrack(currentThread.getId(), currentThread.getName());
-    }
+  private @NonNull String getName(int id) {
+    String name = names.get(id);
+    return name != null ? name : OVERFLOW_NAME;
   }
 
   private static TracePacket forTrack(long id, String name) {
@@ -183,22 +282,20 @@ public final class Tracer {
 
   }
 
-  private static TracePacket forMethodStart(@NonNull String name, long time, long threadId, @Nullable Map<String, String> values) {
-    TrackEvent.Builder event = TrackEvent.newBuilder()
-                                         .setTrackUuid(threadId)
-                                         .setName(name)
-                                         .setType(TrackEvent.Type.TYPE_SLICE_BEGIN);
+  private TracePacket forMethodStart(@NonNull Event event) {
+    TrackEvent.Builder trackEvent = TrackEvent.newBuilder()
+                                              .setTrackUuid(event.trackId)
+                                              .setName(getName(event.nameId))
+                                              .setType(TrackEvent.Type.TYPE_SLICE_BEGIN);
 
-    if (values != null) {
-      for (Map.Entry<String, String> entry : values.entrySet()) {
-        event.addDebugAnnotations(debugAnnotation(entry.getKey(), entry.getValue()));
-      }
+    for (int i = 0; i < event.argCount; i++) {
+      trackEvent.addDebugAnnotations(debugAnnotation(getName(event.argKeyIds[i]), event.argValues[i]));
     }
 
     return TracePacket.newBuilder()
                       .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
-                      .setTimestamp(time)
-                      .setTrackEvent(event)
+                      .setTimestamp(event.time)
+                      .setTrackEvent(trackEvent)
                       .build();
   }
 
@@ -209,13 +306,13 @@ public final class Tracer {
                                       .build();
   }
 
-  private static TracePacket forMethodEnd(@NonNull String name, long time, long threadId) {
+  private TracePacket forMethodEnd(@NonNull Event event) {
     return TracePacket.newBuilder()
                       .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
-                      .setTimestamp(time)
+                      .setTimestamp(event.time)
                       .setTrackEvent(TrackEvent.newBuilder()
-                                               .setTrackUuid(threadId)
-                                               .setName(name)
+                                               .setTrackUuid(event.trackId)
+                                               .setName(getName(event.nameId))
                                                .setType(TrackEvent.Type.TYPE_SLICE_END))
                       .build();
   }
@@ -236,7 +333,174 @@ public final class Tracer {
     return buffer.array();
   }
 
-  private interface Clock {
+  @VisibleForTesting
+  interface Clock {
     long getTimeNanos();
   }
+
+  /**
+   * A ring buffer of events that only its own thread writes to. Events are numbered by how many
+   * were written before them, and event n lives in slot n % capacity.
+   *
+   * An event is only visible to readers once {@link #written} has been bumped past it, which is
+   * what makes it safe for {@link #snapshot(List)} to read from another thread. The slot of the
+   * oldest event is the one the next event is written to, so readers treat it as already gone.
+   */
+  private static final class ThreadBuffer {
+    private final WeakReference<Thread> thread;
+    private final long                  threadId;
+    private final String                threadName;
+    private final int                   capacity;
+
+    private volatile Slots slots;
+    private volatile long  written;
+
+    private ThreadBuffer(@NonNull Thread thread, int capacity) {
+      this.thread     = new WeakReference<>(thread);
+      this.threadId   = thread.getId();
+      this.threadName = thread.getName();
+      this.capacity   = Math.max(capacity, 1);
+      this.slots      = new Slots(Math.min(INITIAL_BUFFER_SIZE, this.capacity));
+    }
+
+    private void add(byte type, long time, long trackId, int nameId) {
+      publish(reserve(type, time, trackId, nameId), 0);
+    }
+
+    /**
+     * Writes an event into the next slot without making it visible. Its arguments can then be set
+     * with {@link #setArg(int, int, int, String)} before {@link #publish(int, int)} is called.
+     *
+     * @return The slot the event was written to.
+     */
+    private int reserve(byte type, long time, long trackId, int nameId) {
+      long  position = written;
+      Slots slots    = this.slots;
+
+      if (position == slots.size && slots.size < capacity) {
+        slots      = slots.grow(Math.min(slots.size * 2, capacity));
+        this.slots = slots;
+      }
+
+      int index = (int) (position % slots.size);
+
+      slots.times[index]     = time;
+      slots.trackIds[index]  = trackId;
+      slots.nameIds[index]   = nameId;
+      slots.types[index]     = type;
+
+      return index;
+    }
+
+    private void setArg(int index, int arg, int keyId, @Nullable String value) {
+      slots.argKeyIds[index * MAX_ARGS + arg] = keyId;
+      slots.argValues[index * MAX_ARGS + arg] = value;
+    }
+
+    /**
+     * Makes the event in the slot returned by {@link #reserve(byte, long, long, int)} visible.
+     */
+    private void publish(int index, int argCount) {
+      Slots slots = this.slots;
+
+      for (int i = argCount; i < MAX_ARGS; i++) {
+        slots.argValues[index * MAX_ARGS + i] = null;
+      }
+
+      slots.argCounts[index] = argCount;
+      written = written + 1;
+    }
+
+    /**
+     * Copies the events currently in the buffer into the list, oldest first.
+     */
+    private void snapshot(@NonNull List<Event> out) {
+      long  end   = written;
+      Slots slots = this.slots;
+      long  start = Math.max(0, end - slots.size + 1);
+      int   first = out.size();
+
+      for (long position = start; position < end; position++) {
+        int   index = (int) (position % slots.size);
+        Event event = new Event(position, slots.types[index], slots.times[index], slots.trackIds[index], slots.nameIds[index]);
+
+        int argCount = Math.min(slots.argCounts[index], MAX_ARGS);
+        for (int i = 0; i < argCount; i++) {
+          event.argKeyIds[i] = slots.argKeyIds[index * MAX_ARGS + i];
+          event.argValues[i] = slots.argValues[index * MAX_ARGS + i];
+        }
+        event.argCount = argCount;
+
+        out.add(event);
+      }
+
+      long oldestIntact = written - slots.size + 1;
+
+      Iterator<Event> iterator = out.listIterator(first);
+      while (iterator.hasNext()) {
+        if (iterator.next().position < oldestIntact) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  private static final class Slots {
+    private final int      size;
+    private final long[]   times;
+    private final long[]   trackIds;
+    private final int[]    nameIds;
+    private final byte[]   types;
+    private final int[]    argCounts;
+    private final int[]    argKeyIds;
+    private final String[] argValues;
+
+    private Slots(int size) {
+      this.size      = size;
+      this.times     = new long[size];
+      this.trackIds  = new long[size];
+      this.nameIds   = new int[size];
+      this.types     = new byte[size];
+      this.argCounts = new int[size];
+      this.argKeyIds = new int[size * MAX_ARGS];
+      this.argValues = new String[size * MAX_ARGS];
+    }
+
+    /**
+     * Only called before the buffer has wrapped, so slot i holds event i.
+     */
+    private @NonNull Slots grow(int newSize) {
+      Slots grown = new Slots(newSize);
+
+      System.arraycopy(times, 0, grown.times, 0, size);
+      System.arraycopy(trackIds, 0, grown.trackIds, 0, size);
+      System.arraycopy(nameIds, 0, grown.nameIds, 0, size);
+      System.arraycopy(types, 0, grown.types, 0, size);
+      System.arraycopy(argCounts, 0, grown.argCounts, 0, size);
+      System.arraycopy(argKeyIds, 0, grown.argKeyIds, 0, size * MAX_ARGS);
+      System.arraycopy(argValues, 0, grown.argValues, 0, size * MAX_ARGS);
+
+      return grown;
+    }
+  }
+
+  private static final class Event {
+    private final long     position;
+    private final byte     type;
+    private final long     time;
+    private final long     trackId;
+    private final int      nameId;
+    private final int[]    argKeyIds = new int[MAX_ARGS];
+    private final String[] argValues = new String[MAX_ARGS];
+
+    private int argCount;
+
+    private Event(long position, byte type, long time, long trackId, int nameId) {
+      this.position = position;
+      this.type     = type;
+      this.time     = time;
+      this.trackId  = trackId;
+      this.nameId   = nameId;
+    }
+  }
 }
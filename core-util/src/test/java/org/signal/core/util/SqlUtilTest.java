@@ -9,6 +9,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
+import org.signal.core.util.collections.LongHashSet;
+import org.signal.core.util.collections.LongList;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -170,6 +172,60 @@ public final class SqlUtilTest {
     assertTrue(results.isEmpty());
   }
 
+  @Test
+  public void buildCollectionQuery_longList_multiple() {
+    List<SqlUtil.Query> updateQuery = SqlUtil.buildCollectionQuery("a", LongList.of(1, 2, 3));
+
+    assertEquals(1, updateQuery.size());
+    assertEquals("a IN (?, ?, ?)", updateQuery.get(0).getWhere());
+    assertArrayEquals(new String[] { "1", "2", "3" }, updateQuery.get(0).getWhereArgs());
+  }
+
+  @Test
+  public void buildCollectionQuery_longList_twoBatches_withPrefix() {
+    List<SqlUtil.Query> updateQuery = SqlUtil.buildCollectionQuery("a", LongList.of(1, 2, 3), "b = 1 AND", 2);
+
+    assertEquals(2, updateQuery.size());
+
+    assertEquals("b = 1 AND a IN (?, ?)", updateQuery.get(0).getWhere());
+    assertArrayEquals(new String[] { "1", "2" }, updateQuery.get(0).getWhereArgs());
+
+    assertEquals("b = 1 AND a IN (?)", updateQuery.get(1).getWhere());
+    assertArrayEquals(new String[] { "3" }, updateQuery.get(1).getWhereArgs());
+  }
+
+  @Test
+  public void buildCollectionQuery_longHashSet_notIn() {
+    List<SqlUtil.Query> updateQuery = SqlUtil.buildCollectionQuery("a", LongHashSet.of(5), "", 999, SqlUtil.CollectionOperator.NOT_IN);
+
+    assertEquals(1, updateQuery.size());
+    assertEquals("a NOT IN (?)", updateQuery.get(0).getWhere());
+    assertArrayEquals(new String[] { "5" }, updateQuery.get(0).getWhereArgs());
+  }
+
+  @Test
+  public void buildCollectionQuery_longList_matchesBoxed() {
+    List<Long> boxed = new ArrayList<>();
+    for (long i = 0; i < 2500; i++) {
+      boxed.add(i * 7);
+    }
+
+    List<SqlUtil.Query> expected = SqlUtil.buildCollectionQuery("a", boxed);
+    List<SqlUtil.Query> actual   = SqlUtil.buildCollectionQuery("a", LongList.from(boxed));
+
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getWhere(), actual.get(i).getWhere());
+      assertArrayEquals(expected.get(i).getWhereArgs(), actual.get(i).getWhereArgs());
+    }
+  }
+
+  @Test
+  public void buildCollectionQuery_longList_none() {
+    List<SqlUtil.Query> results = SqlUtil.buildCollectionQuery("a", new LongList());
+    assertTrue(results.isEmpty());
+  }
+
   @Test
   public void buildCustomCollectionQuery_single_singleBatch() {
     List<String[]> args = new ArrayList<>();
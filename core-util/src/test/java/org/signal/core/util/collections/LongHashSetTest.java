@@ -0,0 +1,103 @@
+package org.signal.core.util.collections;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class LongHashSetTest {
+
+  @Test
+  public void add_contains_remove() {
+    LongHashSet set = new LongHashSet();
+
+    assertTrue(set.add(5));
+    assertFalse(set.add(5));
+    assertTrue(set.contains(5));
+    assertFalse(set.contains(6));
+    assertEquals(1, set.size());
+
+    assertTrue(set.remove(5));
+    assertFalse(set.remove(5));
+    assertFalse(set.contains(5));
+    assertTrue(set.isEmpty());
+  }
+
+  @Test
+  public void zeroAndNegativeValues() {
+    LongHashSet set = LongHashSet.of(0, -1, Long.MIN_VALUE, Long.MAX_VALUE);
+
+    assertEquals(4, set.size());
+    assertTrue(set.contains(0));
+    assertTrue(set.contains(-1));
+    assertTrue(set.contains(Long.MIN_VALUE));
+    assertTrue(set.contains(Long.MAX_VALUE));
+
+    assertTrue(set.remove(0));
+    assertFalse(set.contains(0));
+    assertEquals(3, set.size());
+  }
+
+  @Test
+  public void toArray_hasEveryValueOnce() {
+    LongHashSet set = LongHashSet.of(3, 1, 2, 3, 0);
+
+    long[] values = set.toArray();
+    Arrays.sort(values);
+
+    assertArrayEquals(new long[] { 0, 1, 2, 3 }, values);
+  }
+
+  @Test
+  public void clear() {
+    LongHashSet set = LongHashSet.of(0, 1, 2);
+
+    set.clear();
+
+    assertTrue(set.isEmpty());
+    assertFalse(set.contains(0));
+    assertFalse(set.contains(1));
+    assertTrue(set.add(1));
+  }
+
+  @Test
+  public void equals_ignoresOrder() {
+    assertEquals(LongHashSet.of(1, 2, 3), LongHashSet.of(3, 2, 1));
+    assertEquals(LongHashSet.of(1, 2, 3).hashCode(), LongHashSet.of(3, 2, 1).hashCode());
+    assertFalse(LongHashSet.of(1, 2).equals(LongHashSet.of(1, 2, 3)));
+  }
+
+  /**
+   * Adds and removes enough values to grow the table several times and to shift entries back over removed ones, checking against a {@link HashSet} along
+   * the way. Values are drawn from a small range so that collisions and repeats are common.
+   */
+  @Test
+  public void randomOperations_matchHashSet() {
+    Random      random   = new Random(1);
+    LongHashSet set      = new LongHashSet();
+    Set<Long>   expected = new HashSet<>();
+
+    for (int i = 0; i < 100_000; i++) {
+      long value = random.nextInt(2_000) - 100;
+
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(value), set.remove(value));
+      } else {
+        assertEquals(expected.add(value), set.add(value));
+      }
+
+      assertEquals(expected.size(), set.size());
+    }
+
+    for (long value = -100; value < 1_900; value++) {
+      assertEquals(expected.contains(value), set.contains(value));
+    }
+  }
+}
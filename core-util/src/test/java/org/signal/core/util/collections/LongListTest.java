@@ -0,0 +1,90 @@
+package org.signal.core.util.collections;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class LongListTest {
+
+  @Test
+  public void add_get_set() {
+    LongList list = new LongList();
+
+    list.add(3);
+    list.add(1);
+    list.add(3);
+
+    assertEquals(3, list.size());
+    assertEquals(3, list.get(0));
+    assertEquals(1, list.get(1));
+    assertEquals(3, list.set(2, 5));
+    assertArrayEquals(new long[] { 3, 1, 5 }, list.toArray());
+  }
+
+  @Test
+  public void growsPastInitialCapacity() {
+    LongList list = new LongList(1);
+
+    for (long i = 0; i < 1_000; i++) {
+      list.add(i);
+    }
+
+    assertEquals(1_000, list.size());
+    assertEquals(999, list.get(999));
+  }
+
+  @Test
+  public void addAll() {
+    LongList list = LongList.of(1, 2);
+
+    list.addAll(3, 4);
+    list.addAll(LongList.of(5));
+
+    assertArrayEquals(new long[] { 1, 2, 3, 4, 5 }, list.toArray());
+  }
+
+  @Test
+  public void from_keepsOrder() {
+    assertArrayEquals(new long[] { 3, 2, 1 }, LongList.from(Arrays.asList(3L, 2L, 1L)).toArray());
+  }
+
+  @Test
+  public void contains_indexOf() {
+    LongList list = LongList.of(0, 7, 7);
+
+    assertTrue(list.contains(0));
+    assertFalse(list.contains(1));
+    assertEquals(1, list.indexOf(7));
+    assertEquals(-1, list.indexOf(8));
+  }
+
+  @Test
+  public void clear() {
+    LongList list = LongList.of(1, 2, 3);
+
+    list.clear();
+
+    assertTrue(list.isEmpty());
+    assertArrayEquals(new long[0], list.toArray());
+  }
+
+  @Test
+  public void equals_dependsOnOrder() {
+    assertEquals(LongList.of(1, 2), LongList.of(1, 2));
+    assertEquals(LongList.of(1, 2).hashCode(), LongList.of(1, 2).hashCode());
+    assertNotEquals(LongList.of(1, 2), LongList.of(2, 1));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void get_outOfBounds() {
+    LongList list = new LongList(10);
+    list.add(1);
+    list.get(1);
+  }
+}
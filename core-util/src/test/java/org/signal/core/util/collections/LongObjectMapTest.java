@@ -0,0 +1,114 @@
+package org.signal.core.util.collections;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class LongObjectMapTest {
+
+  @Test
+  public void put_get_remove() {
+    LongObjectMap<String> map = new LongObjectMap<>();
+
+    assertNull(map.put(1, "a"));
+    assertEquals("a", map.put(1, "b"));
+    assertEquals("b", map.get(1));
+    assertNull(map.get(2));
+    assertEquals("c", map.getOrDefault(2, "c"));
+    assertEquals(1, map.size());
+
+    assertEquals("b", map.remove(1));
+    assertNull(map.remove(1));
+    assertFalse(map.containsKey(1));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void zeroKey() {
+    LongObjectMap<String> map = new LongObjectMap<>();
+
+    assertFalse(map.containsKey(0));
+    assertNull(map.put(0, "zero"));
+    assertTrue(map.containsKey(0));
+    assertEquals("zero", map.get(0));
+    assertEquals(1, map.size());
+
+    assertEquals("zero", map.remove(0));
+    assertFalse(map.containsKey(0));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void nullValues() {
+    LongObjectMap<String> map = new LongObjectMap<>();
+
+    map.put(5, null);
+
+    assertTrue(map.containsKey(5));
+    assertNull(map.get(5));
+    assertNull(map.getOrDefault(5, "default"));
+  }
+
+  @Test
+  public void keySet() {
+    LongObjectMap<String> map = new LongObjectMap<>();
+    map.put(0, "a");
+    map.put(7, "b");
+    map.put(-7, "c");
+
+    long[] keys = map.keySet().toArray();
+    Arrays.sort(keys);
+
+    assertArrayEquals(new long[] { -7, 0, 7 }, keys);
+  }
+
+  @Test
+  public void clear() {
+    LongObjectMap<String> map = new LongObjectMap<>();
+    map.put(0, "a");
+    map.put(1, "b");
+
+    map.clear();
+
+    assertTrue(map.isEmpty());
+    assertNull(map.get(0));
+    assertNull(map.get(1));
+  }
+
+  /**
+   * Puts and removes enough keys to grow the table several times and to shift entries back over removed ones, checking against a {@link HashMap} along the
+   * way. Keys are drawn from a small range so that collisions and repeats are common.
+   */
+  @Test
+  public void randomOperations_matchHashMap() {
+    Random                 random   = new Random(1);
+    LongObjectMap<Integer> map      = new LongObjectMap<>();
+    Map<Long, Integer>     expected = new HashMap<>();
+
+    for (int i = 0; i < 100_000; i++) {
+      long key = random.nextInt(2_000) - 100;
+
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), map.remove(key));
+      } else {
+        assertEquals(expected.put(key, i), map.put(key, i));
+      }
+
+      assertEquals(expected.size(), map.size());
+    }
+
+    for (long key = -100; key < 1_900; key++) {
+      assertEquals(expected.containsKey(key), map.containsKey(key));
+      assertEquals(expected.get(key), map.get(key));
+    }
+  }
+}
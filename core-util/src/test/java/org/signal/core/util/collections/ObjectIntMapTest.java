@@ -0,0 +1,117 @@
+package org.signal.core.util.collections;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class ObjectIntMapTest {
+
+  @Test
+  public void put_get_remove() {
+    ObjectIntMap<String> map = new ObjectIntMap<>();
+
+    map.put("a", 1);
+    map.put("a", 2);
+
+    assertEquals(2, map.getOrDefault("a", -1));
+    assertEquals(-1, map.getOrDefault("b", -1));
+    assertTrue(map.containsKey("a"));
+    assertEquals(1, map.size());
+
+    assertTrue(map.remove("a"));
+    assertFalse(map.remove("a"));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void put_get_remove_nullKey() {
+    ObjectIntMap<String> map = new ObjectIntMap<>();
+
+    assertFalse(map.containsKey(null));
+    assertEquals(-1, map.getOrDefault(null, -1));
+
+    map.put(null, 1);
+    map.put("a", 2);
+    map.put(null, 3);
+
+    assertTrue(map.containsKey(null));
+    assertEquals(3, map.getOrDefault(null, -1));
+    assertEquals(2, map.getOrDefault("a", -1));
+    assertEquals(2, map.size());
+
+    assertTrue(map.remove(null));
+    assertFalse(map.remove(null));
+    assertFalse(map.containsKey(null));
+    assertEquals(1, map.size());
+
+    map.put(null, 4);
+    map.clear();
+
+    assertTrue(map.isEmpty());
+    assertFalse(map.containsKey(null));
+  }
+
+  @Test
+  public void clear() {
+    ObjectIntMap<String> map = new ObjectIntMap<>();
+    map.put("a", 1);
+
+    map.clear();
+
+    assertTrue(map.isEmpty());
+    assertFalse(map.containsKey("a"));
+  }
+
+  /**
+   * Uses keys with colliding hash codes on top of random puts and removes, so that probe sequences get long and entries get shifted back over removed ones.
+   */
+  @Test
+  public void randomOperations_matchHashMap() {
+    Random                  random   = new Random(1);
+    ObjectIntMap<Colliding> map      = new ObjectIntMap<>();
+    Map<Colliding, Integer> expected = new HashMap<>();
+
+    for (int i = 0; i < 100_000; i++) {
+      Colliding key = new Colliding(random.nextInt(2_000));
+
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key) != null, map.remove(key));
+      } else {
+        expected.put(key, i);
+        map.put(key, i);
+      }
+
+      assertEquals(expected.size(), map.size());
+    }
+
+    for (int id = 0; id < 2_000; id++) {
+      Colliding key = new Colliding(id);
+      assertEquals(expected.containsKey(key), map.containsKey(key));
+      assertEquals(expected.containsKey(key) ? expected.get(key) : -1, map.getOrDefault(key, -1));
+    }
+  }
+
+  private static final class Colliding {
+    private final int id;
+
+    private Colliding(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Colliding && ((Colliding) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return id / 8;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package org.signal.core.util.tracing;
+
+import org.junit.Test;
+import org.signal.core.util.tracing.TraceProtos.Trace;
+import org.signal.core.util.tracing.TraceProtos.TracePacket;
+import org.signal.core.util.tracing.TraceProtos.TrackEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class TracerTest {
+
+  private final AtomicLong time = new AtomicLong();
+
+  @Test
+  public void serialize_startAndEnd() throws Exception {
+    Tracer tracer = new Tracer(time::incrementAndGet, 100);
+
+    tracer.start("outer");
+    tracer.start("inner", "key", "value");
+    tracer.end("inner");
+    tracer.end("outer");
+
+    List<TrackEvent> events = getEvents(tracer.serialize());
+
+    assertEquals(4, events.size());
+    assertEvent(events.get(0), TrackEvent.Type.TYPE_SLICE_BEGIN, "outer");
+    assertEvent(events.get(1), TrackEvent.Type.TYPE_SLICE_BEGIN, "inner");
+    assertEvent(events.get(2), TrackEvent.Type.TYPE_SLICE_END, "inner");
+    assertEvent(events.get(3), TrackEvent.Type.TYPE_SLICE_END, "outer");
+
+    assertEquals(1, events.get(1).getDebugAnnotationsCount());
+    assertEquals("key", events.get(1).getDebugAnnotations(0).getName());
+    assertEquals("value", events.get(1).getDebugAnnotations(0).getStringValue());
+    assertEquals(Thread.currentThread().getId(), events.get(0).getTrackUuid());
+  }
+
+  @Test
+  public void serialize_mapArguments() throws Exception {
+    Tracer              tracer = new Tracer(time::incrementAndGet, 100);
+    Map<String, String> values = new HashMap<>();
+
+    values.put("table", "message");
+    values.put("query", null);
+
+    tracer.start("update", Tracer.TrackId.DB_LOCK, values);
+    tracer.end("update", Tracer.TrackId.DB_LOCK);
+
+    byte[]           serialized = tracer.serialize();
+    Trace            trace      = Trace.parseFrom(serialized);
+    List<TrackEvent> events     = getEvents(serialized);
+
+    Map<String, String> annotations = new HashMap<>();
+    for (TraceProtos.DebugAnnotation annotation : events.get(0).getDebugAnnotationsList()) {
+      annotations.put(annotation.getName(), annotation.getStringValue());
+    }
+
+    assertEquals("message", annotations.get("table"));
+    assertEquals("", annotations.get("query"));
+    assertEquals(Tracer.TrackId.DB_LOCK, events.get(0).getTrackUuid());
+
+    boolean describesLock = false;
+    for (TracePacket packet : trace.getPacketList()) {
+      if (packet.hasTrackDescriptor() && packet.getTrackDescriptor().getUuid() == Tracer.TrackId.DB_LOCK) {
+        describesLock = "Database Lock".equals(packet.getTrackDescriptor().getName());
+      }
+    }
+    assertTrue(describesLock);
+  }
+
+  @Test
+  public void serialize_keepsOnlyTheNewestEvents() throws Exception {
+    Tracer tracer = new Tracer(time::incrementAndGet, 100);
+
+    for (int i = 0; i < 1_000; i++) {
+      tracer.start("method" + i);
+    }
+
+    List<TrackEvent> events = getEvents(tracer.serialize());
+
+    assertEquals(99, events.size());
+    assertEquals("method901", events.get(0).getName());
+    assertEquals("method999", events.get(events.size() - 1).getName());
+  }
+
+  @Test
+  public void serialize_mergesThreadsInTimestampOrder() throws Exception {
+    Tracer       tracer  = new Tracer(time::incrementAndGet, 1_000);
+    List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread(() -> {
+        for (int j = 0; j < 100; j++) {
+          tracer.start("method");
+          tracer.end("method");
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Trace trace      = Trace.parseFrom(tracer.serialize());
+    long  lastTime   = 0;
+    int   eventCount = 0;
+    int   trackCount = 0;
+
+    for (TracePacket packet : trace.getPacketList()) {
+      if (packet.hasTrackEvent()) {
+        assertTrue(packet.getTimestamp() >= lastTime);
+        lastTime = packet.getTimestamp();
+        eventCount++;
+      } else if (packet.hasTrackDescriptor()) {
+        trackCount++;
+      }
+    }
+
+    assertEquals(800, eventCount);
+    assertEquals(4, trackCount);
+  }
+
+  private static List<TrackEvent> getEvents(byte[] serialized) throws Exception {
+    List<TrackEvent> events = new ArrayList<>();
+
+    for (TracePacket packet : Trace.parseFrom(serialized).getPacketList()) {
+      if (packet.hasTrackEvent()) {
+        events.add(packet.getTrackEvent());
+      }
+    }
+
+    return events;
+  }
+
+  private static void assertEvent(TrackEvent event, TrackEvent.Type type, String name) {
+    assertEquals(type, event.getType());
+    assertEquals(name, event.getName());
+  }
+}
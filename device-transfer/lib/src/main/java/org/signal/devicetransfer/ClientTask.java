@@ -20,6 +20,21 @@ public interface ClientTask extends Serializable {
    */
   void run(@NonNull Context context, @NonNull OutputStream outputStream) throws IOException;
 
+  /**
+   * Number of parallel TLS connections to spread the output stream across. The server must also
+   * support multi-stream transfers, otherwise a single connection is used. Capped at 8.
+   */
+  default int getStreamCount() {
+    return 1;
+  }
+
+  /**
+   * Called with the state provided by {@link ServerTask#getResumeState(Context)} before {@link #run(Context, OutputStream)}.
+   * Not called when the server does not support the extended handshake.
+   */
+  default void setResumeState(@NonNull byte[] resumeState) {
+  }
+
   /**
    * Called after the output stream has been successfully flushed and closed.
    */
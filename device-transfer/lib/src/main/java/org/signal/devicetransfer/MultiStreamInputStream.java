@@ -0,0 +1,196 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.StreamUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reassembles a logical stream written by a {@link MultiStreamOutputStream}. Each underlying stream
+ * is read ahead by its own receiver thread, and chunks are consumed round-robin in the same order
+ * they were produced.
+ * <p>
+ * Closing this stream stops the receiver threads, but does not close the underlying streams.
+ */
+final class MultiStreamInputStream extends InputStream {
+
+  private static final Chunk END_OF_STREAM = new Chunk(null, MultiStreamOutputStream.END_OF_STREAM, null);
+
+  private final List<Receiver>        receivers;
+  private final BlockingQueue<byte[]> bufferPool;
+
+  private Chunk   current;
+  private int     position;
+  private long    chunkIndex;
+  private boolean endOfStream;
+
+  MultiStreamInputStream(@NonNull List<InputStream> inputStreams) {
+    if (inputStreams.isEmpty()) {
+      throw new IllegalArgumentException("At least one stream is required");
+    }
+
+    int poolSize = inputStreams.size() * (MultiStreamOutputStream.QUEUE_DEPTH + 1) + 1;
+
+    this.bufferPool = new ArrayBlockingQueue<>(poolSize);
+    for (int i = 0; i < poolSize; i++) {
+      bufferPool.add(new byte[MultiStreamOutputStream.CHUNK_SIZE]);
+    }
+
+    this.receivers = new ArrayList<>(inputStreams.size());
+    for (int i = 0; i < inputStreams.size(); i++) {
+      Receiver receiver = new Receiver(i, inputStreams.get(i), bufferPool);
+      receivers.add(receiver);
+      receiver.start();
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureChunk()) {
+      return -1;
+    }
+
+    return current.data[position++] & 0xFF;
+  }
+
+  @Override
+  public int read(@NonNull byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    if (!ensureChunk()) {
+      return -1;
+    }
+
+    int copy = Math.min(len, current.length - position);
+    System.arraycopy(current.data, position, b, off, copy);
+    position += copy;
+
+    return copy;
+  }
+
+  @Override
+  public int available() {
+    return current != null ? current.length - position : 0;
+  }
+
+  @Override
+  public void close() {
+    endOfStream = true;
+    for (Receiver receiver : receivers) {
+      receiver.interrupt();
+    }
+  }
+
+  /**
+   * @return True if there is unread data in the current chunk, false if the logical stream has ended.
+   */
+  private boolean ensureChunk() throws IOException {
+    if (endOfStream) {
+      return false;
+    }
+
+    if (current != null && position < current.length) {
+      return true;
+    }
+
+    if (current != null) {
+      bufferPool.add(current.data);
+      current = null;
+    }
+
+    Receiver receiver = receivers.get((int) (chunkIndex % receivers.size()));
+    Chunk    next;
+
+    try {
+      next = receiver.queue.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+
+    if (next.error != null) {
+      throw new IOException("Receiver " + receiver.index + " failed", next.error);
+    }
+
+    if (next == END_OF_STREAM) {
+      endOfStream = true;
+      return false;
+    }
+
+    chunkIndex++;
+    current  = next;
+    position = 0;
+
+    return true;
+  }
+
+  private static final class Chunk {
+    private final byte[]      data;
+    private final int         length;
+    private final IOException error;
+
+    private Chunk(byte[] data, int length, IOException error) {
+      this.data   = data;
+      this.length = length;
+      this.error  = error;
+    }
+  }
+
+  private static final class Receiver extends Thread {
+
+    private final int                   index;
+    private final InputStream           inputStream;
+    private final BlockingQueue<Chunk>  queue;
+    private final BlockingQueue<byte[]> bufferPool;
+    private final byte[]                header;
+
+    private Receiver(int index, @NonNull InputStream inputStream, @NonNull BlockingQueue<byte[]> bufferPool) {
+      super("multi-stream-receiver-" + index);
+      setDaemon(true);
+      this.index       = index;
+      this.inputStream = inputStream;
+      this.queue       = new ArrayBlockingQueue<>(MultiStreamOutputStream.QUEUE_DEPTH);
+      this.bufferPool  = bufferPool;
+      this.header      = new byte[4];
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!isInterrupted()) {
+          StreamUtil.readFully(inputStream, header);
+
+          int length = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+          if (length == MultiStreamOutputStream.END_OF_STREAM) {
+            queue.put(END_OF_STREAM);
+            return;
+          }
+
+          if (length <= 0 || length > MultiStreamOutputStream.CHUNK_SIZE) {
+            throw new IOException("Invalid chunk length: " + length);
+          }
+
+          byte[] data = bufferPool.take();
+          StreamUtil.readFully(inputStream, data, length);
+          queue.put(new Chunk(data, length, null));
+        }
+      } catch (IOException e) {
+        try {
+          queue.put(new Chunk(null, 0, e));
+        } catch (InterruptedException ignored) {
+          // Closed by the reader
+        }
+      } catch (InterruptedException e) {
+        // Closed by the reader
+      }
+    }
+  }
+}
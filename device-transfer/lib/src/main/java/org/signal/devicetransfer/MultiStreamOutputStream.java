@@ -0,0 +1,256 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a single logical stream into fixed size chunks and sends them round-robin over
+ * several underlying streams, each drained by its own sender thread. This lets the expensive
+ * per-connection work (TLS record encryption and the socket send) run in parallel with each
+ * other and with whatever is producing the data.
+ * <p>
+ * Chunk N is always sent on stream N % streamCount, so the receiving {@link MultiStreamInputStream}
+ * can reassemble the original order without any sequence numbers on the wire. Each chunk is
+ * written as a 4 byte big endian length followed by the data, and each stream is terminated
+ * with a length of {@link #END_OF_STREAM}.
+ * <p>
+ * Closing this stream sends the end markers and waits for all data to be written, but does not
+ * close the underlying streams. If the transfer fails part way, {@link #abort()} stops the sender
+ * threads without waiting on them.
+ */
+final class MultiStreamOutputStream extends OutputStream {
+
+  static final int CHUNK_SIZE    = 64 * 1024;
+  static final int END_OF_STREAM = -1;
+  static final int QUEUE_DEPTH   = 4;
+
+  private static final long POLL_INTERVAL_MS = 100;
+
+  private final List<Sender>          senders;
+  private final BlockingQueue<byte[]> bufferPool;
+
+  private byte[]  buffer;
+  private int     position;
+  private long    chunkIndex;
+  private boolean closed;
+
+  MultiStreamOutputStream(@NonNull List<OutputStream> outputStreams) {
+    if (outputStreams.isEmpty()) {
+      throw new IllegalArgumentException("At least one stream is required");
+    }
+
+    int poolSize = outputStreams.size() * (QUEUE_DEPTH + 1) + 1;
+
+    this.bufferPool = new ArrayBlockingQueue<>(poolSize);
+    for (int i = 0; i < poolSize - 1; i++) {
+      bufferPool.add(new byte[CHUNK_SIZE]);
+    }
+    this.buffer = new byte[CHUNK_SIZE];
+
+    this.senders = new ArrayList<>(outputStreams.size());
+    for (int i = 0; i < outputStreams.size(); i++) {
+      Sender sender = new Sender(i, outputStreams.get(i), bufferPool);
+      senders.add(sender);
+      sender.start();
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    throwIfClosed();
+    buffer[position++] = (byte) b;
+
+    if (position == CHUNK_SIZE) {
+      emitChunk();
+    }
+  }
+
+  @Override
+  public void write(@NonNull byte[] b, int off, int len) throws IOException {
+    throwIfClosed();
+
+    while (len > 0) {
+      int copy = Math.min(len, CHUNK_SIZE - position);
+      System.arraycopy(b, off, buffer, position, copy);
+
+      position += copy;
+      off      += copy;
+      len      -= copy;
+
+      if (position == CHUNK_SIZE) {
+        emitChunk();
+      }
+    }
+  }
+
+  /**
+   * Hands off any partially filled chunk to be sent. Senders flush their stream whenever they run
+   * out of queued chunks, so this does not wait on the network.
+   */
+  @Override
+  public void flush() throws IOException {
+    throwIfClosed();
+
+    if (position > 0) {
+      emitChunk();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    try {
+      flush();
+
+      for (Sender sender : senders) {
+        sender.enqueue(new Chunk(null, END_OF_STREAM));
+      }
+
+      for (Sender sender : senders) {
+        sender.join();
+      }
+
+      throwIfSenderFailed();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } finally {
+      closed = true;
+      for (Sender sender : senders) {
+        sender.interrupt();
+      }
+    }
+  }
+
+  /**
+   * Stops the sender threads without sending the end markers or waiting for queued data. A sender
+   * blocked writing to its stream only stops once that stream is closed.
+   */
+  void abort() {
+    closed = true;
+    for (Sender sender : senders) {
+      sender.interrupt();
+    }
+  }
+
+  private void emitChunk() throws IOException {
+    Sender sender = senders.get((int) (chunkIndex % senders.size()));
+    sender.enqueue(new Chunk(buffer, position));
+
+    chunkIndex++;
+    position = 0;
+    buffer   = takeBuffer();
+  }
+
+  private @NonNull byte[] takeBuffer() throws IOException {
+    try {
+      byte[] next;
+      while ((next = bufferPool.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) == null) {
+        throwIfSenderFailed();
+      }
+      return next;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void throwIfSenderFailed() throws IOException {
+    for (Sender sender : senders) {
+      if (sender.error != null) {
+        throw new IOException("Sender " + sender.index + " failed", sender.error);
+      }
+    }
+  }
+
+  private void throwIfClosed() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private static final class Chunk {
+    private final byte[] data;
+    private final int    length;
+
+    private Chunk(byte[] data, int length) {
+      this.data   = data;
+      this.length = length;
+    }
+  }
+
+  private final class Sender extends Thread {
+
+    private final int                   index;
+    private final OutputStream          outputStream;
+    private final BlockingQueue<Chunk>  queue;
+    private final BlockingQueue<byte[]> bufferPool;
+    private final byte[]                header;
+
+    private volatile IOException error;
+
+    private Sender(int index, @NonNull OutputStream outputStream, @NonNull BlockingQueue<byte[]> bufferPool) {
+      super("multi-stream-sender-" + index);
+      setDaemon(true);
+      this.index        = index;
+      this.outputStream = outputStream;
+      this.queue        = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+      this.bufferPool   = bufferPool;
+      this.header       = new byte[4];
+    }
+
+    private void enqueue(@NonNull Chunk chunk) throws IOException {
+      try {
+        while (!queue.offer(chunk, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+          throwIfSenderFailed();
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      throwIfSenderFailed();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!isInterrupted()) {
+          Chunk chunk = queue.take();
+
+          writeLength(chunk.length);
+          if (chunk.length == END_OF_STREAM) {
+            outputStream.flush();
+            return;
+          }
+
+          outputStream.write(chunk.data, 0, chunk.length);
+          bufferPool.add(chunk.data);
+
+          if (queue.isEmpty()) {
+            outputStream.flush();
+          }
+        }
+      } catch (IOException e) {
+        error = e;
+      } catch (InterruptedException e) {
+        error = new InterruptedIOException();
+      }
+    }
+
+    private void writeLength(int length) throws IOException {
+      header[0] = (byte) (length >>> 24);
+      header[1] = (byte) (length >>> 16);
+      header[2] = (byte) (length >>> 8);
+      header[3] = (byte) length;
+      outputStream.write(header);
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.logging.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Negotiates the extended transfer handshake and opens the additional authenticated TLS
+ * connections used by the multi-stream transfer mode.
+ * <p>
+ * After SAS verification each side sends a single byte to the other. Both sides sending
+ * {@link #VERIFIED_EXTENDED} enables the extended handshake, any other combination falls back to
+ * the original single stream transfer, so either side can be an older version.
+ * <ol>
+ * <li>Client sends the total number of streams it wants over the primary connection.</li>
+ * <li>Server sends its resume state, see {@link ServerTask#getResumeState(android.content.Context)}.</li>
+ * </ol>
+ * If more than one stream was requested:
+ * <ol>
+ * <li>Server generates a random session token and sends it over the primary connection.</li>
+ * <li>Client opens each additional connection, verifies the server presents the same certificate as
+ * the primary connection, and sends the token and the index of the stream.</li>
+ * <li>Server accepts each additional connection and verifies the token before using it.</li>
+ * </ol>
+ * The token is only ever sent over connections to the already verified server, so additional
+ * connections are as authenticated as the primary.
+ */
+final class MultiStreamTransfer {
+
+  private static final String TAG = Log.tag(MultiStreamTransfer.class);
+
+  public static final int VERIFIED          = 0x43;
+  public static final int VERIFIED_EXTENDED = 0x4D;
+  public static final int MAX_STREAM_COUNT  = 8;
+
+  private static final int TOKEN_LENGTH            = 32;
+  private static final int CONNECT_TIMEOUT_MS      = 10000;
+  private static final int MAX_RESUME_STATE_LENGTH = 16 * 1024 * 1024;
+
+  private MultiStreamTransfer() {}
+
+  public static int clampStreamCount(int streamCount) {
+    return Math.max(1, Math.min(MAX_STREAM_COUNT, streamCount));
+  }
+
+  public static int readStreamCount(@NonNull InputStream inputStream)
+      throws IOException, DeviceTransferAuthentication.DeviceTransferAuthenticationException
+  {
+    int streamCount = inputStream.read();
+    if (streamCount < 1 || streamCount > MAX_STREAM_COUNT) {
+      throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("invalid stream count: " + streamCount);
+    }
+    return streamCount;
+  }
+
+  public static void writeResumeState(@NonNull OutputStream outputStream, @NonNull byte[] resumeState) throws IOException {
+    DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+    dataOutputStream.writeInt(resumeState.length);
+    dataOutputStream.write(resumeState);
+    dataOutputStream.flush();
+  }
+
+  public static @NonNull byte[] readResumeState(@NonNull InputStream inputStream) throws IOException {
+    int length = new DataInputStream(inputStream).readInt();
+    if (length < 0 || length > MAX_RESUME_STATE_LENGTH) {
+      throw new IOException("Invalid resume state length: " + length);
+    }
+
+    byte[] resumeState = new byte[length];
+    StreamUtil.readFully(inputStream, resumeState);
+    return resumeState;
+  }
+
+  /**
+   * Client side, called on the primary connection after both sides agreed on multi-stream mode.
+   *
+   * @return The additional connected sockets, in stream index order starting at 1.
+   */
+  public static @NonNull List<Socket> connectAdditionalStreams(@NonNull String serverHostAddress,
+                                                               int port,
+                                                               @NonNull X509Certificate primaryCertificate,
+                                                               @NonNull InputStream inputStream,
+                                                               int streamCount)
+      throws IOException, GeneralSecurityException, DeviceTransferAuthentication.DeviceTransferAuthenticationException
+  {
+    byte[] token = new byte[TOKEN_LENGTH];
+    StreamUtil.readFully(inputStream, token);
+
+    byte[]       expectedCertificate = primaryCertificate.getEncoded();
+    List<Socket> sockets             = new ArrayList<>(streamCount - 1);
+
+    try {
+      for (int i = 1; i < streamCount; i++) {
+        SelfSignedIdentity.ApprovingTrustManager trustManager = new SelfSignedIdentity.ApprovingTrustManager();
+
+        SSLSocket socket = (SSLSocket) SelfSignedIdentity.getApprovingSocketFactory(trustManager).createSocket();
+        sockets.add(socket);
+
+        socket.bind(null);
+        socket.connect(new InetSocketAddress(serverHostAddress, port), CONNECT_TIMEOUT_MS);
+        socket.startHandshake();
+
+        X509Certificate x509 = trustManager.getX509Certificate();
+        if (x509 == null || !MessageDigest.isEqual(expectedCertificate, x509.getEncoded())) {
+          throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("additional stream certificate does not match");
+        }
+
+        OutputStream streamOutput = socket.getOutputStream();
+        streamOutput.write(token);
+        streamOutput.write(i);
+        streamOutput.flush();
+      }
+    } catch (IOException | GeneralSecurityException | DeviceTransferAuthentication.DeviceTransferAuthenticationException e) {
+      closeAll(sockets);
+      throw e;
+    }
+
+    Log.i(TAG, "Connected " + sockets.size() + " additional streams");
+    return sockets;
+  }
+
+  /**
+   * Server side, called on the primary connection after both sides agreed on multi-stream mode.
+   *
+   * @return The additional accepted sockets, in stream index order starting at 1.
+   */
+  public static @NonNull List<Socket> acceptAdditionalStreams(@NonNull ServerSocket serverSocket,
+                                                              @NonNull OutputStream outputStream,
+                                                              int streamCount)
+      throws IOException, DeviceTransferAuthentication.DeviceTransferAuthenticationException
+  {
+    byte[] token = new byte[TOKEN_LENGTH];
+    new SecureRandom().nextBytes(token);
+
+    outputStream.write(token);
+    outputStream.flush();
+
+    Socket[]     ordered  = new Socket[streamCount - 1];
+    List<Socket> accepted = new ArrayList<>(streamCount - 1);
+    int          timeout  = serverSocket.getSoTimeout();
+
+    try {
+      serverSocket.setSoTimeout(CONNECT_TIMEOUT_MS);
+
+      for (int i = 1; i < streamCount; i++) {
+        Socket socket = serverSocket.accept();
+        accepted.add(socket);
+        socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+
+        InputStream streamInput   = socket.getInputStream();
+        byte[]      receivedToken = new byte[TOKEN_LENGTH];
+        StreamUtil.readFully(streamInput, receivedToken);
+        int index = streamInput.read();
+
+        if (!MessageDigest.isEqual(token, receivedToken)) {
+          throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("additional stream token does not match");
+        }
+
+        if (index < 1 || index >= streamCount || ordered[index - 1] != null) {
+          throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("invalid additional stream index: " + index);
+        }
+
+        socket.setSoTimeout(0);
+        ordered[index - 1] = socket;
+      }
+    } catch (IOException | DeviceTransferAuthentication.DeviceTransferAuthenticationException e) {
+      closeAll(accepted);
+      throw e;
+    } finally {
+      serverSocket.setSoTimeout(timeout);
+    }
+
+    Log.i(TAG, "Accepted " + accepted.size() + " additional streams");
+    return Arrays.asList(ordered);
+  }
+
+  public static @NonNull List<OutputStream> getOutputStreams(@NonNull OutputStream primary, @NonNull List<Socket> additional) throws IOException {
+    List<OutputStream> streams = new ArrayList<>(additional.size() + 1);
+    streams.add(primary);
+    for (Socket socket : additional) {
+      streams.add(socket.getOutputStream());
+    }
+    return streams;
+  }
+
+  public static @NonNull List<InputStream> getInputStreams(@NonNull InputStream primary, @NonNull List<Socket> additional) throws IOException {
+    List<InputStream> streams = new ArrayList<>(additional.size() + 1);
+    streams.add(primary);
+    for (Socket socket : additional) {
+      streams.add(socket.getInputStream());
+    }
+    return streams;
+  }
+
+  public static void closeAll(@NonNull List<Socket> sockets) {
+    for (Socket socket : sockets) {
+      StreamUtil.close(socket);
+    }
+  }
+}
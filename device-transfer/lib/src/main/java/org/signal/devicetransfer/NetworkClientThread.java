@@ -14,7 +14,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLHandshakeException;
@@ -34,7 +37,8 @@ final class NetworkClientThread extends Thread {
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1003;
   public static final int NETWORK_CLIENT_STOPPED         = 1004;
 
-  private volatile SSLSocket client;
+  private volatile SSLSocket    client;
+  private volatile List<Socket> additionalStreams = Collections.emptyList();
   private volatile boolean   isRunning;
   private volatile Boolean   isVerified;
 
@@ -92,10 +96,12 @@ final class NetworkClientThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for server to tell us they also verified");
-          outputStream.write(0x43);
+          int streamCount = MultiStreamTransfer.clampStreamCount(clientTask.getStreamCount());
+          outputStream.write(MultiStreamTransfer.VERIFIED_EXTENDED);
           outputStream.flush();
+          int result;
           try {
-            int result = inputStream.read();
+            result = inputStream.read();
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for server to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("server disconnected while we waited");
@@ -105,8 +111,34 @@ final class NetworkClientThread extends Thread {
             throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException(e);
           }
 
+          OutputStream transferStream = outputStream;
+          if (result == MultiStreamTransfer.VERIFIED_EXTENDED) {
+            outputStream.write(streamCount);
+            outputStream.flush();
+
+            clientTask.setResumeState(MultiStreamTransfer.readResumeState(inputStream));
+
+            if (streamCount > 1) {
+              Log.i(TAG, "Using multi-stream transfer with streams: " + streamCount);
+              additionalStreams = MultiStreamTransfer.connectAdditionalStreams(serverHostAddress, port, x509, inputStream, streamCount);
+              transferStream    = new MultiStreamOutputStream(MultiStreamTransfer.getOutputStreams(outputStream, additionalStreams));
+            }
+          }
+
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          clientTask.run(context, outputStream);
+          boolean transferred = false;
+          try {
+            clientTask.run(context, transferStream);
+            if (transferStream != outputStream) {
+              transferStream.close();
+            }
+            transferred = true;
+          } finally {
+            if (!transferred && transferStream instanceof MultiStreamOutputStream) {
+              MultiStreamTransfer.closeAll(additionalStreams);
+              ((MultiStreamOutputStream) transferStream).abort();
+            }
+          }
           outputStream.flush();
 
           Log.d(TAG, "Waiting for server to tell us they got everything");
@@ -130,6 +162,8 @@ final class NetworkClientThread extends Thread {
         if (success) {
           clientTask.success();
         }
+        MultiStreamTransfer.closeAll(additionalStreams);
+        additionalStreams = Collections.emptyList();
         StreamUtil.close(client);
         handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
       }
@@ -169,6 +203,7 @@ final class NetworkClientThread extends Thread {
   @AnyThread
   public void shutdown() {
     isRunning = false;
+    MultiStreamTransfer.closeAll(additionalStreams);
     StreamUtil.close(client);
     interrupt();
   }
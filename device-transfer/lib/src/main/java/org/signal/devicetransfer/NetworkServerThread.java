@@ -14,6 +14,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Performs the networking setup/tear down for the server. This includes
@@ -32,6 +34,7 @@ final class NetworkServerThread extends Thread {
 
   private volatile ServerSocket serverSocket;
   private volatile Socket       clientSocket;
+  private volatile List<Socket> additionalStreams = Collections.emptyList();
   private volatile boolean      isRunning;
   private volatile Boolean      isVerified;
 
@@ -80,10 +83,11 @@ final class NetworkServerThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for client to tell us they also verified");
-          outputStream.write(0x43);
+          outputStream.write(MultiStreamTransfer.VERIFIED_EXTENDED);
           outputStream.flush();
+          int result;
           try {
-            int result = inputStream.read();
+            result = inputStream.read();
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for client to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
@@ -93,8 +97,27 @@ final class NetworkServerThread extends Thread {
             throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException(e);
           }
 
+          InputStream transferStream = inputStream;
+          if (result == MultiStreamTransfer.VERIFIED_EXTENDED) {
+            int streamCount = MultiStreamTransfer.readStreamCount(inputStream);
+
+            MultiStreamTransfer.writeResumeState(outputStream, serverTask.getResumeState(context));
+
+            if (streamCount > 1) {
+              additionalStreams = MultiStreamTransfer.acceptAdditionalStreams(serverSocket, outputStream, streamCount);
+              transferStream    = new MultiStreamInputStream(MultiStreamTransfer.getInputStreams(inputStream, additionalStreams));
+              Log.i(TAG, "Using multi-stream transfer with streams: " + streamCount);
+            }
+          }
+
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          serverTask.run(context, inputStream);
+          try {
+            serverTask.run(context, transferStream);
+          } finally {
+            if (transferStream != inputStream) {
+              transferStream.close();
+            }
+          }
 
           outputStream.write(0x53);
           outputStream.flush();
@@ -105,6 +128,8 @@ final class NetworkServerThread extends Thread {
             Log.i(TAG, "Server shutting down...");
           }
         } finally {
+          MultiStreamTransfer.closeAll(additionalStreams);
+          additionalStreams = Collections.emptyList();
           StreamUtil.close(clientSocket);
           handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
         }
@@ -161,6 +186,7 @@ final class NetworkServerThread extends Thread {
   @AnyThread
   public void shutdown() {
     isRunning = false;
+    MultiStreamTransfer.closeAll(additionalStreams);
     StreamUtil.close(clientSocket);
     StreamUtil.close(serverSocket);
     interrupt();
@@ -19,4 +19,14 @@ public interface ServerTask extends Serializable {
    * @param inputStream Input stream associated with socket connected to remote client.
    */
   void run(@NonNull Context context, @NonNull InputStream inputStream) throws IOException;
+
+  /**
+   * Opaque state sent to the client before the transfer starts, allowing the client to skip
+   * data that was already received in a previous, interrupted, transfer.
+   *
+   * @see ClientTask#setResumeState(byte[])
+   */
+  default @NonNull byte[] getResumeState(@NonNull Context context) {
+    return new byte[0];
+  }
 }
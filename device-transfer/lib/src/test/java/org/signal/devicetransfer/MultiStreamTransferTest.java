@@ -0,0 +1,361 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.whispersystems.signalservice.test.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
+
+/**
+ * Loopback harness for {@link MultiStreamOutputStream} and {@link MultiStreamInputStream}. Each
+ * connection is wrapped in its own AES stream cipher to stand in for the per-connection TLS record
+ * encryption, which is the work the multiple streams are meant to spread across cores.
+ */
+public class MultiStreamTransferTest {
+
+  private static final byte[] KEY = new byte[16];
+  private static final byte[] IV  = new byte[16];
+
+  private static final int    TOKEN_LENGTH      = 32;
+  private static final char[] KEYSTORE_PASSWORD = "test".toCharArray();
+
+  private static final int BENCHMARK_SIZE = 64 * 1024 * 1024;
+
+  @Test
+  public void roundTrip_emptyStream() throws Exception {
+    for (int streams : new int[] { 1, 2, 4, 8 }) {
+      assertArrayEquals(new byte[0], transfer(new byte[0], streams, 4096));
+    }
+  }
+
+  @Test
+  public void roundTrip_partialChunks() throws Exception {
+    byte[] data = randomBytes(MultiStreamOutputStream.CHUNK_SIZE * 5 + 17);
+
+    for (int streams : new int[] { 1, 2, 3, 4, 8 }) {
+      assertArrayEquals(data, transfer(data, streams, 1000));
+    }
+  }
+
+  @Test
+  public void roundTrip_singleByteWrites() throws Exception {
+    byte[] data = randomBytes(MultiStreamOutputStream.CHUNK_SIZE * 2 + 3);
+
+    assertArrayEquals(data, transfer(data, 3, 1));
+  }
+
+  @Test
+  public void readStreamCount_rejectsOutOfRange() throws Exception {
+    assertEquals(1, MultiStreamTransfer.readStreamCount(new ByteArrayInputStream(new byte[] { 1 })));
+    assertEquals(MultiStreamTransfer.MAX_STREAM_COUNT, MultiStreamTransfer.readStreamCount(new ByteArrayInputStream(new byte[] { MultiStreamTransfer.MAX_STREAM_COUNT })));
+
+    for (byte[] invalid : new byte[][] { { 0 }, { MultiStreamTransfer.MAX_STREAM_COUNT + 1 }, {} }) {
+      try {
+        MultiStreamTransfer.readStreamCount(new ByteArrayInputStream(invalid));
+        fail();
+      } catch (DeviceTransferAuthentication.DeviceTransferAuthenticationException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void additionalStreams_connectInIndexOrder() throws Exception, KeyGenerationFailedException {
+    assumeLibSignalSupportedOnOS();
+
+    SelfSignedIdentity.SelfSignedKeys keys       = SelfSignedIdentity.create();
+    ExecutorService                   executor   = Executors.newSingleThreadExecutor();
+    PipedInputStream                  primaryIn  = new PipedInputStream();
+    PipedOutputStream                 primaryOut = new PipedOutputStream(primaryIn);
+
+    try (ServerSocket serverSocket = serverSocket(keys)) {
+      Future<List<Socket>> accepted = executor.submit(() -> MultiStreamTransfer.acceptAdditionalStreams(serverSocket, primaryOut, 4));
+      List<Socket>         client   = MultiStreamTransfer.connectAdditionalStreams("127.0.0.1", serverSocket.getLocalPort(), certificate(keys), primaryIn, 4);
+      List<Socket>         server   = accepted.get();
+
+      try {
+        assertEquals(3, client.size());
+        assertEquals(3, server.size());
+
+        for (int i = 0; i < client.size(); i++) {
+          client.get(i).getOutputStream().write(i + 1);
+          client.get(i).getOutputStream().flush();
+          assertEquals(i + 1, server.get(i).getInputStream().read());
+        }
+      } finally {
+        MultiStreamTransfer.closeAll(client);
+        MultiStreamTransfer.closeAll(server);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void additionalStreams_clientRejectsDifferentCertificate() throws Exception, KeyGenerationFailedException {
+    assumeLibSignalSupportedOnOS();
+
+    SelfSignedIdentity.SelfSignedKeys keys       = SelfSignedIdentity.create();
+    ExecutorService                   executor   = Executors.newSingleThreadExecutor();
+    PipedInputStream                  primaryIn  = new PipedInputStream();
+    PipedOutputStream                 primaryOut = new PipedOutputStream(primaryIn);
+
+    try (ServerSocket serverSocket = serverSocket(keys)) {
+      Future<List<Socket>> accepted = executor.submit(() -> MultiStreamTransfer.acceptAdditionalStreams(serverSocket, primaryOut, 2));
+
+      try {
+        MultiStreamTransfer.connectAdditionalStreams("127.0.0.1", serverSocket.getLocalPort(), certificate(SelfSignedIdentity.create()), primaryIn, 2);
+        fail();
+      } catch (DeviceTransferAuthentication.DeviceTransferAuthenticationException e) {
+        // Expected
+      }
+
+      assertAcceptFails(accepted);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void additionalStreams_serverRejectsWrongToken() throws Exception, KeyGenerationFailedException {
+    assumeLibSignalSupportedOnOS();
+
+    SelfSignedIdentity.SelfSignedKeys keys       = SelfSignedIdentity.create();
+    ExecutorService                   executor   = Executors.newSingleThreadExecutor();
+    PipedInputStream                  primaryIn  = new PipedInputStream();
+    PipedOutputStream                 primaryOut = new PipedOutputStream(primaryIn);
+
+    try (ServerSocket serverSocket = serverSocket(keys)) {
+      Future<List<Socket>> accepted = executor.submit(() -> MultiStreamTransfer.acceptAdditionalStreams(serverSocket, primaryOut, 2));
+
+      byte[] token = readToken(primaryIn);
+      token[0] ^= 1;
+
+      try (Socket socket = connect(serverSocket.getLocalPort())) {
+        socket.getOutputStream().write(token);
+        socket.getOutputStream().write(1);
+        socket.getOutputStream().flush();
+
+        assertAcceptFails(accepted);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void additionalStreams_serverRejectsInvalidIndex() throws Exception, KeyGenerationFailedException {
+    assumeLibSignalSupportedOnOS();
+
+    SelfSignedIdentity.SelfSignedKeys keys = SelfSignedIdentity.create();
+
+    for (int[] indexes : new int[][] { { 0 }, { 3 }, { 1, 1 } }) {
+      ExecutorService   executor   = Executors.newSingleThreadExecutor();
+      PipedInputStream  primaryIn  = new PipedInputStream();
+      PipedOutputStream primaryOut = new PipedOutputStream(primaryIn);
+      List<Socket>      sockets    = new ArrayList<>();
+
+      try (ServerSocket serverSocket = serverSocket(keys)) {
+        Future<List<Socket>> accepted = executor.submit(() -> MultiStreamTransfer.acceptAdditionalStreams(serverSocket, primaryOut, 3));
+
+        byte[] token = readToken(primaryIn);
+
+        for (int index : indexes) {
+          Socket socket = connect(serverSocket.getLocalPort());
+          sockets.add(socket);
+          socket.getOutputStream().write(token);
+          socket.getOutputStream().write(index);
+          socket.getOutputStream().flush();
+        }
+
+        assertAcceptFails(accepted);
+      } finally {
+        MultiStreamTransfer.closeAll(sockets);
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Ignore("Benchmark, run manually")
+  @Test
+  public void throughput_loopback() throws Exception {
+    byte[] data     = randomBytes(BENCHMARK_SIZE);
+    byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+
+    for (int streams : new int[] { 1, 2, 4, 8 }) {
+      long   start    = System.nanoTime();
+      byte[] received = transfer(data, streams, 32 * 1024);
+      long   elapsed  = System.nanoTime() - start;
+
+      assertArrayEquals(expected, MessageDigest.getInstance("SHA-256").digest(received));
+
+      double megabytesPerSecond = (BENCHMARK_SIZE / (1024.0 * 1024.0)) / (elapsed / 1_000_000_000.0);
+      System.out.printf("MultiStreamTransfer streams=%d: %.1f MB/s%n", streams, megabytesPerSecond);
+    }
+  }
+
+  private static byte[] transfer(@NonNull byte[] data, int streamCount, int writeSize) throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+
+    try (ServerSocket serverSocket = new ServerSocket(0, streamCount, InetAddress.getLoopbackAddress())) {
+      Future<byte[]> receive = executor.submit(() -> {
+        List<Socket> sockets = new ArrayList<>();
+        try {
+          List<InputStream> inputs = new ArrayList<>();
+          for (int i = 0; i < streamCount; i++) {
+            Socket socket = serverSocket.accept();
+            sockets.add(socket);
+            inputs.add(new CipherInputStream(socket.getInputStream(), cipher(Cipher.DECRYPT_MODE)));
+          }
+
+          ByteArrayOutputStream output = new ByteArrayOutputStream(data.length);
+          try (InputStream inputStream = new MultiStreamInputStream(inputs)) {
+            byte[] buffer = new byte[32 * 1024];
+            int    read;
+            while ((read = inputStream.read(buffer)) != -1) {
+              output.write(buffer, 0, read);
+            }
+          }
+          return output.toByteArray();
+        } finally {
+          MultiStreamTransfer.closeAll(sockets);
+        }
+      });
+
+      List<Socket> sockets = new ArrayList<>();
+      try {
+        List<OutputStream> outputs = new ArrayList<>();
+        for (int i = 0; i < streamCount; i++) {
+          Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+          sockets.add(socket);
+          outputs.add(new CipherOutputStream(socket.getOutputStream(), cipher(Cipher.ENCRYPT_MODE)));
+        }
+
+        try (OutputStream outputStream = new MultiStreamOutputStream(outputs)) {
+          if (writeSize == 1) {
+            for (byte b : data) {
+              outputStream.write(b);
+            }
+          } else {
+            for (int offset = 0; offset < data.length; offset += writeSize) {
+              outputStream.write(data, offset, Math.min(writeSize, data.length - offset));
+            }
+          }
+        }
+
+        byte[] received = receive.get();
+        assertEquals(data.length, received.length);
+        return received;
+      } finally {
+        MultiStreamTransfer.closeAll(sockets);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void assertAcceptFails(@NonNull Future<List<Socket>> accepted) throws InterruptedException {
+    try {
+      List<Socket> sockets = accepted.get();
+      MultiStreamTransfer.closeAll(sockets);
+      fail("Additional streams were accepted");
+    } catch (ExecutionException e) {
+      assertTrue(String.valueOf(e.getCause()),
+                 e.getCause() instanceof DeviceTransferAuthentication.DeviceTransferAuthenticationException || e.getCause() instanceof IOException);
+    }
+  }
+
+  private static @NonNull byte[] readToken(@NonNull InputStream primaryIn) throws IOException {
+    byte[] token = new byte[TOKEN_LENGTH];
+    int    read  = 0;
+    while (read < token.length) {
+      int count = primaryIn.read(token, read, token.length - read);
+      assertTrue(count > 0);
+      read += count;
+    }
+    return token;
+  }
+
+  private static @NonNull Socket connect(int port) throws Exception {
+    SSLSocket socket = (SSLSocket) SelfSignedIdentity.getApprovingSocketFactory(new SelfSignedIdentity.ApprovingTrustManager()).createSocket();
+    socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 10000);
+    socket.startHandshake();
+    return socket;
+  }
+
+  private static @NonNull X509Certificate certificate(@NonNull SelfSignedIdentity.SelfSignedKeys keys) throws GeneralSecurityException {
+    X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X509").generateCertificate(new ByteArrayInputStream(keys.getX509Encoded()));
+    assertNotNull(certificate);
+    return certificate;
+  }
+
+  /**
+   * Same identity as {@link SelfSignedIdentity#getServerSocketFactory}, but in a PKCS12 key store, since BKS is only available on Android.
+   */
+  private static @NonNull ServerSocket serverSocket(@NonNull SelfSignedIdentity.SelfSignedKeys keys) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    keyStore.load(null);
+    keyStore.setKeyEntry("server", keys.getPrivateKey(), KEYSTORE_PASSWORD, new Certificate[] { certificate(keys) });
+
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD);
+
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
+
+    return sslContext.getServerSocketFactory().createServerSocket(0, 8, InetAddress.getLoopbackAddress());
+  }
+
+  private static Cipher cipher(int mode) throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(mode, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(IV));
+    return cipher;
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -10,6 +10,7 @@ import org.signal.libsignal.protocol.InvalidMessageException;
 import org.signal.libsignal.zkgroup.profiles.ClientZkProfileOperations;
 import org.signal.libsignal.zkgroup.profiles.ProfileKey;
 import org.whispersystems.signalservice.api.crypto.AttachmentCipherInputStream;
+import org.whispersystems.signalservice.api.crypto.AttachmentDecryptingOutputStream;
 import org.whispersystems.signalservice.api.crypto.ProfileCipherInputStream;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
@@ -32,6 +33,7 @@ import org.whispersystems.signalservice.internal.push.PushServiceSocket;
 import org.whispersystems.signalservice.internal.push.SignalServiceEnvelopeEntity;
 import org.whispersystems.signalservice.internal.push.SignalServiceMessagesResult;
 import org.whispersystems.signalservice.internal.sticker.StickerProtos;
+import org.whispersystems.signalservice.internal.util.TeeOutputStream;
 import org.whispersystems.signalservice.internal.util.Util;
 import org.whispersystems.signalservice.internal.util.concurrent.FutureTransformers;
 import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
@@ -40,8 +42,10 @@ import org.whispersystems.signalservice.internal.websocket.ResponseMapper;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -167,6 +171,39 @@ public class SignalServiceMessageReceiver {
     return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get(), pointer.getIncrementalDigest().orElse(new byte[0]));
   }
 
+  /**
+   * Retrieves a SignalServiceAttachment, decrypting it as it downloads and writing the plaintext to the provided stream, rather than downloading it in full
+   * and reading it back for verification and decryption.
+   *
+   * The ciphertext is still appended to {@code transferFile} so that an interrupted download can pick up where it left off. Any ciphertext already in the
+   * file is replayed through the decryptor before the rest is requested.
+   *
+   * The MAC and digest are verified once the download completes. If this throws, anything written to {@code plaintextOutput} must be discarded.
+   *
+   * @param pointer The {@link SignalServiceAttachmentPointer}
+   *                received in a {@link SignalServiceDataMessage}.
+   * @param transferFile The file to append the downloaded ciphertext to.
+   * @param plaintextOutput The stream to write the decrypted attachment to. It is not closed.
+   */
+  public void retrieveAttachment(SignalServiceAttachmentPointer pointer, File transferFile, long maxSizeBytes, ProgressListener listener, OutputStream plaintextOutput)
+      throws IOException, InvalidMessageException, MissingConfigurationException
+  {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    AttachmentDecryptingOutputStream decryptingStream = new AttachmentDecryptingOutputStream(plaintextOutput, pointer.getKey(), pointer.getSize().orElse(0), pointer.getDigest().get());
+    long                             offset           = transferFile.length();
+
+    if (offset > 0) {
+      Util.copy(new FileInputStream(transferFile), decryptingStream);
+    }
+
+    try (OutputStream transferStream = new FileOutputStream(transferFile, true)) {
+      socket.retrieveAttachment(pointer.getCdnNumber(), pointer.getRemoteId(), new TeeOutputStream(transferStream, decryptingStream), offset, maxSizeBytes, listener);
+    }
+
+    decryptingStream.finish();
+  }
+
   public InputStream retrieveSticker(byte[] packId, byte[] packKey, int stickerId)
       throws IOException, InvalidMessageException
   {
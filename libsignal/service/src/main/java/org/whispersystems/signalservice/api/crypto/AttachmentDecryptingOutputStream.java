@@ -0,0 +1,205 @@
+package org.whispersystems.signalservice.api.crypto;
+
+import org.signal.libsignal.protocol.InvalidMacException;
+import org.signal.libsignal.protocol.InvalidMessageException;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The streaming counterpart to {@link AttachmentCipherInputStream}. Attachment ciphertext is written to this stream as it arrives, and the plaintext is
+ * written to the wrapped stream. The MAC and digest are computed along the way and verified in {@link #finish()}.
+ *
+ * Because plaintext is written before the MAC can be checked, callers must discard everything written to the wrapped stream if {@link #finish()} throws.
+ */
+public class AttachmentDecryptingOutputStream extends FilterOutputStream {
+
+  private static final int BLOCK_SIZE      = 16;
+  private static final int CIPHER_KEY_SIZE = 32;
+  private static final int MAC_KEY_SIZE    = 32;
+  private static final int MAC_LENGTH      = 32;
+
+  private final byte[]        cipherKey;
+  private final Cipher        cipher;
+  private final Mac           mac;
+  private final MessageDigest digest;
+  private final byte[]        theirDigest;
+  private final long          plaintextLength;
+
+  private final byte[] iv   = new byte[BLOCK_SIZE];
+  private final byte[] tail = new byte[MAC_LENGTH];
+
+  private int     ivLength;
+  private int     tailLength;
+  private long    ciphertextLength;
+  private long    plaintextWritten;
+  private boolean finished;
+
+  /**
+   * @param plaintextLength The length of the unpadded plaintext, or 0 if unknown, in which case any padding is written through as well.
+   */
+  public AttachmentDecryptingOutputStream(OutputStream outputStream, byte[] combinedKeyMaterial, long plaintextLength, byte[] digest) {
+    super(outputStream);
+
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+
+      this.cipherKey       = parts[0];
+      this.cipher          = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.mac             = Mac.getInstance("HmacSHA256");
+      this.digest          = MessageDigest.getInstance("SHA256");
+      this.theirDigest     = digest;
+      this.plaintextLength = plaintextLength;
+
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  /**
+   * The last {@link #MAC_LENGTH} bytes seen so far might be the MAC, so they're held back until more data arrives, and everything before them is
+   * authenticated and decrypted.
+   */
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (finished) {
+      throw new IOException("Already finished!");
+    }
+
+    ciphertextLength += length;
+
+    int available = tailLength + length;
+
+    if (available <= MAC_LENGTH) {
+      System.arraycopy(buffer, offset, tail, tailLength, length);
+      tailLength = available;
+      return;
+    }
+
+    int release    = available - MAC_LENGTH;
+    int fromTail   = Math.min(release, tailLength);
+    int fromBuffer = release - fromTail;
+
+    processCiphertext(tail, 0, fromTail);
+    processCiphertext(buffer, offset, fromBuffer);
+
+    int remainingTail = tailLength - fromTail;
+
+    System.arraycopy(tail, fromTail, tail, 0, remainingTail);
+    System.arraycopy(buffer, offset + fromBuffer, tail, remainingTail, length - fromBuffer);
+    tailLength = MAC_LENGTH;
+  }
+
+  /**
+   * Verifies the MAC and digest and writes out the final block of plaintext. Must be called once all of the ciphertext has been written.
+   */
+  public void finish() throws IOException, InvalidMessageException {
+    if (finished) {
+      return;
+    }
+
+    finished = true;
+
+    if (ciphertextLength <= BLOCK_SIZE + MAC_LENGTH) {
+      throw new InvalidMessageException("Message shorter than crypto overhead!");
+    }
+
+    byte[] ourMac = mac.doFinal();
+
+    if (!MessageDigest.isEqual(ourMac, tail)) {
+      throw new InvalidMessageException(new InvalidMacException("MAC doesn't match!"));
+    }
+
+    byte[] ourDigest = digest.digest(tail);
+
+    if (theirDigest == null || !MessageDigest.isEqual(ourDigest, theirDigest)) {
+      throw new InvalidMessageException(new InvalidMacException("Digest doesn't match!"));
+    }
+
+    try {
+      writePlaintext(cipher.doFinal());
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new InvalidMessageException(e);
+    }
+
+    out.flush();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  private void processCiphertext(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+
+    mac.update(buffer, offset, length);
+    digest.update(buffer, offset, length);
+
+    if (ivLength < BLOCK_SIZE) {
+      int ivBytes = Math.min(BLOCK_SIZE - ivLength, length);
+
+      System.arraycopy(buffer, offset, iv, ivLength, ivBytes);
+      ivLength += ivBytes;
+      offset   += ivBytes;
+      length   -= ivBytes;
+
+      if (ivLength == BLOCK_SIZE) {
+        try {
+          cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }
+
+    if (length > 0) {
+      writePlaintext(cipher.update(buffer, offset, length));
+    }
+  }
+
+  private void writePlaintext(byte[] plaintext) throws IOException {
+    if (plaintext == null || plaintext.length == 0) {
+      return;
+    }
+
+    int length = plaintextLength > 0 ? (int) Math.min(plaintext.length, Math.max(0, plaintextLength - plaintextWritten)) : plaintext.length;
+
+    if (length > 0) {
+      out.write(plaintext, 0, length);
+      plaintextWritten += length;
+    }
+  }
+}
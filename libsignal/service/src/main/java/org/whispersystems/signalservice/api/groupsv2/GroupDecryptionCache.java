@@ -0,0 +1,62 @@
+package org.whispersystems.signalservice.api.groupsv2;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.libsignal.zkgroup.profiles.ProfileKey;
+import org.whispersystems.signalservice.api.push.ServiceId;
+import org.whispersystems.signalservice.api.push.ServiceId.ACI;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the plaintext of member ciphertexts already decrypted for a single group.
+ * <p>
+ * Group state and every page of group history carry the same member ciphertexts, and each zkgroup
+ * decryption is comparatively expensive, so a member only needs decrypting once while the cache is
+ * warm. Both maps are access ordered and evict the least recently used entry once full.
+ */
+final class GroupDecryptionCache {
+
+  private final Map<ByteString, ServiceId>  serviceIds;
+  private final Map<ByteString, ProfileKey> profileKeys;
+
+  GroupDecryptionCache(int maxEntries) {
+    this.serviceIds  = new LruMap<>(maxEntries);
+    this.profileKeys = new LruMap<>(maxEntries);
+  }
+
+  synchronized ServiceId getServiceId(ByteString uuidCiphertext) {
+    return serviceIds.get(uuidCiphertext);
+  }
+
+  synchronized void putServiceId(ByteString uuidCiphertext, ServiceId serviceId) {
+    serviceIds.put(uuidCiphertext, serviceId);
+  }
+
+  /**
+   * Profile key decryption is bound to the ACI it is decrypted for, so that is part of the key.
+   */
+  synchronized ProfileKey getProfileKey(ByteString profileKeyCiphertext, ACI aci) {
+    return profileKeys.get(profileKeyCiphertext.concat(aci.toByteString()));
+  }
+
+  synchronized void putProfileKey(ByteString profileKeyCiphertext, ACI aci, ProfileKey profileKey) {
+    profileKeys.put(profileKeyCiphertext.concat(aci.toByteString()), profileKey);
+  }
+
+  static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+    private final int maxEntries;
+
+    LruMap(int maxEntries) {
+      super(16, 0.75f, true);
+      this.maxEntries = maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > maxEntries;
+    }
+  }
+}
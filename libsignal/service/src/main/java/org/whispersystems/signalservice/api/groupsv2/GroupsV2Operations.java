@@ -50,9 +50,13 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
 
 /**
@@ -68,18 +72,40 @@ public final class GroupsV2Operations {
   /** Highest change epoch this class knows now to decrypt */
   public static final int HIGHEST_KNOWN_EPOCH = 5;
 
-  private final ServerPublicParams        serverPublicParams;
-  private final ClientZkProfileOperations clientZkProfileOperations;
-  private final ClientZkAuthOperations    clientZkAuthOperations;
-  private final int                       maxGroupSize;
-  private final SecureRandom              random;
+  /** Number of groups whose decrypted member ciphertexts are kept in memory */
+  private static final int MAX_CACHED_GROUPS = 4;
+
+  /** Lists shorter than this are always decrypted on the calling thread */
+  private static final int MIN_PARALLEL_DECRYPT_SIZE = 32;
+
+  private final ServerPublicParams                    serverPublicParams;
+  private final ClientZkProfileOperations             clientZkProfileOperations;
+  private final ClientZkAuthOperations                clientZkAuthOperations;
+  private final int                                   maxGroupSize;
+  private final SecureRandom                          random;
+  private final Executor                              decryptExecutor;
+  private final int                                   decryptParallelism;
+  private final Map<ByteString, GroupDecryptionCache> decryptionCaches;
 
   public GroupsV2Operations(ClientZkOperations clientZkOperations, int maxGroupSize) {
+    this(clientZkOperations, maxGroupSize, null, 1);
+  }
+
+  /**
+   * @param decryptExecutor    If not null, large lists of members are split into up to {@code decryptParallelism}
+   *                           parts that are decrypted concurrently, with one part always decrypted on the
+   *                           calling thread.
+   * @param decryptParallelism Maximum number of threads, including the calling thread, used to decrypt a list.
+   */
+  public GroupsV2Operations(ClientZkOperations clientZkOperations, int maxGroupSize, Executor decryptExecutor, int decryptParallelism) {
     this.serverPublicParams        = clientZkOperations.getServerPublicParams();
     this.clientZkProfileOperations = clientZkOperations.getProfileOperations();
     this.clientZkAuthOperations    = clientZkOperations.getAuthOperations();
     this.maxGroupSize              = maxGroupSize;
     this.random                    = new SecureRandom();
+    this.decryptExecutor           = decryptExecutor;
+    this.decryptParallelism        = Math.max(1, decryptParallelism);
+    this.decryptionCaches          = new GroupDecryptionCache.LruMap<>(MAX_CACHED_GROUPS);
   }
 
   /**
@@ -128,7 +154,20 @@ public final class GroupsV2Operations {
   }
 
   public GroupOperations forGroup(final GroupSecretParams groupSecretParams) {
-    return new GroupOperations(groupSecretParams);
+    return new GroupOperations(groupSecretParams, getDecryptionCache(groupSecretParams));
+  }
+
+  private GroupDecryptionCache getDecryptionCache(GroupSecretParams groupSecretParams) {
+    ByteString groupIdentifier = ByteString.copyFrom(groupSecretParams.getPublicParams().getGroupIdentifier().serialize());
+
+    synchronized (decryptionCaches) {
+      GroupDecryptionCache cache = decryptionCaches.get(groupIdentifier);
+      if (cache == null) {
+        cache = new GroupDecryptionCache(Math.max(maxGroupSize, 1) * 2);
+        decryptionCaches.put(groupIdentifier, cache);
+      }
+      return cache;
+    }
   }
 
   public ClientZkProfileOperations getProfileOperations() {
@@ -144,12 +183,14 @@ public final class GroupsV2Operations {
    */
   public final class GroupOperations {
 
-    private final GroupSecretParams   groupSecretParams;
-    private final ClientZkGroupCipher clientZkGroupCipher;
+    private final GroupSecretParams    groupSecretParams;
+    private final ClientZkGroupCipher  clientZkGroupCipher;
+    private final GroupDecryptionCache decryptionCache;
 
-    private GroupOperations(GroupSecretParams groupSecretParams) {
+    private GroupOperations(GroupSecretParams groupSecretParams, GroupDecryptionCache decryptionCache) {
       this.groupSecretParams   = groupSecretParams;
       this.clientZkGroupCipher = new ClientZkGroupCipher(groupSecretParams);
+      this.decryptionCache     = decryptionCache;
     }
 
     public GroupChange.Actions.Builder createModifyGroupTitle(final String title) {
@@ -484,33 +525,19 @@ public final class GroupsV2Operations {
     public DecryptedGroup decryptGroup(Group group)
         throws VerificationFailedException, InvalidGroupStateException
     {
-      List<Member>                    membersList                = group.getMembersList();
-      List<PendingMember>             pendingMembersList         = group.getPendingMembersList();
-      List<RequestingMember>          requestingMembersList      = group.getRequestingMembersList();
-      List<DecryptedMember>           decryptedMembers           = new ArrayList<>(membersList.size());
-      List<DecryptedPendingMember>    decryptedPendingMembers    = new ArrayList<>(pendingMembersList.size());
-      List<DecryptedRequestingMember> decryptedRequestingMembers = new ArrayList<>(requestingMembersList.size());
-      List<DecryptedBannedMember>     decryptedBannedMembers     = new ArrayList<>(group.getBannedMembersCount());
-
-      for (Member member : membersList) {
+      List<DecryptedMember>           decryptedMembers           = decryptAll(group.getMembersList(), member -> {
         try {
-          decryptedMembers.add(decryptMember(member).build());
+          return decryptMember(member).build();
         } catch (InvalidInputException e) {
           throw new InvalidGroupStateException(e);
         }
-      }
-
-      for (PendingMember member : pendingMembersList) {
-        decryptedPendingMembers.add(decryptMember(member));
-      }
-
-      for (RequestingMember member : requestingMembersList) {
-        decryptedRequestingMembers.add(decryptRequestingMember(member));
-      }
-
-      for (BannedMember member : group.getBannedMembersList()) {
-        decryptedBannedMembers.add(DecryptedBannedMember.newBuilder().setServiceIdBytes(decryptServiceIdToBinary(member.getUserId())).setTimestamp(member.getTimestamp()).build());
-      }
+      });
+      List<DecryptedPendingMember>    decryptedPendingMembers    = decryptAll(group.getPendingMembersList(), this::decryptMember);
+      List<DecryptedRequestingMember> decryptedRequestingMembers = decryptAll(group.getRequestingMembersList(), this::decryptRequestingMember);
+      List<DecryptedBannedMember>     decryptedBannedMembers     = decryptAll(group.getBannedMembersList(), member -> DecryptedBannedMember.newBuilder()
+                                                                                                                                        .setServiceIdBytes(decryptServiceIdToBinary(member.getUserId()))
+                                                                                                                                        .setTimestamp(member.getTimestamp())
+                                                                                                                                        .build());
 
       return DecryptedGroup.newBuilder()
                            .setTitle(decryptTitle(group.getTitle()))
@@ -571,18 +598,16 @@ public final class GroupsV2Operations {
       builder.setRevision(actions.getRevision());
 
       // Field 3
-      for (GroupChange.Actions.AddMemberAction addMemberAction : actions.getAddMembersList()) {
+      builder.addAllNewMembers(decryptAll(actions.getAddMembersList(), addMemberAction -> {
         try {
-          builder.addNewMembers(decryptMember(addMemberAction.getAdded()).setJoinedAtRevision(actions.getRevision()));
+          return decryptMember(addMemberAction.getAdded()).setJoinedAtRevision(actions.getRevision()).build();
         } catch (InvalidInputException e) {
           throw new InvalidGroupStateException(e);
         }
-      }
+      }));
 
       // Field 4
-      for (GroupChange.Actions.DeleteMemberAction deleteMemberAction : actions.getDeleteMembersList()) {
-        builder.addDeleteMembers(decryptAciToBinary(deleteMemberAction.getDeletedUserId()));
-      }
+      builder.addAllDeleteMembers(decryptAll(actions.getDeleteMembersList(), deleteMemberAction -> decryptAciToBinary(deleteMemberAction.getDeletedUserId())));
 
       // Field 5
       for (GroupChange.Actions.ModifyMemberRoleAction modifyMemberRoleAction : actions.getModifyMemberRolesList()) {
@@ -785,13 +810,8 @@ public final class GroupsV2Operations {
       } else {
         ProfileKeyCredentialPresentation profileKeyCredentialPresentation = new ProfileKeyCredentialPresentation(member.getPresentation().toByteArray());
 
-        ServiceId serviceId = ServiceId.fromLibSignal(clientZkGroupCipher.decrypt(profileKeyCredentialPresentation.getUuidCiphertext()));
-        if (!(serviceId instanceof ACI)) {
-          throw new InvalidGroupStateException();
-        }
-        ACI aci  = (ACI) serviceId;
-
-        ProfileKey profileKey = clientZkGroupCipher.decryptProfileKey(profileKeyCredentialPresentation.getProfileKeyCiphertext(), aci.getLibSignalAci());
+        ACI        aci        = decryptAci(ByteString.copyFrom(profileKeyCredentialPresentation.getUuidCiphertext().serialize()));
+        ProfileKey profileKey = decryptProfileKey(ByteString.copyFrom(profileKeyCredentialPresentation.getProfileKeyCiphertext().serialize()), aci);
 
         return DecryptedMember.newBuilder()
                               .setAciBytes(aci.toByteString())
@@ -842,13 +862,8 @@ public final class GroupsV2Operations {
           throw new InvalidGroupStateException(e);
         }
 
-        ServiceId serviceId = ServiceId.fromLibSignal(clientZkGroupCipher.decrypt(profileKeyCredentialPresentation.getUuidCiphertext()));
-        if (!(serviceId instanceof ACI)) {
-          throw new InvalidGroupStateException();
-        }
-        ACI aci = (ACI) serviceId;
-
-        ProfileKey profileKey = clientZkGroupCipher.decryptProfileKey(profileKeyCredentialPresentation.getProfileKeyCiphertext(), aci.getLibSignalAci());
+        ACI        aci        = decryptAci(ByteString.copyFrom(profileKeyCredentialPresentation.getUuidCiphertext().serialize()));
+        ProfileKey profileKey = decryptProfileKey(ByteString.copyFrom(profileKeyCredentialPresentation.getProfileKeyCiphertext().serialize()), aci);
 
         return DecryptedRequestingMember.newBuilder()
                                         .setAciBytes(aci.toByteString())
@@ -858,9 +873,17 @@ public final class GroupsV2Operations {
     }
 
     private ProfileKey decryptProfileKey(ByteString profileKey, ACI aci) throws VerificationFailedException, InvalidGroupStateException {
+      ProfileKey cached = decryptionCache.getProfileKey(profileKey, aci);
+      if (cached != null) {
+        return cached;
+      }
+
       try {
         ProfileKeyCiphertext profileKeyCiphertext = new ProfileKeyCiphertext(profileKey.toByteArray());
-        return clientZkGroupCipher.decryptProfileKey(profileKeyCiphertext, aci.getLibSignalAci());
+        ProfileKey           result               = clientZkGroupCipher.decryptProfileKey(profileKeyCiphertext, aci.getLibSignalAci());
+
+        decryptionCache.putProfileKey(profileKey, aci, result);
+        return result;
       } catch (InvalidInputException e) {
         throw new InvalidGroupStateException(e);
       }
@@ -884,8 +907,16 @@ public final class GroupsV2Operations {
     }
 
     private ServiceId decryptServiceId(ByteString userId) throws InvalidGroupStateException, VerificationFailedException {
+      ServiceId cached = decryptionCache.getServiceId(userId);
+      if (cached != null) {
+        return cached;
+      }
+
       try {
-        return ServiceId.fromLibSignal(clientZkGroupCipher.decrypt(new UuidCiphertext(userId.toByteArray())));
+        ServiceId result = ServiceId.fromLibSignal(clientZkGroupCipher.decrypt(new UuidCiphertext(userId.toByteArray())));
+
+        decryptionCache.putServiceId(userId, result);
+        return result;
       } catch (InvalidInputException e) {
         throw new InvalidGroupStateException(e);
       }
@@ -904,25 +935,110 @@ public final class GroupsV2Operations {
      */
     private ServiceId decryptServiceIdOrUnknown(ByteString userId) {
       try {
-        return ServiceId.fromLibSignal(clientZkGroupCipher.decrypt(new UuidCiphertext(userId.toByteArray())));
-      } catch (InvalidInputException | VerificationFailedException e) {
+        return decryptServiceId(userId);
+      } catch (InvalidGroupStateException | VerificationFailedException e) {
         return ACI.UNKNOWN;
       }
     }
 
     private ACI decryptAciOrUnknown(ByteString userId) {
       try {
-        ServiceId result = ServiceId.fromLibSignal(clientZkGroupCipher.decrypt(new UuidCiphertext(userId.toByteArray())));
+        ServiceId result = decryptServiceId(userId);
         if (result instanceof ACI) {
           return (ACI) result;
         } else {
           return ACI.UNKNOWN;
         }
-      } catch (InvalidInputException | VerificationFailedException e) {
+      } catch (InvalidGroupStateException | VerificationFailedException e) {
         return ACI.UNKNOWN;
       }
     }
 
+    /**
+     * Decrypts every item of the list, preserving order. Large lists are split into parts decrypted
+     * concurrently on the {@link #decryptExecutor}, while the calling thread decrypts the first part.
+     * <p>
+     * Once done with its own part, the calling thread also runs any part the executor has not yet
+     * started, so this never waits on an executor that is busy, or is itself blocked in here.
+     */
+    private <I, O> List<O> decryptAll(List<I> items, ItemDecryptor<I, O> decryptor)
+        throws VerificationFailedException, InvalidGroupStateException
+    {
+      int parts = Math.min(decryptParallelism, items.size() / MIN_PARALLEL_DECRYPT_SIZE);
+
+      if (decryptExecutor == null || parts < 2) {
+        List<O> results = new ArrayList<>(items.size());
+        for (I item : items) {
+          results.add(decryptor.decrypt(item));
+        }
+        return results;
+      }
+
+      Object[]               results  = new Object[items.size()];
+      List<FutureTask<Void>> tasks    = new ArrayList<>(parts - 1);
+      int                    partSize = (items.size() + parts - 1) / parts;
+
+      for (int start = partSize; start < items.size(); start += partSize) {
+        int              from = start;
+        int              to   = Math.min(start + partSize, items.size());
+        FutureTask<Void> task = new FutureTask<>(() -> {
+          for (int i = from; i < to; i++) {
+            results[i] = decryptor.decrypt(items.get(i));
+          }
+          return null;
+        });
+
+        tasks.add(task);
+        decryptExecutor.execute(task);
+      }
+
+      for (int i = 0; i < partSize; i++) {
+        results[i] = decryptor.decrypt(items.get(i));
+      }
+
+      for (FutureTask<Void> task : tasks) {
+        task.run();
+      }
+
+      boolean interrupted = false;
+      try {
+        for (FutureTask<Void> task : tasks) {
+          while (true) {
+            try {
+              task.get();
+              break;
+            } catch (InterruptedException e) {
+              interrupted = true;
+            } catch (ExecutionException e) {
+              Throwable cause = e.getCause();
+              if (cause instanceof VerificationFailedException) {
+                throw (VerificationFailedException) cause;
+              } else if (cause instanceof InvalidGroupStateException) {
+                throw (InvalidGroupStateException) cause;
+              } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+              } else if (cause instanceof Error) {
+                throw (Error) cause;
+              } else {
+                throw new AssertionError(cause);
+              }
+            }
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      List<O> decrypted = new ArrayList<>(results.length);
+      for (Object result : results) {
+        //noinspection unchecked
+        decrypted.add((O) result);
+      }
+      return decrypted;
+    }
+
     ByteString encryptTitle(String title) {
       try {
         GroupAttributeBlob blob = GroupAttributeBlob.newBuilder().setTitle(title).build();
@@ -1064,4 +1180,8 @@ public final class GroupsV2Operations {
       return avatar;
     }
   }
+
+  private interface ItemDecryptor<I, O> {
+    O decrypt(I item) throws VerificationFailedException, InvalidGroupStateException;
+  }
 }
@@ -0,0 +1,192 @@
+package org.whispersystems.signalservice.api.groupsv2;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * An insertion ordered list that can be looked up by one or more {@link ByteString} keys.
+ * <p>
+ * Behaves like a {@link List} where lookups return the first matching element, the same as the
+ * linear scans it replaces, but in constant time. Duplicate keys are allowed. Removed elements leave
+ * a gap that is skipped when the list is read back with {@link #values()}.
+ */
+final class IndexedList<V> {
+
+  private final List<Function<V, ByteString>>     keys;
+  private final List<Map<ByteString, Occurrence>> indexes;
+  private final ArrayList<V>                      elements;
+
+  private int size;
+
+  @SafeVarargs
+  IndexedList(List<V> initial, Function<V, ByteString>... keys) {
+    this.keys     = new ArrayList<>(keys.length);
+    this.indexes  = new ArrayList<>(keys.length);
+    this.elements = new ArrayList<>(initial.size());
+
+    for (Function<V, ByteString> key : keys) {
+      this.keys.add(key);
+      this.indexes.add(new HashMap<>(Math.max(16, initial.size() * 2)));
+    }
+
+    for (V value : initial) {
+      add(value);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  V get(int position) {
+    return elements.get(position);
+  }
+
+  /**
+   * @return The position of the first element whose key matches, or -1.
+   */
+  int indexOf(int keyIndex, ByteString key) {
+    Occurrence occurrence = indexes.get(keyIndex).get(key);
+    return occurrence != null ? occurrence.first : -1;
+  }
+
+  boolean contains(int keyIndex, ByteString key) {
+    return indexes.get(keyIndex).containsKey(key);
+  }
+
+  /**
+   * @return true if two or more elements share a key.
+   */
+  boolean hasDuplicates(int keyIndex) {
+    return indexes.get(keyIndex).size() != size;
+  }
+
+  void add(V value) {
+    int position = elements.size();
+
+    elements.add(value);
+    size++;
+
+    for (int i = 0; i < keys.size(); i++) {
+      index(i, value, position);
+    }
+  }
+
+  void set(int position, V value) {
+    V previous = elements.get(position);
+
+    for (int i = 0; i < keys.size(); i++) {
+      unindex(i, previous, position);
+    }
+
+    elements.set(position, value);
+
+    for (int i = 0; i < keys.size(); i++) {
+      index(i, value, position);
+    }
+  }
+
+  void remove(int position) {
+    V previous = elements.get(position);
+
+    for (int i = 0; i < keys.size(); i++) {
+      unindex(i, previous, position);
+    }
+
+    elements.set(position, null);
+    size--;
+  }
+
+  void removeIf(Predicate<V> predicate) {
+    for (int position = 0; position < elements.size(); position++) {
+      V value = elements.get(position);
+
+      if (value != null && predicate.test(value)) {
+        remove(position);
+      }
+    }
+  }
+
+  /**
+   * Keeps only the first position of each key, holding the value of the last element with that key,
+   * matching what re-inserting every element into a {@link java.util.LinkedHashMap} would do.
+   */
+  void collapseDuplicates(int keyIndex) {
+    if (!hasDuplicates(keyIndex)) return;
+
+    Function<V, ByteString>     key   = keys.get(keyIndex);
+    Map<ByteString, Occurrence> index = indexes.get(keyIndex);
+
+    for (int position = 0; position < elements.size(); position++) {
+      V value = elements.get(position);
+
+      if (value == null) continue;
+
+      int first = index.get(key.apply(value)).first;
+
+      if (first != position) {
+        remove(position);
+        set(first, value);
+      }
+    }
+  }
+
+  List<V> values() {
+    List<V> values = new ArrayList<>(size);
+
+    for (V value : elements) {
+      if (value != null) {
+        values.add(value);
+      }
+    }
+
+    return values;
+  }
+
+  private void index(int keyIndex, V value, int position) {
+    ByteString key        = keys.get(keyIndex).apply(value);
+    Occurrence occurrence = indexes.get(keyIndex).get(key);
+
+    if (occurrence == null) {
+      indexes.get(keyIndex).put(key, new Occurrence(position));
+    } else {
+      occurrence.count++;
+      occurrence.first = Math.min(occurrence.first, position);
+    }
+  }
+
+  private void unindex(int keyIndex, V value, int position) {
+    Function<V, ByteString>     keyFunction = keys.get(keyIndex);
+    Map<ByteString, Occurrence> index       = indexes.get(keyIndex);
+    ByteString                  key         = keyFunction.apply(value);
+    Occurrence                  occurrence  = index.get(key);
+
+    if (--occurrence.count == 0) {
+      index.remove(key);
+    } else if (occurrence.first == position) {
+      for (int i = position + 1; i < elements.size(); i++) {
+        V next = elements.get(i);
+        if (next != null && key.equals(keyFunction.apply(next))) {
+          occurrence.first = i;
+          break;
+        }
+      }
+    }
+  }
+
+  private static final class Occurrence {
+    private int first;
+    private int count;
+
+    private Occurrence(int first) {
+      this.first = first;
+      this.count = 1;
+    }
+  }
+}
@@ -0,0 +1,403 @@
+package org.whispersystems.signalservice.api.groupsv2;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.libsignal.protocol.logging.Log;
+import org.signal.storageservice.protos.groups.AccessControl;
+import org.signal.storageservice.protos.groups.Member;
+import org.signal.storageservice.protos.groups.local.DecryptedApproveMember;
+import org.signal.storageservice.protos.groups.local.DecryptedBannedMember;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
+import org.signal.storageservice.protos.groups.local.DecryptedMember;
+import org.signal.storageservice.protos.groups.local.DecryptedModifyMemberRole;
+import org.signal.storageservice.protos.groups.local.DecryptedPendingMember;
+import org.signal.storageservice.protos.groups.local.DecryptedPendingMemberRemoval;
+import org.signal.storageservice.protos.groups.local.DecryptedRequestingMember;
+import org.signal.storageservice.protos.groups.local.EnabledState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group state that {@link DecryptedGroupChange}s can be applied to in place.
+ * <p>
+ * Members, pending, requesting and banned members are held in lists indexed by their ACI/ServiceId,
+ * so applying a change costs time proportional to the size of the change rather than the size of the
+ * group, and a {@link DecryptedGroup} is only built when asked for with {@link #build()}. Use
+ * {@link DecryptedGroupUtil#applyAll(DecryptedGroup, java.util.Collection)} to replay a run of changes
+ * when the states in between are not needed.
+ * <p>
+ * If a change can not be applied, the state is left partially updated and should be discarded.
+ */
+final class MutableDecryptedGroup {
+
+  private static final String TAG = MutableDecryptedGroup.class.getSimpleName();
+
+  private static final int MEMBER_ACI = 0;
+
+  private static final int PENDING_SERVICE_ID  = 0;
+  private static final int PENDING_CIPHER_TEXT = 1;
+
+  private static final int REQUESTING_ACI = 0;
+
+  private static final int BANNED_SERVICE_ID = 0;
+
+  private final DecryptedGroup.Builder                 builder;
+  private final IndexedList<DecryptedMember>           members;
+  private final IndexedList<DecryptedPendingMember>    pendingMembers;
+  private final IndexedList<DecryptedRequestingMember> requestingMembers;
+  private final IndexedList<DecryptedBannedMember>     bannedMembers;
+
+  public MutableDecryptedGroup(DecryptedGroup group) {
+    this.builder           = DecryptedGroup.newBuilder(group)
+                                           .clearMembers()
+                                           .clearPendingMembers()
+                                           .clearRequestingMembers()
+                                           .clearBannedMembers();
+    this.members           = new IndexedList<>(group.getMembersList(), DecryptedMember::getAciBytes);
+    this.pendingMembers    = new IndexedList<>(group.getPendingMembersList(), DecryptedPendingMember::getServiceIdBytes, DecryptedPendingMember::getServiceIdCipherText);
+    this.requestingMembers = new IndexedList<>(group.getRequestingMembersList(), DecryptedRequestingMember::getAciBytes);
+    this.bannedMembers     = new IndexedList<>(group.getBannedMembersList(), DecryptedBannedMember::getServiceIdBytes);
+  }
+
+  public int getRevision() {
+    return builder.getRevision();
+  }
+
+  public MutableDecryptedGroup apply(DecryptedGroupChange change)
+      throws NotAbleToApplyGroupV2ChangeException
+  {
+    if (change.getRevision() != builder.getRevision() + 1) {
+      throw new NotAbleToApplyGroupV2ChangeException();
+    }
+
+    return applyWithoutRevisionCheck(change);
+  }
+
+  public MutableDecryptedGroup applyWithoutRevisionCheck(DecryptedGroupChange change)
+      throws NotAbleToApplyGroupV2ChangeException
+  {
+    builder.setRevision(change.getRevision());
+
+    applyAddMemberAction(change.getNewMembersList());
+
+    applyDeleteMemberActions(change.getDeleteMembersList());
+
+    applyModifyMemberRoleActions(change.getModifyMemberRolesList());
+
+    applyModifyMemberProfileKeyActions(change.getModifiedProfileKeysList());
+
+    applyAddPendingMemberActions(change.getNewPendingMembersList());
+
+    applyDeletePendingMemberActions(change.getDeletePendingMembersList());
+
+    applyPromotePendingMemberActions(change.getPromotePendingMembersList());
+
+    applyModifyTitleAction(change);
+
+    applyModifyDescriptionAction(change);
+
+    applyModifyIsAnnouncementGroupAction(change);
+
+    applyModifyAvatarAction(change);
+
+    applyModifyDisappearingMessagesTimerAction(change);
+
+    applyModifyAttributesAccessControlAction(change);
+
+    applyModifyMembersAccessControlAction(change);
+
+    applyModifyAddFromInviteLinkAccessControlAction(change);
+
+    applyAddRequestingMembers(change.getNewRequestingMembersList());
+
+    applyDeleteRequestingMembers(change.getDeleteRequestingMembersList());
+
+    applyPromoteRequestingMemberActions(change.getPromoteRequestingMembersList());
+
+    applyInviteLinkPassword(change);
+
+    applyAddBannedMembersActions(change.getNewBannedMembersList());
+
+    applyDeleteBannedMembersActions(change.getDeleteBannedMembersList());
+
+    applyPromotePendingPniAciMemberActions(change.getPromotePendingPniAciMembersList());
+
+    return this;
+  }
+
+  public DecryptedGroup build() {
+    return DecryptedGroup.newBuilder(builder.build())
+                         .addAllMembers(members.values())
+                         .addAllPendingMembers(pendingMembers.values())
+                         .addAllRequestingMembers(requestingMembers.values())
+                         .addAllBannedMembers(bannedMembers.values())
+                         .build();
+  }
+
+  private void applyAddMemberAction(List<DecryptedMember> newMembersList) {
+    if (newMembersList.isEmpty()) return;
+
+    members.collapseDuplicates(MEMBER_ACI);
+
+    for (DecryptedMember member : newMembersList) {
+      int index = members.indexOf(MEMBER_ACI, member.getAciBytes());
+
+      if (index == -1) {
+        members.add(member);
+      } else {
+        members.set(index, member);
+      }
+    }
+
+    removePendingAndRequestingMembersNowInGroup();
+  }
+
+  private void applyDeleteMemberActions(List<ByteString> deleteMembersList) {
+    for (ByteString removedMember : deleteMembersList) {
+      int index = members.indexOf(MEMBER_ACI, removedMember);
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted member on change not found in group");
+        continue;
+      }
+
+      members.remove(index);
+    }
+  }
+
+  private void applyModifyMemberRoleActions(List<DecryptedModifyMemberRole> modifyMemberRolesList) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedModifyMemberRole modifyMemberRole : modifyMemberRolesList) {
+      int index = members.indexOf(MEMBER_ACI, modifyMemberRole.getAciBytes());
+
+      if (index == -1) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      Member.Role role = modifyMemberRole.getRole();
+
+      ensureKnownRole(role);
+
+      members.set(index, DecryptedMember.newBuilder(members.get(index))
+                                        .setRole(role)
+                                        .build());
+    }
+  }
+
+  private void applyModifyMemberProfileKeyActions(List<DecryptedMember> modifiedProfileKeysList) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedMember modifyProfileKey : modifiedProfileKeysList) {
+      int index = members.indexOf(MEMBER_ACI, modifyProfileKey.getAciBytes());
+
+      if (index == -1) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      members.set(index, DecryptedMember.newBuilder(members.get(index))
+                                        .setProfileKey(modifyProfileKey.getProfileKey())
+                                        .build());
+    }
+  }
+
+  private void applyAddPendingMemberActions(List<DecryptedPendingMember> newPendingMembersList) throws NotAbleToApplyGroupV2ChangeException {
+    List<DecryptedPendingMember> toAdd = new ArrayList<>(newPendingMembersList.size());
+
+    for (DecryptedPendingMember pendingMember : newPendingMembersList) {
+      if (members.contains(MEMBER_ACI, pendingMember.getServiceIdBytes())) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      if (!pendingMembers.contains(PENDING_CIPHER_TEXT, pendingMember.getServiceIdCipherText())) {
+        toAdd.add(pendingMember);
+      }
+    }
+
+    for (DecryptedPendingMember pendingMember : toAdd) {
+      pendingMembers.add(pendingMember);
+    }
+  }
+
+  private void applyDeletePendingMemberActions(List<DecryptedPendingMemberRemoval> deletePendingMembersList) {
+    for (DecryptedPendingMemberRemoval removedMember : deletePendingMembersList) {
+      int index = pendingMembers.indexOf(PENDING_CIPHER_TEXT, removedMember.getServiceIdCipherText());
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted pending member on change not found in group");
+        continue;
+      }
+
+      pendingMembers.remove(index);
+    }
+  }
+
+  private void applyPromotePendingMemberActions(List<DecryptedMember> promotePendingMembersList) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedMember newMember : promotePendingMembersList) {
+      int index = pendingMembers.indexOf(PENDING_SERVICE_ID, newMember.getAciBytes());
+
+      if (index == -1) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      pendingMembers.remove(index);
+      members.add(newMember);
+    }
+  }
+
+  private void applyModifyTitleAction(DecryptedGroupChange change) {
+    if (change.hasNewTitle()) {
+      builder.setTitle(change.getNewTitle().getValue());
+    }
+  }
+
+  private void applyModifyDescriptionAction(DecryptedGroupChange change) {
+    if (change.hasNewDescription()) {
+      builder.setDescription(change.getNewDescription().getValue());
+    }
+  }
+
+  private void applyModifyIsAnnouncementGroupAction(DecryptedGroupChange change) {
+    if (change.getNewIsAnnouncementGroup() != EnabledState.UNKNOWN) {
+      builder.setIsAnnouncementGroup(change.getNewIsAnnouncementGroup());
+    }
+  }
+
+  private void applyModifyAvatarAction(DecryptedGroupChange change) {
+    if (change.hasNewAvatar()) {
+      builder.setAvatar(change.getNewAvatar().getValue());
+    }
+  }
+
+  private void applyModifyDisappearingMessagesTimerAction(DecryptedGroupChange change) {
+    if (change.hasNewTimer()) {
+      builder.setDisappearingMessagesTimer(change.getNewTimer());
+    }
+  }
+
+  private void applyModifyAttributesAccessControlAction(DecryptedGroupChange change) {
+    AccessControl.AccessRequired newAccessLevel = change.getNewAttributeAccess();
+
+    if (newAccessLevel != AccessControl.AccessRequired.UNKNOWN) {
+      builder.setAccessControl(AccessControl.newBuilder(builder.getAccessControl())
+                                            .setAttributesValue(change.getNewAttributeAccessValue()));
+    }
+  }
+
+  private void applyModifyMembersAccessControlAction(DecryptedGroupChange change) {
+    AccessControl.AccessRequired newAccessLevel = change.getNewMemberAccess();
+
+    if (newAccessLevel != AccessControl.AccessRequired.UNKNOWN) {
+      builder.setAccessControl(AccessControl.newBuilder(builder.getAccessControl())
+                                            .setMembersValue(change.getNewMemberAccessValue()));
+    }
+  }
+
+  private void applyModifyAddFromInviteLinkAccessControlAction(DecryptedGroupChange change) {
+    AccessControl.AccessRequired newAccessLevel = change.getNewInviteLinkAccess();
+
+    if (newAccessLevel != AccessControl.AccessRequired.UNKNOWN) {
+      builder.setAccessControl(AccessControl.newBuilder(builder.getAccessControl())
+                                            .setAddFromInviteLink(newAccessLevel));
+    }
+  }
+
+  private void applyAddRequestingMembers(List<DecryptedRequestingMember> newRequestingMembers) {
+    for (DecryptedRequestingMember requestingMember : newRequestingMembers) {
+      requestingMembers.add(requestingMember);
+    }
+  }
+
+  private void applyDeleteRequestingMembers(List<ByteString> deleteRequestingMembersList) {
+    for (ByteString removedMember : deleteRequestingMembersList) {
+      int index = requestingMembers.indexOf(REQUESTING_ACI, removedMember);
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted member on change not found in group");
+        continue;
+      }
+
+      requestingMembers.remove(index);
+    }
+  }
+
+  private void applyPromoteRequestingMemberActions(List<DecryptedApproveMember> promoteRequestingMembers) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedApproveMember approvedMember : promoteRequestingMembers) {
+      int index = requestingMembers.indexOf(REQUESTING_ACI, approvedMember.getAciBytes());
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted member on change not found in group");
+        continue;
+      }
+
+      DecryptedRequestingMember requestingMember = requestingMembers.get(index);
+      Member.Role               role             = approvedMember.getRole();
+
+      ensureKnownRole(role);
+
+      requestingMembers.remove(index);
+      members.add(DecryptedMember.newBuilder()
+                                 .setAciBytes(approvedMember.getAciBytes())
+                                 .setProfileKey(requestingMember.getProfileKey())
+                                 .setRole(role)
+                                 .build());
+    }
+  }
+
+  private void applyInviteLinkPassword(DecryptedGroupChange change) {
+    if (!change.getNewInviteLinkPassword().isEmpty()) {
+      builder.setInviteLinkPassword(change.getNewInviteLinkPassword());
+    }
+  }
+
+  private void applyAddBannedMembersActions(List<DecryptedBannedMember> newBannedMembersList) {
+    List<DecryptedBannedMember> toAdd = new ArrayList<>(newBannedMembersList.size());
+
+    for (DecryptedBannedMember member : newBannedMembersList) {
+      if (bannedMembers.contains(BANNED_SERVICE_ID, member.getServiceIdBytes())) {
+        Log.w(TAG, "Banned member already in banned list");
+      } else {
+        toAdd.add(member);
+      }
+    }
+
+    for (DecryptedBannedMember member : toAdd) {
+      bannedMembers.add(member);
+    }
+  }
+
+  private void applyDeleteBannedMembersActions(List<DecryptedBannedMember> deleteMembersList) {
+    for (DecryptedBannedMember removedMember : deleteMembersList) {
+      int index = bannedMembers.indexOf(BANNED_SERVICE_ID, removedMember.getServiceIdBytes());
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted banned member on change not found in banned list");
+        continue;
+      }
+
+      bannedMembers.remove(index);
+    }
+  }
+
+  private void applyPromotePendingPniAciMemberActions(List<DecryptedMember> promotePendingPniAciMembersList) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedMember newMember : promotePendingPniAciMembersList) {
+      int index = pendingMembers.indexOf(PENDING_SERVICE_ID, newMember.getPniBytes());
+
+      if (index == -1) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      pendingMembers.remove(index);
+      members.add(newMember);
+    }
+  }
+
+  private void removePendingAndRequestingMembersNowInGroup() {
+    pendingMembers.removeIf(pendingMember -> members.contains(MEMBER_ACI, pendingMember.getServiceIdBytes()));
+    requestingMembers.removeIf(requestingMember -> members.contains(MEMBER_ACI, requestingMember.getAciBytes()));
+  }
+
+  private static void ensureKnownRole(Member.Role role) throws NotAbleToApplyGroupV2ChangeException {
+    if (role != Member.Role.ADMINISTRATOR && role != Member.Role.DEFAULT) {
+      throw new NotAbleToApplyGroupV2ChangeException();
+    }
+  }
+}
@@ -803,13 +803,24 @@ public class PushServiceSocket {
   public void retrieveAttachment(int cdnNumber, SignalServiceAttachmentRemoteId cdnPath, File destination, long maxSizeBytes, ProgressListener listener)
       throws IOException, MissingConfigurationException
   {
-    final String path;
+    downloadFromCdn(destination, cdnNumber, getAttachmentDownloadPath(cdnPath), maxSizeBytes, listener);
+  }
+
+  /**
+   * Streams the attachment into the provided output, starting at the given offset into the ciphertext.
+   */
+  public void retrieveAttachment(int cdnNumber, SignalServiceAttachmentRemoteId cdnPath, OutputStream outputStream, long offset, long maxSizeBytes, ProgressListener listener)
+      throws IOException, MissingConfigurationException
+  {
+    downloadFromCdn(outputStream, offset, cdnNumber, getAttachmentDownloadPath(cdnPath), maxSizeBytes, listener);
+  }
+
+  private static String getAttachmentDownloadPath(SignalServiceAttachmentRemoteId cdnPath) {
     if (cdnPath.getV2().isPresent()) {
-      path = String.format(Locale.US, ATTACHMENT_ID_DOWNLOAD_PATH, cdnPath.getV2().get());
+      return String.format(Locale.US, ATTACHMENT_ID_DOWNLOAD_PATH, cdnPath.getV2().get());
     } else {
-      path = String.format(Locale.US, ATTACHMENT_KEY_DOWNLOAD_PATH, cdnPath.getV3().get());
+      return String.format(Locale.US, ATTACHMENT_KEY_DOWNLOAD_PATH, cdnPath.getV3().get());
     }
-    downloadFromCdn(destination, cdnNumber, path, maxSizeBytes, listener);
   }
 
   public byte[] retrieveSticker(byte[] packId, int stickerId)
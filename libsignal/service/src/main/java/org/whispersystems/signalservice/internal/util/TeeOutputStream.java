@@ -0,0 +1,45 @@
+package org.whispersystems.signalservice.internal.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes everything to two streams, in order.
+ */
+public class TeeOutputStream extends OutputStream {
+
+  private final OutputStream first;
+  private final OutputStream second;
+
+  public TeeOutputStream(OutputStream first, OutputStream second) {
+    this.first  = first;
+    this.second = second;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    first.write(b);
+    second.write(b);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    first.write(buffer, offset, length);
+    second.write(buffer, offset, length);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    first.flush();
+    second.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      first.close();
+    } finally {
+      second.close();
+    }
+  }
+}
@@ -0,0 +1,309 @@
+package org.whispersystems.signalservice.api.crypto;
+
+import org.conscrypt.Conscrypt;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.signal.libsignal.protocol.InvalidMacException;
+import org.signal.libsignal.protocol.InvalidMessageException;
+import org.whispersystems.signalservice.internal.crypto.PaddingInputStream;
+import org.whispersystems.signalservice.internal.util.TeeOutputStream;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class AttachmentDecryptingOutputStreamTest {
+
+  static {
+    Security.insertProviderAt(Conscrypt.newProvider(), 1);
+  }
+
+  @Test
+  public void decrypt_inOneWrite() throws Exception {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = "Peter Parker".getBytes();
+    EncryptResult encryptResult  = encrypt(plaintextInput, key);
+
+    assertArrayEquals(plaintextInput, decrypt(encryptResult.ciphertext, key, plaintextInput.length, encryptResult.digest, encryptResult.ciphertext.length));
+  }
+
+  @Test
+  public void decrypt_empty() throws Exception {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = new byte[0];
+    EncryptResult encryptResult  = encrypt(plaintextInput, key);
+
+    assertArrayEquals(plaintextInput, decrypt(encryptResult.ciphertext, key, 0, encryptResult.digest, 7));
+  }
+
+  @Test
+  public void decrypt_inEveryWriteSize() throws Exception {
+    byte[] key            = Util.getSecretBytes(64);
+    byte[] plaintextInput = new byte[1000];
+
+    new Random().nextBytes(plaintextInput);
+
+    EncryptResult encryptResult = encrypt(plaintextInput, key);
+
+    for (int writeSize = 1; writeSize <= 70; writeSize++) {
+      assertArrayEquals(plaintextInput, decrypt(encryptResult.ciphertext, key, plaintextInput.length, encryptResult.digest, writeSize));
+    }
+  }
+
+  @Test
+  public void decrypt_stripsPadding() throws Exception {
+    int[] lengths = { 531, 600, 724, 1019, 1024 };
+
+    for (int length : lengths) {
+      byte[] plaintextInput = new byte[length];
+      Arrays.fill(plaintextInput, (byte) 0x97);
+
+      byte[]                key                    = Util.getSecretBytes(64);
+      ByteArrayOutputStream destinationOutputStream = new ByteArrayOutputStream();
+      DigestingOutputStream encryptingOutputStream  = new AttachmentCipherOutputStream(key, null, destinationOutputStream);
+
+      Util.copy(new PaddingInputStream(new ByteArrayInputStream(plaintextInput), length), encryptingOutputStream);
+      encryptingOutputStream.flush();
+      encryptingOutputStream.close();
+
+      byte[] ciphertext = destinationOutputStream.toByteArray();
+
+      assertArrayEquals(plaintextInput, decrypt(ciphertext, key, length, encryptingOutputStream.getTransmittedDigest(), 100));
+    }
+  }
+
+  @Test
+  public void decrypt_failOnBadKey() throws Exception {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = "Gwen Stacy".getBytes();
+    EncryptResult encryptResult  = encrypt(plaintextInput, key);
+
+    try {
+      decrypt(encryptResult.ciphertext, new byte[64], plaintextInput.length, encryptResult.digest, 16);
+      fail();
+    } catch (InvalidMessageException e) {
+      assertTrue(e.getCause() instanceof InvalidMacException);
+    }
+  }
+
+  @Test
+  public void decrypt_failOnBadMac() throws Exception {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = "Uncle Ben".getBytes();
+    EncryptResult encryptResult  = encrypt(plaintextInput, key);
+    byte[]        ciphertext     = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    ciphertext[ciphertext.length - 1] += 1;
+
+    try {
+      decrypt(ciphertext, key, plaintextInput.length, encryptResult.digest, 16);
+      fail();
+    } catch (InvalidMessageException e) {
+      assertTrue(e.getCause() instanceof InvalidMacException);
+    }
+  }
+
+  @Test
+  public void decrypt_failOnBadDigest() throws Exception {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = "Mary Jane Watson".getBytes();
+    EncryptResult encryptResult  = encrypt(plaintextInput, key);
+
+    try {
+      decrypt(encryptResult.ciphertext, key, plaintextInput.length, new byte[32], 16);
+      fail();
+    } catch (InvalidMessageException e) {
+      assertTrue(e.getCause() instanceof InvalidMacException);
+    }
+  }
+
+  @Test
+  public void decrypt_failOnTruncated() throws Exception {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = "Aunt May".getBytes();
+    EncryptResult encryptResult  = encrypt(plaintextInput, key);
+
+    try {
+      decrypt(Arrays.copyOf(encryptResult.ciphertext, 40), key, plaintextInput.length, encryptResult.digest, 16);
+      fail();
+    } catch (InvalidMessageException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Compares the previous download path (download everything to a file, read it back once to verify the MAC and again to decrypt) with streaming it through
+   * the decryptor as it arrives, for a 100 MB attachment served by a local HTTP server.
+   */
+  @Ignore("Benchmark, run manually")
+  @Test
+  public void benchmark_streamingVersusFileDownload() throws Exception {
+    long   plaintextLength = 100 * 1024 * 1024;
+    byte[] key             = Util.getSecretBytes(64);
+    Buffer ciphertext      = new Buffer();
+    byte[] digest          = encryptRandom(plaintextLength, key, ciphertext);
+    byte[] plaintextDigest = randomPlaintextDigest(plaintextLength);
+    long   ciphertextSize  = ciphertext.size();
+
+    try (MockWebServer server = new MockWebServer()) {
+      server.enqueue(new MockResponse().setBody(ciphertext.clone()));
+      server.enqueue(new MockResponse().setBody(ciphertext.clone()));
+      server.start();
+
+      OkHttpClient client  = new OkHttpClient();
+      Request      request = new Request.Builder().url(server.url("/attachment")).build();
+
+      File   fileDownload = File.createTempFile("download", ".tmp");
+      long   start        = System.nanoTime();
+      byte[] fileResult;
+
+      try (Response response = client.newCall(request).execute(); OutputStream out = new FileOutputStream(fileDownload)) {
+        Util.copy(response.body().byteStream(), out);
+      }
+
+      try (InputStream in = AttachmentCipherInputStream.createForAttachment(fileDownload, plaintextLength, key, digest, null)) {
+        DigestingSink sink = new DigestingSink();
+        Util.copy(in, sink);
+        fileResult = sink.digest();
+      }
+
+      long fileMs = (System.nanoTime() - start) / 1_000_000;
+
+      File transferFile = File.createTempFile("transfer", ".tmp");
+      start = System.nanoTime();
+
+      DigestingSink                    sink       = new DigestingSink();
+      AttachmentDecryptingOutputStream decrypting = new AttachmentDecryptingOutputStream(sink, key, plaintextLength, digest);
+
+      try (Response response = client.newCall(request).execute(); OutputStream out = new FileOutputStream(transferFile)) {
+        Util.copy(response.body().byteStream(), new TeeOutputStream(out, decrypting));
+      }
+      decrypting.finish();
+
+      long streamingMs = (System.nanoTime() - start) / 1_000_000;
+
+      assertArrayEquals(plaintextDigest, fileResult);
+      assertArrayEquals(plaintextDigest, sink.digest());
+      assertEquals(ciphertextSize, transferFile.length());
+
+      // Disk bytes: the file path writes the ciphertext, then reads it back for the MAC and again to decrypt. Streaming only writes it, for resumption.
+      System.out.println("File download: " + fileMs + " ms, " + (3 * ciphertextSize) + " disk bytes. " +
+                         "Streaming: " + streamingMs + " ms, " + ciphertextSize + " disk bytes.");
+
+      fileDownload.delete();
+      transferFile.delete();
+    }
+  }
+
+  private static byte[] decrypt(byte[] ciphertext, byte[] key, long plaintextLength, byte[] digest, int writeSize) throws IOException, InvalidMessageException {
+    ByteArrayOutputStream            plaintext  = new ByteArrayOutputStream();
+    AttachmentDecryptingOutputStream decrypting = new AttachmentDecryptingOutputStream(plaintext, key, plaintextLength, digest);
+
+    for (int i = 0; i < ciphertext.length; i += writeSize) {
+      decrypting.write(ciphertext, i, Math.min(writeSize, ciphertext.length - i));
+    }
+
+    decrypting.finish();
+
+    return plaintext.toByteArray();
+  }
+
+  private static EncryptResult encrypt(byte[] data, byte[] key) throws IOException {
+    ByteArrayOutputStream outputStream  = new ByteArrayOutputStream();
+    DigestingOutputStream encryptStream = new AttachmentCipherOutputStream(key, Util.getSecretBytes(16), outputStream);
+
+    encryptStream.write(data);
+    encryptStream.flush();
+    encryptStream.close();
+
+    return new EncryptResult(outputStream.toByteArray(), encryptStream.getTransmittedDigest());
+  }
+
+  /**
+   * Encrypts seeded random data into the buffer without holding the plaintext in memory, returning the attachment digest.
+   */
+  private static byte[] encryptRandom(long length, byte[] key, Buffer destination) throws IOException {
+    DigestingOutputStream encryptStream = new AttachmentCipherOutputStream(key, Util.getSecretBytes(16), destination.outputStream());
+    Random                random        = new Random(1);
+    byte[]                chunk         = new byte[64 * 1024];
+
+    for (long written = 0; written < length; written += chunk.length) {
+      random.nextBytes(chunk);
+      encryptStream.write(chunk);
+    }
+
+    encryptStream.flush();
+
+    return encryptStream.getTransmittedDigest();
+  }
+
+  /**
+   * The SHA-256 of the same seeded random data written by {@link #encryptRandom(long, byte[], Buffer)}.
+   */
+  private static byte[] randomPlaintextDigest(long length) throws NoSuchAlgorithmException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    Random        random = new Random(1);
+    byte[]        chunk  = new byte[64 * 1024];
+
+    for (long written = 0; written < length; written += chunk.length) {
+      random.nextBytes(chunk);
+      digest.update(chunk);
+    }
+
+    return digest.digest();
+  }
+
+  private static final class DigestingSink extends OutputStream {
+    private final MessageDigest digest;
+
+    DigestingSink() throws NoSuchAlgorithmException {
+      this.digest = MessageDigest.getInstance("SHA-256");
+    }
+
+    @Override
+    public void write(int b) {
+      digest.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+      digest.update(buffer, offset, length);
+    }
+
+    byte[] digest() {
+      return digest.digest();
+    }
+  }
+
+  private static final class EncryptResult {
+    final byte[] ciphertext;
+    final byte[] digest;
+
+    private EncryptResult(byte[] ciphertext, byte[] digest) {
+      this.ciphertext = ciphertext;
+      this.digest     = digest;
+    }
+  }
+}
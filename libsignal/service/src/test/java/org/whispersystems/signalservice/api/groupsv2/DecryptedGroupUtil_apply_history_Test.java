@@ -0,0 +1,246 @@
+package org.whispersystems.signalservice.api.groupsv2;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+import org.signal.storageservice.protos.groups.Member;
+import org.signal.storageservice.protos.groups.local.DecryptedApproveMember;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
+import org.signal.storageservice.protos.groups.local.DecryptedMember;
+import org.signal.storageservice.protos.groups.local.DecryptedModifyMemberRole;
+import org.signal.storageservice.protos.groups.local.DecryptedString;
+import org.whispersystems.signalservice.api.util.UuidUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.admin;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.bannedMember;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.member;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.pendingMember;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.pendingMemberRemoval;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.requestingMember;
+
+/**
+ * Applies long runs of changes, one at a time and with {@link DecryptedGroupUtil#applyAll}, and changes to groups with
+ * duplicate members, which exercise the indexes in {@link MutableDecryptedGroup}.
+ */
+public final class DecryptedGroupUtil_apply_history_Test {
+
+  @Test
+  public void apply_long_history() throws NotAbleToApplyGroupV2ChangeException {
+    DecryptedGroup             group           = createGroup(new Random(1), 200);
+    List<ByteString>           expectedMembers = new ArrayList<>();
+    List<DecryptedGroupChange> changes         = createHistory(new Random(2), group, 500, expectedMembers);
+
+    DecryptedGroup actual = group;
+    for (DecryptedGroupChange change : changes) {
+      actual = DecryptedGroupUtil.apply(actual, change);
+    }
+
+    List<ByteString> actualMembers = new ArrayList<>(actual.getMembersCount());
+    for (DecryptedMember member : actual.getMembersList()) {
+      actualMembers.add(member.getAciBytes());
+    }
+
+    assertEquals(group.getRevision() + changes.size(), actual.getRevision());
+    assertEquals(expectedMembers, actualMembers);
+  }
+
+  @Test
+  public void apply_all_matches_applying_one_at_a_time() throws NotAbleToApplyGroupV2ChangeException {
+    DecryptedGroup             group   = createGroup(new Random(1), 200);
+    List<DecryptedGroupChange> changes = createHistory(new Random(2), group, 500, new ArrayList<>());
+
+    DecryptedGroup expected = group;
+    for (DecryptedGroupChange change : changes) {
+      expected = DecryptedGroupUtil.apply(expected, change);
+    }
+
+    DecryptedGroup actual = DecryptedGroupUtil.applyAll(group, changes);
+
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  @Test
+  public void apply_all_with_no_changes() throws NotAbleToApplyGroupV2ChangeException {
+    DecryptedGroup group = createGroup(new Random(1), 10);
+
+    assertEquals(group, DecryptedGroupUtil.applyAll(group, Collections.emptyList()));
+  }
+
+  @Test(expected = NotAbleToApplyGroupV2ChangeException.class)
+  public void apply_all_with_a_revision_gap() throws NotAbleToApplyGroupV2ChangeException {
+    DecryptedGroup group = DecryptedGroup.newBuilder()
+                                         .setRevision(10)
+                                         .build();
+
+    DecryptedGroupUtil.applyAll(group, Arrays.asList(DecryptedGroupChange.newBuilder().setRevision(11).build(),
+                                                     DecryptedGroupChange.newBuilder().setRevision(13).build()));
+  }
+
+  @Test(expected = NotAbleToApplyGroupV2ChangeException.class)
+  public void apply_history_with_a_revision_gap() throws NotAbleToApplyGroupV2ChangeException {
+    DecryptedGroup group = DecryptedGroup.newBuilder()
+                                         .setRevision(10)
+                                         .build();
+
+    group = DecryptedGroupUtil.apply(group, DecryptedGroupChange.newBuilder().setRevision(11).build());
+    DecryptedGroupUtil.apply(group, DecryptedGroupChange.newBuilder().setRevision(13).build());
+  }
+
+  @Test
+  public void add_member_collapses_existing_duplicates_to_first_position_and_last_value() throws NotAbleToApplyGroupV2ChangeException {
+    UUID            duplicate = UUID.randomUUID();
+    DecryptedMember member1   = member(duplicate);
+    DecryptedMember member2   = member(UUID.randomUUID());
+    DecryptedMember member3   = admin(duplicate);
+    DecryptedMember member4   = member(UUID.randomUUID());
+
+    DecryptedGroup newGroup = DecryptedGroupUtil.apply(DecryptedGroup.newBuilder()
+                                                                     .setRevision(10)
+                                                                     .addMembers(member1)
+                                                                     .addMembers(member2)
+                                                                     .addMembers(member3)
+                                                                     .build(),
+                                                       DecryptedGroupChange.newBuilder()
+                                                                           .setRevision(11)
+                                                                           .addNewMembers(member4)
+                                                                           .build());
+
+    assertEquals(DecryptedGroup.newBuilder()
+                               .setRevision(11)
+                               .addMembers(member3)
+                               .addMembers(member2)
+                               .addMembers(member4)
+                               .build(),
+                 newGroup);
+  }
+
+  @Test
+  public void delete_member_with_duplicates_removes_first_only() throws NotAbleToApplyGroupV2ChangeException {
+    UUID            duplicate = UUID.randomUUID();
+    DecryptedMember member1   = member(duplicate);
+    DecryptedMember member2   = member(UUID.randomUUID());
+    DecryptedMember member3   = admin(duplicate);
+
+    DecryptedGroup afterDelete = DecryptedGroupUtil.apply(DecryptedGroup.newBuilder()
+                                                                        .setRevision(10)
+                                                                        .addMembers(member1)
+                                                                        .addMembers(member2)
+                                                                        .addMembers(member3)
+                                                                        .build(),
+                                                          DecryptedGroupChange.newBuilder()
+                                                                              .setRevision(11)
+                                                                              .addDeleteMembers(UuidUtil.toByteString(duplicate))
+                                                                              .build());
+
+    DecryptedGroup newGroup = DecryptedGroupUtil.apply(afterDelete,
+                                                       DecryptedGroupChange.newBuilder()
+                                                                           .setRevision(12)
+                                                                           .addModifyMemberRoles(DecryptedModifyMemberRole.newBuilder()
+                                                                                                                          .setAciBytes(UuidUtil.toByteString(duplicate))
+                                                                                                                          .setRole(Member.Role.DEFAULT))
+                                                                           .build());
+
+    assertEquals(DecryptedGroup.newBuilder()
+                               .setRevision(12)
+                               .addMembers(member2)
+                               .addMembers(member(duplicate))
+                               .build(),
+                 newGroup);
+  }
+
+  private static DecryptedGroup createGroup(Random random, int memberCount) {
+    DecryptedGroup.Builder builder = DecryptedGroup.newBuilder()
+                                                   .setRevision(10)
+                                                   .setTitle("Group");
+
+    for (int i = 0; i < memberCount; i++) {
+      builder.addMembers(i == 0 ? admin(uuid(random)) : member(uuid(random)));
+    }
+
+    for (int i = 0; i < memberCount / 20; i++) {
+      builder.addPendingMembers(pendingMember(uuid(random)));
+      builder.addBannedMembers(bannedMember(uuid(random)));
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * A plausible history of joins, leaves, role changes, invites, bans and renames that each apply
+   * cleanly to the group state before them.
+   *
+   * @param members Filled with the ACIs of the members once every change is applied, in order.
+   */
+  private static List<DecryptedGroupChange> createHistory(Random random, DecryptedGroup group, int count, List<ByteString> members) {
+    List<UUID>                 pending = new ArrayList<>();
+    List<DecryptedGroupChange> changes = new ArrayList<>(count);
+
+    for (DecryptedMember member : group.getMembersList()) {
+      members.add(member.getAciBytes());
+    }
+
+    for (int i = 0; i < count; i++) {
+      DecryptedGroupChange.Builder change = DecryptedGroupChange.newBuilder()
+                                                                .setRevision(group.getRevision() + i + 1);
+
+      switch (random.nextInt(7)) {
+        case 0:
+          DecryptedMember added = member(uuid(random));
+          members.add(added.getAciBytes());
+          change.addNewMembers(added);
+          break;
+        case 1:
+          if (members.size() > 1) {
+            change.addDeleteMembers(members.remove(1 + random.nextInt(members.size() - 1)));
+          }
+          break;
+        case 2:
+          change.addModifyMemberRoles(DecryptedModifyMemberRole.newBuilder()
+                                                               .setAciBytes(members.get(random.nextInt(members.size())))
+                                                               .setRole(random.nextBoolean() ? Member.Role.ADMINISTRATOR : Member.Role.DEFAULT));
+          break;
+        case 3:
+          UUID invited = uuid(random);
+          pending.add(invited);
+          change.addNewPendingMembers(pendingMember(invited));
+          break;
+        case 4:
+          if (!pending.isEmpty()) {
+            UUID revoked = pending.remove(random.nextInt(pending.size()));
+            change.addDeletePendingMembers(pendingMemberRemoval(revoked));
+          }
+          break;
+        case 5:
+          UUID requesting = uuid(random);
+          members.add(UuidUtil.toByteString(requesting));
+          change.addNewRequestingMembers(requestingMember(requesting))
+                .addPromoteRequestingMembers(DecryptedApproveMember.newBuilder()
+                                                                   .setAciBytes(UuidUtil.toByteString(requesting))
+                                                                   .setRole(Member.Role.DEFAULT));
+          break;
+        default:
+          change.setNewTitle(DecryptedString.newBuilder().setValue("Group " + i))
+                .addNewBannedMembers(bannedMember(uuid(random)));
+          break;
+      }
+
+      changes.add(change.build());
+    }
+
+    return changes;
+  }
+
+  private static UUID uuid(Random random) {
+    return new UUID(random.nextLong(), random.nextLong());
+  }
+}
@@ -0,0 +1,162 @@
+package org.whispersystems.signalservice.api.groupsv2;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.libsignal.zkgroup.InvalidInputException;
+import org.signal.libsignal.zkgroup.VerificationFailedException;
+import org.signal.libsignal.zkgroup.groups.ClientZkGroupCipher;
+import org.signal.libsignal.zkgroup.groups.GroupMasterKey;
+import org.signal.libsignal.zkgroup.groups.GroupSecretParams;
+import org.signal.libsignal.zkgroup.profiles.ProfileKey;
+import org.signal.storageservice.protos.groups.BannedMember;
+import org.signal.storageservice.protos.groups.Group;
+import org.signal.storageservice.protos.groups.GroupChange;
+import org.signal.storageservice.protos.groups.Member;
+import org.signal.storageservice.protos.groups.PendingMember;
+import org.signal.storageservice.protos.groups.RequestingMember;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
+import org.whispersystems.signalservice.api.push.ServiceId.ACI;
+import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.testutil.LibSignalLibraryUtil;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public final class GroupsV2Operations_decrypt_largeGroup_Test {
+
+  private static final int MEMBER_COUNT = 1000;
+  private static final int PARALLELISM  = 4;
+
+  private ClientZkOperations clientZkOperations;
+  private GroupSecretParams  groupSecretParams;
+  private ExecutorService    executor;
+  private Group              group;
+
+  @Before
+  public void setup() throws InvalidInputException {
+    LibSignalLibraryUtil.assumeLibSignalSupportedOnOS();
+
+    TestZkGroupServer server = new TestZkGroupServer();
+
+    clientZkOperations = new ClientZkOperations(server.getServerPublicParams());
+    groupSecretParams  = GroupSecretParams.deriveFromMasterKey(new GroupMasterKey(Util.getSecretBytes(32)));
+    executor           = Executors.newFixedThreadPool(PARALLELISM - 1);
+    group              = createGroup(MEMBER_COUNT);
+  }
+
+  @After
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void parallel_decrypt_matches_sequential_decrypt() throws VerificationFailedException, InvalidGroupStateException {
+    DecryptedGroup sequential = sequentialOperations().forGroup(groupSecretParams).decryptGroup(group);
+    DecryptedGroup parallel   = parallelOperations().forGroup(groupSecretParams).decryptGroup(group);
+
+    assertEquals(MEMBER_COUNT, sequential.getMembersCount());
+    assertEquals(sequential, parallel);
+  }
+
+  @Test
+  public void cached_decrypt_matches_uncached_decrypt() throws VerificationFailedException, InvalidGroupStateException {
+    GroupsV2Operations operations = sequentialOperations();
+
+    DecryptedGroup first  = operations.forGroup(groupSecretParams).decryptGroup(group);
+    DecryptedGroup second = operations.forGroup(groupSecretParams).decryptGroup(group);
+
+    assertEquals(first, second);
+  }
+
+  @Test
+  public void parallel_decrypt_of_change_matches_sequential_decrypt() throws VerificationFailedException, InvalidGroupStateException {
+    GroupChange.Actions.Builder actions = GroupChange.Actions.newBuilder().setRevision(10);
+    for (Member member : group.getMembersList()) {
+      actions.addAddMembers(GroupChange.Actions.AddMemberAction.newBuilder().setAdded(member));
+    }
+
+    ACI                  editor     = ACI.from(UUID.randomUUID());
+    DecryptedGroupChange sequential = sequentialOperations().forGroup(groupSecretParams).decryptChange(actions.build(), editor);
+    DecryptedGroupChange parallel   = parallelOperations().forGroup(groupSecretParams).decryptChange(actions.build(), editor);
+
+    assertEquals(MEMBER_COUNT, parallel.getNewMembersCount());
+    assertEquals(sequential, parallel);
+  }
+
+  @Test(expected = InvalidGroupStateException.class)
+  public void parallel_decrypt_propagates_failures() throws VerificationFailedException, InvalidGroupStateException {
+    Group badGroup = group.toBuilder()
+                          .setMembers(MEMBER_COUNT - 1, group.getMembers(MEMBER_COUNT - 1).toBuilder().setUserId(ByteString.copyFrom(new byte[10])))
+                          .build();
+
+    parallelOperations().forGroup(groupSecretParams).decryptGroup(badGroup);
+  }
+
+  private GroupsV2Operations sequentialOperations() {
+    return new GroupsV2Operations(clientZkOperations, MEMBER_COUNT);
+  }
+
+  private GroupsV2Operations parallelOperations() {
+    return new GroupsV2Operations(clientZkOperations, MEMBER_COUNT, executor, PARALLELISM);
+  }
+
+  private Group createGroup(int memberCount) {
+    GroupsV2Operations.GroupOperations groupOperations = sequentialOperations().forGroup(groupSecretParams);
+    ClientZkGroupCipher                cipher          = new ClientZkGroupCipher(groupSecretParams);
+    ByteString                         inviter         = groupOperations.encryptServiceId(ACI.from(UUID.randomUUID()));
+    Group.Builder                      builder         = Group.newBuilder()
+                                                              .setRevision(10)
+                                                              .setTitle(groupOperations.encryptTitle("Large group"));
+
+    for (int i = 0; i < memberCount; i++) {
+      ACI        aci        = ACI.from(UUID.randomUUID());
+      ProfileKey profileKey = newProfileKey();
+
+      builder.addMembers(Member.newBuilder()
+                               .setRole(i == 0 ? Member.Role.ADMINISTRATOR : Member.Role.DEFAULT)
+                               .setUserId(groupOperations.encryptServiceId(aci))
+                               .setProfileKey(ByteString.copyFrom(cipher.encryptProfileKey(profileKey, aci.getLibSignalAci()).serialize()))
+                               .setJoinedAtRevision(i % 10));
+    }
+
+    for (int i = 0; i < memberCount / 10; i++) {
+      ACI        aci        = ACI.from(UUID.randomUUID());
+      ProfileKey profileKey = newProfileKey();
+
+      builder.addPendingMembers(PendingMember.newBuilder()
+                                             .setAddedByUserId(inviter)
+                                             .setTimestamp(i)
+                                             .setMember(Member.newBuilder()
+                                                              .setRole(Member.Role.DEFAULT)
+                                                              .setUserId(groupOperations.encryptServiceId(ACI.from(UUID.randomUUID())))));
+
+      builder.addRequestingMembers(RequestingMember.newBuilder()
+                                                   .setUserId(groupOperations.encryptServiceId(aci))
+                                                   .setProfileKey(ByteString.copyFrom(cipher.encryptProfileKey(profileKey, aci.getLibSignalAci()).serialize()))
+                                                   .setTimestamp(i));
+
+      builder.addBannedMembers(BannedMember.newBuilder()
+                                           .setUserId(groupOperations.encryptServiceId(ACI.from(UUID.randomUUID())))
+                                           .setTimestamp(i));
+    }
+
+    return builder.build();
+  }
+
+  private static ProfileKey newProfileKey() {
+    try {
+      return new ProfileKey(Util.getSecretBytes(32));
+    } catch (InvalidInputException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
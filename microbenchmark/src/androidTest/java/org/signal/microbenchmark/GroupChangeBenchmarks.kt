@@ -0,0 +1,103 @@
+package org.signal.microbenchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.protobuf.ByteString
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.storageservice.protos.groups.Member
+import org.signal.storageservice.protos.groups.local.DecryptedGroup
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange
+import org.signal.storageservice.protos.groups.local.DecryptedMember
+import org.signal.storageservice.protos.groups.local.DecryptedModifyMemberRole
+import org.signal.storageservice.protos.groups.local.DecryptedString
+import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupUtil
+import org.whispersystems.signalservice.api.util.UuidUtil
+import java.util.Random
+import java.util.UUID
+
+/**
+ * Benchmarks for replaying a long group history on a large group.
+ */
+@RunWith(AndroidJUnit4::class)
+class GroupChangeBenchmarks {
+
+  companion object {
+    private const val MEMBER_COUNT = 1000
+    private const val CHANGE_COUNT = 2000
+  }
+
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val random = Random(1)
+  private val group: DecryptedGroup = createGroup()
+  private val changes: List<DecryptedGroupChange> = createHistory()
+
+  @Test
+  fun replay_oneAtATime() {
+    benchmarkRule.measureRepeated {
+      var state = group
+      for (change in changes) {
+        state = DecryptedGroupUtil.apply(state, change)
+      }
+    }
+  }
+
+  @Test
+  fun replay_applyAll() {
+    benchmarkRule.measureRepeated {
+      DecryptedGroupUtil.applyAll(group, changes)
+    }
+  }
+
+  private fun createGroup(): DecryptedGroup {
+    val builder = DecryptedGroup.newBuilder()
+      .setRevision(10)
+      .setTitle("Large group")
+
+    for (i in 0 until MEMBER_COUNT) {
+      builder.addMembers(member(if (i == 0) Member.Role.ADMINISTRATOR else Member.Role.DEFAULT))
+    }
+
+    return builder.build()
+  }
+
+  /**
+   * Joins, role changes, leaves and renames, each of which applies cleanly to the state before it.
+   */
+  private fun createHistory(): List<DecryptedGroupChange> {
+    val members: MutableList<ByteString> = group.membersList.map { it.aciBytes }.toMutableList()
+
+    return (1..CHANGE_COUNT).map { i ->
+      val change = DecryptedGroupChange.newBuilder()
+        .setRevision(group.revision + i)
+
+      when (i % 4) {
+        0 -> {
+          val added = member(Member.Role.DEFAULT)
+          members += added.aciBytes
+          change.addNewMembers(added)
+        }
+        1 -> change.addModifyMemberRoles(
+          DecryptedModifyMemberRole.newBuilder()
+            .setAciBytes(members[random.nextInt(members.size)])
+            .setRole(if (random.nextBoolean()) Member.Role.ADMINISTRATOR else Member.Role.DEFAULT)
+        )
+        2 -> change.addDeleteMembers(members.removeAt(1 + random.nextInt(members.size - 1)))
+        else -> change.setNewTitle(DecryptedString.newBuilder().setValue("Group $i"))
+      }
+
+      change.build()
+    }
+  }
+
+  private fun member(role: Member.Role): DecryptedMember {
+    return DecryptedMember.newBuilder()
+      .setAciBytes(UuidUtil.toByteString(UUID(random.nextLong(), random.nextLong())))
+      .setRole(role)
+      .build()
+  }
+}
@@ -0,0 +1,147 @@
+package org.signal.microbenchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.protobuf.ByteString
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.libsignal.zkgroup.ServerSecretParams
+import org.signal.libsignal.zkgroup.groups.ClientZkGroupCipher
+import org.signal.libsignal.zkgroup.groups.GroupMasterKey
+import org.signal.libsignal.zkgroup.groups.GroupSecretParams
+import org.signal.libsignal.zkgroup.profiles.ProfileKey
+import org.signal.storageservice.protos.groups.BannedMember
+import org.signal.storageservice.protos.groups.Group
+import org.signal.storageservice.protos.groups.GroupAttributeBlob
+import org.signal.storageservice.protos.groups.Member
+import org.signal.storageservice.protos.groups.PendingMember
+import org.signal.storageservice.protos.groups.RequestingMember
+import org.whispersystems.signalservice.api.groupsv2.ClientZkOperations
+import org.whispersystems.signalservice.api.groupsv2.GroupsV2Operations
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.internal.util.Util
+import java.util.UUID
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Benchmarks for decrypting the full state of a large group.
+ */
+@RunWith(AndroidJUnit4::class)
+class GroupDecryptBenchmarks {
+
+  companion object {
+    private const val MEMBER_COUNT = 1000
+    private const val PARALLELISM = 4
+  }
+
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private lateinit var clientZkOperations: ClientZkOperations
+  private lateinit var groupSecretParams: GroupSecretParams
+  private lateinit var executor: ExecutorService
+  private lateinit var group: Group
+
+  @Before
+  fun setup() {
+    clientZkOperations = ClientZkOperations(ServerSecretParams.generate().publicParams)
+    groupSecretParams = GroupSecretParams.deriveFromMasterKey(GroupMasterKey(Util.getSecretBytes(32)))
+    executor = Executors.newFixedThreadPool(PARALLELISM - 1)
+    group = createGroup()
+  }
+
+  @After
+  fun tearDown() {
+    executor.shutdownNow()
+  }
+
+  @Test
+  fun decryptGroup_sequential() {
+    benchmarkRule.measureRepeated {
+      val operations = runWithTimingDisabled {
+        GroupsV2Operations(clientZkOperations, MEMBER_COUNT)
+      }
+
+      operations.forGroup(groupSecretParams).decryptGroup(group)
+    }
+  }
+
+  @Test
+  fun decryptGroup_parallel() {
+    benchmarkRule.measureRepeated {
+      val operations = runWithTimingDisabled {
+        GroupsV2Operations(clientZkOperations, MEMBER_COUNT, executor, PARALLELISM)
+      }
+
+      operations.forGroup(groupSecretParams).decryptGroup(group)
+    }
+  }
+
+  @Test
+  fun decryptGroup_cached() {
+    val operations = GroupsV2Operations(clientZkOperations, MEMBER_COUNT, executor, PARALLELISM)
+    operations.forGroup(groupSecretParams).decryptGroup(group)
+
+    benchmarkRule.measureRepeated {
+      operations.forGroup(groupSecretParams).decryptGroup(group)
+    }
+  }
+
+  private fun createGroup(): Group {
+    val groupOperations = GroupsV2Operations(clientZkOperations, MEMBER_COUNT).forGroup(groupSecretParams)
+    val cipher = ClientZkGroupCipher(groupSecretParams)
+    val inviter = groupOperations.encryptServiceId(ACI.from(UUID.randomUUID()))
+    val title = GroupAttributeBlob.newBuilder().setTitle("Large group").build()
+
+    val builder = Group.newBuilder()
+      .setRevision(10)
+      .setTitle(ByteString.copyFrom(cipher.encryptBlob(title.toByteArray())))
+
+    for (i in 0 until MEMBER_COUNT) {
+      val aci = ACI.from(UUID.randomUUID())
+
+      builder.addMembers(
+        Member.newBuilder()
+          .setRole(if (i == 0) Member.Role.ADMINISTRATOR else Member.Role.DEFAULT)
+          .setUserId(groupOperations.encryptServiceId(aci))
+          .setProfileKey(ByteString.copyFrom(cipher.encryptProfileKey(ProfileKey(Util.getSecretBytes(32)), aci.libSignalAci).serialize()))
+          .setJoinedAtRevision(i % 10)
+      )
+    }
+
+    for (i in 0 until MEMBER_COUNT / 10) {
+      val aci = ACI.from(UUID.randomUUID())
+
+      builder.addPendingMembers(
+        PendingMember.newBuilder()
+          .setAddedByUserId(inviter)
+          .setTimestamp(i.toLong())
+          .setMember(
+            Member.newBuilder()
+              .setRole(Member.Role.DEFAULT)
+              .setUserId(groupOperations.encryptServiceId(ACI.from(UUID.randomUUID())))
+          )
+      )
+
+      builder.addRequestingMembers(
+        RequestingMember.newBuilder()
+          .setUserId(groupOperations.encryptServiceId(aci))
+          .setProfileKey(ByteString.copyFrom(cipher.encryptProfileKey(ProfileKey(Util.getSecretBytes(32)), aci.libSignalAci).serialize()))
+          .setTimestamp(i.toLong())
+      )
+
+      builder.addBannedMembers(
+        BannedMember.newBuilder()
+          .setUserId(groupOperations.encryptServiceId(ACI.from(UUID.randomUUID())))
+          .setTimestamp(i.toLong())
+      )
+    }
+
+    return builder.build()
+  }
+}
@@ -0,0 +1,113 @@
+package org.signal.microbenchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.collections.LongHashSet
+import org.signal.core.util.collections.LongObjectMap
+import org.signal.core.util.collections.ObjectIntMap
+
+/**
+ * Benchmarks for the primitive collections against their boxed equivalents, at the size of a large conversation page.
+ */
+@RunWith(AndroidJUnit4::class)
+class PrimitiveCollectionBenchmarks {
+
+  companion object {
+    private const val PAGE_SIZE = 5_000
+    private const val FIRST_ID = 1_000_000L
+  }
+
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val keys: Array<Any> = Array(PAGE_SIZE) { "message-$it" }
+  private val reactions: Array<Any> = Array(PAGE_SIZE * 2) { Any() }
+
+  @Test
+  fun pagePositions_hashMap() {
+    benchmarkRule.measureRepeated {
+      val positions: MutableMap<Any, Int> = HashMap()
+      for (i in keys.indices) {
+        positions[keys[i]] = i
+      }
+      for (key in keys) {
+        positions[key]
+      }
+    }
+  }
+
+  @Test
+  fun pagePositions_objectIntMap() {
+    benchmarkRule.measureRepeated {
+      val positions = ObjectIntMap<Any>()
+      for (i in keys.indices) {
+        positions.put(keys[i], i)
+      }
+      for (key in keys) {
+        positions.getOrDefault(key, -1)
+      }
+    }
+  }
+
+  @Test
+  fun pageIds_hashSet() {
+    benchmarkRule.measureRepeated {
+      val ids: MutableSet<Long> = HashSet()
+      for (id in FIRST_ID until FIRST_ID + PAGE_SIZE) {
+        ids.add(id)
+      }
+      for (id in FIRST_ID until FIRST_ID + PAGE_SIZE step 2) {
+        ids.contains(id)
+      }
+    }
+  }
+
+  @Test
+  fun pageIds_longHashSet() {
+    benchmarkRule.measureRepeated {
+      val ids = LongHashSet()
+      for (id in FIRST_ID until FIRST_ID + PAGE_SIZE) {
+        ids.add(id)
+      }
+      for (id in FIRST_ID until FIRST_ID + PAGE_SIZE step 2) {
+        ids.contains(id)
+      }
+    }
+  }
+
+  @Test
+  fun pageReactions_hashMap() {
+    benchmarkRule.measureRepeated {
+      val byMessage: MutableMap<Long, MutableList<Any>> = HashMap()
+      for (i in reactions.indices) {
+        byMessage.getOrPut(FIRST_ID + i / 2) { ArrayList(2) }.add(reactions[i])
+      }
+      for (id in FIRST_ID until FIRST_ID + PAGE_SIZE) {
+        byMessage[id]
+      }
+    }
+  }
+
+  @Test
+  fun pageReactions_longObjectMap() {
+    benchmarkRule.measureRepeated {
+      val byMessage = LongObjectMap<MutableList<Any>>()
+      for (i in reactions.indices) {
+        val messageId = FIRST_ID + i / 2
+        var list = byMessage.get(messageId)
+        if (list == null) {
+          list = ArrayList(2)
+          byMessage.put(messageId, list)
+        }
+        list.add(reactions[i])
+      }
+      for (id in FIRST_ID until FIRST_ID + PAGE_SIZE) {
+        byMessage.get(id)
+      }
+    }
+  }
+}
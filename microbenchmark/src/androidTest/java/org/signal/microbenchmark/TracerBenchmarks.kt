@@ -0,0 +1,37 @@
+package org.signal.microbenchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.tracing.Tracer
+
+/**
+ * Benchmarks for recording trace events.
+ */
+@RunWith(AndroidJUnit4::class)
+class TracerBenchmarks {
+
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val tracer = Tracer.getInstance()
+
+  @Test
+  fun startAndEnd() {
+    benchmarkRule.measureRepeated {
+      tracer.start("method")
+      tracer.end("method")
+    }
+  }
+
+  @Test
+  fun startAndEnd_trackAndArgument() {
+    benchmarkRule.measureRepeated {
+      tracer.start("query", Tracer.TrackId.DB_LOCK, "table", "message")
+      tracer.end("query", Tracer.TrackId.DB_LOCK)
+    }
+  }
+}
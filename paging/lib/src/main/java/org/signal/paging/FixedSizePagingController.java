@@ -3,13 +3,12 @@ package org.signal.paging;
 import androidx.annotation.NonNull;
 
 import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.collections.ObjectIntMap;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Executor;
 
 /**
@@ -31,7 +30,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   private final PagingConfig                config;
   private final DataStream<Data>            dataStream;
   private final DataStatus                  loadState;
-  private final Map<Key, Integer>           keyToPosition;
+  private final ObjectIntMap<Key>           keyToPosition;
 
   private List<Data> data;
 
@@ -47,7 +46,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     this.dataStream    = dataStream;
     this.loadState     = DataStatus.obtain(size);
     this.data          = new CompressedList<>(loadState.size());
-    this.keyToPosition = new HashMap<>();
+    this.keyToPosition = new ObjectIntMap<>();
 
     if (DEBUG) Log.d(TAG, "[Constructor] Creating with size " + size + " (loadState.size() = " + loadState.size() + ")");
   }
@@ -145,9 +144,9 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     if (DEBUG) Log.d(TAG, buildItemChangedLog(key, ""));
 
     FETCH_EXECUTOR.execute(() -> {
-      Integer position = keyToPosition.get(key);
+      int position = keyToPosition.getOrDefault(key, -1);
 
-      if (position == null) {
+      if (position < 0) {
         Log.w(TAG, "Notified of key " + key + " but it wasn't in the cache!");
         return;
       }
@@ -232,7 +231,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     });
   }
 
-  private void rebuildKeyToPositionMap(@NonNull Map<Key, Integer> map, @NonNull List<Data> dataList, @NonNull PagedDataSource<Key, Data> dataSource) {
+  private void rebuildKeyToPositionMap(@NonNull ObjectIntMap<Key> map, @NonNull List<Data> dataList, @NonNull PagedDataSource<Key, Data> dataSource) {
     map.clear();
 
     for (int i = 0, len = dataList.size(); i < len; i++) {
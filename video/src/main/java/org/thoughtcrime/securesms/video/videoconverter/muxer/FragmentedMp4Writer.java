@@ -0,0 +1,341 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import org.mp4parser.Box;
+import org.mp4parser.boxes.iso14496.part12.FileTypeBox;
+import org.mp4parser.boxes.iso14496.part12.MediaHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.MovieBox;
+import org.mp4parser.boxes.iso14496.part12.MovieExtendsBox;
+import org.mp4parser.boxes.iso14496.part12.MovieFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.MovieFragmentHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.MovieHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.SampleFlags;
+import org.mp4parser.boxes.iso14496.part12.TrackExtendsBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentBaseMediaDecodeTimeBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.TrackRunBox;
+import org.mp4parser.streaming.StreamingSample;
+import org.mp4parser.streaming.StreamingTrack;
+import org.mp4parser.streaming.extensions.CompositionTimeSampleExtension;
+import org.mp4parser.streaming.extensions.CompositionTimeTrackExtension;
+import org.mp4parser.streaming.extensions.SampleFlagsSampleExtension;
+import org.mp4parser.streaming.extensions.TrackIdTrackExtension;
+import org.mp4parser.streaming.output.SampleSink;
+import org.mp4parser.streaming.output.mp4.DefaultBoxes;
+import org.mp4parser.tools.Mp4Arrays;
+import org.mp4parser.tools.Mp4Math;
+import org.signal.core.util.logging.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.mp4parser.tools.CastUtils.l2i;
+
+/**
+ * Creates a fragmented MP4 file with ftyp, moov, (moof, mdat)+ order.
+ * <p>
+ * The moov only describes the tracks, and every fragment is written to the <code>sink</code> as soon as
+ * it is complete. Unlike {@link Mp4Writer}, nothing needs to be held back until the end of the stream,
+ * so the output can be consumed (encrypted, uploaded) while samples are still being produced, and a
+ * truncated file is still playable up to its last complete fragment.
+ * <p>
+ * Fragments are cut on sync samples of the primary track (the first video track, if any) once at least
+ * {@link #MIN_FRAGMENT_DURATION_SECONDS} has been buffered, or unconditionally after
+ * {@link #MAX_FRAGMENT_DURATION_SECONDS}. Each fragment holds one traf per track, with the samples of
+ * all tracks stored contiguously in a single mdat.
+ */
+final class FragmentedMp4Writer extends DefaultBoxes implements SampleSink, Closeable {
+
+  private static final String TAG = "FragmentedMp4Writer";
+
+  private static final long MIN_FRAGMENT_DURATION_SECONDS = 1;
+  private static final long MAX_FRAGMENT_DURATION_SECONDS = 5;
+
+  private final WritableByteChannel  sink;
+  private final List<StreamingTrack> source;
+  private final StreamingTrack       primaryTrack;
+  private final Date                 creationTime = new Date();
+
+  /**
+   * Buffers the samples per track until the fragment they are part of is complete.
+   */
+  private final Map<StreamingTrack, List<StreamingSample>> sampleBuffers         = new HashMap<>();
+  /**
+   * Contains the decode time of the first buffered sample, the base media decode time of the next fragment.
+   */
+  private final Map<StreamingTrack, Long>                  nextFragmentStartTime = new HashMap<>();
+  /**
+   * Contains the next sample's decode time.
+   */
+  private final Map<StreamingTrack, Long>                  nextSampleStartTime   = new HashMap<>();
+  private       long                                       sequenceNumber        = 1;
+  private       boolean                                    headerWritten;
+
+  FragmentedMp4Writer(final @NonNull List<StreamingTrack> source, final @NonNull WritableByteChannel sink) throws IOException {
+    this.source = new ArrayList<>(source);
+    this.sink   = sink;
+
+    final HashSet<Long> trackIds = new HashSet<>();
+    for (StreamingTrack streamingTrack : source) {
+      streamingTrack.setSampleSink(this);
+      sampleBuffers.put(streamingTrack, new ArrayList<>());
+      nextFragmentStartTime.put(streamingTrack, 0L);
+      nextSampleStartTime.put(streamingTrack, 0L);
+      if (streamingTrack.getTrackExtension(TrackIdTrackExtension.class) != null) {
+        final TrackIdTrackExtension trackIdTrackExtension = streamingTrack.getTrackExtension(TrackIdTrackExtension.class);
+        if (trackIds.contains(trackIdTrackExtension.getTrackId())) {
+          throw new MuxingException("There may not be two tracks with the same trackID within one file");
+        }
+        trackIds.add(trackIdTrackExtension.getTrackId());
+      }
+    }
+    for (StreamingTrack streamingTrack : source) {
+      if (streamingTrack.getTrackExtension(TrackIdTrackExtension.class) == null) {
+        long maxTrackId = 0;
+        for (Long trackId : trackIds) {
+          maxTrackId = Math.max(trackId, maxTrackId);
+        }
+        final TrackIdTrackExtension tiExt = new TrackIdTrackExtension(maxTrackId + 1);
+        trackIds.add(tiExt.getTrackId());
+        streamingTrack.addTrackExtension(tiExt);
+      }
+    }
+
+    StreamingTrack primaryTrack = source.isEmpty() ? null : source.get(0);
+    for (StreamingTrack streamingTrack : source) {
+      if ("vide".equals(streamingTrack.getHandler())) {
+        primaryTrack = streamingTrack;
+        break;
+      }
+    }
+    this.primaryTrack = primaryTrack;
+
+    final List<String> compatibleBrands = new LinkedList<>();
+    compatibleBrands.add("isom");
+    compatibleBrands.add("iso6");
+    compatibleBrands.add("mp41");
+    write(new FileTypeBox("isom", 0, compatibleBrands));
+  }
+
+  @Override
+  public void close() throws IOException {
+    writeHeaderIfNeeded();
+    writeFragment();
+    for (StreamingTrack streamingTrack : source) {
+      streamingTrack.close();
+    }
+  }
+
+  @Override
+  public void acceptSample(final @NonNull StreamingSample streamingSample, final @NonNull StreamingTrack streamingTrack) throws IOException {
+    writeHeaderIfNeeded();
+
+    if (streamingTrack == primaryTrack && isFragmentReady(streamingSample)) {
+      writeFragment();
+    }
+
+    Objects.requireNonNull(sampleBuffers.get(streamingTrack)).add(streamingSample);
+    nextSampleStartTime.put(streamingTrack, Objects.requireNonNull(nextSampleStartTime.get(streamingTrack)) + streamingSample.getDuration());
+  }
+
+  /**
+   * Tests if the buffered samples of the primary track form a fragment, given the next sample on that
+   * track. The next sample will be the first of the following fragment.
+   */
+  private boolean isFragmentReady(final @NonNull StreamingSample next) {
+    final long bufferedDuration = Objects.requireNonNull(nextSampleStartTime.get(primaryTrack)) - Objects.requireNonNull(nextFragmentStartTime.get(primaryTrack));
+    final long timescale        = primaryTrack.getTimescale();
+
+    if (bufferedDuration >= MAX_FRAGMENT_DURATION_SECONDS * timescale) {
+      return true;
+    }
+
+    return bufferedDuration >= MIN_FRAGMENT_DURATION_SECONDS * timescale && isSyncSample(next);
+  }
+
+  private void writeHeaderIfNeeded() throws IOException {
+    if (!headerWritten) {
+      write(createMoov());
+      headerWritten = true;
+    }
+  }
+
+  private void writeFragment() throws IOException {
+    final List<StreamingTrack> tracks = new ArrayList<>(source.size());
+    for (StreamingTrack streamingTrack : source) {
+      if (!Objects.requireNonNull(sampleBuffers.get(streamingTrack)).isEmpty()) {
+        tracks.add(streamingTrack);
+      }
+    }
+
+    if (tracks.isEmpty()) {
+      return;
+    }
+
+    final MovieFragmentBox       moof = new MovieFragmentBox();
+    final MovieFragmentHeaderBox mfhd = new MovieFragmentHeaderBox();
+    mfhd.setSequenceNumber(sequenceNumber++);
+    moof.addBox(mfhd);
+
+    final List<TrackRunBox>     truns   = new ArrayList<>(tracks.size());
+    final List<StreamingSample> samples = new ArrayList<>();
+    for (StreamingTrack streamingTrack : tracks) {
+      final List<StreamingSample> trackSamples = Objects.requireNonNull(sampleBuffers.get(streamingTrack));
+      final TrackRunBox           trun         = createTrun(streamingTrack, trackSamples);
+
+      moof.addBox(createTraf(streamingTrack, trun));
+      truns.add(trun);
+      samples.addAll(trackSamples);
+    }
+
+    // The data offset of each run is relative to the start of the moof, and the size of the moof does
+    // not depend on the offset values, so they can be filled in once the moof is otherwise complete.
+    long dataOffset = moof.getSize() + 8;
+    for (int i = 0; i < tracks.size(); i++) {
+      final TrackRunBox trun = truns.get(i);
+      trun.setDataOffset(l2i(dataOffset));
+      for (TrackRunBox.Entry entry : trun.getEntries()) {
+        dataOffset += entry.getSampleSize();
+      }
+    }
+
+    final MdatBox mdat = new MdatBox(samples);
+    write(moof, mdat);
+
+    for (StreamingTrack streamingTrack : tracks) {
+      nextFragmentStartTime.put(streamingTrack, Objects.requireNonNull(nextSampleStartTime.get(streamingTrack)));
+      Objects.requireNonNull(sampleBuffers.get(streamingTrack)).clear();
+    }
+
+    Log.d(TAG, "fragment " + mfhd.getSequenceNumber() + " written. tracks: " + tracks.size() + ", samples: " + samples.size() + ", mdat size: " + mdat.getSize());
+  }
+
+  private @NonNull Box createTraf(final @NonNull StreamingTrack streamingTrack, final @NonNull TrackRunBox trun) {
+    final TrackFragmentBox traf = new TrackFragmentBox();
+
+    final TrackFragmentHeaderBox tfhd = new TrackFragmentHeaderBox();
+    tfhd.setTrackId(streamingTrack.getTrackExtension(TrackIdTrackExtension.class).getTrackId());
+    tfhd.setDefaultBaseIsMoof(true);
+    traf.addBox(tfhd);
+
+    final TrackFragmentBaseMediaDecodeTimeBox tfdt = new TrackFragmentBaseMediaDecodeTimeBox();
+    tfdt.setVersion(1);
+    tfdt.setBaseMediaDecodeTime(Objects.requireNonNull(nextFragmentStartTime.get(streamingTrack)));
+    traf.addBox(tfdt);
+
+    traf.addBox(trun);
+    return traf;
+  }
+
+  private @NonNull TrackRunBox createTrun(final @NonNull StreamingTrack streamingTrack, final @NonNull List<StreamingSample> samples) {
+    final boolean compositionTimes = streamingTrack.getTrackExtension(CompositionTimeTrackExtension.class) != null;
+
+    final TrackRunBox trun = new TrackRunBox();
+    trun.setDataOffsetPresent(true);
+    trun.setSampleDurationPresent(true);
+    trun.setSampleSizePresent(true);
+    trun.setSampleFlagsPresent(true);
+    trun.setSampleCompositionTimeOffsetPresent(compositionTimes);
+
+    final List<TrackRunBox.Entry> entries = new ArrayList<>(samples.size());
+    for (StreamingSample sample : samples) {
+      final SampleFlags sampleFlags = new SampleFlags();
+      sampleFlags.setSampleIsDifferenceSample(!isSyncSample(sample));
+
+      final SampleFlagsSampleExtension sampleFlagsSampleExtension = sample.getSampleExtension(SampleFlagsSampleExtension.class);
+      if (sampleFlagsSampleExtension != null) {
+        sampleFlags.setSampleDependsOn(sampleFlagsSampleExtension.getSampleDependsOn());
+        sampleFlags.setSampleIsDependedOn(sampleFlagsSampleExtension.getSampleIsDependedOn());
+      }
+
+      int compositionTimeOffset = 0;
+      if (compositionTimes) {
+        final CompositionTimeSampleExtension compositionTimeSampleExtension = sample.getSampleExtension(CompositionTimeSampleExtension.class);
+        if (compositionTimeSampleExtension != null) {
+          compositionTimeOffset = l2i(compositionTimeSampleExtension.getCompositionTimeOffset());
+        }
+        if (compositionTimeOffset < 0) {
+          trun.setVersion(1);
+        }
+      }
+
+      entries.add(new TrackRunBox.Entry(sample.getDuration(), sample.getContent().limit(), sampleFlags, compositionTimeOffset));
+    }
+    trun.setEntries(entries);
+
+    return trun;
+  }
+
+  private static boolean isSyncSample(final @NonNull StreamingSample sample) {
+    final SampleFlagsSampleExtension sampleFlagsSampleExtension = sample.getSampleExtension(SampleFlagsSampleExtension.class);
+    return sampleFlagsSampleExtension == null || sampleFlagsSampleExtension.isSyncSample();
+  }
+
+  private @NonNull Box createMoov() {
+    final MovieBox movieBox = new MovieBox();
+    movieBox.addBox(createMvhd());
+
+    final MovieExtendsBox mvex = new MovieExtendsBox();
+    for (StreamingTrack streamingTrack : source) {
+      movieBox.addBox(createTrak(streamingTrack));
+
+      final TrackExtendsBox trex = new TrackExtendsBox();
+      trex.setTrackId(streamingTrack.getTrackExtension(TrackIdTrackExtension.class).getTrackId());
+      trex.setDefaultSampleDescriptionIndex(1);
+      trex.setDefaultSampleFlags(new SampleFlags());
+      mvex.addBox(trex);
+    }
+    movieBox.addBox(mvex);
+
+    return movieBox;
+  }
+
+  @Override
+  protected @NonNull MovieHeaderBox createMvhd() {
+    final MovieHeaderBox mvhd = new MovieHeaderBox();
+    mvhd.setVersion(1);
+    mvhd.setCreationTime(creationTime);
+    mvhd.setModificationTime(creationTime);
+
+    long[] timescales = new long[0];
+    long   maxTrackId = 0;
+    for (StreamingTrack streamingTrack : source) {
+      timescales = Mp4Arrays.copyOfAndAppend(timescales, streamingTrack.getTimescale());
+      maxTrackId = Math.max(streamingTrack.getTrackExtension(TrackIdTrackExtension.class).getTrackId(), maxTrackId);
+    }
+
+    mvhd.setTimescale(Mp4Math.lcm(timescales));
+    // the duration is unknown up front and is implied by the fragments
+    mvhd.setDuration(0);
+    mvhd.setNextTrackId(maxTrackId + 1);
+    return mvhd;
+  }
+
+  @Override
+  protected @NonNull Box createMdhd(final @NonNull StreamingTrack streamingTrack) {
+    final MediaHeaderBox mdhd = new MediaHeaderBox();
+    mdhd.setCreationTime(creationTime);
+    mdhd.setModificationTime(creationTime);
+    mdhd.setDuration(0);
+    mdhd.setTimescale(streamingTrack.getTimescale());
+    mdhd.setLanguage(streamingTrack.getLanguage());
+    return mdhd;
+  }
+
+  private void write(Box... boxes) throws IOException {
+    for (Box box : boxes) {
+      box.getBox(sink);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import org.mp4parser.Box;
+import org.mp4parser.streaming.StreamingSample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An mdat box holding the content of a run of samples.
+ * <p>
+ * The sample content is never copied. Each sample buffer is duplicated, so its position is left
+ * untouched, and the header and samples are handed to the channel as one gathering write.
+ */
+final class MdatBox implements Box {
+
+  private static final int HEADER_SIZE = 8;
+
+  private final List<StreamingSample> samples;
+  private final long                  size;
+
+  MdatBox(@NonNull List<StreamingSample> samples) {
+    this.samples = new ArrayList<>(samples);
+
+    long size = HEADER_SIZE;
+    for (StreamingSample sample : samples) {
+      size += sample.getContent().limit();
+    }
+    this.size = size;
+  }
+
+  @Override
+  public String getType() {
+    return "mdat";
+  }
+
+  @Override
+  public long getSize() {
+    return size;
+  }
+
+  @Override
+  public void getBox(WritableByteChannel writableByteChannel) throws IOException {
+    final ByteBuffer[] buffers = new ByteBuffer[samples.size() + 1];
+
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt((int) size);
+    header.putInt(0x6d646174); // mdat
+    header.flip();
+    buffers[0] = header;
+
+    for (int i = 0; i < samples.size(); i++) {
+      buffers[i + 1] = (ByteBuffer) samples.get(i).getContent().duplicate().rewind();
+    }
+
+    if (writableByteChannel instanceof GatheringByteChannel) {
+      final GatheringByteChannel channel   = (GatheringByteChannel) writableByteChannel;
+      long                       remaining = size;
+      while (remaining > 0) {
+        remaining -= channel.write(buffers);
+      }
+    } else {
+      for (ByteBuffer buffer : buffers) {
+        while (buffer.hasRemaining()) {
+          writableByteChannel.write(buffer);
+        }
+      }
+    }
+  }
+}
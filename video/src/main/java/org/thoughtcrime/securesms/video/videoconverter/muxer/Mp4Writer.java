@@ -48,8 +48,8 @@ import org.mp4parser.tools.Mp4Math;
 import org.mp4parser.tools.Path;
 import org.signal.core.util.logging.Log;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -71,7 +71,7 @@ import static org.mp4parser.tools.CastUtils.l2i;
  * data while the <code>sink</code> receives it. (in contrast to typical implementations which need random
  * access to write length fields at the beginning of the file)
  */
-final class Mp4Writer extends DefaultBoxes implements SampleSink {
+final class Mp4Writer extends DefaultBoxes implements SampleSink, Closeable {
 
   private static final String TAG = "Mp4Writer";
 
@@ -297,7 +297,7 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
     chunkNumbers.put(streamingTrack, chunkNumber + 1);
     final ChunkContainer cc = new ChunkContainer();
     cc.streamingTrack = streamingTrack;
-    cc.mdat           = new Mdat(samples);
+    cc.mdat           = new MdatBox(samples);
     cc.duration       = Objects.requireNonNull(nextSampleStartTime.get(streamingTrack)) - Objects.requireNonNull(nextChunkCreateStartTime.get(streamingTrack));
     final TrackBox         tb   = trackBoxes.get(streamingTrack);
     final SampleTableBox   stbl = Objects.requireNonNull(Path.getPath(tb, "mdia[0]/minf[0]/stbl[0]"));
@@ -364,7 +364,7 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
 
     sampleNumbers.put(streamingTrack, sampleNumber);
     samples.clear();
-    Log.d(TAG, "chunk container created for " + streamingTrack.getHandler() + ". mdat size: " + cc.mdat.size + ". chunk duration is " + (double) cc.duration / streamingTrack.getTimescale());
+    Log.d(TAG, "chunk container created for " + streamingTrack.getHandler() + ". mdat size: " + cc.mdat.getSize() + ". chunk duration is " + (double) cc.duration / streamingTrack.getTimescale());
     return cc;
   }
 
@@ -378,46 +378,8 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
     return mdhd;
   }
 
-  private class Mdat implements Box {
-    final ArrayList<StreamingSample> samples;
-    long size;
-
-    Mdat(final @NonNull List<StreamingSample> samples) {
-      this.samples = new ArrayList<>(samples);
-      size         = 8;
-      for (StreamingSample sample : samples) {
-        size += sample.getContent().limit();
-      }
-    }
-
-    @Override
-    public String getType() {
-      return "mdat";
-    }
-
-    @Override
-    public long getSize() {
-      return size;
-    }
-
-    @Override
-    public void getBox(WritableByteChannel writableByteChannel) throws IOException {
-      writableByteChannel.write(ByteBuffer.wrap(new byte[]{
-              (byte) ((size & 0xff000000) >> 24),
-              (byte) ((size & 0xff0000) >> 16),
-              (byte) ((size & 0xff00) >> 8),
-              (byte) ((size & 0xff)),
-              109, 100, 97, 116, // mdat
-
-      }));
-      for (StreamingSample sample : samples) {
-        writableByteChannel.write((ByteBuffer) sample.getContent().rewind());
-      }
-    }
-  }
-
   private class ChunkContainer {
-    Mdat           mdat;
+    MdatBox        mdat;
     StreamingTrack streamingTrack;
     long           duration;
   }
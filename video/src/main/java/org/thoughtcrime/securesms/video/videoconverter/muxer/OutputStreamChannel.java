@@ -0,0 +1,82 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A {@link GatheringByteChannel} over an {@link OutputStream}.
+ * <p>
+ * Unlike {@link java.nio.channels.Channels#newChannel(OutputStream)}, heap buffers are written straight
+ * from their backing array rather than being copied through an intermediate buffer first. Only direct
+ * buffers are copied, through a single transfer array that is reused for the lifetime of the channel.
+ */
+final class OutputStreamChannel implements GatheringByteChannel {
+
+  private static final int TRANSFER_SIZE = 64 * 1024;
+
+  private final OutputStream outputStream;
+
+  private byte[]  transferBuffer;
+  private boolean open = true;
+
+  OutputStreamChannel(@NonNull OutputStream outputStream) {
+    this.outputStream = outputStream;
+  }
+
+  @Override
+  public int write(@NonNull ByteBuffer src) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+
+    final int length = src.remaining();
+
+    if (src.hasArray()) {
+      outputStream.write(src.array(), src.arrayOffset() + src.position(), length);
+      src.position(src.limit());
+    } else {
+      if (transferBuffer == null) {
+        transferBuffer = new byte[TRANSFER_SIZE];
+      }
+      while (src.hasRemaining()) {
+        final int count = Math.min(src.remaining(), transferBuffer.length);
+        src.get(transferBuffer, 0, count);
+        outputStream.write(transferBuffer, 0, count);
+      }
+    }
+
+    return length;
+  }
+
+  @Override
+  public long write(@NonNull ByteBuffer[] srcs, int offset, int length) throws IOException {
+    long written = 0;
+    for (int i = offset; i < offset + length; i++) {
+      written += write(srcs[i]);
+    }
+    return written;
+  }
+
+  @Override
+  public long write(@NonNull ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (open) {
+      open = false;
+      outputStream.close();
+    }
+  }
+}
@@ -8,21 +8,31 @@ import androidx.annotation.NonNull;
 import org.mp4parser.streaming.StreamingTrack;
 import org.thoughtcrime.securesms.video.videoconverter.Muxer;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.List;
 
 public final class StreamingMuxer implements Muxer {
 
   private final OutputStream          outputStream;
+  private final boolean               fragmented;
   private final List<MediaCodecTrack> tracks = new ArrayList<>();
-  private       Mp4Writer             mp4Writer;
+  private       Closeable             mp4Writer;
 
   public StreamingMuxer(OutputStream outputStream) {
+    this(outputStream, false);
+  }
+
+  /**
+   * @param fragmented If true, writes a fragmented MP4 where each fragment is written to the stream as soon
+   *                   as it is complete. Otherwise, the moov is only written when the muxer is stopped.
+   */
+  public StreamingMuxer(OutputStream outputStream, boolean fragmented) {
     this.outputStream = outputStream;
+    this.fragmented   = fragmented;
   }
 
   @Override
@@ -31,7 +41,12 @@ public final class StreamingMuxer implements Muxer {
     for (MediaCodecTrack track : tracks) {
       source.add((StreamingTrack) track);
     }
-    mp4Writer = new Mp4Writer(source, Channels.newChannel(outputStream));
+    final OutputStreamChannel channel = new OutputStreamChannel(outputStream);
+    if (fragmented) {
+      mp4Writer = new FragmentedMp4Writer(source, channel);
+    } else {
+      mp4Writer = new Mp4Writer(source, channel);
+    }
   }
 
   @Override
@@ -0,0 +1,351 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mp4parser.Box;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part12.ChunkOffsetBox;
+import org.mp4parser.boxes.iso14496.part12.MovieBox;
+import org.mp4parser.boxes.iso14496.part12.MovieExtendsBox;
+import org.mp4parser.boxes.iso14496.part12.MovieFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.MovieFragmentHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.SampleDescriptionBox;
+import org.mp4parser.boxes.iso14496.part12.SampleSizeBox;
+import org.mp4parser.boxes.iso14496.part12.TrackBox;
+import org.mp4parser.boxes.iso14496.part12.TrackExtendsBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentBaseMediaDecodeTimeBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.TrackRunBox;
+import org.mp4parser.boxes.sampleentry.VisualSampleEntry;
+import org.mp4parser.streaming.extensions.SampleFlagsSampleExtension;
+import org.mp4parser.streaming.input.AbstractStreamingTrack;
+import org.mp4parser.streaming.input.StreamingSampleImpl;
+import org.mp4parser.tools.Path;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class FragmentedMp4WriterTest {
+
+  private static final int VIDEO_TRACK_ID = 1;
+  private static final int AUDIO_TRACK_ID = 2;
+
+  @Test
+  public void givenVideoAndAudio_whenIMux_thenIExpectAFragmentPerKeyFrameInterval() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SyntheticVideoTrack   video  = new SyntheticVideoTrack();
+    SyntheticAudioTrack   audio  = new SyntheticAudioTrack();
+
+    FragmentedMp4Writer writer = new FragmentedMp4Writer(Arrays.asList(video, audio), new OutputStreamChannel(output));
+    muxInterleaved(video, audio, 90, 30);
+    writer.close();
+
+    byte[]    bytes = output.toByteArray();
+    List<Box> boxes = parse(bytes);
+
+    assertEquals("ftyp", boxes.get(0).getType());
+    assertEquals("moov", boxes.get(1).getType());
+    assertEquals(2 + 3 * 2, boxes.size());
+
+    MovieBox moov = (MovieBox) boxes.get(1);
+    assertEquals(2, moov.getBoxes(TrackBox.class).size());
+    MovieExtendsBox       mvex  = Path.getPath(moov, "mvex[0]");
+    List<TrackExtendsBox> trexs = mvex.getBoxes(TrackExtendsBox.class);
+    assertEquals(VIDEO_TRACK_ID, trexs.get(0).getTrackId());
+    assertEquals(AUDIO_TRACK_ID, trexs.get(1).getTrackId());
+
+    Map<Long, List<byte[]>> samplesByTrack = readFragments(bytes, boxes);
+
+    assertSamplesEqual(video.samples, samplesByTrack.get((long) VIDEO_TRACK_ID));
+    assertSamplesEqual(audio.samples, samplesByTrack.get((long) AUDIO_TRACK_ID));
+  }
+
+  @Test
+  public void givenVideoAndAudio_whenIMux_thenIExpectEachFragmentToStartWithAKeyFrame() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SyntheticVideoTrack   video  = new SyntheticVideoTrack();
+    SyntheticAudioTrack   audio  = new SyntheticAudioTrack();
+
+    FragmentedMp4Writer writer = new FragmentedMp4Writer(Arrays.asList(video, audio), new OutputStreamChannel(output));
+    muxInterleaved(video, audio, 100, 45);
+    writer.close();
+
+    byte[]    bytes = output.toByteArray();
+    List<Box> boxes = parse(bytes);
+
+    long videoDecodeTime = 0;
+    for (MovieFragmentBox moof : getFragments(boxes)) {
+      TrackFragmentBox videoTraf = moof.getBoxes(TrackFragmentBox.class).get(0);
+      assertEquals(VIDEO_TRACK_ID, videoTraf.getTrackFragmentHeaderBox().getTrackId());
+
+      List<TrackRunBox.Entry> entries = getTrun(videoTraf).getEntries();
+      assertFalse(entries.get(0).getSampleFlags().isSampleIsDifferenceSample());
+
+      TrackFragmentBaseMediaDecodeTimeBox tfdt = Path.getPath(videoTraf, "tfdt[0]");
+      assertEquals(videoDecodeTime, tfdt.getBaseMediaDecodeTime());
+      for (TrackRunBox.Entry entry : entries) {
+        videoDecodeTime += entry.getSampleDuration();
+      }
+    }
+
+    assertEquals(100 * SyntheticVideoTrack.SAMPLE_DURATION, videoDecodeTime);
+    assertEquals(3, getFragments(boxes).size());
+  }
+
+  @Test
+  public void givenNoKeyFrames_whenIMux_thenIExpectFragmentsToBeCappedInDuration() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SyntheticVideoTrack   video  = new SyntheticVideoTrack();
+
+    FragmentedMp4Writer writer = new FragmentedMp4Writer(Arrays.asList(video), new OutputStreamChannel(output));
+    for (int i = 0; i < 30 * 12; i++) {
+      video.emit(i, i == 0);
+    }
+    writer.close();
+
+    byte[]    bytes = output.toByteArray();
+    List<Box> boxes = parse(bytes);
+
+    List<MovieFragmentBox> fragments = getFragments(boxes);
+    assertEquals(3, fragments.size());
+    assertEquals(150, getTrun(fragments.get(0).getBoxes(TrackFragmentBox.class).get(0)).getSampleCount());
+    assertEquals(150, getTrun(fragments.get(1).getBoxes(TrackFragmentBox.class).get(0)).getSampleCount());
+    assertEquals(60, getTrun(fragments.get(2).getBoxes(TrackFragmentBox.class).get(0)).getSampleCount());
+
+    assertSamplesEqual(video.samples, readFragments(bytes, boxes).get((long) VIDEO_TRACK_ID));
+  }
+
+  @Test
+  public void givenNonFragmentedWriter_whenIMux_thenIExpectChunkOffsetsToPointAtSampleData() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SyntheticVideoTrack   video  = new SyntheticVideoTrack();
+
+    Mp4Writer writer = new Mp4Writer(Arrays.asList(video), new OutputStreamChannel(output));
+    for (int i = 0; i < 100; i++) {
+      video.emit(i, i % 30 == 0);
+    }
+    writer.close();
+
+    byte[]    bytes = output.toByteArray();
+    List<Box> boxes = parse(bytes);
+
+    assertEquals("ftyp", boxes.get(0).getType());
+    assertEquals("mdat", boxes.get(1).getType());
+    assertEquals("moov", boxes.get(boxes.size() - 1).getType());
+
+    TrackBox       trak         = ((MovieBox) boxes.get(boxes.size() - 1)).getBoxes(TrackBox.class).get(0);
+    ChunkOffsetBox stco         = Path.getPath(trak, "mdia[0]/minf[0]/stbl[0]/stco[0]");
+    SampleSizeBox  stsz         = Path.getPath(trak, "mdia[0]/minf[0]/stbl[0]/stsz[0]");
+    long[]         chunkOffsets = stco.getChunkOffsets();
+    int            mdatIndex    = 1;
+    int            sample       = 0;
+
+    for (long chunkOffset : chunkOffsets) {
+      Box mdat = boxes.get(mdatIndex++);
+      assertEquals("mdat", mdat.getType());
+
+      long offset = chunkOffset;
+      while (offset < chunkOffset + mdat.getSize() - 8) {
+        int size = (int) stsz.getSampleSizeAtIndex(sample);
+        assertArrayEquals(video.samples.get(sample), Arrays.copyOfRange(bytes, (int) offset, (int) offset + size));
+        offset += size;
+        sample++;
+      }
+    }
+
+    assertEquals(100, sample);
+  }
+
+  /**
+   * Feeds both tracks in decode time order, as the encoders would. Every {@code keyFrameInterval}th
+   * video sample is a sync sample.
+   */
+  private static void muxInterleaved(@NonNull SyntheticVideoTrack video, @NonNull SyntheticAudioTrack audio, int videoSamples, int keyFrameInterval) throws IOException {
+    int audioSample = 0;
+    for (int i = 0; i < videoSamples; i++) {
+      double videoTime = i * (double) SyntheticVideoTrack.SAMPLE_DURATION / video.getTimescale();
+      while (audioSample * 1024.0 / audio.getTimescale() <= videoTime) {
+        audio.emit(audioSample++);
+      }
+      video.emit(i, i % keyFrameInterval == 0);
+    }
+  }
+
+  private static @NonNull List<Box> parse(@NonNull byte[] bytes) throws IOException {
+    return new IsoFile(Channels.newChannel(new ByteArrayInputStream(bytes))).getBoxes();
+  }
+
+  private static @NonNull List<MovieFragmentBox> getFragments(@NonNull List<Box> boxes) {
+    List<MovieFragmentBox> fragments = new ArrayList<>();
+    for (Box box : boxes) {
+      if (box instanceof MovieFragmentBox) {
+        fragments.add((MovieFragmentBox) box);
+      }
+    }
+    return fragments;
+  }
+
+  private static @NonNull TrackRunBox getTrun(@NonNull TrackFragmentBox traf) {
+    return traf.getBoxes(TrackRunBox.class).get(0);
+  }
+
+  /**
+   * Checks that every moof is followed by an mdat with consecutive sequence numbers, and reads the
+   * sample data of every fragment using the trun data offsets.
+   */
+  private static @NonNull Map<Long, List<byte[]>> readFragments(@NonNull byte[] bytes, @NonNull List<Box> boxes) {
+    Map<Long, List<byte[]>> samplesByTrack = new HashMap<>();
+
+    long offset         = boxes.get(0).getSize() + boxes.get(1).getSize();
+    long sequenceNumber = 1;
+
+    for (int i = 2; i < boxes.size(); i += 2) {
+      MovieFragmentBox moof = (MovieFragmentBox) boxes.get(i);
+      Box              mdat = boxes.get(i + 1);
+
+      assertEquals("mdat", mdat.getType());
+      assertEquals(sequenceNumber++, moof.getBoxes(MovieFragmentHeaderBox.class).get(0).getSequenceNumber());
+
+      long expectedDataOffset = moof.getSize() + 8;
+      long fragmentDataSize   = 0;
+
+      for (TrackFragmentBox traf : moof.getBoxes(TrackFragmentBox.class)) {
+        TrackFragmentHeaderBox tfhd = traf.getTrackFragmentHeaderBox();
+        TrackRunBox            trun = getTrun(traf);
+
+        assertTrue(tfhd.isDefaultBaseIsMoof());
+        assertEquals(expectedDataOffset, trun.getDataOffset());
+
+        List<byte[]> samples = samplesByTrack.get(tfhd.getTrackId());
+        if (samples == null) {
+          samples = new ArrayList<>();
+          samplesByTrack.put(tfhd.getTrackId(), samples);
+        }
+
+        long sampleOffset = offset + trun.getDataOffset();
+        for (TrackRunBox.Entry entry : trun.getEntries()) {
+          samples.add(Arrays.copyOfRange(bytes, (int) sampleOffset, (int) (sampleOffset + entry.getSampleSize())));
+          sampleOffset       += entry.getSampleSize();
+          expectedDataOffset += entry.getSampleSize();
+          fragmentDataSize   += entry.getSampleSize();
+        }
+      }
+
+      assertEquals(fragmentDataSize + 8, mdat.getSize());
+      offset += moof.getSize() + mdat.getSize();
+    }
+
+    assertEquals(bytes.length, offset);
+    return samplesByTrack;
+  }
+
+  private static void assertSamplesEqual(@NonNull List<byte[]> expected, List<byte[]> actual) {
+    assertNotNull(actual);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals("sample " + i, expected.get(i), actual.get(i));
+    }
+  }
+
+  /**
+   * An AVC-like track at 30fps. Samples are backed by direct buffers, like those handed out by MediaCodec.
+   */
+  private static final class SyntheticVideoTrack extends AbstractStreamingTrack {
+
+    static final long SAMPLE_DURATION = 3000;
+
+    final List<byte[]> samples = new ArrayList<>();
+
+    private final SampleDescriptionBox stsd = new SampleDescriptionBox();
+
+    SyntheticVideoTrack() {
+      VisualSampleEntry visualSampleEntry = new VisualSampleEntry("avc1");
+      visualSampleEntry.setDataReferenceIndex(1);
+      visualSampleEntry.setWidth(320);
+      visualSampleEntry.setHeight(240);
+      stsd.addBox(visualSampleEntry);
+    }
+
+    void emit(int index, boolean sync) throws IOException {
+      byte[] content = new byte[100 + index % 50];
+      Arrays.fill(content, (byte) index);
+      samples.add(content);
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+      buffer.put(content);
+      buffer.flip();
+
+      SampleFlagsSampleExtension flags = new SampleFlagsSampleExtension();
+      flags.setSampleDependsOn(sync ? 2 : 1);
+      flags.setSampleIsNonSyncSample(!sync);
+
+      StreamingSampleImpl sample = new StreamingSampleImpl(buffer, SAMPLE_DURATION);
+      sample.addSampleExtension(flags);
+      sampleSink.acceptSample(sample, this);
+    }
+
+    @Override
+    public long getTimescale() {
+      return 90000;
+    }
+
+    @Override
+    public String getHandler() {
+      return "vide";
+    }
+
+    @Override
+    public String getLanguage() {
+      return "```";
+    }
+
+    @Override
+    public SampleDescriptionBox getSampleDescriptionBox() {
+      return stsd;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static final class SyntheticAudioTrack extends AacTrack {
+
+    final List<byte[]> samples = new ArrayList<>();
+
+    SyntheticAudioTrack() {
+      super(128000, 128000, 44100, 2, 2);
+    }
+
+    void emit(int index) throws IOException {
+      byte[] content = new byte[20 + index % 7];
+      Arrays.fill(content, (byte) (index ^ 0x55));
+      samples.add(content);
+
+      processSample(ByteBuffer.wrap(content));
+    }
+  }
+}